@@ -0,0 +1,18 @@
+package AbstractSyntax.Statements;
+
+import java.util.List;
+
+/* A sequence of statements, executed in order.
+ *
+ * The parser produces one Block per statement list instead of a left-deep
+ * chain of Comp nodes, so walking a long function is a loop rather than one
+ * level of recursion per statement.
+ */
+
+public class Block implements Stmt {
+    public List<Stmt> stmts;
+
+    public Block(List<Stmt> stmts) {
+        this.stmts = stmts;
+    }
+}
@@ -1,5 +1,8 @@
 package DataflowAnalysis;
 
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Expressions.TensorAccessExpr;
+import AbstractSyntax.Statements.Assign;
 import java.util.*;
 
 public class CFGAnalysis {
@@ -7,48 +10,105 @@ public class CFGAnalysis {
     public static class Liveness {
         public Set<String> in = new HashSet<>();
         public Set<String> out = new HashSet<>();
-    }
 
-    public static Map<String, Set<CFGBuilder.CFGNode>> computeUseDefChains(List<CFGBuilder.CFGNode> cfgNodes) {
-        Map<String, Set<CFGBuilder.CFGNode>> useDef = new HashMap<>();
-        for (CFGBuilder.CFGNode node : cfgNodes) {
-            for (String v : node.kill) {
-                useDef.computeIfAbsent(v, k -> new HashSet<>()).add(node);
-            }
+        public Liveness() {
         }
-        return useDef;
-    }
 
-    public static Map<CFGBuilder.CFGNode, Liveness> performLiveness(List<CFGBuilder.CFGNode> allNodes) {
-        Map<CFGBuilder.CFGNode, Liveness> liveness = new HashMap<>();
-        for (CFGBuilder.CFGNode node : allNodes) {
-            liveness.put(node, new Liveness());
+        public Liveness(Set<String> in, Set<String> out) {
+            this.in = in;
+            this.out = out;
         }
+    }
 
-        boolean changed;
-        do {
-            changed = false;
-            for (CFGBuilder.CFGNode node : allNodes) {
-                Liveness lv = liveness.get(node);
+    // For every node that uses variables: each used variable and the definitions that can reach the use.
+    // A definition is a node that declares or assigns the variable. Assigning one element of a tensor
+    // does not replace the tensor, so earlier definitions of it still reach past such an assignment.
+    public static Map<CFGBuilder.CFGNode, Map<String, Set<CFGBuilder.CFGNode>>> computeUseDefChains(List<CFGBuilder.CFGNode> cfgNodes) {
+        int n = cfgNodes.size();
+        DataflowSolver solver = new DataflowSolver(cfgNodes);
 
-                Set<String> newOut = new HashSet<>();
-                for (CFGBuilder.CFGNode succ : node.successors) {
-                    newOut.addAll(liveness.get(succ).in);
+        // Every (node, variable) pair a node defines is one definition, numbered in node order
+        List<CFGBuilder.CFGNode> definitionNodes = new ArrayList<>();
+        Map<String, BitSet> definitionsOf = new HashMap<>();
+        BitSet[] gen = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            gen[i] = new BitSet();
+            for (String v : cfgNodes.get(i).kill) {
+                int d = definitionNodes.size();
+                definitionNodes.add(cfgNodes.get(i));
+                gen[i].set(d);
+                definitionsOf.computeIfAbsent(v, k -> new BitSet()).set(d);
+            }
+        }
+
+        BitSet none = new BitSet();
+        BitSet[] kill = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            CFGBuilder.CFGNode node = cfgNodes.get(i);
+            if (!replacesValue(node) || node.kill.isEmpty()) {
+                kill[i] = none;
+            } else if (node.kill.size() == 1) {
+                // Shared with definitionsOf, the solver doesn't modify kill sets
+                kill[i] = definitionsOf.get(node.kill.iterator().next());
+            } else {
+                kill[i] = new BitSet();
+                for (String v : node.kill) {
+                    kill[i].or(definitionsOf.get(v));
                 }
+            }
+        }
 
-                Set<String> newIn = new HashSet<>(node.gen);
-                Set<String> outMinusKill = new HashSet<>(newOut);
-                outMinusKill.removeAll(node.kill);
-                newIn.addAll(outMinusKill);
+        DataflowSolver.Result reaching = solver.solve(DataflowSolver.Direction.FORWARD, gen, kill);
 
-                if (!newIn.equals(lv.in) || !newOut.equals(lv.out)) {
-                    lv.in = newIn;
-                    lv.out = newOut;
-                    changed = true;
+        Map<CFGBuilder.CFGNode, Map<String, Set<CFGBuilder.CFGNode>>> useDef = new LinkedHashMap<>();
+        BitSet reachingDefs = new BitSet();
+        for (int i = 0; i < n; i++) {
+            CFGBuilder.CFGNode node = cfgNodes.get(i);
+            if (node.gen.isEmpty()) {
+                continue;
+            }
+            Map<String, Set<CFGBuilder.CFGNode>> chains = new TreeMap<>();
+            for (String v : node.gen) {
+                Set<CFGBuilder.CFGNode> defs = new LinkedHashSet<>();
+                BitSet ofVariable = definitionsOf.get(v);
+                if (ofVariable != null) {
+                    reachingDefs.clear();
+                    reachingDefs.or(reaching.in[i]);
+                    reachingDefs.and(ofVariable);
+                    for (int d = reachingDefs.nextSetBit(0); d >= 0; d = reachingDefs.nextSetBit(d + 1)) {
+                        defs.add(definitionNodes.get(d));
+                    }
                 }
+                chains.put(v, defs);
             }
-        } while (changed);
+            useDef.put(node, chains);
+        }
+        return useDef;
+    }
+
+    // False for an assignment to a single tensor element
+    private static boolean replacesValue(CFGBuilder.CFGNode node) {
+        return !(node.astNode instanceof Assign assign && assign.target instanceof TensorAccessExpr);
+    }
+
+    // Assigning a tensor element keeps the other elements, so it doesn't end the liveness of the tensor
+    public static Map<CFGBuilder.CFGNode, Liveness> performLiveness(List<CFGBuilder.CFGNode> allNodes) {
+        int n = allNodes.size();
+        VariableIndex variables = new VariableIndex();
+        BitSet[] gen = new BitSet[n];
+        BitSet[] kill = new BitSet[n];
+        BitSet none = new BitSet();
+        for (int i = 0; i < n; i++) {
+            gen[i] = variables.bits(allNodes.get(i).gen);
+            kill[i] = replacesValue(allNodes.get(i)) ? variables.bits(allNodes.get(i).kill) : none;
+        }
+
+        DataflowSolver.Result result = new DataflowSolver(allNodes).solve(DataflowSolver.Direction.BACKWARD, gen, kill);
 
+        Map<CFGBuilder.CFGNode, Liveness> liveness = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            liveness.put(allNodes.get(i), new Liveness(variables.asSet(result.in[i]), variables.asSet(result.out[i])));
+        }
         return liveness;
     }
 
@@ -69,14 +129,9 @@ public class CFGAnalysis {
         return optimized;
     }
 
-    public static void insertMemoryTransfers(List<CFGBuilder.CFGNode> nodes) {
-        CFGBuilder.CFGNode prev = null;
-        for (CFGBuilder.CFGNode node : nodes) {
-            if (prev != null && prev.inGPUContext != node.inGPUContext) {
-                System.out.println("[MEM_TRANSFER] Between node " + prev.id + " and " + node.id +
-                        ": " + (node.inGPUContext ? "CPU -> GPU" : "GPU -> CPU"));
-            }
-            prev = node;
-        }
+    // Allocations, uploads, downloads and frees of the tensors the kernels of func use
+    public static TransferPlan planMemoryTransfers(FuncDef func, List<CFGBuilder.CFGNode> nodes,
+                                                   Map<CFGBuilder.CFGNode, Liveness> liveness) {
+        return TransferPlan.build(func, nodes, liveness);
     }
 }
@@ -58,6 +58,27 @@ public class CFGBuilder {
             List<CFGNode> tailNodes = (secondRes.entry != null ? secondRes.tails : firstRes.tails);
             return new BuildResult(entryNode, tailNodes);
         }
+        if (s instanceof Block) {
+            // Same as a chain of Comp nodes, without recursing once per statement
+            Block block = (Block) s;
+            CFGNode entryNode = null;
+            List<CFGNode> tailNodes = new ArrayList<>();
+            for (Stmt stmt : block.stmts) {
+                BuildResult res = buildStmt(stmt);
+                if (res.entry == null) {
+                    continue;
+                }
+                if (entryNode == null) {
+                    entryNode = res.entry;
+                } else {
+                    for (CFGNode tail : tailNodes) {
+                        tail.successors.add(res.entry);
+                    }
+                }
+                tailNodes = res.tails;
+            }
+            return new BuildResult(entryNode, tailNodes);
+        }
         if (s instanceof If) {
             
             If ifStmt = (If) s;
@@ -177,7 +198,7 @@ public class CFGBuilder {
         return new BuildResult(node, Collections.singletonList(node));
     }
 
-    private void collectUses(Expr expr, Set<String> uses) {
+    static void collectUses(Expr expr, Set<String> uses) {
         if (expr == null) return;
         if (expr instanceof Ident) {
             Ident idExpr = (Ident) expr;
@@ -0,0 +1,165 @@
+package DataflowAnalysis;
+
+import java.util.*;
+
+/*
+ * Worklist solver for gen/kill dataflow problems on the CFG of one function.
+ *
+ * Nodes are numbered by their position in the node list, and facts are BitSets
+ * over whatever numbering the problem chooses (variables, definitions, ...).
+ * The meet is union, which covers liveness and reaching definitions.
+ *
+ * Forward problems visit nodes in reverse postorder and backward problems in
+ * postorder, so most facts are final after one pass. A node is only visited
+ * again when a node it depends on changed its result.
+ */
+public final class DataflowSolver {
+    public enum Direction { FORWARD, BACKWARD }
+
+    private final List<CFGBuilder.CFGNode> nodes;
+    private final Map<CFGBuilder.CFGNode, Integer> index;
+    private final int[][] successors;
+    private final int[][] predecessors;
+    private final int[] postorder;
+
+    // Facts at the entry (in) and exit (out) of every node, indexed like the node list
+    public static class Result {
+        public final BitSet[] in;
+        public final BitSet[] out;
+
+        Result(BitSet[] in, BitSet[] out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    public DataflowSolver(List<CFGBuilder.CFGNode> nodes) {
+        this.nodes = nodes;
+        int n = nodes.size();
+        index = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            index.put(nodes.get(i), i);
+        }
+
+        successors = new int[n][];
+        int[] predecessorCount = new int[n];
+        for (int i = 0; i < n; i++) {
+            List<CFGBuilder.CFGNode> succs = nodes.get(i).successors;
+            successors[i] = new int[succs.size()];
+            for (int j = 0; j < succs.size(); j++) {
+                int s = indexOf(succs.get(j));
+                successors[i][j] = s;
+                predecessorCount[s]++;
+            }
+        }
+        predecessors = new int[n][];
+        for (int i = 0; i < n; i++) {
+            predecessors[i] = new int[predecessorCount[i]];
+            predecessorCount[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int s : successors[i]) {
+                predecessors[s][predecessorCount[s]++] = i;
+            }
+        }
+        postorder = postorder();
+    }
+
+    public int indexOf(CFGBuilder.CFGNode node) {
+        Integer i = index.get(node);
+        if (i == null) {
+            throw new IllegalArgumentException("Node " + node.id + " is not part of the analysed CFG");
+        }
+        return i;
+    }
+
+    // gen and kill are indexed like the node list and are only read, so they may share BitSets
+    public Result solve(Direction direction, BitSet[] gen, BitSet[] kill) {
+        int n = nodes.size();
+        boolean forward = direction == Direction.FORWARD;
+        BitSet[] in = new BitSet[n];
+        BitSet[] out = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            in[i] = new BitSet();
+            out[i] = new BitSet();
+        }
+
+        // order[k] is the k-th node to visit, position is its inverse
+        int[] order = new int[n];
+        int[] position = new int[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = forward ? postorder[n - 1 - k] : postorder[k];
+            position[order[k]] = k;
+        }
+        int[][] sources = forward ? predecessors : successors;
+        int[][] dependents = forward ? successors : predecessors;
+        BitSet[] meets = forward ? in : out;
+        BitSet[] results = forward ? out : in;
+
+        BitSet pending = new BitSet(n);
+        pending.set(0, n);
+        BitSet scratch = new BitSet();
+        int cursor = 0;
+        while (!pending.isEmpty()) {
+            int k = pending.nextSetBit(cursor);
+            if (k < 0) {
+                k = pending.nextSetBit(0);
+            }
+            pending.clear(k);
+            cursor = k + 1;
+
+            int node = order[k];
+            BitSet meet = meets[node];
+            meet.clear();
+            for (int s : sources[node]) {
+                meet.or(results[s]);
+            }
+
+            scratch.clear();
+            scratch.or(meet);
+            scratch.andNot(kill[node]);
+            scratch.or(gen[node]);
+            if (!scratch.equals(results[node])) {
+                BitSet changed = results[node];
+                results[node] = scratch;
+                scratch = changed;
+                for (int d : dependents[node]) {
+                    pending.set(position[d]);
+                }
+            }
+        }
+        return new Result(in, out);
+    }
+
+    // Iterative depth first search from the entry (the first node), then from any node it didn't reach
+    private int[] postorder() {
+        int n = nodes.size();
+        int[] result = new int[n];
+        int count = 0;
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n];
+        int[] nextChild = new int[n];
+        for (int root = 0; root < n; root++) {
+            if (visited[root]) {
+                continue;
+            }
+            int depth = 0;
+            stack[depth++] = root;
+            visited[root] = true;
+            while (depth > 0) {
+                int node = stack[depth - 1];
+                if (nextChild[node] < successors[node].length) {
+                    int succ = successors[node][nextChild[node]++];
+                    if (!visited[succ]) {
+                        visited[succ] = true;
+                        stack[depth++] = succ;
+                    }
+                } else {
+                    depth--;
+                    result[count++] = node;
+                }
+            }
+        }
+        return result;
+    }
+}
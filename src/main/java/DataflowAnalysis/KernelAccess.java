@@ -0,0 +1,125 @@
+package DataflowAnalysis;
+
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import java.util.*;
+
+// Variables the kernel of a defer block reads and writes, so transfers can skip what the kernel doesn't need
+public class KernelAccess {
+    public final Set<String> reads = new HashSet<>();
+    public final Set<String> writes = new HashSet<>();
+    public final Set<String> fullyWritten = new HashSet<>(); // every element is written, old contents are not needed
+
+    // A tensor that is written but not read still needs its old contents unless all of them are overwritten
+    public boolean needsUpload(String var) {
+        return reads.contains(var) || !fullyWritten.contains(var);
+    }
+
+    public boolean needsDownload(String var) {
+        return writes.contains(var);
+    }
+
+    public boolean uses(String var) {
+        return reads.contains(var) || writes.contains(var);
+    }
+
+    // Read and write sets of a defer body, types gives the tensors it can fully write
+    public static KernelAccess of(Defer df, Map<String, Type> types) {
+        KernelAccess access = new KernelAccess();
+        collectAccesses(df.stmt, access);
+
+        // A tensor is fully written by a top-level store indexed by the thread variables, in order, over a
+        // thread grid of the same literal size as the tensor. A size variable may have been assigned since the
+        // tensor was declared. Stores inside if and while may not happen.
+        List<Stmt> topLevel = df.stmt instanceof Block block ? block.stmts : Collections.singletonList(df.stmt);
+        for (Stmt stmt : topLevel) {
+            if (stmt instanceof Assign assign && assign.target instanceof TensorAccessExpr tae
+                    && tae.listExpr instanceof Ident ident
+                    && types.get(ident.name) instanceof TensorType tt
+                    && coversTensor(df, tae, tt)) {
+                access.fullyWritten.add(ident.name);
+            }
+        }
+        return access;
+    }
+
+    private static boolean coversTensor(Defer df, TensorAccessExpr tae, TensorType tt) {
+        if (tae.indices.size() != df.dim.size() || tt.dimensions.size() != df.dim.size()) {
+            return false;
+        }
+        for (int axis = 0; axis < df.dim.size(); axis++) {
+            Pair<String, SizeParam> dim = df.dim.get(axis);
+            if (!(tae.indices.get(axis) instanceof Ident index) || !index.name.equals(dim.elem1)
+                    || !(dim.elem2 instanceof SPInt extent) || !sameSize(extent, tt.dimensions.get(axis))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean sameSize(SizeParam a, SizeParam b) {
+        if (a instanceof SPInt x && b instanceof SPInt y) {
+            return x.value == y.value;
+        }
+        return a instanceof SPIdent x && b instanceof SPIdent y && x.ident.equals(y.ident);
+    }
+
+    private static void collectAccesses(Stmt stmt, KernelAccess access) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Declaration decl:
+                CFGBuilder.collectUses(decl.expr, access.reads);
+                collectAccesses(decl.stmt, access);
+                break;
+
+            case Assign assign:
+                CFGBuilder.collectUses(assign.expr, access.reads);
+                if (assign.target instanceof Ident target) {
+                    access.writes.add(target.name);
+                } else if (assign.target instanceof TensorAccessExpr tae) {
+                    if (tae.listExpr instanceof Ident target) {
+                        access.writes.add(target.name);
+                    } else {
+                        CFGBuilder.collectUses(tae.listExpr, access.reads);
+                    }
+                    for (Expr index : tae.indices) {
+                        CFGBuilder.collectUses(index, access.reads);
+                    }
+                }
+                break;
+
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collectAccesses(s, access);
+                }
+                break;
+
+            case Comp comp:
+                collectAccesses(comp.stmt1, access);
+                collectAccesses(comp.stmt2, access);
+                break;
+
+            case If ifStmt:
+                CFGBuilder.collectUses(ifStmt.cond, access.reads);
+                collectAccesses(ifStmt.then, access);
+                collectAccesses(ifStmt.els, access);
+                break;
+
+            case While whileStmt:
+                CFGBuilder.collectUses(whileStmt.cond, access.reads);
+                collectAccesses(whileStmt.stmt, access);
+                break;
+
+            case Defer defer:
+                collectAccesses(defer.stmt, access);
+                break;
+
+            default:
+                break;
+        }
+    }
+}
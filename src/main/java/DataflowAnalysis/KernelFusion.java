@@ -0,0 +1,485 @@
+package DataflowAnalysis;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import java.util.*;
+
+/*
+ * Vertical fusion of adjacent defer blocks.
+ *
+ * Two defer blocks next to each other in a statement list, with the same thread
+ * variables over the same sizes, become one defer that runs the first body and
+ * then the second in every thread. This only keeps the meaning of the program if
+ * no thread needs what another thread did in the first kernel, so a variable that
+ * both bodies use and one of them writes must be a tensor, indexed by the thread
+ * variables in order everywhere in both bodies. Scalars a kernel assigns are local
+ * to the thread, so sharing one blocks fusion as well.
+ *
+ * A tensor that a fused kernel writes completely before it reads it, and that is
+ * dead after the kernel, only carries values from one part of the body to the next
+ * within a thread. It becomes a local variable of the kernel and is no longer kept
+ * on the device.
+ */
+public class KernelFusion {
+
+    // Fuses the adjacent defers of func in place, returns the defers that replaced them
+    public static List<Defer> fuseAdjacentDefers(FuncDef func) {
+        Map<String, Type> tensors = tensorTypes(func);
+        List<Defer> fused = new ArrayList<>();
+        fuseIn(func.funcBody, tensors, fused);
+        return fused;
+    }
+
+    // Replaces the dead intermediate tensors of the fused defers by kernel locals, nodes and
+    // liveness are of the function after fusion. Returns whether a tensor was replaced.
+    public static boolean eliminateIntermediates(FuncDef func, List<Defer> fused, List<CFGBuilder.CFGNode> nodes,
+                                                 Map<CFGBuilder.CFGNode, CFGAnalysis.Liveness> liveness) {
+        if (fused.isEmpty()) return false;
+
+        Map<String, Type> tensors = tensorTypes(func);
+        Set<String> names = new HashSet<>();
+        if (func.formalParams != null) {
+            for (Pair<Type, String> param : func.formalParams) {
+                names.add(param.elem2);
+            }
+        }
+        collectNames(func.funcBody, names, names);
+
+        boolean changed = false;
+        for (Defer defer : fused) {
+            Set<String> liveAfter = liveAfter(defer, nodes, liveness);
+            KernelAccess access = KernelAccess.of(defer, tensors);
+            List<String> threadVars = threadVars(defer);
+            List<Stmt> body = ((Block) defer.stmt).stmts;
+
+            for (String var : new TreeSet<>(access.writes)) {
+                if (!(tensors.get(var) instanceof TensorType tt) || liveAfter.contains(var)
+                        || !access.fullyWritten.contains(var) || !access.reads.contains(var)
+                        || !threadIndexed(defer.stmt, var, threadVars)) {
+                    continue;
+                }
+                // The first statement that touches the tensor must be the write of the whole element
+                int first = 0;
+                while (!mentions(body.get(first), var)) {
+                    first++;
+                }
+                if (!(body.get(first) instanceof Assign assign) || !(assign.target instanceof TensorAccessExpr)
+                        || mentions(assign.expr, var)) {
+                    continue;
+                }
+
+                String local = freshName(var + "_elem", names);
+                body.set(first, new Declaration(tt.componentType, local, assign.expr, null));
+                for (int k = first + 1; k < body.size(); k++) {
+                    replaceElements(body.get(k), var, local);
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static void fuseIn(Stmt stmt, Map<String, Type> tensors, List<Defer> fused) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Block block:
+                List<Stmt> stmts = new ArrayList<>(block.stmts.size());
+                boolean changed = false;
+                for (Stmt s : block.stmts) {
+                    fuseIn(s, tensors, fused);
+                    Stmt previous = stmts.isEmpty() ? null : stmts.get(stmts.size() - 1);
+                    if (s instanceof Defer second && previous instanceof Defer first && canFuse(first, second, tensors)) {
+                        Defer merged = merge(first, second);
+                        stmts.set(stmts.size() - 1, merged);
+                        fused.remove(first);
+                        fused.add(merged);
+                        changed = true;
+                    } else {
+                        stmts.add(s);
+                    }
+                }
+                if (changed) {
+                    block.stmts = stmts;
+                }
+                break;
+            case Declaration decl:
+                fuseIn(decl.stmt, tensors, fused);
+                break;
+            case Comp comp:
+                fuseIn(comp.stmt1, tensors, fused);
+                fuseIn(comp.stmt2, tensors, fused);
+                break;
+            case If ifStmt:
+                fuseIn(ifStmt.then, tensors, fused);
+                fuseIn(ifStmt.els, tensors, fused);
+                break;
+            case While whileStmt:
+                fuseIn(whileStmt.stmt, tensors, fused);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean canFuse(Defer first, Defer second, Map<String, Type> tensors) {
+        if (first.dim.size() != second.dim.size()) {
+            return false;
+        }
+        for (int axis = 0; axis < first.dim.size(); axis++) {
+            Pair<String, SizeParam> a = first.dim.get(axis);
+            Pair<String, SizeParam> b = second.dim.get(axis);
+            if (!a.elem1.equals(b.elem1) || !KernelAccess.sameSize(a.elem2, b.elem2)) {
+                return false;
+            }
+        }
+
+        // A local of one body must not meet a name of the other in the same kernel
+        Set<String> firstUsed = new HashSet<>(), firstDeclared = new HashSet<>();
+        Set<String> secondUsed = new HashSet<>(), secondDeclared = new HashSet<>();
+        collectNames(first.stmt, firstUsed, firstDeclared);
+        collectNames(second.stmt, secondUsed, secondDeclared);
+        if (!Collections.disjoint(firstDeclared, secondUsed) || !Collections.disjoint(firstDeclared, secondDeclared)
+                || !Collections.disjoint(secondDeclared, firstUsed)) {
+            return false;
+        }
+
+        KernelAccess firstAccess = KernelAccess.of(first, tensors);
+        KernelAccess secondAccess = KernelAccess.of(second, tensors);
+        List<String> threadVars = threadVars(first);
+        Set<String> written = new HashSet<>(firstAccess.writes);
+        written.addAll(secondAccess.writes);
+        for (String var : written) {
+            if (firstAccess.uses(var) && secondAccess.uses(var)
+                    && (!(tensors.get(var) instanceof TensorType)
+                        || !threadIndexed(first.stmt, var, threadVars) || !threadIndexed(second.stmt, var, threadVars))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Defer merge(Defer first, Defer second) {
+        List<Stmt> stmts = new ArrayList<>(statementsOf(first.stmt));
+        stmts.addAll(statementsOf(second.stmt));
+        return new Defer(first.dim, new Block(stmts));
+    }
+
+    private static List<Stmt> statementsOf(Stmt stmt) {
+        if (stmt == null) return Collections.emptyList();
+        return stmt instanceof Block block ? block.stmts : Collections.singletonList(stmt);
+    }
+
+    private static List<String> threadVars(Defer defer) {
+        List<String> threadVars = new ArrayList<>();
+        for (Pair<String, SizeParam> dim : defer.dim) {
+            threadVars.add(dim.elem1);
+        }
+        return threadVars;
+    }
+
+    // Parameters and host declarations of tensors
+    private static Map<String, Type> tensorTypes(FuncDef func) {
+        Map<String, Type> tensors = new HashMap<>();
+        if (func.formalParams != null) {
+            for (Pair<Type, String> param : func.formalParams) {
+                if (param.elem1 instanceof TensorType) {
+                    tensors.put(param.elem2, param.elem1);
+                }
+            }
+        }
+        collectTensors(func.funcBody, tensors);
+        return tensors;
+    }
+
+    private static void collectTensors(Stmt stmt, Map<String, Type> tensors) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Declaration decl:
+                if (decl.t instanceof TensorType) {
+                    tensors.put(decl.ident, decl.t);
+                }
+                collectTensors(decl.stmt, tensors);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collectTensors(s, tensors);
+                }
+                break;
+            case Comp comp:
+                collectTensors(comp.stmt1, tensors);
+                collectTensors(comp.stmt2, tensors);
+                break;
+            case If ifStmt:
+                collectTensors(ifStmt.then, tensors);
+                collectTensors(ifStmt.els, tensors);
+                break;
+            case While whileStmt:
+                collectTensors(whileStmt.stmt, tensors);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Variables live right after the defer: live into a node its body continues to
+    private static Set<String> liveAfter(Defer defer, List<CFGBuilder.CFGNode> nodes,
+                                         Map<CFGBuilder.CFGNode, CFGAnalysis.Liveness> liveness) {
+        Set<Stmt> bodyStmts = Collections.newSetFromMap(new IdentityHashMap<>());
+        collectStatements(defer.stmt, bodyStmts);
+        Set<CFGBuilder.CFGNode> inside = new HashSet<>();
+        for (CFGBuilder.CFGNode node : nodes) {
+            if (node.astNode != null && bodyStmts.contains(node.astNode)) {
+                inside.add(node);
+            }
+        }
+
+        Set<String> live = new HashSet<>();
+        for (CFGBuilder.CFGNode node : inside) {
+            for (CFGBuilder.CFGNode successor : node.successors) {
+                if (!inside.contains(successor)) {
+                    live.addAll(liveness.get(successor).in);
+                }
+            }
+        }
+        return live;
+    }
+
+    private static void collectStatements(Stmt stmt, Set<Stmt> stmts) {
+        if (stmt == null) return;
+        stmts.add(stmt);
+
+        switch (stmt) {
+            case Declaration decl:
+                collectStatements(decl.stmt, stmts);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collectStatements(s, stmts);
+                }
+                break;
+            case Comp comp:
+                collectStatements(comp.stmt1, stmts);
+                collectStatements(comp.stmt2, stmts);
+                break;
+            case If ifStmt:
+                collectStatements(ifStmt.then, stmts);
+                collectStatements(ifStmt.els, stmts);
+                break;
+            case While whileStmt:
+                collectStatements(whileStmt.stmt, stmts);
+                break;
+            case Defer defer:
+                collectStatements(defer.stmt, stmts);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Names a statement uses and declares, thread variables of defers count as declared
+    private static void collectNames(Stmt stmt, Set<String> used, Set<String> declared) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Assign assign:
+                CFGBuilder.collectUses(assign.target, used);
+                CFGBuilder.collectUses(assign.expr, used);
+                break;
+            case Declaration decl:
+                declared.add(decl.ident);
+                CFGBuilder.collectUses(decl.expr, used);
+                collectNames(decl.stmt, used, declared);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collectNames(s, used, declared);
+                }
+                break;
+            case Comp comp:
+                collectNames(comp.stmt1, used, declared);
+                collectNames(comp.stmt2, used, declared);
+                break;
+            case If ifStmt:
+                CFGBuilder.collectUses(ifStmt.cond, used);
+                collectNames(ifStmt.then, used, declared);
+                collectNames(ifStmt.els, used, declared);
+                break;
+            case While whileStmt:
+                CFGBuilder.collectUses(whileStmt.cond, used);
+                collectNames(whileStmt.stmt, used, declared);
+                break;
+            case Defer defer:
+                declared.addAll(threadVars(defer));
+                collectNames(defer.stmt, used, declared);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean mentions(Stmt stmt, String var) {
+        Set<String> names = new HashSet<>();
+        collectNames(stmt, names, names);
+        return names.contains(var);
+    }
+
+    private static boolean mentions(Expr expr, String var) {
+        Set<String> used = new HashSet<>();
+        CFGBuilder.collectUses(expr, used);
+        return used.contains(var);
+    }
+
+    private static String freshName(String base, Set<String> names) {
+        String name = base;
+        for (int k = 1; names.contains(name); k++) {
+            name = base + k;
+        }
+        names.add(name);
+        return name;
+    }
+
+    // Whether every use of var in stmt is an element indexed by the thread variables, in order
+    private static boolean threadIndexed(Stmt stmt, String var, List<String> threadVars) {
+        if (stmt == null) return true;
+
+        switch (stmt) {
+            case Assign assign:
+                return threadIndexed(assign.target, var, threadVars) && threadIndexed(assign.expr, var, threadVars);
+            case Declaration decl:
+                return !decl.ident.equals(var) && threadIndexed(decl.expr, var, threadVars)
+                        && threadIndexed(decl.stmt, var, threadVars);
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    if (!threadIndexed(s, var, threadVars)) return false;
+                }
+                return true;
+            case Comp comp:
+                return threadIndexed(comp.stmt1, var, threadVars) && threadIndexed(comp.stmt2, var, threadVars);
+            case If ifStmt:
+                return threadIndexed(ifStmt.cond, var, threadVars) && threadIndexed(ifStmt.then, var, threadVars)
+                        && threadIndexed(ifStmt.els, var, threadVars);
+            case While whileStmt:
+                return threadIndexed(whileStmt.cond, var, threadVars) && threadIndexed(whileStmt.stmt, var, threadVars);
+            case Defer defer:
+                return threadIndexed(defer.stmt, var, threadVars);
+            default:
+                return true;
+        }
+    }
+
+    private static boolean threadIndexed(Expr expr, String var, List<String> threadVars) {
+        if (expr == null) return true;
+
+        switch (expr) {
+            case Ident ident:
+                return !ident.name.equals(var);
+            case TensorAccessExpr tae:
+                if (tae.listExpr instanceof Ident ident && ident.name.equals(var)) {
+                    if (tae.indices.size() != threadVars.size()) return false;
+                    for (int axis = 0; axis < threadVars.size(); axis++) {
+                        if (!(tae.indices.get(axis) instanceof Ident index) || !index.name.equals(threadVars.get(axis))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+                if (!threadIndexed(tae.listExpr, var, threadVars)) return false;
+                for (Expr index : tae.indices) {
+                    if (!threadIndexed(index, var, threadVars)) return false;
+                }
+                return true;
+            case BinExpr bin:
+                return threadIndexed(bin.left, var, threadVars) && threadIndexed(bin.right, var, threadVars);
+            case UnExpr un:
+                return threadIndexed(un.expr, var, threadVars);
+            case ParenExpr paren:
+                return threadIndexed(paren.expr, var, threadVars);
+            case FuncCallExpr call:
+                for (Expr arg : call.actualParameters) {
+                    if (!threadIndexed(arg, var, threadVars)) return false;
+                }
+                return true;
+            case TensorDefExpr tde:
+                for (Expr e : tde.exprs) {
+                    if (!threadIndexed(e, var, threadVars)) return false;
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    // Turns the elements of var in stmt into the local variable
+    private static void replaceElements(Stmt stmt, String var, String local) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Assign assign:
+                assign.target = replaceElements(assign.target, var, local);
+                assign.expr = replaceElements(assign.expr, var, local);
+                break;
+            case Declaration decl:
+                decl.expr = replaceElements(decl.expr, var, local);
+                replaceElements(decl.stmt, var, local);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    replaceElements(s, var, local);
+                }
+                break;
+            case Comp comp:
+                replaceElements(comp.stmt1, var, local);
+                replaceElements(comp.stmt2, var, local);
+                break;
+            case If ifStmt:
+                ifStmt.cond = replaceElements(ifStmt.cond, var, local);
+                replaceElements(ifStmt.then, var, local);
+                replaceElements(ifStmt.els, var, local);
+                break;
+            case While whileStmt:
+                whileStmt.cond = replaceElements(whileStmt.cond, var, local);
+                replaceElements(whileStmt.stmt, var, local);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static Expr replaceElements(Expr expr, String var, String local) {
+        if (expr == null) return null;
+
+        switch (expr) {
+            case TensorAccessExpr tae:
+                if (tae.listExpr instanceof Ident ident && ident.name.equals(var)) {
+                    return new Ident(local);
+                }
+                tae.listExpr = replaceElements(tae.listExpr, var, local);
+                tae.indices.replaceAll(index -> replaceElements(index, var, local));
+                return tae;
+            case BinExpr bin:
+                bin.left = replaceElements(bin.left, var, local);
+                bin.right = replaceElements(bin.right, var, local);
+                return bin;
+            case UnExpr un:
+                un.expr = replaceElements(un.expr, var, local);
+                return un;
+            case ParenExpr paren:
+                paren.expr = replaceElements(paren.expr, var, local);
+                return paren;
+            case FuncCallExpr call:
+                call.actualParameters.replaceAll(arg -> replaceElements(arg, var, local));
+                return call;
+            case TensorDefExpr tde:
+                tde.exprs.replaceAll(e -> replaceElements(e, var, local));
+                return tde;
+            default:
+                return expr;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package DataflowAnalysis;
+
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import java.util.*;
+
+/*
+ * Reads of a kernel that the threads of a block can share through shared memory.
+ *
+ * Two shapes of reads of a tensor the kernel doesn't write are recognised:
+ * - Stencils: every read of the tensor is indexed by thread variables plus
+ *   constant offsets, like a[i - 1, j] and a[i + 1, j], with at least two
+ *   different offsets. The block loads the elements its threads read, its own
+ *   and a halo around them, once before the body runs.
+ * - Loops: a top-level while (k < n) that steps k by one, where n and the
+ *   start of k are the same in every thread, and whose body reads the tensor
+ *   with k on one axis and a thread variable on the others, like a[i, k] and
+ *   b[k, j]. The block loads a step of k at a time before running it.
+ *
+ * Other reads keep going to global memory. The size of a tile depends on the
+ * block shape, which the Transpiler gets from its launch policy, so this only
+ * describes the tiles in terms of the thread axes.
+ *
+ * Every thread of the block has to reach the barriers around the loads, so the
+ * threads outside the iteration space can't return at the start of the kernel.
+ * With a tiled loop they run the declarations before the loop as well, which
+ * therefore must not read tensors.
+ */
+public class KernelTiling {
+    public static final int LOOP_AXIS = -1; // axis of a tile that follows the loop counter
+
+    // Shared copy of the part of one tensor a block reads
+    public static class Tile {
+        public final String tensor;
+        public final int[] axes; // per tensor axis: the defer axis of the thread variable indexing it, or LOOP_AXIS
+        public final int[] low;  // per tensor axis: smallest and largest offset read
+        public final int[] high;
+        public final boolean inLoop; // loaded for every step of the loop instead of once
+
+        Tile(String tensor, int[] axes, int[] low, int[] high, boolean inLoop) {
+            this.tensor = tensor;
+            this.axes = axes;
+            this.low = low;
+            this.high = high;
+            this.inLoop = inLoop;
+        }
+    }
+
+    // A read served from a tile, offsets from the element of the thread (of the step for LOOP_AXIS)
+    public static class TiledRead {
+        public final Tile tile;
+        public final int[] offsets;
+
+        TiledRead(Tile tile, int[] offsets) {
+            this.tile = tile;
+            this.offsets = offsets;
+        }
+    }
+
+    public final List<Tile> tiles = new ArrayList<>();
+    public final Map<TensorAccessExpr, TiledRead> reads = new IdentityHashMap<>();
+    public While loop;      // the tiled loop, null if only stencils are tiled
+    public String counter;  // k of while (k < bound)
+    public Expr bound;
+    public Expr start;      // initial value of the counter
+
+    public boolean hasLoopTiles() {
+        return loop != null;
+    }
+
+    // Tiles for the reads of a defer body, null if there is nothing to tile. externalVars are the
+    // variables the kernel gets from the host, access what it reads and writes.
+    public static KernelTiling of(Defer df, Map<String, Type> externalVars, KernelAccess access) {
+        List<String> threadVars = new ArrayList<>();
+        for (Pair<String, SizeParam> dim : df.dim) {
+            threadVars.add(dim.elem1);
+        }
+        if (threadVars.size() > 3) return null;
+
+        // Offsets from thread variables only mean something if the body never changes them
+        Map<String, Integer> assignments = new HashMap<>();
+        Set<String> declared = new HashSet<>();
+        countAssignments(df.stmt, assignments, declared);
+        for (String threadVar : threadVars) {
+            if (assignments.containsKey(threadVar) || declared.contains(threadVar)) return null;
+        }
+
+        KernelTiling tiling = new KernelTiling();
+        tiling.findLoop(df, externalVars, access, assignments);
+
+        // Every occurrence of every tensor, reads in the loop marked as such
+        Map<String, List<TensorAccessExpr>> tensorReads = new TreeMap<>();
+        Set<TensorAccessExpr> inLoop = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<String> otherUses = new HashSet<>();
+        collectReads(df.stmt, tiling.loop, false, tensorReads, inLoop, otherUses);
+
+        for (Map.Entry<String, List<TensorAccessExpr>> entry : tensorReads.entrySet()) {
+            String tensor = entry.getKey();
+            if (!(externalVars.get(tensor) instanceof TensorType tt) || access.writes.contains(tensor)
+                    || otherUses.contains(tensor)) {
+                continue;
+            }
+            List<TensorAccessExpr> tensorAccesses = entry.getValue();
+            if (!tiling.addStencil(tensor, tt.dimensions.size(), tensorAccesses, threadVars) && tiling.loop != null) {
+                tiling.addLoopTiles(tensor, tt.dimensions.size(), tensorAccesses, inLoop, threadVars);
+            }
+        }
+
+        if (tiling.loop != null && !tiling.loopTilesAllowed(df)) {
+            tiling.dropLoopTiles();
+        }
+        return tiling.tiles.isEmpty() ? null : tiling;
+    }
+
+    // A top-level while (k < bound) { ...; k = k + 1; } with k declared before it, null-safe
+    private void findLoop(Defer df, Map<String, Type> externalVars, KernelAccess access, Map<String, Integer> assignments) {
+        if (!(df.stmt instanceof Block block)) return;
+
+        Map<String, Declaration> declarations = new HashMap<>();
+        for (Stmt stmt : block.stmts) {
+            if (stmt instanceof Declaration decl) {
+                declarations.put(decl.ident, decl);
+                continue;
+            }
+            if (!(stmt instanceof While whileStmt)) continue;
+
+            if (!(unparen(whileStmt.cond) instanceof BinExpr cond) || cond.op != Binoperator.LT
+                    || !(unparen(cond.left) instanceof Ident k)) {
+                continue;
+            }
+            Declaration decl = declarations.get(k.name);
+            if (decl == null || !(decl.t instanceof SimpleType st) || st.type != SimpleTypesEnum.INT
+                    || !uniform(decl.expr, externalVars, access) || !uniform(cond.right, externalVars, access)
+                    || assignments.getOrDefault(k.name, 0) != 1 || !endsWithIncrement(whileStmt.stmt, k.name)) {
+                continue;
+            }
+            loop = whileStmt;
+            counter = k.name;
+            bound = cond.right;
+            start = decl.expr;
+            return;
+        }
+    }
+
+    // The same value in every thread: a constant, or a scalar from the host the kernel doesn't assign
+    private static boolean uniform(Expr expr, Map<String, Type> externalVars, KernelAccess access) {
+        expr = unparen(expr);
+        if (expr instanceof IntVal) return true;
+        return expr instanceof Ident ident && externalVars.get(ident.name) instanceof SimpleType
+                && !access.writes.contains(ident.name);
+    }
+
+    private static boolean endsWithIncrement(Stmt body, String counter) {
+        Stmt last = body instanceof Block block && !block.stmts.isEmpty() ? block.stmts.get(block.stmts.size() - 1) : body;
+        return last instanceof Assign assign && assign.target instanceof Ident target && target.name.equals(counter)
+                && unparen(assign.expr) instanceof BinExpr step && step.op == Binoperator.ADD
+                && unparen(step.left) instanceof Ident left && left.name.equals(counter)
+                && unparen(step.right) instanceof IntVal one && one.value == 1;
+    }
+
+    // One tile over the halo of all reads, if every read is a thread variable plus a constant on each axis
+    private boolean addStencil(String tensor, int rank, List<TensorAccessExpr> tensorAccesses, List<String> threadVars) {
+        int[] axes = null;
+        List<int[]> offsets = new ArrayList<>();
+        Set<List<Integer>> distinct = new HashSet<>();
+        for (TensorAccessExpr tae : tensorAccesses) {
+            if (tae.indices.size() != rank) return false;
+            int[] readAxes = new int[rank];
+            int[] readOffsets = new int[rank];
+            for (int axis = 0; axis < rank; axis++) {
+                Pair<String, Integer> index = threadOffset(tae.indices.get(axis), threadVars);
+                if (index == null) return false;
+                readAxes[axis] = threadVars.indexOf(index.elem1);
+                readOffsets[axis] = index.elem2;
+            }
+            if (axes == null) {
+                axes = readAxes;
+                if (Arrays.stream(axes).distinct().count() != rank) return false;
+            } else if (!Arrays.equals(axes, readAxes)) {
+                return false;
+            }
+            offsets.add(readOffsets);
+            distinct.add(Arrays.stream(readOffsets).boxed().toList());
+        }
+        // Without a second offset no element is read by more than one thread
+        if (distinct.size() < 2) return false;
+
+        int[] low = offsets.get(0).clone();
+        int[] high = offsets.get(0).clone();
+        for (int[] readOffsets : offsets) {
+            for (int axis = 0; axis < rank; axis++) {
+                low[axis] = Math.min(low[axis], readOffsets[axis]);
+                high[axis] = Math.max(high[axis], readOffsets[axis]);
+            }
+        }
+        Tile tile = new Tile(tensor, axes, low, high, false);
+        tiles.add(tile);
+        for (int r = 0; r < tensorAccesses.size(); r++) {
+            reads.put(tensorAccesses.get(r), new TiledRead(tile, offsets.get(r)));
+        }
+        return true;
+    }
+
+    // One tile per pattern of the reads in the loop with the counter on one axis and thread variables on the rest
+    private void addLoopTiles(String tensor, int rank, List<TensorAccessExpr> tensorAccesses,
+                              Set<TensorAccessExpr> inLoop, List<String> threadVars) {
+        Map<List<Integer>, Tile> byPattern = new HashMap<>();
+        for (TensorAccessExpr tae : tensorAccesses) {
+            if (!inLoop.contains(tae) || tae.indices.size() != rank) continue;
+
+            int[] axes = new int[rank];
+            int counterAxes = 0;
+            for (int axis = 0; axis < rank; axis++) {
+                if (!(unparen(tae.indices.get(axis)) instanceof Ident index)) {
+                    axes = null;
+                    break;
+                }
+                if (index.name.equals(counter)) {
+                    axes[axis] = LOOP_AXIS;
+                    counterAxes++;
+                } else if (threadVars.contains(index.name)) {
+                    axes[axis] = threadVars.indexOf(index.name);
+                } else {
+                    axes = null;
+                    break;
+                }
+            }
+            if (axes == null || counterAxes != 1 || Arrays.stream(axes).distinct().count() != rank) continue;
+
+            int[] pattern = axes;
+            Tile tile = byPattern.computeIfAbsent(Arrays.stream(axes).boxed().toList(), key -> {
+                Tile t = new Tile(tensor, pattern, new int[rank], new int[rank], true);
+                tiles.add(t);
+                return t;
+            });
+            reads.put(tae, new TiledRead(tile, new int[rank]));
+        }
+    }
+
+    // Threads outside the iteration space run the top-level declarations too, they must not read tensors
+    private boolean loopTilesAllowed(Defer df) {
+        if (tiles.stream().noneMatch(t -> t.inLoop)) return false;
+        for (Stmt stmt : ((Block) df.stmt).stmts) {
+            if (stmt instanceof Declaration decl && (decl.stmt != null || readsTensor(decl.expr))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void dropLoopTiles() {
+        tiles.removeIf(t -> t.inLoop);
+        reads.values().removeIf(read -> read.tile.inLoop);
+        loop = null;
+        counter = null;
+        bound = null;
+        start = null;
+    }
+
+    // (thread variable, offset) of t, t + c, c + t and t - c, null for anything else
+    private static Pair<String, Integer> threadOffset(Expr index, List<String> threadVars) {
+        index = unparen(index);
+        if (index instanceof Ident ident && threadVars.contains(ident.name)) {
+            return new Pair<>(ident.name, 0);
+        }
+        if (!(index instanceof BinExpr bin)) return null;
+        Expr left = unparen(bin.left);
+        Expr right = unparen(bin.right);
+        if (bin.op == Binoperator.ADD && left instanceof Ident ident && right instanceof IntVal c && threadVars.contains(ident.name)) {
+            return new Pair<>(ident.name, c.value);
+        }
+        if (bin.op == Binoperator.ADD && right instanceof Ident ident && left instanceof IntVal c && threadVars.contains(ident.name)) {
+            return new Pair<>(ident.name, c.value);
+        }
+        if (bin.op == Binoperator.MINUS && left instanceof Ident ident && right instanceof IntVal c && threadVars.contains(ident.name)) {
+            return new Pair<>(ident.name, -c.value);
+        }
+        return null;
+    }
+
+    static Expr unparen(Expr expr) {
+        while (expr instanceof ParenExpr paren) {
+            expr = paren.expr;
+        }
+        return expr;
+    }
+
+    static void countAssignments(Stmt stmt, Map<String, Integer> assignments, Set<String> declared) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Assign assign:
+                if (assign.target instanceof Ident target) {
+                    assignments.merge(target.name, 1, Integer::sum);
+                }
+                break;
+            case Declaration decl:
+                declared.add(decl.ident);
+                countAssignments(decl.stmt, assignments, declared);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    countAssignments(s, assignments, declared);
+                }
+                break;
+            case Comp comp:
+                countAssignments(comp.stmt1, assignments, declared);
+                countAssignments(comp.stmt2, assignments, declared);
+                break;
+            case If ifStmt:
+                countAssignments(ifStmt.then, assignments, declared);
+                countAssignments(ifStmt.els, assignments, declared);
+                break;
+            case While whileStmt:
+                countAssignments(whileStmt.stmt, assignments, declared);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Element reads per tensor, the ones inside loop in inLoop. A tensor used in any other way (passed
+    // to a function, indexed as a target) goes to otherUses.
+    private static void collectReads(Stmt stmt, While loop, boolean insideLoop, Map<String, List<TensorAccessExpr>> reads,
+                                     Set<TensorAccessExpr> inLoop, Set<String> otherUses) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Assign assign:
+                if (assign.target instanceof TensorAccessExpr target) {
+                    if (target.listExpr instanceof Ident ident) otherUses.add(ident.name);
+                    for (Expr index : target.indices) {
+                        collectReads(index, insideLoop, reads, inLoop, otherUses);
+                    }
+                }
+                collectReads(assign.expr, insideLoop, reads, inLoop, otherUses);
+                break;
+            case Declaration decl:
+                collectReads(decl.expr, insideLoop, reads, inLoop, otherUses);
+                collectReads(decl.stmt, loop, insideLoop, reads, inLoop, otherUses);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collectReads(s, loop, insideLoop, reads, inLoop, otherUses);
+                }
+                break;
+            case Comp comp:
+                collectReads(comp.stmt1, loop, insideLoop, reads, inLoop, otherUses);
+                collectReads(comp.stmt2, loop, insideLoop, reads, inLoop, otherUses);
+                break;
+            case If ifStmt:
+                collectReads(ifStmt.cond, insideLoop, reads, inLoop, otherUses);
+                collectReads(ifStmt.then, loop, insideLoop, reads, inLoop, otherUses);
+                collectReads(ifStmt.els, loop, insideLoop, reads, inLoop, otherUses);
+                break;
+            case While whileStmt:
+                boolean body = insideLoop || whileStmt == loop;
+                // The condition of the tiled loop runs outside the tiles' steps as well
+                collectReads(whileStmt.cond, insideLoop, reads, inLoop, otherUses);
+                collectReads(whileStmt.stmt, loop, body, reads, inLoop, otherUses);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void collectReads(Expr expr, boolean insideLoop, Map<String, List<TensorAccessExpr>> reads,
+                                     Set<TensorAccessExpr> inLoop, Set<String> otherUses) {
+        if (expr == null) return;
+
+        switch (expr) {
+            case Ident ident:
+                otherUses.add(ident.name);
+                break;
+            case TensorAccessExpr tae:
+                if (tae.listExpr instanceof Ident ident) {
+                    reads.computeIfAbsent(ident.name, name -> new ArrayList<>()).add(tae);
+                    if (insideLoop) inLoop.add(tae);
+                } else {
+                    collectReads(tae.listExpr, insideLoop, reads, inLoop, otherUses);
+                }
+                for (Expr index : tae.indices) {
+                    collectReads(index, insideLoop, reads, inLoop, otherUses);
+                }
+                break;
+            case BinExpr bin:
+                collectReads(bin.left, insideLoop, reads, inLoop, otherUses);
+                collectReads(bin.right, insideLoop, reads, inLoop, otherUses);
+                break;
+            case UnExpr un:
+                collectReads(un.expr, insideLoop, reads, inLoop, otherUses);
+                break;
+            case ParenExpr paren:
+                collectReads(paren.expr, insideLoop, reads, inLoop, otherUses);
+                break;
+            case FuncCallExpr call:
+                if (call.actualParameters != null) {
+                    for (Expr parameter : call.actualParameters) {
+                        collectReads(parameter, insideLoop, reads, inLoop, otherUses);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean readsTensor(Expr expr) {
+        Map<String, List<TensorAccessExpr>> found = new HashMap<>();
+        collectReads(expr, false, found, new HashSet<>(), new HashSet<>());
+        return !found.isEmpty();
+    }
+}
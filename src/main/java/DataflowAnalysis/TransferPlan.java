@@ -0,0 +1,620 @@
+package DataflowAnalysis;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import java.util.*;
+
+/*
+ * Where a function moves its tensors between host and device memory.
+ *
+ * A tensor used by a defer block gets one device copy for as long as it is in
+ * scope: allocated after its declaration (at the start of the function for a
+ * parameter) and freed at the end of the block that declares it. Between kernels
+ * the data stays on the device, and is only copied when the other side needs it:
+ * - uploaded before a kernel that reads a tensor whose device copy is stale
+ * - downloaded before host code that reads a tensor a kernel wrote, or that
+ *   writes single elements of it while the rest is still live
+ *
+ * A while loop gets one state at its head for all iterations. The transfers to
+ * reach it are placed before the loop, so a loop that only runs kernels on a
+ * tensor uploads it once before the loop and leaves it on the device.
+ *
+ * Kernels and copies are asynchronous. Each defer block gets a stream: the one of
+ * the latest earlier defer it shares a tensor with, or the next free one if it
+ * shares none, so kernels on disjoint tensors can overlap. Copies of a tensor go
+ * to the stream of the first kernel that uses it. Whatever the streams, every
+ * operation on a tensor waits for the previous one through the tensor's event,
+ * and the host only waits for a tensor before it reads it, or before it assigns
+ * to it while an upload from its page-locked host copy may still be running.
+ */
+public class TransferPlan {
+    public enum Kind { ALLOCATE, UPLOAD, DOWNLOAD, SYNC, FREE }
+
+    public static class Action {
+        public final Kind kind;
+        public final String variable;
+
+        public Action(Kind kind, String variable) {
+            this.kind = kind;
+            this.variable = variable;
+        }
+
+        @Override
+        public String toString() {
+            return kind.name().toLowerCase() + " " + variable;
+        }
+    }
+
+    private enum Where { BEFORE, AFTER, THEN_END, ELSE_END, BODY_END }
+
+    // Actions around one statement, label names it in the CFG for printing
+    private static class Position {
+        final String label;
+        final EnumMap<Where, List<Action>> actions = new EnumMap<>(Where.class);
+
+        Position(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Map<Stmt, Position> positions = new LinkedHashMap<>(); // AST nodes compare by identity
+    private final List<Action> entry = new ArrayList<>();
+    private final List<Action> exit = new ArrayList<>();
+    private final Set<String> resident = new TreeSet<>();
+    private final Map<Defer, Integer> streams = new LinkedHashMap<>(); // in program order
+    private final Map<Defer, String> kernelLabels = new IdentityHashMap<>();
+    private final Map<String, Integer> homeStreams = new HashMap<>();
+    private int streamCount = 0;
+
+    // True for the tensors this plan moves, the others are not used by any kernel of the function
+    public boolean isResident(String variable) {
+        return resident.contains(variable);
+    }
+
+    public Set<String> residentTensors() {
+        return Collections.unmodifiableSet(resident);
+    }
+
+    // Number of streams the function creates, 0 if it launches no kernels on tensors
+    public int streamCount() {
+        return streamCount;
+    }
+
+    // Stream the kernel of defer is launched on, -1 if it has none
+    public int streamOf(Defer defer) {
+        return streams.getOrDefault(defer, -1);
+    }
+
+    // Stream the copies of a resident tensor are made on
+    public int homeStream(String variable) {
+        return homeStreams.getOrDefault(variable, 0);
+    }
+
+    public List<Action> before(Stmt stmt) {
+        return at(stmt, Where.BEFORE);
+    }
+
+    // After a declaration
+    public List<Action> after(Stmt stmt) {
+        return at(stmt, Where.AFTER);
+    }
+
+    public List<Action> atThenEnd(If stmt) {
+        return at(stmt, Where.THEN_END);
+    }
+
+    // Also for an if without else: a non-empty list needs an else branch of its own
+    public List<Action> atElseEnd(If stmt) {
+        return at(stmt, Where.ELSE_END);
+    }
+
+    public List<Action> atBodyEnd(While stmt) {
+        return at(stmt, Where.BODY_END);
+    }
+
+    public List<Action> atEntry() {
+        return entry;
+    }
+
+    // Before the return expression is evaluated
+    public List<Action> atExit() {
+        return exit;
+    }
+
+    // Uploads and downloads in the generated code, not how often they run
+    public int transferCount() {
+        int count = count(entry) + count(exit);
+        for (Position position : positions.values()) {
+            for (List<Action> actions : position.actions.values()) {
+                count += count(actions);
+            }
+        }
+        return count;
+    }
+
+    private static int count(List<Action> actions) {
+        int count = 0;
+        for (Action action : actions) {
+            if (action.kind == Kind.UPLOAD || action.kind == Kind.DOWNLOAD) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<Action> at(Stmt stmt, Where where) {
+        Position position = positions.get(stmt);
+        if (position == null) {
+            return Collections.emptyList();
+        }
+        return position.actions.getOrDefault(where, Collections.emptyList());
+    }
+
+    private List<Action> list(Stmt stmt, String label, Where where) {
+        return positions.computeIfAbsent(stmt, s -> new Position(label))
+                .actions.computeIfAbsent(where, w -> new ArrayList<>());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, "entry", entry);
+        for (Position position : positions.values()) {
+            for (Map.Entry<Where, List<Action>> actions : position.actions.entrySet()) {
+                String where = switch (actions.getKey()) {
+                    case BEFORE -> "before ";
+                    case AFTER -> "after ";
+                    case THEN_END -> "end of then branch of ";
+                    case ELSE_END -> "end of else branch of ";
+                    case BODY_END -> "end of loop body of ";
+                };
+                append(sb, where + position.label, actions.getValue());
+            }
+        }
+        append(sb, "exit", exit);
+        for (Map.Entry<Defer, Integer> stream : streams.entrySet()) {
+            sb.append("[STREAM] ").append(kernelLabels.get(stream.getKey())).append(": stream ")
+                    .append(stream.getValue()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String where, List<Action> actions) {
+        if (!actions.isEmpty()) {
+            sb.append("[MEM_TRANSFER] ").append(where).append(": ");
+            for (int i = 0; i < actions.size(); i++) {
+                sb.append(i > 0 ? ", " : "").append(actions.get(i));
+            }
+            sb.append("\n");
+        }
+    }
+
+    public static TransferPlan build(FuncDef func, List<CFGBuilder.CFGNode> nodes,
+                                     Map<CFGBuilder.CFGNode, CFGAnalysis.Liveness> liveness) {
+        TransferPlan plan = new TransferPlan();
+        new Planner(plan, nodes, liveness).plan(func);
+        return plan;
+    }
+
+    // Walks the function in program order with the state of every resident tensor in scope
+    private static class Planner {
+        private static final int HOST = 1;   // the host copy is up to date
+        private static final int DEVICE = 2; // the device copy is up to date
+        private static final int MAX_LOOP_ROUNDS = 4;
+        private static final int MAX_STREAMS = 4;
+
+        private final TransferPlan plan;
+        private final Map<CFGBuilder.CFGNode, CFGAnalysis.Liveness> liveness;
+        private final Map<Stmt, CFGBuilder.CFGNode> nodeOf = new IdentityHashMap<>();
+        private CFGBuilder.CFGNode returnNode;
+        private final Map<String, Type> tensors = new HashMap<>();
+        private final Map<Defer, KernelAccess> kernels = new IdentityHashMap<>();
+        private final List<Defer> kernelOrder = new ArrayList<>();
+        private boolean recording = true; // false while looking for the state at the head of a loop
+
+        Planner(TransferPlan plan, List<CFGBuilder.CFGNode> nodes, Map<CFGBuilder.CFGNode, CFGAnalysis.Liveness> liveness) {
+            this.plan = plan;
+            this.liveness = liveness;
+            for (CFGBuilder.CFGNode node : nodes) {
+                if (node.astNode != null) {
+                    nodeOf.put(node.astNode, node);
+                } else {
+                    returnNode = node;
+                }
+            }
+        }
+
+        void plan(FuncDef func) {
+            if (func.formalParams != null) {
+                for (Pair<Type, String> param : func.formalParams) {
+                    if (param.elem1 instanceof TensorType) {
+                        tensors.put(param.elem2, param.elem1);
+                    }
+                }
+            }
+            collectTensorsAndKernels(func.funcBody);
+            for (KernelAccess access : kernels.values()) {
+                for (String var : tensors.keySet()) {
+                    if (access.uses(var)) {
+                        plan.resident.add(var);
+                    }
+                }
+            }
+            if (plan.resident.isEmpty()) {
+                return;
+            }
+            assignStreams();
+
+            TreeMap<String, Integer> state = new TreeMap<>();
+            List<String> declared = new ArrayList<>();
+            if (func.formalParams != null) {
+                for (Pair<Type, String> param : func.formalParams) {
+                    if (plan.isResident(param.elem2)) {
+                        state.put(param.elem2, HOST);
+                        plan.entry.add(new Action(Kind.ALLOCATE, param.elem2));
+                        declared.add(param.elem2);
+                    }
+                }
+            }
+
+            walk(func.funcBody, state, returnNode, declared);
+
+            if (returnNode != null) {
+                for (String var : state.keySet()) {
+                    if (returnNode.gen.contains(var)) {
+                        needHost(state, var, plan.exit);
+                    }
+                }
+            }
+            free(declared, plan.exit);
+        }
+
+        // Host declarations of tensors and the defer blocks, with their kernel accesses
+        private void collectTensorsAndKernels(Stmt stmt) {
+            if (stmt == null) return;
+
+            switch (stmt) {
+                case Declaration decl:
+                    if (decl.t instanceof TensorType) {
+                        tensors.put(decl.ident, decl.t);
+                    }
+                    collectTensorsAndKernels(decl.stmt);
+                    break;
+                case Block block:
+                    for (Stmt s : block.stmts) {
+                        collectTensorsAndKernels(s);
+                    }
+                    break;
+                case Comp comp:
+                    collectTensorsAndKernels(comp.stmt1);
+                    collectTensorsAndKernels(comp.stmt2);
+                    break;
+                case If ifStmt:
+                    collectTensorsAndKernels(ifStmt.then);
+                    collectTensorsAndKernels(ifStmt.els);
+                    break;
+                case While whileStmt:
+                    collectTensorsAndKernels(whileStmt.stmt);
+                    break;
+                case Defer defer:
+                    kernels.put(defer, KernelAccess.of(defer, tensors));
+                    kernelOrder.add(defer);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // A kernel follows the latest earlier kernel it shares a resident tensor with onto its stream,
+        // a kernel that shares none starts on the next stream
+        private void assignStreams() {
+            Map<String, Integer> lastKernel = new HashMap<>();
+            int next = 0;
+            for (int k = 0; k < kernelOrder.size(); k++) {
+                Defer defer = kernelOrder.get(k);
+                KernelAccess access = kernels.get(defer);
+                int latest = -1;
+                for (String var : plan.resident) {
+                    if (access.uses(var) && lastKernel.containsKey(var)) {
+                        latest = Math.max(latest, lastKernel.get(var));
+                    }
+                }
+                int stream;
+                if (latest >= 0) {
+                    stream = plan.streams.get(kernelOrder.get(latest));
+                } else {
+                    stream = next % MAX_STREAMS;
+                    next++;
+                }
+
+                plan.streams.put(defer, stream);
+                plan.kernelLabels.put(defer, label(defer));
+                plan.streamCount = Math.max(plan.streamCount, stream + 1);
+                for (String var : plan.resident) {
+                    if (access.uses(var)) {
+                        lastKernel.put(var, k);
+                        plan.homeStreams.putIfAbsent(var, stream);
+                    }
+                }
+            }
+        }
+
+        // follow is the first node after stmt, declared collects the resident tensors declared in the enclosing block
+        private void walk(Stmt stmt, TreeMap<String, Integer> state, CFGBuilder.CFGNode follow, List<String> declared) {
+            if (stmt == null) return;
+
+            switch (stmt) {
+                case Block block:
+                    // The node after each statement is the entry of the next non-empty one
+                    CFGBuilder.CFGNode[] follows = new CFGBuilder.CFGNode[block.stmts.size()];
+                    CFGBuilder.CFGNode next = follow;
+                    for (int i = block.stmts.size() - 1; i >= 0; i--) {
+                        follows[i] = next;
+                        CFGBuilder.CFGNode first = entry(block.stmts.get(i));
+                        if (first != null) {
+                            next = first;
+                        }
+                    }
+                    for (int i = 0; i < block.stmts.size(); i++) {
+                        walk(block.stmts.get(i), state, follows[i], declared);
+                    }
+                    break;
+
+                case Comp comp:
+                    CFGBuilder.CFGNode second = entry(comp.stmt2);
+                    walk(comp.stmt1, state, second != null ? second : follow, declared);
+                    walk(comp.stmt2, state, follow, declared);
+                    break;
+
+                case Declaration decl:
+                    hostStatement(decl, state);
+                    if (plan.isResident(decl.ident) && decl.t instanceof TensorType) {
+                        state.put(decl.ident, HOST);
+                        add(list(decl, Where.AFTER), Kind.ALLOCATE, decl.ident);
+                        declared.add(decl.ident);
+                    }
+                    walk(decl.stmt, state, follow, declared);
+                    break;
+
+                case Assign assign:
+                    hostStatement(assign, state);
+                    break;
+
+                case If ifStmt:
+                    walkIf(ifStmt, state, follow);
+                    break;
+
+                case While whileStmt:
+                    walkWhile(whileStmt, state);
+                    break;
+
+                case Defer defer:
+                    walkDefer(defer, state);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        // Syncs what a host statement reads, then records what it overwrites
+        private void hostStatement(Stmt stmt, TreeMap<String, Integer> state) {
+            CFGBuilder.CFGNode node = nodeOf.get(stmt);
+            if (node == null) return;
+
+            List<Action> before = list(stmt, Where.BEFORE);
+            for (String var : state.keySet()) {
+                if (node.gen.contains(var)) {
+                    needHost(state, var, before);
+                }
+            }
+            if (stmt instanceof Assign assign && assign.target instanceof TensorAccessExpr tae
+                    && tae.listExpr instanceof Ident ident && state.containsKey(ident.name)) {
+                // The other elements are kept, so they must be on the host if anything reads them later
+                if (liveness.get(node).out.contains(ident.name)) {
+                    needHost(state, ident.name, before);
+                }
+                sync(state, ident.name, before);
+                state.put(ident.name, state.get(ident.name) & HOST);
+            } else {
+                for (String var : node.kill) {
+                    if (state.containsKey(var)) {
+                        if (stmt instanceof Assign) {
+                            sync(state, var, before);
+                        }
+                        state.put(var, HOST);
+                    }
+                }
+            }
+        }
+
+        // An upload from page-locked memory reads the host copy when it runs, so the host waits for the
+        // device work on a tensor before overwriting it. A download right before has waited already.
+        private void sync(Map<String, Integer> state, String var, List<Action> out) {
+            boolean downloaded = !out.isEmpty() && out.get(out.size() - 1).kind == Kind.DOWNLOAD
+                    && out.get(out.size() - 1).variable.equals(var);
+            if ((state.get(var) & DEVICE) != 0 && !downloaded) {
+                add(out, Kind.SYNC, var);
+            }
+        }
+
+        private void walkDefer(Defer defer, TreeMap<String, Integer> state) {
+            KernelAccess access = kernels.get(defer);
+            List<Action> before = list(defer, Where.BEFORE);
+            for (String var : state.keySet()) {
+                if (access.uses(var) && access.needsUpload(var)) {
+                    needDevice(state, var, before);
+                }
+            }
+            for (String var : state.keySet()) {
+                if (access.writes.contains(var)) {
+                    state.put(var, DEVICE);
+                }
+            }
+        }
+
+        // Both branches end in the state both have. A tensor that is only on the host in one and only
+        // on the device in the other is downloaded in the second, unless nothing reads it afterwards.
+        private void walkIf(If ifStmt, TreeMap<String, Integer> state, CFGBuilder.CFGNode follow) {
+            hostStatement(ifStmt, state);
+
+            TreeMap<String, Integer> thenState = new TreeMap<>(state);
+            List<String> thenDeclared = new ArrayList<>();
+            walk(ifStmt.then, thenState, follow, thenDeclared);
+            TreeMap<String, Integer> elseState = new TreeMap<>(state);
+            List<String> elseDeclared = new ArrayList<>();
+            walk(ifStmt.els, elseState, follow, elseDeclared);
+
+            Set<String> liveAfter = follow != null ? liveness.get(follow).in : Collections.emptySet();
+            TreeMap<String, Integer> joined = new TreeMap<>();
+            for (String var : state.keySet()) {
+                int thenBits = thenState.get(var);
+                int elseBits = elseState.get(var);
+                int bits = thenBits & elseBits;
+                if (bits == 0 && (thenBits | elseBits) != 0 && liveAfter.contains(var)) {
+                    bits = HOST;
+                }
+                joined.put(var, bits);
+            }
+
+            List<Action> thenEnd = list(ifStmt, Where.THEN_END);
+            transition(thenState, joined, thenEnd);
+            free(thenDeclared, thenEnd);
+            List<Action> elseEnd = list(ifStmt, Where.ELSE_END);
+            transition(elseState, joined, elseEnd);
+            free(elseDeclared, elseEnd);
+            state.putAll(joined);
+        }
+
+        // The state at the head is what the body leaves behind, found by simulating the body until it
+        // stops changing. Tensors the condition reads must be on the host there.
+        private void walkWhile(While whileStmt, TreeMap<String, Integer> state) {
+            CFGBuilder.CFGNode head = nodeOf.get(whileStmt);
+            Set<String> condReads = head != null ? head.gen : Collections.emptySet();
+
+            TreeMap<String, Integer> headState = new TreeMap<>(state);
+            requireHost(headState, condReads);
+            boolean saved = recording;
+            recording = false;
+            boolean stable = false;
+            for (int round = 0; round < MAX_LOOP_ROUNDS && !stable; round++) {
+                TreeMap<String, Integer> bodyState = new TreeMap<>(headState);
+                walk(whileStmt.stmt, bodyState, head, new ArrayList<>());
+                TreeMap<String, Integer> next = new TreeMap<>();
+                for (String var : headState.keySet()) {
+                    next.put(var, bodyState.get(var));
+                }
+                requireHost(next, condReads);
+                stable = next.equals(headState);
+                headState = next;
+            }
+            recording = saved;
+            if (!stable) {
+                // Every iteration ends with the host copies up to date, which is always reachable
+                for (String var : headState.keySet()) {
+                    headState.put(var, HOST);
+                }
+            }
+
+            transition(state, headState, list(whileStmt, Where.BEFORE));
+            TreeMap<String, Integer> bodyState = new TreeMap<>(headState);
+            List<String> bodyDeclared = new ArrayList<>();
+            walk(whileStmt.stmt, bodyState, head, bodyDeclared);
+            List<Action> bodyEnd = list(whileStmt, Where.BODY_END);
+            transition(bodyState, headState, bodyEnd);
+            free(bodyDeclared, bodyEnd);
+            state.putAll(headState);
+        }
+
+        private static void requireHost(TreeMap<String, Integer> state, Set<String> vars) {
+            for (Map.Entry<String, Integer> entry : state.entrySet()) {
+                if (vars.contains(entry.getKey()) && entry.getValue() != 0) {
+                    entry.setValue(entry.getValue() | HOST);
+                }
+            }
+        }
+
+        // Copies what target has that state lacks, then forgets what target doesn't have
+        private void transition(TreeMap<String, Integer> state, Map<String, Integer> target, List<Action> out) {
+            for (Map.Entry<String, Integer> entry : target.entrySet()) {
+                String var = entry.getKey();
+                if ((entry.getValue() & HOST) != 0) {
+                    needHost(state, var, out);
+                }
+                if ((entry.getValue() & DEVICE) != 0) {
+                    needDevice(state, var, out);
+                }
+                state.put(var, entry.getValue());
+            }
+        }
+
+        // A tensor with neither copy up to date is dead, nothing reads it before it is overwritten
+        private void needHost(Map<String, Integer> state, String var, List<Action> out) {
+            int bits = state.get(var);
+            if ((bits & HOST) == 0 && (bits & DEVICE) != 0) {
+                add(out, Kind.DOWNLOAD, var);
+                state.put(var, bits | HOST);
+            }
+        }
+
+        private void needDevice(Map<String, Integer> state, String var, List<Action> out) {
+            int bits = state.get(var);
+            if ((bits & DEVICE) == 0 && (bits & HOST) != 0) {
+                add(out, Kind.UPLOAD, var);
+                state.put(var, bits | DEVICE);
+            }
+        }
+
+        private void free(List<String> declared, List<Action> out) {
+            for (String var : declared) {
+                add(out, Kind.FREE, var);
+            }
+        }
+
+        private void add(List<Action> out, Kind kind, String var) {
+            if (recording) {
+                out.add(new Action(kind, var));
+            }
+        }
+
+        // Lists are only created while recording, a simulated walk gets a throwaway one
+        private List<Action> list(Stmt stmt, Where where) {
+            if (!recording) {
+                return new ArrayList<>(0);
+            }
+            return plan.list(stmt, label(stmt), where);
+        }
+
+        private String label(Stmt stmt) {
+            CFGBuilder.CFGNode node = stmt instanceof Defer ? entry(stmt) : nodeOf.get(stmt);
+            String kind = stmt instanceof Defer ? "defer at node " : "node ";
+            return node != null ? kind + node.id : stmt.getClass().getSimpleName();
+        }
+
+        // First CFG node of a statement, null if it has none (an empty block)
+        private CFGBuilder.CFGNode entry(Stmt stmt) {
+            if (stmt == null) return null;
+
+            switch (stmt) {
+                case Block block:
+                    for (Stmt s : block.stmts) {
+                        CFGBuilder.CFGNode first = entry(s);
+                        if (first != null) {
+                            return first;
+                        }
+                    }
+                    return null;
+                case Comp comp:
+                    CFGBuilder.CFGNode first = entry(comp.stmt1);
+                    return first != null ? first : entry(comp.stmt2);
+                case Defer defer:
+                    return entry(defer.stmt);
+                default:
+                    return nodeOf.get(stmt);
+            }
+        }
+    }
+}
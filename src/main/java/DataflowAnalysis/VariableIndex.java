@@ -0,0 +1,96 @@
+package DataflowAnalysis;
+
+import java.util.*;
+
+// Dense numbering of the variable names of one function, so sets of variables can be BitSets
+public class VariableIndex {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    // Number of name, assigning the next free one if it is new
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    // -1 if the name was never interned
+    public int indexOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public BitSet bits(Collection<String> variables) {
+        BitSet bits = new BitSet();
+        for (String v : variables) {
+            bits.set(intern(v));
+        }
+        return bits;
+    }
+
+    // Read-only view of bits as names, no copy is made
+    public Set<String> asSet(BitSet bits) {
+        return new VariableSet(bits);
+    }
+
+    private class VariableSet extends AbstractSet<String> {
+        private final BitSet bits;
+
+        VariableSet(BitSet bits) {
+            this.bits = bits;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof String name)) {
+                return false;
+            }
+            int id = indexOf(name);
+            return id >= 0 && bits.get(id);
+        }
+
+        @Override
+        public int size() {
+            return bits.cardinality();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return bits.isEmpty();
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<>() {
+                private int next = bits.nextSetBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public String next() {
+                    if (next < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    String name = names.get(next);
+                    next = bits.nextSetBit(next + 1);
+                    return name;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package Interpreter;
+
+// An error of a running BOLT program, like an index out of bounds or a division by zero
+public class ExecutionError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ExecutionError(String message) {
+        super(message);
+    }
+}
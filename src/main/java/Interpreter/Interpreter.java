@@ -0,0 +1,526 @@
+package Interpreter;
+
+import AbstractSyntax.Definitions.*;
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.Program.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import SemanticAnalysis.KernelReduction;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Runs a type checked BOLT program on the JVM, without generating any code.
+ *
+ * Statements and expressions are evaluated straight from the AST. Scalars are
+ * Integer, Double, Boolean and Character, tensors are Tensors with their
+ * components in primitive arrays. Tensors are values like in the generated
+ * C++ code: a declaration, an assignment or a call with a tensor variable
+ * copies it.
+ *
+ * A defer block runs its body once per point of its iteration space, with the
+ * thread variables of Defer.dim bound to the point's coordinates. With a
+ * ForkJoinPool the points are split into ranges that run in parallel; without
+ * one they run in order on the calling thread. As on the GPU, the points share
+ * the tensors and the scalars of the host, which they only update through the
+ * reductions of the body (see KernelReduction): every range accumulates from
+ * the identity of the operator, and the ranges' results are combined with the
+ * host's value in the order of the ranges. The ranges only depend on the size
+ * of the iteration space (see RangeSplitter), so a program gives the same
+ * result, down to the rounding of a double reduction, with any number of
+ * threads.
+ *
+ * This is the reference for the semantics of the generated code: the
+ * differential tests compare the results of the CUDA and OpenMP output to it.
+ */
+public class Interpreter {
+    private static final SimpleType INT_TYPE = new SimpleType(SimpleTypesEnum.INT);
+
+    private final Map<String, FuncDef> functions = new HashMap<>();
+    private final ForkJoinPool pool; // null runs every defer block on the calling thread
+    private final Map<Defer, KernelReduction> reductions = new ConcurrentHashMap<>();
+
+    public Interpreter(Prog prog) {
+        this(prog, null);
+    }
+
+    public Interpreter(Prog prog, ForkJoinPool pool) {
+        for (FuncDef f = prog.func; f != null; f = f.nextFunc) {
+            functions.putIfAbsent(f.procname, f);
+        }
+        this.pool = pool;
+    }
+
+    // Calls a function of the program with Integer, Double, Boolean, Character or Tensor arguments and
+    // returns its result as one of them. Tensors are passed by value, the caller's are never changed.
+    // Safe to call from several threads at once.
+    public Object call(String name, Object... args) {
+        FuncDef f = functions.get(name);
+        if (f == null) {
+            throw new ExecutionError("Function '" + name + "' is not defined");
+        }
+        Object[] copies = args.clone();
+        for (int i = 0; i < copies.length; i++) {
+            if (copies[i] instanceof Tensor tensor) {
+                copies[i] = tensor.copy();
+            }
+        }
+        return invoke(f, copies);
+    }
+
+    private Object invoke(FuncDef f, Object[] args) {
+        if (args.length != f.formalParams.size()) {
+            throw new ExecutionError("Function '" + f.procname + "' expects " + f.formalParams.size()
+                    + " arguments but got " + args.length);
+        }
+        Scope frame = new Scope(null);
+        for (int i = 0; i < args.length; i++) {
+            Pair<Type, String> param = f.formalParams.get(i);
+            frame.declare(param.elem2, param.elem1, convert(args[i], param.elem1));
+        }
+        execute(f.funcBody, frame);
+        return convert(evaluate(f.returnExpr, frame), f.returnType);
+    }
+
+    private void execute(Stmt stmt, Scope scope) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Assign assign:
+                assign(assign, scope);
+                break;
+            case Declaration decl:
+                Object value = decl.expr != null ? convert(evaluateOwned(decl.expr, scope), decl.t) : initialValue(decl.t, scope);
+                scope.declare(decl.ident, decl.t, value);
+                execute(decl.stmt, scope);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    execute(s, scope);
+                }
+                break;
+            case Comp comp:
+                execute(comp.stmt1, scope);
+                execute(comp.stmt2, scope);
+                break;
+            case If ifStmt:
+                if (truth(evaluate(ifStmt.cond, scope))) {
+                    execute(ifStmt.then, new Scope(scope));
+                } else if (ifStmt.els != null) {
+                    execute(ifStmt.els, new Scope(scope));
+                }
+                break;
+            case While whileStmt:
+                while (truth(evaluate(whileStmt.cond, scope))) {
+                    execute(whileStmt.stmt, new Scope(scope));
+                }
+                break;
+            case Defer defer:
+                runDefer(defer, scope);
+                break;
+            default:
+                throw new ExecutionError("Unknown statement " + stmt.getClass().getSimpleName());
+        }
+    }
+
+    private void assign(Assign assign, Scope scope) {
+        if (assign.target instanceof Ident ident) {
+            scope.set(ident.name, convert(evaluateOwned(assign.expr, scope), scope.typeOf(ident.name)));
+        } else if (assign.target instanceof TensorAccessExpr tae) {
+            Tensor tensor = tensor(evaluate(tae.listExpr, scope));
+            int offset = tensor.offset(indices(tae, scope));
+            tensor.set(offset, evaluate(assign.expr, scope));
+        } else {
+            throw new ExecutionError("Can't assign to " + assign.target.getClass().getSimpleName());
+        }
+    }
+
+    // ---- defer blocks ----
+
+    private void runDefer(Defer defer, Scope scope) {
+        int[] extents = new int[defer.dim.size()];
+        long points = 1;
+        for (int d = 0; d < extents.length; d++) {
+            extents[d] = size(defer.dim.get(d).elem2, scope);
+            points *= extents[d];
+        }
+
+        // The types of the host's scalars don't change between runs of the block
+        KernelReduction reduction = reductions.computeIfAbsent(defer, df -> KernelReduction.analyze(df, scope::typeOf));
+        Range range = new Range(defer, scope, extents, reduction);
+        Object[] results = RangeSplitter.run(pool, points, range.operators, range::run);
+
+        for (int r = 0; r < range.reduced.length; r++) {
+            scope.set(range.reduced[r], RangeSplitter.combine(range.operators[r], scope.get(range.reduced[r]), results[r]));
+        }
+    }
+
+    // The points of one run of a defer block, in row-major order of the thread variables
+    private final class Range {
+        final Defer defer;
+        final Scope scope;
+        final int[] extents;
+        final String[] reduced;
+        final Type[] reducedTypes;
+        final KernelReduction.Operator[] operators;
+
+        Range(Defer defer, Scope scope, int[] extents, KernelReduction reduction) {
+            this.defer = defer;
+            this.scope = scope;
+            this.extents = extents;
+            this.reduced = reduction.variables.keySet().toArray(new String[0]);
+            this.reducedTypes = new Type[reduced.length];
+            this.operators = new KernelReduction.Operator[reduced.length];
+            for (int r = 0; r < reduced.length; r++) {
+                reducedTypes[r] = scope.typeOf(reduced[r]);
+                operators[r] = reduction.variables.get(reduced[r]);
+            }
+        }
+
+        // Runs the points [start, end) and returns the values of the reduced scalars over them
+        Object[] run(long start, long end) {
+            // The body updates its own copies of the reduced scalars, starting from the identities
+            Scope task = new Scope(scope);
+            for (int r = 0; r < reduced.length; r++) {
+                task.declare(reduced[r], reducedTypes[r], identity(operators[r], reducedTypes[r]));
+            }
+
+            int[] point = new int[extents.length];
+            long rest = start;
+            for (int d = extents.length - 1; d >= 0; d--) {
+                point[d] = (int) (rest % extents[d]);
+                rest /= extents[d];
+            }
+
+            for (long p = start; p < end; p++) {
+                Scope iteration = new Scope(task);
+                for (int d = 0; d < point.length; d++) {
+                    iteration.declare(defer.dim.get(d).elem1, INT_TYPE, point[d]);
+                }
+                execute(defer.stmt, iteration);
+
+                for (int d = point.length - 1; d >= 0 && ++point[d] == extents[d]; d--) {
+                    point[d] = 0;
+                }
+            }
+
+            Object[] results = new Object[reduced.length];
+            for (int r = 0; r < reduced.length; r++) {
+                results[r] = task.get(reduced[r]);
+            }
+            return results;
+        }
+    }
+
+    private static Object identity(KernelReduction.Operator op, Type type) {
+        boolean isDouble = isDouble(type);
+        switch (op) {
+            case SUM: return isDouble ? (Object) 0.0 : (Object) 0;
+            case PRODUCT: return isDouble ? (Object) 1.0 : (Object) 1;
+            case MIN: return isDouble ? (Object) Double.MAX_VALUE : (Object) Integer.MAX_VALUE;
+            case MAX: return isDouble ? (Object) (-Double.MAX_VALUE) : (Object) Integer.MIN_VALUE;
+            case AND: return true;
+            default: return false;
+        }
+    }
+
+    // ---- expressions ----
+
+    // The value of an expression that the caller may keep: a tensor variable is copied, other tensors are new
+    private Object evaluateOwned(Expr expr, Scope scope) {
+        Object value = evaluate(expr, scope);
+        Expr inner = expr;
+        while (inner instanceof ParenExpr paren) {
+            inner = paren.expr;
+        }
+        return value instanceof Tensor tensor && inner instanceof Ident ? tensor.copy() : value;
+    }
+
+    private Object evaluate(Expr expr, Scope scope) {
+        switch (expr) {
+            case IntVal iv:
+                return iv.value;
+            case DoubleVal dv:
+                return dv.val;
+            case BoolVal bv:
+                return bv.value;
+            case CharVal cv:
+                return cv.val;
+            case Ident id:
+                return scope.get(id.name);
+            case ParenExpr pe:
+                return evaluate(pe.expr, scope);
+            case UnExpr ue:
+                Object operand = evaluate(ue.expr, scope);
+                if (ue.op == Unaryoperator.NOT) {
+                    return !truth(operand);
+                }
+                return operand instanceof Double d ? (Object) (-d) : (Object) (-integer(operand));
+            case BinExpr be:
+                if (be.op == Binoperator.AND) {
+                    return truth(evaluate(be.left, scope)) && truth(evaluate(be.right, scope));
+                }
+                if (be.op == Binoperator.OR) {
+                    return truth(evaluate(be.left, scope)) || truth(evaluate(be.right, scope));
+                }
+                return binary(be.op, evaluate(be.left, scope), evaluate(be.right, scope));
+            case TensorAccessExpr tae:
+                Tensor tensor = tensor(evaluate(tae.listExpr, scope));
+                return tensor.get(tensor.offset(indices(tae, scope)));
+            case TensorDefExpr tde:
+                return tensorLiteral(tde, scope);
+            case FuncCallExpr call:
+                return call(call, scope);
+            default:
+                throw new ExecutionError("Unknown expression " + expr.getClass().getSimpleName());
+        }
+    }
+
+    private Object call(FuncCallExpr call, Scope scope) {
+        List<Expr> params = call.actualParameters;
+        switch (call.name) {
+            case "zeros":
+            case "ones":
+                int rows = integer(evaluate(params.get(0), scope)), columns = integer(evaluate(params.get(1), scope));
+                return call.name.equals("ones") ? Tensor.ones(rows, columns) : Tensor.zeros(SimpleTypesEnum.INT, rows, columns);
+            case "min":
+            case "max":
+                return minMax(call.name.equals("min"), evaluate(params.get(0), scope), evaluate(params.get(1), scope));
+            default:
+                FuncDef f = functions.get(call.name);
+                if (f == null) {
+                    throw new ExecutionError("Function '" + call.name + "' is not defined");
+                }
+                Object[] args = new Object[params.size()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = evaluateOwned(params.get(i), scope);
+                }
+                return invoke(f, args);
+        }
+    }
+
+    private static Object binary(Binoperator op, Object left, Object right) {
+        switch (op) {
+            case ADD: case MINUS: case TIMES: case DIV: case MODULO:
+                return arithmetic(op, left, right);
+            case EQUAL:
+                return equal(left, right);
+            case NEQUAL:
+                return !equal(left, right);
+            case LT: case GT: case LEQ: case GEQ:
+                int order = left instanceof Double || right instanceof Double
+                        ? Double.compare(number(left), number(right)) : Integer.compare(integer(left), integer(right));
+                if (op == Binoperator.LT) return order < 0;
+                if (op == Binoperator.GT) return order > 0;
+                if (op == Binoperator.LEQ) return order <= 0;
+                return order >= 0;
+            default:
+                throw new ExecutionError("Operator " + op + " is not supported");
+        }
+    }
+
+    // int if both operands are ints, double otherwise, like C++
+    private static Object arithmetic(Binoperator op, Object left, Object right) {
+        if (left instanceof Double || right instanceof Double) {
+            double a = number(left), b = number(right);
+            switch (op) {
+                case ADD: return a + b;
+                case MINUS: return a - b;
+                case TIMES: return a * b;
+                case DIV: return a / b;
+                default: return a % b;
+            }
+        }
+        int a = integer(left), b = integer(right);
+        switch (op) {
+            case ADD: return a + b;
+            case MINUS: return a - b;
+            case TIMES: return a * b;
+            default:
+                if (b == 0) {
+                    throw new ExecutionError("Division by zero");
+                }
+                return op == Binoperator.DIV ? a / b : a % b;
+        }
+    }
+
+    private static Object minMax(boolean min, Object a, Object b) {
+        if (a instanceof Double || b instanceof Double) {
+            return min ? Math.min(number(a), number(b)) : Math.max(number(a), number(b));
+        }
+        return min ? Math.min(integer(a), integer(b)) : Math.max(integer(a), integer(b));
+    }
+
+    private static boolean equal(Object left, Object right) {
+        if (left instanceof Number && right instanceof Number) {
+            return left instanceof Double || right instanceof Double
+                    ? number(left) == number(right) : integer(left) == integer(right);
+        }
+        return Objects.equals(left, right);
+    }
+
+    // {1, 2, 3} is a vector, {{1, 2}, {3, 4}} a matrix of its rows, and so on
+    private Tensor tensorLiteral(TensorDefExpr tde, Scope scope) {
+        Object[] elements = new Object[tde.exprs.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = evaluate(tde.exprs.get(i), scope);
+        }
+
+        if (elements[0] instanceof Tensor) {
+            Tensor[] rows = new Tensor[elements.length];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = tensor(elements[i]);
+            }
+            return Tensor.stack(rows);
+        }
+
+        SimpleTypesEnum componentType = SimpleTypesEnum.INT;
+        for (Object element : elements) {
+            if (element instanceof Double) componentType = SimpleTypesEnum.DOUBLE;
+            else if (element instanceof Boolean) componentType = SimpleTypesEnum.BOOL;
+            else if (element instanceof Character) componentType = SimpleTypesEnum.CHAR;
+        }
+        Tensor result = Tensor.zeros(componentType, elements.length);
+        for (int i = 0; i < elements.length; i++) {
+            result.set(i, elements[i]);
+        }
+        return result;
+    }
+
+    private int[] indices(TensorAccessExpr tae, Scope scope) {
+        int[] indices = new int[tae.indices.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = integer(evaluate(tae.indices.get(i), scope));
+        }
+        return indices;
+    }
+
+    // ---- values ----
+
+    // A value stored in a variable of the given type: ints widen to doubles, tensors to double tensors
+    private static Object convert(Object value, Type type) {
+        if (type instanceof SimpleType st && st.type == SimpleTypesEnum.DOUBLE && value instanceof Integer i) {
+            return i.doubleValue();
+        }
+        if (type instanceof TensorType tt && tt.componentType.type == SimpleTypesEnum.DOUBLE
+                && value instanceof Tensor t && t.componentType == SimpleTypesEnum.INT) {
+            return t.toDoubles();
+        }
+        return value;
+    }
+
+    // Value of a declared variable without an initializer: zero, false, '\0' or a tensor of zeros
+    private static Object initialValue(Type type, Scope scope) {
+        if (type instanceof TensorType tt) {
+            int[] shape = new int[tt.dimensions.size()];
+            for (int d = 0; d < shape.length; d++) {
+                shape[d] = size(tt.dimensions.get(d), scope);
+            }
+            return Tensor.zeros(tt.componentType.type, shape);
+        }
+        switch (((SimpleType) type).type) {
+            case DOUBLE: return 0.0;
+            case BOOL: return false;
+            case CHAR: return '\0';
+            default: return 0;
+        }
+    }
+
+    private static int size(SizeParam size, Scope scope) {
+        if (size instanceof SPInt constant) {
+            return constant.value;
+        }
+        if (size instanceof SPIdent ident) {
+            return integer(scope.get(ident.ident));
+        }
+        throw new ExecutionError("Size of a tensor is not known");
+    }
+
+    private static boolean isDouble(Type type) {
+        return type instanceof SimpleType st && st.type == SimpleTypesEnum.DOUBLE;
+    }
+
+    private static boolean truth(Object value) {
+        return (Boolean) value;
+    }
+
+    private static int integer(Object value) {
+        return value instanceof Character c ? c : ((Number) value).intValue();
+    }
+
+    private static double number(Object value) {
+        return value instanceof Character c ? c : ((Number) value).doubleValue();
+    }
+
+    private static Tensor tensor(Object value) {
+        if (value instanceof Tensor tensor) {
+            return tensor;
+        }
+        throw new ExecutionError("Indexing a value that isn't a tensor: " + value);
+    }
+
+    // Variables of one block. The scopes of the host are only read while the points of a defer block run.
+    private static final class Scope {
+        private final Scope parent;
+        private String[] names = new String[4];
+        private Type[] types = new Type[4];
+        private Object[] values = new Object[4];
+        private int size = 0;
+
+        Scope(Scope parent) {
+            this.parent = parent;
+        }
+
+        void declare(String name, Type type, Object value) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            names[size] = name;
+            types[size] = type;
+            values[size] = value;
+            size++;
+        }
+
+        Object get(String name) {
+            for (Scope s = this; s != null; s = s.parent) {
+                int i = s.indexOf(name);
+                if (i >= 0) return s.values[i];
+            }
+            throw new ExecutionError("Variable '" + name + "' is not declared");
+        }
+
+        void set(String name, Object value) {
+            for (Scope s = this; s != null; s = s.parent) {
+                int i = s.indexOf(name);
+                if (i >= 0) {
+                    s.values[i] = value;
+                    return;
+                }
+            }
+            throw new ExecutionError("Variable '" + name + "' is not declared");
+        }
+
+        // null for names that aren't declared
+        Type typeOf(String name) {
+            for (Scope s = this; s != null; s = s.parent) {
+                int i = s.indexOf(name);
+                if (i >= 0) return s.types[i];
+            }
+            return null;
+        }
+
+        // Later declarations shadow earlier ones
+        private int indexOf(String name) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (names[i].equals(name)) return i;
+            }
+            return -1;
+        }
+    }
+}
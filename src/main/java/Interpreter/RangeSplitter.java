@@ -0,0 +1,102 @@
+package Interpreter;
+
+import SemanticAnalysis.KernelReduction;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Runs the points of a defer block's iteration space in ranges, on a
+ * ForkJoinPool or in order on the calling thread.
+ *
+ * A body runs the points [start, end) and returns the values its reductions
+ * accumulated over them (null if the block has none); the results of
+ * neighbouring ranges are combined left before right. The ranges only depend
+ * on the number of points, not on the pool, so a double reduction rounds the
+ * same with any number of threads. Used by the Interpreter and by the classes
+ * the JvmCompiler generates.
+ */
+public final class RangeSplitter {
+    private static final int MIN_RANGE_POINTS = 16; // points worth a task of their own
+    private static final int MAX_RANGES = 256;
+
+    public interface Body {
+        Object[] run(long start, long end);
+    }
+
+    private RangeSplitter() {
+    }
+
+    // The combined results of all points, null pool runs them on the calling thread
+    public static Object[] run(ForkJoinPool pool, long points, KernelReduction.Operator[] operators, Body body) {
+        long grain = Math.max(MIN_RANGE_POINTS, (points + MAX_RANGES - 1) / MAX_RANGES);
+        RangeTask task = new RangeTask(body, operators, 0, points, grain, pool != null);
+        return pool != null && points > grain ? pool.invoke(task) : task.compute();
+    }
+
+    // a and b combined with a reduction's operator, both of the type of the reduced scalar
+    public static Object combine(KernelReduction.Operator op, Object a, Object b) {
+        if (op.isLogical()) {
+            return op == KernelReduction.Operator.AND ? (Boolean) a && (Boolean) b : (Boolean) a || (Boolean) b;
+        }
+        if (a instanceof Double || b instanceof Double) {
+            double x = ((Number) a).doubleValue(), y = ((Number) b).doubleValue();
+            switch (op) {
+                case SUM: return x + y;
+                case PRODUCT: return x * y;
+                case MIN: return Math.min(x, y);
+                default: return Math.max(x, y);
+            }
+        }
+        int x = ((Number) a).intValue(), y = ((Number) b).intValue();
+        switch (op) {
+            case SUM: return x + y;
+            case PRODUCT: return x * y;
+            case MIN: return Math.min(x, y);
+            default: return Math.max(x, y);
+        }
+    }
+
+    private static final class RangeTask extends RecursiveTask<Object[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Body body; // the tasks are never serialized
+        private final KernelReduction.Operator[] operators;
+        private final long start, end, grain;
+        private final boolean parallel; // false splits the same way on the calling thread
+
+        RangeTask(Body body, KernelReduction.Operator[] operators, long start, long end, long grain, boolean parallel) {
+            this.body = body;
+            this.operators = operators;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected Object[] compute() {
+            if (end - start <= grain) {
+                return body.run(start, end);
+            }
+            long middle = start + (end - start) / 2;
+            RangeTask left = new RangeTask(body, operators, start, middle, grain, parallel);
+            RangeTask right = new RangeTask(body, operators, middle, end, grain, parallel);
+            if (!parallel) {
+                return combine(left.compute(), right.compute());
+            }
+            left.fork();
+            Object[] rightResults = right.compute();
+            return combine(left.join(), rightResults);
+        }
+
+        private Object[] combine(Object[] left, Object[] right) {
+            if (left == null) return null;
+            Object[] results = new Object[operators.length];
+            for (int r = 0; r < operators.length; r++) {
+                results[r] = RangeSplitter.combine(operators[r], left[r], right[r]);
+            }
+            return results;
+        }
+    }
+}
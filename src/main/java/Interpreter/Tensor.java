@@ -0,0 +1,185 @@
+package Interpreter;
+
+import AbstractSyntax.Types.SimpleTypesEnum;
+
+import java.util.Arrays;
+
+/*
+ * Tensor value of the Interpreter.
+ *
+ * The components are stored row-major in one primitive array, like the
+ * IntTensor and DoubleTensor of tensor.h: doubles in a double[], ints, bools
+ * (as 0 and 1) and chars in an int[]. The Interpreter reads and writes them by
+ * flat index, so the threads of a defer block work on the same arrays without
+ * any boxing.
+ */
+public final class Tensor {
+    public final SimpleTypesEnum componentType;
+    public final int[] shape;
+    public final int[] ints;       // INT, BOOL and CHAR components, null for DOUBLE
+    public final double[] doubles; // DOUBLE components, null otherwise
+
+    private Tensor(SimpleTypesEnum componentType, int[] shape, int[] ints, double[] doubles) {
+        this.componentType = componentType;
+        this.shape = shape;
+        this.ints = ints;
+        this.doubles = doubles;
+    }
+
+    // A tensor of the given shape with every component 0 (false, '\0')
+    public static Tensor zeros(SimpleTypesEnum componentType, int... shape) {
+        int size = size(shape);
+        return componentType == SimpleTypesEnum.DOUBLE
+                ? new Tensor(componentType, shape.clone(), null, new double[size])
+                : new Tensor(componentType, shape.clone(), new int[size], null);
+    }
+
+    // An int matrix of ones, like the ones builtin
+    public static Tensor ones(int rows, int columns) {
+        Tensor matrix = zeros(SimpleTypesEnum.INT, rows, columns);
+        Arrays.fill(matrix.ints, 1);
+        return matrix;
+    }
+
+    public static Tensor ofInts(int[] components, int... shape) {
+        return ofInts(SimpleTypesEnum.INT, components, shape);
+    }
+
+    // Components of an INT, BOOL or CHAR tensor
+    public static Tensor ofInts(SimpleTypesEnum componentType, int[] components, int... shape) {
+        checkSize(components.length, shape);
+        return new Tensor(componentType, shape.clone(), components, null);
+    }
+
+    public static Tensor ofDoubles(double[] components, int... shape) {
+        checkSize(components.length, shape);
+        return new Tensor(SimpleTypesEnum.DOUBLE, shape.clone(), null, components);
+    }
+
+    // The rows stacked along a new first axis, {{1, 2}, {3, 4}} from {1, 2} and {3, 4}
+    public static Tensor stack(Tensor... rows) {
+        Tensor first = rows[0];
+        int[] shape = new int[first.rank() + 1];
+        shape[0] = rows.length;
+        System.arraycopy(first.shape, 0, shape, 1, first.rank());
+        Tensor result = zeros(first.componentType, shape);
+        int size = first.size();
+        for (int i = 0; i < rows.length; i++) {
+            Tensor row = rows[i];
+            if (!Arrays.equals(row.shape, first.shape)) {
+                throw new ExecutionError("Rows of a tensor literal have shapes " + Arrays.toString(first.shape)
+                        + " and " + Arrays.toString(row.shape));
+            }
+            if (result.ints != null) {
+                System.arraycopy(row.ints, 0, result.ints, i * size, size);
+            } else {
+                System.arraycopy(row.doubles, 0, result.doubles, i * size, size);
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return ints != null ? ints.length : doubles.length;
+    }
+
+    public int rank() {
+        return shape.length;
+    }
+
+    // Flat index of an element, the last axis varies fastest
+    public int offset(int... indices) {
+        if (indices.length != shape.length) {
+            throw new ExecutionError("Tensor of rank " + shape.length + " indexed with " + indices.length + " indices");
+        }
+        int offset = 0;
+        for (int axis = 0; axis < shape.length; axis++) {
+            int index = indices[axis];
+            if (index < 0 || index >= shape[axis]) {
+                throw new ExecutionError("Index " + index + " out of bounds for axis " + axis + " of size " + shape[axis]);
+            }
+            offset = offset * shape[axis] + index;
+        }
+        return offset;
+    }
+
+    // The component at a flat index as a value of the Interpreter
+    public Object get(int offset) {
+        switch (componentType) {
+            case DOUBLE: return doubles[offset];
+            case BOOL: return ints[offset] != 0;
+            case CHAR: return (char) ints[offset];
+            default: return ints[offset];
+        }
+    }
+
+    // Components by indices, bounds checked like offset
+    public int intAt(int... indices) {
+        return ints[offset(indices)];
+    }
+
+    public double doubleAt(int... indices) {
+        return doubles[offset(indices)];
+    }
+
+    public void set(int offset, Object value) {
+        switch (componentType) {
+            case DOUBLE: doubles[offset] = ((Number) value).doubleValue(); break;
+            case BOOL: ints[offset] = (Boolean) value ? 1 : 0; break;
+            case CHAR: ints[offset] = (Character) value; break;
+            default: ints[offset] = ((Number) value).intValue(); break;
+        }
+    }
+
+    // Tensors are values in BOLT, like the tensor classes of the generated C++ code
+    public Tensor copy() {
+        return new Tensor(componentType, shape.clone(), ints != null ? ints.clone() : null,
+                doubles != null ? doubles.clone() : null);
+    }
+
+    // A double tensor with the components of an int tensor, for a variable of a double tensor type
+    public Tensor toDoubles() {
+        double[] components = new double[size()];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = ints[i];
+        }
+        return ofDoubles(components, shape);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Tensor t && componentType == t.componentType && Arrays.equals(shape, t.shape)
+                && Arrays.equals(ints, t.ints) && Arrays.equals(doubles, t.doubles);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(shape) * 31 + (ints != null ? Arrays.hashCode(ints) : Arrays.hashCode(doubles));
+    }
+
+    @Override
+    public String toString() {
+        return componentType.name().toLowerCase() + Arrays.toString(shape)
+                + (ints != null ? Arrays.toString(ints) : Arrays.toString(doubles));
+    }
+
+    private static int size(int[] shape) {
+        long size = 1;
+        for (int extent : shape) {
+            if (extent < 0) {
+                throw new ExecutionError("Negative tensor size " + extent);
+            }
+            size *= extent;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new ExecutionError("Tensor of shape " + Arrays.toString(shape) + " is too large");
+        }
+        return (int) size;
+    }
+
+    private static void checkSize(int length, int[] shape) {
+        if (size(shape) != length) {
+            throw new IllegalArgumentException(length + " components for a tensor of shape " + Arrays.toString(shape));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package JvmCompiler;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Program.Prog;
+import AbstractSyntax.SizeParams.SPInt;
+import AbstractSyntax.Types.*;
+import Interpreter.ExecutionError;
+import Interpreter.Tensor;
+import Lib.Pair;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * A BOLT program compiled by the JvmCompiler, called like the Interpreter.
+ */
+public final class CompiledProgram {
+    public final String source; // the generated Java class
+
+    private final Map<String, FuncDef> functions = new HashMap<>();
+    private final Map<String, Method> methods = new HashMap<>();
+
+    CompiledProgram(Prog prog, Class<?> program, ForkJoinPool pool, String source) throws Exception {
+        this.source = source;
+        for (FuncDef f = prog.func; f != null; f = f.nextFunc) {
+            functions.putIfAbsent(f.procname, f);
+        }
+        for (Method m : program.getMethods()) {
+            methods.put(m.getName(), m);
+        }
+        program.getField("bolt_pool").set(null, pool);
+    }
+
+    // Calls a function of the program with Integer, Double, Boolean, Character or Tensor arguments and
+    // returns its result as one of them. Tensors are passed by value, the caller's are never changed.
+    // Safe to call from several threads at once.
+    public Object call(String name, Object... args) {
+        FuncDef f = functions.get(name);
+        if (f == null) {
+            throw new ExecutionError("Function '" + name + "' is not defined");
+        }
+        if (args.length != f.formalParams.size()) {
+            throw new ExecutionError("Function '" + name + "' expects " + f.formalParams.size()
+                    + " arguments but got " + args.length);
+        }
+        Object[] values = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            values[i] = argument(f.formalParams.get(i), args[i]);
+        }
+
+        try {
+            return methods.get(JavaGenerator.functionName(name)).invoke(null, values);
+        } catch (IllegalArgumentException e) {
+            throw new ExecutionError("Function '" + name + "' called with arguments " + Arrays.toString(args));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ArithmeticException) {
+                throw new ExecutionError("Division by zero");
+            }
+            if (cause instanceof ArrayIndexOutOfBoundsException) {
+                throw new ExecutionError(cause.getMessage());
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    // The defer methods index tensors with the extents of their types, so a tensor argument must have them
+    private static Object argument(Pair<Type, String> param, Object arg) {
+        if (param.elem1 instanceof SimpleType st && st.type == SimpleTypesEnum.DOUBLE && arg instanceof Integer i) {
+            return i.doubleValue();
+        }
+        if (!(param.elem1 instanceof TensorType tt) || !(arg instanceof Tensor tensor)) {
+            return arg;
+        }
+        if (tensor.rank() != tt.dimensions.size()) {
+            throw new ExecutionError("Parameter '" + param.elem2 + "' of rank " + tt.dimensions.size()
+                    + " given a tensor of rank " + tensor.rank());
+        }
+        for (int d = 0; d < tensor.rank(); d++) {
+            if (tt.dimensions.get(d) instanceof SPInt extent && extent.value != tensor.shape[d]) {
+                throw new ExecutionError("Parameter '" + param.elem2 + "' has extent " + extent.value + " on axis " + d
+                        + " but the tensor has " + tensor.shape[d]);
+            }
+        }
+        if (tt.componentType.type == SimpleTypesEnum.DOUBLE && tensor.componentType == SimpleTypesEnum.INT) {
+            return tensor.toDoubles();
+        }
+        return tensor.copy();
+    }
+}
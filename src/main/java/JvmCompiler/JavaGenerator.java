@@ -0,0 +1,1077 @@
+package JvmCompiler;
+
+import AbstractSyntax.Definitions.*;
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.Program.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import SemanticAnalysis.KernelReduction;
+
+import java.util.*;
+
+/*
+ * Generates the Java class of a type checked BOLT program for the JvmCompiler.
+ *
+ * Every function becomes a static method f_<name> with primitive parameters
+ * and locals: int, double, boolean and char, tensors are Interpreter.Tensors.
+ * BOLT variables are v_<name>, renamed where Java doesn't allow a block to
+ * shadow a variable of the method. As in the Interpreter, tensors are values:
+ * declarations, assignments and calls copy a tensor variable.
+ *
+ * A defer block becomes a static method <function>_defer<n> that runs a range
+ * of its points, called from RangeSplitter.run. The method reads and writes
+ * the host's tensors through their component arrays (a_data[i * 45 + j]) and
+ * runs the last thread variable in a counted loop, the other thread variables
+ * only change between its rows. The reduced scalars of the body (see
+ * KernelReduction) are locals of the method that start at the identity of
+ * their operator and are returned to the host, which combines them with its
+ * own values.
+ *
+ * With vectorize, a defer body that only assigns elementwise expressions of
+ * the components t[..., k] of the last thread variable k (y[i] = a * x[i] +
+ * y[i]) runs its rows on jdk.incubator.vector: the loop over k takes as many
+ * points at a time as the preferred species has lanes, and the points left at
+ * the end of the row run one by one. Every other body runs point by point.
+ */
+final class JavaGenerator {
+    static final String CLASS_NAME = "BoltProgram";
+
+    private static final SimpleType INT = new SimpleType(SimpleTypesEnum.INT);
+    private static final SimpleType DOUBLE = new SimpleType(SimpleTypesEnum.DOUBLE);
+    private static final SimpleType BOOL = new SimpleType(SimpleTypesEnum.BOOL);
+    private static final SimpleType CHAR = new SimpleType(SimpleTypesEnum.CHAR);
+
+    private final Map<String, FuncDef> functions = new LinkedHashMap<>();
+    private final StringBuilder deferMethods = new StringBuilder();
+    private Method method;      // the method being generated
+    private String functionName;
+    private int deferCount;
+    private boolean needsCondition; // bolt_condition hides constant loop conditions from javac
+    private final boolean vectorize;
+    private boolean usesDoubleVectors, usesIntVectors;
+
+    // vectorize runs elementwise defer bodies on jdk.incubator.vector, the class then needs the module
+    JavaGenerator(boolean vectorize) {
+        this.vectorize = vectorize;
+    }
+
+    boolean usesVectorApi() {
+        return usesDoubleVectors || usesIntVectors;
+    }
+
+    // A BOLT variable in the method being generated
+    private static final class Variable {
+        final String javaName;
+        final Type type;
+        String data;      // component array in a defer method, null if the tensor is read through Tensor
+        String[] strides; // strides of the axes of data
+
+        Variable(String javaName, Type type) {
+            this.javaName = javaName;
+            this.type = type;
+        }
+    }
+
+    private static final class Method {
+        final Deque<Map<String, Variable>> scopes = new ArrayDeque<>();
+        final Set<String> javaNames = new HashSet<>(); // Java doesn't allow shadowing a local, so every name is new
+        final StringBuilder code = new StringBuilder();
+        boolean inDefer;
+
+        Method() {
+            scopes.push(new HashMap<>());
+        }
+    }
+
+    String generate(Prog prog) throws Exception {
+        for (FuncDef f = prog.func; f != null; f = f.nextFunc) {
+            functions.putIfAbsent(f.procname, f);
+        }
+
+        StringBuilder functionMethods = new StringBuilder();
+        for (FuncDef f : functions.values()) {
+            functionMethods.append(function(f));
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("import AbstractSyntax.Types.SimpleTypesEnum;\n");
+        out.append("import SemanticAnalysis.KernelReduction;\n");
+        out.append("import Interpreter.RangeSplitter;\n");
+        out.append("import Interpreter.Tensor;\n");
+        out.append("import java.util.concurrent.ForkJoinPool;\n");
+        if (usesDoubleVectors) out.append("import jdk.incubator.vector.DoubleVector;\n");
+        if (usesIntVectors) out.append("import jdk.incubator.vector.IntVector;\n");
+        if (usesVectorApi()) out.append("import jdk.incubator.vector.VectorSpecies;\n");
+        out.append('\n');
+        out.append("// Generated by the BOLT JVM compiler\n");
+        out.append("public final class ").append(CLASS_NAME).append(" {\n");
+        out.append("    public static ForkJoinPool bolt_pool; // null runs the defer blocks on the calling thread\n");
+        if (usesDoubleVectors) {
+            out.append("    private static final VectorSpecies<Double> bolt_doubles = DoubleVector.SPECIES_PREFERRED;\n");
+        }
+        if (usesIntVectors) {
+            out.append("    private static final VectorSpecies<Integer> bolt_ints = IntVector.SPECIES_PREFERRED;\n");
+        }
+        out.append('\n');
+        out.append(functionMethods);
+        out.append(deferMethods);
+        if (needsCondition) {
+            out.append("    private static boolean bolt_condition(boolean value) {\n");
+            out.append("        return value;\n");
+            out.append("    }\n\n");
+        }
+        out.setLength(out.length() - 1);
+        out.append("}\n");
+        return out.toString();
+    }
+
+    static String functionName(String boltName) {
+        return "f_" + boltName;
+    }
+
+    private String function(FuncDef f) throws Exception {
+        method = new Method();
+        functionName = f.procname;
+        deferCount = 0;
+
+        StringBuilder params = new StringBuilder();
+        for (Pair<Type, String> param : f.formalParams) {
+            if (params.length() > 0) params.append(", ");
+            params.append(javaType(param.elem1)).append(' ').append(declare(param.elem2, param.elem1).javaName);
+        }
+
+        StringBuilder code = method.code;
+        code.append("    public static ").append(javaType(f.returnType)).append(' ').append(functionName(f.procname))
+                .append('(').append(params).append(") {\n");
+        statement(f.funcBody, "        ");
+        code.append("        return ").append(converted(f.returnExpr, f.returnType)).append(";\n");
+        code.append("    }\n\n");
+        return code.toString();
+    }
+
+    // ---- statements ----
+
+    private void statement(Stmt stmt, String indent) throws Exception {
+        if (stmt == null) return;
+
+        StringBuilder code = method.code;
+        switch (stmt) {
+            case Assign assign:
+                assign(assign, indent);
+                break;
+            case Declaration decl:
+                String value = decl.expr != null ? owned(decl.expr, decl.t) : initialValue(decl.t);
+                Variable variable = declare(decl.ident, decl.t);
+                code.append(indent).append(javaType(decl.t)).append(' ').append(variable.javaName)
+                        .append(" = ").append(value).append(";\n");
+                statement(decl.stmt, indent);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    statement(s, indent);
+                }
+                break;
+            case Comp comp:
+                statement(comp.stmt1, indent);
+                statement(comp.stmt2, indent);
+                break;
+            case If ifStmt:
+                code.append(indent).append("if (").append(bare(ifStmt.cond)).append(") {\n");
+                scoped(ifStmt.then, indent + "    ");
+                if (ifStmt.els != null) {
+                    code.append(indent).append("} else {\n");
+                    scoped(ifStmt.els, indent + "    ");
+                }
+                code.append(indent).append("}\n");
+                break;
+            case While whileStmt:
+                String cond = bare(whileStmt.cond);
+                if (isConstant(whileStmt.cond)) {
+                    // javac rejects the code after while (true)
+                    cond = "bolt_condition(" + cond + ")";
+                    needsCondition = true;
+                }
+                code.append(indent).append("while (").append(cond).append(") {\n");
+                scoped(whileStmt.stmt, indent + "    ");
+                code.append(indent).append("}\n");
+                break;
+            case Defer defer:
+                defer(defer, indent);
+                break;
+            default:
+                throw new Exception("Unknown statement " + stmt.getClass().getSimpleName());
+        }
+    }
+
+    private void scoped(Stmt stmt, String indent) throws Exception {
+        method.scopes.push(new HashMap<>());
+        statement(stmt, indent);
+        method.scopes.pop();
+    }
+
+    private void assign(Assign assign, String indent) throws Exception {
+        StringBuilder code = method.code;
+        if (assign.target instanceof Ident ident) {
+            Variable variable = variable(ident.name);
+            code.append(indent).append(variable.javaName).append(" = ").append(owned(assign.expr, variable.type)).append(";\n");
+        } else if (assign.target instanceof TensorAccessExpr tae && unparenthesized(tae.listExpr) instanceof Ident ident) {
+            Variable variable = variable(ident.name);
+            SimpleTypesEnum component = ((TensorType) variable.type).componentType.type;
+            String value = component == SimpleTypesEnum.BOOL ? expr(assign.expr) + " ? 1 : 0" : bare(assign.expr);
+            code.append(indent).append(component(variable, tae.indices)).append(" = ").append(value).append(";\n");
+        } else {
+            throw new Exception("Can't assign to " + assign.target.getClass().getSimpleName());
+        }
+    }
+
+    // ---- defer blocks ----
+
+    private void defer(Defer defer, String indent) throws Exception {
+        if (method.inDefer) {
+            throw new Exception("Defer block inside the defer block of function '" + functionName + "'");
+        }
+        String name = functionName + "_defer" + deferCount++;
+        int rank = defer.dim.size();
+
+        KernelReduction reduction = KernelReduction.analyze(defer, n -> {
+            Variable v = lookup(n);
+            return v != null ? v.type : null;
+        });
+        String[] reduced = reduction.variables.keySet().toArray(new String[0]);
+
+        // The host's variables the body uses, other than the reduced scalars
+        Set<String> names = new TreeSet<>();
+        collectNames(defer.stmt, names);
+        for (Pair<String, SizeParam> dim : defer.dim) {
+            names.remove(dim.elem1);
+        }
+        names.removeAll(reduction.variables.keySet());
+        Map<String, Variable> captured = new LinkedHashMap<>();
+        for (String n : names) {
+            Variable v = lookup(n);
+            if (v != null) captured.put(n, v);
+        }
+        Map<String, Variable> reducedVariables = new LinkedHashMap<>();
+        for (String r : reduced) {
+            reducedVariables.put(r, variable(r));
+        }
+
+        // The host: run the ranges and combine the reductions
+        StringBuilder code = method.code;
+        String inner = indent + "    ";
+        code.append(indent).append("{\n");
+        StringBuilder points = new StringBuilder();
+        StringBuilder args = new StringBuilder("bolt_start, bolt_end");
+        for (int d = 0; d < rank; d++) {
+            code.append(inner).append("int bolt_n").append(d).append(" = ").append(size(defer.dim.get(d).elem2)).append(";\n");
+            points.append(d == 0 ? "(long) " : " * ").append("bolt_n").append(d);
+            args.append(", bolt_n").append(d);
+        }
+        for (Variable v : captured.values()) {
+            String capture = "bolt_" + v.javaName;
+            code.append(inner).append(javaType(v.type)).append(' ').append(capture).append(" = ").append(v.javaName).append(";\n");
+            args.append(", ").append(capture);
+            if (v.type instanceof TensorType tt) {
+                args.append(", ").append(capture).append(isDouble(tt.componentType) ? ".doubles" : ".ints");
+                for (int d = 0; d < tt.dimensions.size() - 1; d++) {
+                    if (constantStride(tt, d) == null) {
+                        args.append(", ").append(runtimeStride(capture, tt, d));
+                    }
+                }
+            }
+        }
+        String operators = reduced.length > 0 ? name + "_reductions" : "null";
+        String call = "RangeSplitter.run(bolt_pool, " + (rank > 0 ? points : "1L") + ", " + operators
+                + ", (bolt_start, bolt_end) -> " + name + "(" + args + "))";
+        if (reduced.length == 0) {
+            code.append(inner).append(call).append(";\n");
+        } else {
+            code.append(inner).append("Object[] bolt_results = ").append(call).append(";\n");
+            for (int r = 0; r < reduced.length; r++) {
+                Variable v = reducedVariables.get(reduced[r]);
+                String result = "(" + javaType(v.type) + ") bolt_results[" + r + "]";
+                code.append(inner).append(v.javaName).append(" = ")
+                        .append(combination(reduction.variables.get(reduced[r]), v.javaName, result)).append(";\n");
+            }
+        }
+        code.append(indent).append("}\n");
+
+        deferMethod(defer, name, reduction, reducedVariables, captured);
+    }
+
+    // The method that runs the points [bolt_start, bolt_end) of a defer block
+    private void deferMethod(Defer defer, String name, KernelReduction reduction, Map<String, Variable> reduced,
+                             Map<String, Variable> captured) throws Exception {
+        Method host = method;
+        method = new Method();
+        method.inDefer = true;
+        int rank = defer.dim.size();
+
+        StringBuilder params = new StringBuilder("long bolt_start, long bolt_end");
+        for (int d = 0; d < rank; d++) {
+            params.append(", int bolt_n").append(d);
+        }
+        for (Map.Entry<String, Variable> hostVariable : captured.entrySet()) {
+            Variable v = declareAs(hostVariable.getKey(), hostVariable.getValue());
+            params.append(", ").append(javaType(v.type)).append(' ').append(v.javaName);
+            if (v.type instanceof TensorType tt) {
+                v.data = v.javaName + "_data";
+                v.strides = new String[tt.dimensions.size()];
+                params.append(", ").append(isDouble(tt.componentType) ? "double[] " : "int[] ").append(v.data);
+                for (int d = 0; d < v.strides.length; d++) {
+                    v.strides[d] = d == v.strides.length - 1 ? "1" : constantStride(tt, d);
+                    if (v.strides[d] == null) {
+                        v.strides[d] = v.javaName + "_stride" + d;
+                        params.append(", int ").append(v.strides[d]);
+                    }
+                }
+                method.javaNames.add(v.data);
+            }
+        }
+
+        StringBuilder code = method.code;
+        code.append("    private static Object[] ").append(name).append('(').append(params).append(") {\n");
+        for (Map.Entry<String, Variable> r : reduced.entrySet()) {
+            Type type = r.getValue().type;
+            Variable v = declare(r.getKey(), type);
+            code.append("        ").append(javaType(type)).append(' ').append(v.javaName).append(" = ")
+                    .append(identity(reduction.variables.get(r.getKey()), type)).append(";\n");
+        }
+
+        String[] threads = new String[rank];
+        for (int d = 0; d < rank; d++) {
+            threads[d] = declare(defer.dim.get(d).elem1, INT).javaName;
+        }
+        if (rank == 0) {
+            code.append("        if (bolt_start < bolt_end) {\n");
+            statement(defer.stmt, "            ");
+            code.append("        }\n");
+        } else if (rank == 1) {
+            row(defer, threads[0], "(int) bolt_start", "(int) bolt_end", "        ");
+        } else {
+            // Rows of the last thread variable, the others are the coordinates of the row
+            String last = "bolt_n" + (rank - 1);
+            code.append("        for (long bolt_p = bolt_start; bolt_p < bolt_end; ) {\n");
+            code.append("            long bolt_row = bolt_p / ").append(last).append(";\n");
+            code.append("            int bolt_first = (int) (bolt_p - bolt_row * ").append(last).append(");\n");
+            code.append("            int bolt_last = (int) Math.min(").append(last).append(", bolt_first + (bolt_end - bolt_p));\n");
+            for (int d = rank - 2; d > 0; d--) {
+                code.append("            int ").append(threads[d]).append(" = (int) (bolt_row % bolt_n").append(d).append(");\n");
+                code.append("            bolt_row /= bolt_n").append(d).append(";\n");
+            }
+            code.append("            int ").append(threads[0]).append(" = (int) bolt_row;\n");
+            row(defer, threads[rank - 1], "bolt_first", "bolt_last", "            ");
+            code.append("            bolt_p += bolt_last - bolt_first;\n");
+            code.append("        }\n");
+        }
+
+        if (reduced.isEmpty()) {
+            code.append("        return null;\n");
+        } else {
+            StringBuilder results = new StringBuilder();
+            for (String r : reduced.keySet()) {
+                if (results.length() > 0) results.append(", ");
+                results.append(variable(r).javaName);
+            }
+            code.append("        return new Object[]{").append(results).append("};\n");
+        }
+        code.append("    }\n\n");
+
+        if (!reduced.isEmpty()) {
+            StringBuilder operators = new StringBuilder();
+            for (String r : reduced.keySet()) {
+                if (operators.length() > 0) operators.append(", ");
+                operators.append("KernelReduction.Operator.").append(reduction.variables.get(r).name());
+            }
+            deferMethods.append("    private static final KernelReduction.Operator[] ").append(name)
+                    .append("_reductions = {").append(operators).append("};\n\n");
+        }
+        deferMethods.append(code);
+        method = host;
+    }
+
+    // The loop of the last thread variable over [first, last), a row at a time on the Vector API if the body allows
+    private void row(Defer defer, String lane, String first, String last, String indent) throws Exception {
+        StringBuilder code = method.code;
+        SimpleTypesEnum species = vectorize ? elementwise(defer) : null;
+        if (species == null) {
+            code.append(indent).append("for (int ").append(lane).append(" = ").append(first).append("; ").append(lane)
+                    .append(" < ").append(last).append("; ").append(lane).append("++) {\n");
+            statement(defer.stmt, indent + "    ");
+            code.append(indent).append("}\n");
+            return;
+        }
+
+        String speciesField = species == SimpleTypesEnum.DOUBLE ? "bolt_doubles" : "bolt_ints";
+        usesDoubleVectors |= species == SimpleTypesEnum.DOUBLE;
+        usesIntVectors |= species == SimpleTypesEnum.INT;
+        String boltLane = defer.dim.get(defer.dim.size() - 1).elem1;
+
+        // The scalars of the body are the same in every lane, they are broadcast once per row
+        List<String> broadcasts = new ArrayList<>();
+        List<String> stores = new ArrayList<>();
+        for (Assign assign : assignments(defer.stmt)) {
+            TensorAccessExpr target = (TensorAccessExpr) assign.target;
+            Variable variable = variable(((Ident) unparenthesized(target.listExpr)).name);
+            stores.add(vector(assign.expr, species, boltLane, broadcasts) + ".intoArray(" + variable.data + ", "
+                    + flatIndex(variable, target.indices) + ");");
+        }
+        for (String broadcast : broadcasts) {
+            code.append(indent).append(broadcast).append('\n');
+        }
+        code.append(indent).append("int ").append(lane).append(" = ").append(first).append(";\n");
+        code.append(indent).append("for (int bolt_bound = ").append(lane).append(" + ").append(speciesField)
+                .append(".loopBound(").append(last).append(" - ").append(lane).append("); ").append(lane)
+                .append(" < bolt_bound; ").append(lane).append(" += ").append(speciesField).append(".length()) {\n");
+        for (String store : stores) {
+            code.append(indent).append("    ").append(store).append('\n');
+        }
+        code.append(indent).append("}\n");
+        code.append(indent).append("for (; ").append(lane).append(" < ").append(last).append("; ").append(lane)
+                .append("++) { // the rest of the row, fewer points than lanes\n");
+        statement(defer.stmt, indent + "    ");
+        code.append(indent).append("}\n");
+    }
+
+    // The statements of a body that is only assignments
+    private static List<Assign> assignments(Stmt stmt) {
+        List<Assign> assignments = new ArrayList<>();
+        List<Stmt> pending = new ArrayList<>(List.of(stmt));
+        while (!pending.isEmpty()) {
+            Stmt s = pending.remove(0);
+            if (s instanceof Assign assign) {
+                assignments.add(assign);
+            } else if (s instanceof Block block) {
+                pending.addAll(0, block.stmts);
+            } else if (s instanceof Comp comp) {
+                pending.add(0, comp.stmt2);
+                pending.add(0, comp.stmt1);
+            } else if (s != null) {
+                return null;
+            }
+        }
+        return assignments;
+    }
+
+    /*
+     * The component type the Vector API runs a defer body with, null if it has to run point by point.
+     *
+     * The body must only assign elementwise expressions to the components t[..., k] of int or double
+     * tensors of the host, where k is the last thread variable: +, -, *, / of doubles, negation, min and max
+     * of components u[..., k] of tensors of the same type and of scalars. k is only used as the last
+     * index and the other indices don't depend on it, so the points of a row touch different components
+     * and running them a vector at a time gives the same results as one by one.
+     */
+    private SimpleTypesEnum elementwise(Defer defer) throws Exception {
+        List<Assign> assignments = assignments(defer.stmt);
+        if (assignments == null || assignments.isEmpty()) return null;
+        String lane = defer.dim.get(defer.dim.size() - 1).elem1;
+
+        SimpleTypesEnum species = null;
+        Set<String> written = new HashSet<>();
+        for (Assign assign : assignments) {
+            if (!(assign.target instanceof TensorAccessExpr target) || !(unparenthesized(target.listExpr) instanceof Ident ident)) {
+                return null;
+            }
+            Variable variable = lookup(ident.name);
+            if (variable == null || variable.data == null || !laneIndexed(target, lane)) return null;
+            SimpleTypesEnum component = ((TensorType) variable.type).componentType.type;
+            if (component != SimpleTypesEnum.INT && component != SimpleTypesEnum.DOUBLE) return null;
+            if (species != null && species != component) return null;
+            species = component;
+            written.add(ident.name);
+        }
+        for (Assign assign : assignments) {
+            if (!fitsVector(assign.expr, species, lane, written)) return null;
+        }
+        return species;
+    }
+
+    private boolean fitsVector(Expr expr, SimpleTypesEnum species, String lane, Set<String> written) throws Exception {
+        Set<String> names = new HashSet<>();
+        collectNames(expr, names);
+        if (!names.contains(lane)) {
+            // Broadcast: the same value in every lane, so it may not read what the body writes
+            Type type = typeOf(expr);
+            return isPure(expr, written) && type instanceof SimpleType st
+                    && (st.type == SimpleTypesEnum.INT || st.type == species);
+        }
+        switch (expr) {
+            case ParenExpr pe:
+                return fitsVector(pe.expr, species, lane, written);
+            case UnExpr ue:
+                return ue.op == Unaryoperator.NEG && fitsVector(ue.expr, species, lane, written);
+            case BinExpr be:
+                boolean lanewise = be.op == Binoperator.ADD || be.op == Binoperator.MINUS || be.op == Binoperator.TIMES
+                        || be.op == Binoperator.DIV && species == SimpleTypesEnum.DOUBLE;
+                return lanewise && fitsVector(be.left, species, lane, written) && fitsVector(be.right, species, lane, written);
+            case FuncCallExpr call:
+                return (call.name.equals("min") || call.name.equals("max"))
+                        && fitsVector(call.actualParameters.get(0), species, lane, written)
+                        && fitsVector(call.actualParameters.get(1), species, lane, written);
+            case TensorAccessExpr tae:
+                Variable variable = unparenthesized(tae.listExpr) instanceof Ident ident ? lookup(ident.name) : null;
+                return variable != null && variable.data != null && laneIndexed(tae, lane)
+                        && ((TensorType) variable.type).componentType.type == species;
+            default:
+                return false;
+        }
+    }
+
+    // t[..., k] with indices before k that don't depend on it
+    private static boolean laneIndexed(TensorAccessExpr tae, String lane) {
+        int last = tae.indices.size() - 1;
+        if (last < 0 || !(unparenthesized(tae.indices.get(last)) instanceof Ident ident) || !ident.name.equals(lane)) {
+            return false;
+        }
+        Set<String> names = new HashSet<>();
+        for (int d = 0; d < last; d++) {
+            collectNames(tae.indices.get(d), names);
+        }
+        return !names.contains(lane);
+    }
+
+    // Literals, variables, operators, min and max, and components of tensors the body doesn't write
+    private static boolean isPure(Expr expr, Set<String> written) {
+        switch (expr) {
+            case IntVal iv: return true;
+            case DoubleVal dv: return true;
+            case Ident id: return true;
+            case ParenExpr pe: return isPure(pe.expr, written);
+            case UnExpr ue: return isPure(ue.expr, written);
+            case BinExpr be: return isPure(be.left, written) && isPure(be.right, written);
+            case FuncCallExpr call:
+                return (call.name.equals("min") || call.name.equals("max"))
+                        && isPure(call.actualParameters.get(0), written) && isPure(call.actualParameters.get(1), written);
+            case TensorAccessExpr tae:
+                if (!(unparenthesized(tae.listExpr) instanceof Ident ident) || written.contains(ident.name)) return false;
+                for (Expr index : tae.indices) {
+                    if (!isPure(index, written)) return false;
+                }
+                return true;
+            default: return false;
+        }
+    }
+
+    // An elementwise expression as a vector of the lanes starting at the last thread variable
+    private String vector(Expr expr, SimpleTypesEnum species, String lane, List<String> broadcasts) throws Exception {
+        boolean doubles = species == SimpleTypesEnum.DOUBLE;
+        String vectorType = doubles ? "DoubleVector" : "IntVector";
+        String speciesField = doubles ? "bolt_doubles" : "bolt_ints";
+        Set<String> names = new HashSet<>();
+        collectNames(expr, names);
+        if (!names.contains(lane)) {
+            String name = "bolt_broadcast" + broadcasts.size();
+            broadcasts.add(vectorType + " " + name + " = " + vectorType + ".broadcast(" + speciesField + ", "
+                    + (doubles && !isDouble(typeOf(expr)) ? "(double) (" + bare(expr) + ")" : bare(expr)) + ");");
+            return name;
+        }
+        switch (expr) {
+            case ParenExpr pe:
+                return vector(pe.expr, species, lane, broadcasts);
+            case UnExpr ue:
+                return vector(ue.expr, species, lane, broadcasts) + ".neg()";
+            case BinExpr be:
+                String op = be.op == Binoperator.ADD ? "add" : be.op == Binoperator.MINUS ? "sub"
+                        : be.op == Binoperator.TIMES ? "mul" : "div";
+                return vector(be.left, species, lane, broadcasts) + "." + op + "("
+                        + vector(be.right, species, lane, broadcasts) + ")";
+            case FuncCallExpr call:
+                return vector(call.actualParameters.get(0), species, lane, broadcasts) + "." + call.name + "("
+                        + vector(call.actualParameters.get(1), species, lane, broadcasts) + ")";
+            default:
+                TensorAccessExpr tae = (TensorAccessExpr) expr;
+                Variable variable = variable(((Ident) unparenthesized(tae.listExpr)).name);
+                return vectorType + ".fromArray(" + speciesField + ", " + variable.data + ", "
+                        + flatIndex(variable, tae.indices) + ")";
+        }
+    }
+
+    private static String identity(KernelReduction.Operator op, Type type) {
+        boolean isDouble = isDouble(type);
+        switch (op) {
+            case SUM: return isDouble ? "0.0" : "0";
+            case PRODUCT: return isDouble ? "1.0" : "1";
+            case MIN: return isDouble ? "Double.MAX_VALUE" : "Integer.MAX_VALUE";
+            case MAX: return isDouble ? "-Double.MAX_VALUE" : "Integer.MIN_VALUE";
+            case AND: return "true";
+            default: return "false";
+        }
+    }
+
+    private static String combination(KernelReduction.Operator op, String host, String result) {
+        switch (op) {
+            case SUM: return host + " + " + result;
+            case PRODUCT: return host + " * " + result;
+            case MIN: return "Math.min(" + host + ", " + result + ")";
+            case MAX: return "Math.max(" + host + ", " + result + ")";
+            case AND: return host + " && " + result;
+            default: return host + " || " + result;
+        }
+    }
+
+    // Stride of an axis if the later extents of the type are constants, null otherwise
+    private static String constantStride(TensorType type, int axis) {
+        long stride = 1;
+        for (int d = axis + 1; d < type.dimensions.size(); d++) {
+            if (!(type.dimensions.get(d) instanceof SPInt extent)) return null;
+            stride *= extent.value;
+        }
+        return String.valueOf(stride);
+    }
+
+    private static String runtimeStride(String tensor, TensorType type, int axis) {
+        StringBuilder stride = new StringBuilder();
+        for (int d = axis + 1; d < type.dimensions.size(); d++) {
+            stride.append(d > axis + 1 ? " * " : "").append(tensor).append(".shape[").append(d).append(']');
+        }
+        return stride.toString();
+    }
+
+    // Names of the variables a statement uses, including the ones it declares
+    private static void collectNames(Stmt stmt, Set<String> names) {
+        switch (stmt) {
+            case null:
+                break;
+            case Assign assign:
+                collectNames(assign.target, names);
+                collectNames(assign.expr, names);
+                break;
+            case Declaration decl:
+                if (decl.t instanceof TensorType tt) {
+                    for (SizeParam size : tt.dimensions) {
+                        if (size instanceof SPIdent ident) names.add(ident.ident);
+                    }
+                }
+                collectNames(decl.expr, names);
+                collectNames(decl.stmt, names);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) collectNames(s, names);
+                break;
+            case Comp comp:
+                collectNames(comp.stmt1, names);
+                collectNames(comp.stmt2, names);
+                break;
+            case If ifStmt:
+                collectNames(ifStmt.cond, names);
+                collectNames(ifStmt.then, names);
+                collectNames(ifStmt.els, names);
+                break;
+            case While whileStmt:
+                collectNames(whileStmt.cond, names);
+                collectNames(whileStmt.stmt, names);
+                break;
+            case Defer defer:
+                for (Pair<String, SizeParam> dim : defer.dim) {
+                    if (dim.elem2 instanceof SPIdent ident) names.add(ident.ident);
+                }
+                collectNames(defer.stmt, names);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void collectNames(Expr expr, Set<String> names) {
+        switch (expr) {
+            case null:
+                break;
+            case Ident id:
+                names.add(id.name);
+                break;
+            case ParenExpr pe:
+                collectNames(pe.expr, names);
+                break;
+            case UnExpr ue:
+                collectNames(ue.expr, names);
+                break;
+            case BinExpr be:
+                collectNames(be.left, names);
+                collectNames(be.right, names);
+                break;
+            case TensorAccessExpr tae:
+                collectNames(tae.listExpr, names);
+                for (Expr index : tae.indices) collectNames(index, names);
+                break;
+            case TensorDefExpr tde:
+                for (Expr e : tde.exprs) collectNames(e, names);
+                break;
+            case FuncCallExpr call:
+                for (Expr e : call.actualParameters) collectNames(e, names);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // ---- expressions ----
+
+    private String expr(Expr expr) throws Exception {
+        switch (expr) {
+            case IntVal iv:
+                return String.valueOf(iv.value);
+            case DoubleVal dv:
+                return String.valueOf(dv.val);
+            case BoolVal bv:
+                return String.valueOf(bv.value);
+            case CharVal cv:
+                return "((char) " + (int) cv.val + ")";
+            case Ident id:
+                return variable(id.name).javaName;
+            case ParenExpr pe:
+                return expr(pe.expr); // operators are always parenthesized
+            case UnExpr ue:
+                return "(" + (ue.op == Unaryoperator.NOT ? "!" : "-") + expr(ue.expr) + ")";
+            case BinExpr be:
+                return binary(be);
+            case TensorAccessExpr tae:
+                return access(tae);
+            case TensorDefExpr tde:
+                return tensorLiteral(tde);
+            case FuncCallExpr call:
+                return call(call);
+            default:
+                throw new Exception("Unknown expression " + expr.getClass().getSimpleName());
+        }
+    }
+
+    private String binary(BinExpr be) throws Exception {
+        String left = expr(be.left), right = expr(be.right);
+        if ((be.op == Binoperator.EQUAL || be.op == Binoperator.NEQUAL)
+                && (typeOf(be.left) instanceof TensorType || typeOf(be.right) instanceof TensorType)) {
+            return (be.op == Binoperator.NEQUAL ? "!" : "") + "java.util.Objects.equals(" + left + ", " + right + ")";
+        }
+        String op;
+        switch (be.op) {
+            case ADD: op = "+"; break;
+            case MINUS: op = "-"; break;
+            case TIMES: op = "*"; break;
+            case DIV: op = "/"; break;
+            case MODULO: op = "%"; break;
+            case EQUAL: op = "=="; break;
+            case NEQUAL: op = "!="; break;
+            case LT: op = "<"; break;
+            case GT: op = ">"; break;
+            case LEQ: op = "<="; break;
+            case GEQ: op = ">="; break;
+            case AND: op = "&&"; break;
+            case OR: op = "||"; break;
+            default: throw new Exception("Operator " + be.op + " is not supported");
+        }
+        return "(" + left + " " + op + " " + right + ")";
+    }
+
+    private String access(TensorAccessExpr tae) throws Exception {
+        SimpleTypesEnum component = ((TensorType) typeOf(tae.listExpr)).componentType.type;
+        String value;
+        Variable flat = unparenthesized(tae.listExpr) instanceof Ident ident ? variable(ident.name) : null;
+        if (flat != null && flat.data != null) {
+            value = component(flat, tae.indices);
+        } else {
+            value = expr(tae.listExpr) + (component == SimpleTypesEnum.DOUBLE ? ".doubleAt(" : ".intAt(")
+                    + arguments(tae.indices) + ")";
+        }
+        switch (component) {
+            case BOOL: return "(" + value + " != 0)";
+            case CHAR: return "((char) " + value + ")";
+            default: return value;
+        }
+    }
+
+    // The array element of a component of a tensor variable
+    private String component(Variable variable, List<Expr> indices) throws Exception {
+        if (variable.data == null) {
+            String array = isDouble(((TensorType) variable.type).componentType) ? ".doubles[" : ".ints[";
+            return variable.javaName + array + variable.javaName + ".offset(" + arguments(indices) + ")]";
+        }
+        return variable.data + "[" + flatIndex(variable, indices) + "]";
+    }
+
+    private String flatIndex(Variable variable, List<Expr> indices) throws Exception {
+        StringBuilder index = new StringBuilder();
+        for (int d = 0; d < indices.size(); d++) {
+            if (d > 0) index.append(" + ");
+            index.append(expr(indices.get(d)));
+            if (!variable.strides[d].equals("1")) {
+                index.append(" * ").append(variable.strides[d]);
+            }
+        }
+        return index.toString();
+    }
+
+    private String call(FuncCallExpr call) throws Exception {
+        List<Expr> params = call.actualParameters;
+        switch (call.name) {
+            case "zeros":
+                return "Tensor.zeros(SimpleTypesEnum.INT, " + arguments(params) + ")";
+            case "ones":
+                return "Tensor.ones(" + arguments(params) + ")";
+            case "min":
+            case "max":
+                return "Math." + call.name + "(" + arguments(params) + ")";
+            default:
+                FuncDef f = functions.get(call.name);
+                if (f == null) {
+                    throw new Exception("Function '" + call.name + "' is not defined");
+                }
+                StringBuilder args = new StringBuilder();
+                for (int i = 0; i < params.size(); i++) {
+                    if (i > 0) args.append(", ");
+                    args.append(owned(params.get(i), f.formalParams.get(i).elem1));
+                }
+                return functionName(f.procname) + "(" + args + ")";
+        }
+    }
+
+    // {1, 2, 3} is a vector, {{1, 2}, {3, 4}} a matrix of its rows, and so on
+    private String tensorLiteral(TensorDefExpr tde) throws Exception {
+        List<Integer> shape = new ArrayList<>();
+        List<Expr> leaves = new ArrayList<>();
+        if (!flatten(tde, shape, leaves, 0)) {
+            return "Tensor.stack(" + arguments(tde.exprs) + ")";
+        }
+
+        SimpleTypesEnum componentType = SimpleTypesEnum.INT;
+        for (Expr leaf : leaves) {
+            SimpleTypesEnum type = ((SimpleType) typeOf(leaf)).type;
+            if (type != SimpleTypesEnum.INT) componentType = type;
+        }
+        StringBuilder components = new StringBuilder();
+        for (Expr leaf : leaves) {
+            if (components.length() > 0) components.append(", ");
+            components.append(componentType == SimpleTypesEnum.BOOL ? expr(leaf) + " ? 1 : 0" : bare(leaf));
+        }
+        StringBuilder dims = new StringBuilder();
+        for (int extent : shape) {
+            dims.append(", ").append(extent);
+        }
+        if (componentType == SimpleTypesEnum.DOUBLE) {
+            return "Tensor.ofDoubles(new double[]{" + components + "}" + dims + ")";
+        }
+        return "Tensor.ofInts(SimpleTypesEnum." + componentType + ", new int[]{" + components + "}" + dims + ")";
+    }
+
+    // Nested literals with the same shape at every level, false if there is another tensor among them
+    private boolean flatten(TensorDefExpr tde, List<Integer> shape, List<Expr> leaves, int depth) throws Exception {
+        if (shape.size() == depth) {
+            shape.add(tde.exprs.size());
+        } else if (shape.get(depth) != tde.exprs.size()) {
+            return false;
+        }
+        boolean rows = unparenthesized(tde.exprs.get(0)) instanceof TensorDefExpr;
+        for (Expr e : tde.exprs) {
+            if (unparenthesized(e) instanceof TensorDefExpr nested) {
+                if (!rows || !flatten(nested, shape, leaves, depth + 1)) return false;
+            } else if (rows || typeOf(e) instanceof TensorType) {
+                return false;
+            } else {
+                leaves.add(e);
+            }
+        }
+        // Leaves at different depths don't fill the shape
+        return depth > 0 || leaves.size() == shape.stream().reduce(1, (x, y) -> x * y);
+    }
+
+    private String arguments(List<Expr> exprs) throws Exception {
+        StringBuilder args = new StringBuilder();
+        for (Expr e : exprs) {
+            if (args.length() > 0) args.append(", ");
+            args.append(bare(e));
+        }
+        return args.toString();
+    }
+
+    // An expression that is a statement's or an argument's own, without the parentheses of its operator
+    private String bare(Expr expr) throws Exception {
+        String java = expr(expr);
+        boolean parenthesized = unparenthesized(expr) instanceof BinExpr && java.startsWith("(");
+        return parenthesized ? java.substring(1, java.length() - 1) : java;
+    }
+
+    // The value of an expression stored in a variable of the given type: a tensor variable is copied
+    private String owned(Expr expr, Type type) throws Exception {
+        if (unparenthesized(expr) instanceof Ident && typeOf(expr) instanceof TensorType && !needsDoubles(expr, type)) {
+            return expr(expr) + ".copy()";
+        }
+        return converted(expr, type);
+    }
+
+    // Java widens ints to doubles by itself, but not int tensors to double tensors
+    private String converted(Expr expr, Type type) throws Exception {
+        return needsDoubles(expr, type) ? expr(expr) + ".toDoubles()" : bare(expr);
+    }
+
+    private boolean needsDoubles(Expr expr, Type type) throws Exception {
+        return type instanceof TensorType tt && isDouble(tt.componentType)
+                && typeOf(expr) instanceof TensorType et && et.componentType.type == SimpleTypesEnum.INT;
+    }
+
+    private String initialValue(Type type) throws Exception {
+        if (type instanceof TensorType tt) {
+            StringBuilder dims = new StringBuilder();
+            for (SizeParam size : tt.dimensions) {
+                dims.append(", ").append(size(size));
+            }
+            return "Tensor.zeros(SimpleTypesEnum." + tt.componentType.type + dims + ")";
+        }
+        switch (((SimpleType) type).type) {
+            case DOUBLE: return "0.0";
+            case BOOL: return "false";
+            case CHAR: return "((char) 0)";
+            default: return "0";
+        }
+    }
+
+    private String size(SizeParam size) throws Exception {
+        if (size instanceof SPInt constant) {
+            return String.valueOf(constant.value);
+        }
+        if (size instanceof SPIdent ident) {
+            return variable(ident.ident).javaName;
+        }
+        throw new Exception("Size of a tensor is not known");
+    }
+
+    // ---- types ----
+
+    private Type typeOf(Expr expr) throws Exception {
+        switch (expr) {
+            case IntVal iv:
+                return INT;
+            case DoubleVal dv:
+                return DOUBLE;
+            case BoolVal bv:
+                return BOOL;
+            case CharVal cv:
+                return CHAR;
+            case Ident id:
+                return variable(id.name).type;
+            case ParenExpr pe:
+                return typeOf(pe.expr);
+            case UnExpr ue:
+                return ue.op == Unaryoperator.NOT ? BOOL : arithmetic(typeOf(ue.expr), INT);
+            case BinExpr be:
+                switch (be.op) {
+                    case ADD: case MINUS: case TIMES: case DIV: case MODULO:
+                        return arithmetic(typeOf(be.left), typeOf(be.right));
+                    default:
+                        return BOOL;
+                }
+            case TensorAccessExpr tae:
+                return ((TensorType) typeOf(tae.listExpr)).componentType;
+            case TensorDefExpr tde:
+                Type element = typeOf(tde.exprs.get(0));
+                ArrayList<SizeParam> dims = new ArrayList<>();
+                dims.add(new SPInt(tde.exprs.size()));
+                if (element instanceof TensorType tt) {
+                    dims.addAll(tt.dimensions);
+                    return new TensorType(tt.componentType, dims);
+                }
+                SimpleType componentType = INT;
+                for (Expr e : tde.exprs) {
+                    SimpleType type = (SimpleType) typeOf(e);
+                    if (type.type != SimpleTypesEnum.INT) componentType = type;
+                }
+                return new TensorType(componentType, dims);
+            case FuncCallExpr call:
+                switch (call.name) {
+                    case "zeros":
+                    case "ones":
+                        return new TensorType(INT, new ArrayList<>(List.of(new SPIdent("rows"), new SPIdent("columns"))));
+                    case "min":
+                    case "max":
+                        return arithmetic(typeOf(call.actualParameters.get(0)), typeOf(call.actualParameters.get(1)));
+                    default:
+                        FuncDef f = functions.get(call.name);
+                        if (f == null) {
+                            throw new Exception("Function '" + call.name + "' is not defined");
+                        }
+                        return f.returnType;
+                }
+            default:
+                throw new Exception("Unknown expression " + expr.getClass().getSimpleName());
+        }
+    }
+
+    // double if either is, int otherwise, like C++
+    private static Type arithmetic(Type left, Type right) {
+        return isDouble(left) || isDouble(right) ? DOUBLE : INT;
+    }
+
+    private static String javaType(Type type) {
+        if (type instanceof TensorType) {
+            return "Tensor";
+        }
+        switch (((SimpleType) type).type) {
+            case DOUBLE: return "double";
+            case BOOL: return "boolean";
+            case CHAR: return "char";
+            default: return "int";
+        }
+    }
+
+    private static boolean isDouble(Type type) {
+        return type instanceof SimpleType st && st.type == SimpleTypesEnum.DOUBLE;
+    }
+
+    // Literals and operators on them only, javac knows the value of such a condition
+    private static boolean isConstant(Expr expr) {
+        switch (expr) {
+            case IntVal iv: return true;
+            case DoubleVal dv: return true;
+            case BoolVal bv: return true;
+            case CharVal cv: return true;
+            case ParenExpr pe: return isConstant(pe.expr);
+            case UnExpr ue: return isConstant(ue.expr);
+            case BinExpr be: return isConstant(be.left) && isConstant(be.right);
+            default: return false;
+        }
+    }
+
+    private static Expr unparenthesized(Expr expr) {
+        while (expr instanceof ParenExpr paren) {
+            expr = paren.expr;
+        }
+        return expr;
+    }
+
+    // ---- variables ----
+
+    private Variable declare(String name, Type type) {
+        String javaName = "v_" + name;
+        for (int n = 2; method.javaNames.contains(javaName); n++) {
+            javaName = "v_" + name + "_" + n;
+        }
+        Variable variable = new Variable(javaName, type);
+        method.javaNames.add(javaName);
+        method.scopes.peek().put(name, variable);
+        return variable;
+    }
+
+    // A variable of the host captured by a defer method, under its Java name in the host
+    private Variable declareAs(String name, Variable hostVariable) {
+        Variable variable = new Variable(hostVariable.javaName, hostVariable.type);
+        method.javaNames.add(variable.javaName);
+        method.scopes.peek().put(name, variable);
+        return variable;
+    }
+
+    private Variable lookup(String name) {
+        for (Map<String, Variable> scope : method.scopes) {
+            Variable variable = scope.get(name);
+            if (variable != null) return variable;
+        }
+        return null;
+    }
+
+    private Variable variable(String name) throws Exception {
+        Variable variable = lookup(name);
+        if (variable == null) {
+            throw new Exception("Variable '" + name + "' is not declared");
+        }
+        return variable;
+    }
+}
@@ -0,0 +1,123 @@
+package JvmCompiler;
+
+import AbstractSyntax.Program.Prog;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Compiles a type checked BOLT program to JVM bytecode, so it runs at the
+ * speed of Java instead of being interpreted from the AST.
+ *
+ * The JavaGenerator turns the program into the source of one Java class,
+ * which javac compiles in memory into a class of its own class loader. The
+ * JIT then treats BOLT functions like any other static methods: a recursive
+ * function keeps its ints in registers, and the loop of a defer method over
+ * the component arrays is compiled like a hand written one.
+ *
+ * The compiled program has the semantics of the Interpreter, with the same
+ * ranges for defer blocks, except that the components of a tensor in a defer
+ * block are only checked against the size of the whole tensor, not axis by
+ * axis. Needs a JDK, a JRE has no javac.
+ *
+ * Elementwise defer bodies run on the SIMD lanes of jdk.incubator.vector
+ * (see JavaGenerator) when the JVM has the module, which is an incubator
+ * module: java --add-modules jdk.incubator.vector. Without it they run point
+ * by point, with the same results.
+ */
+public class JvmCompiler {
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private JvmCompiler() {
+    }
+
+    // Whether this JVM runs with the Vector API module
+    public static boolean vectorApiAvailable() {
+        return ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+    }
+
+    // The Java source of the class the program compiles to
+    public static String generate(Prog prog) throws Exception {
+        return generate(prog, vectorApiAvailable());
+    }
+
+    public static String generate(Prog prog, boolean vectorize) throws Exception {
+        return new JavaGenerator(vectorize).generate(prog);
+    }
+
+    // The compiled program, running its defer blocks on the pool, or on the calling thread if it's null
+    public static CompiledProgram compile(Prog prog, ForkJoinPool pool) throws Exception {
+        return compile(prog, pool, true);
+    }
+
+    // vectorize false runs every defer body point by point, even if the Vector API is available
+    public static CompiledProgram compile(Prog prog, ForkJoinPool pool, boolean vectorize) throws Exception {
+        JavaGenerator generator = new JavaGenerator(vectorize && vectorApiAvailable());
+        String source = generator.generate(prog);
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new Exception("No Java compiler available, compiling BOLT programs for the JVM needs a JDK");
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+        StandardJavaFileManager standard = javac.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        JavaFileManager memory = new ForwardingJavaFileManager<>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        classes.put(className, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + JavaGenerator.CLASS_NAME + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        // The generated class uses Interpreter.Tensor and RangeSplitter from the compiler's own class path
+        List<String> options = new ArrayList<>(List.of("-classpath", System.getProperty("java.class.path"),
+                "-proc:none", "-nowarn"));
+        if (generator.usesVectorApi()) {
+            options.addAll(List.of("--add-modules", VECTOR_MODULE));
+        }
+        boolean compiled = javac.getTask(null, memory, diagnostics, options, null, List.of(file)).call();
+        memory.close();
+        if (!compiled) {
+            StringBuilder errors = new StringBuilder("Generated Java code doesn't compile:");
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                if (d.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.append("\n  line ").append(d.getLineNumber()).append(": ").append(d.getMessage(Locale.ROOT));
+                }
+            }
+            throw new Exception(errors.toString());
+        }
+
+        ClassLoader loader = new ClassLoader(JvmCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream bytes = classes.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] code = bytes.toByteArray();
+                return defineClass(name, code, 0, code.length);
+            }
+        };
+        return new CompiledProgram(prog, loader.loadClass(JavaGenerator.CLASS_NAME), pool, source);
+    }
+}
@@ -0,0 +1,246 @@
+package SemanticAnalysis;
+
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import java.util.*;
+import java.util.function.Function;
+
+/*
+ * Scalars of the host that a defer body accumulates into.
+ *
+ * A kernel gets the scalars of the host by value, so an assignment to one would
+ * only change the copy of a single thread. The body may instead update such a
+ * scalar as a reduction, with one of
+ *
+ *   s = s + e   s = s - e   s = s * e   s = min(s, e)   s = max(s, e)
+ *   s = s && e   s = s || e
+ *
+ * (the operands of +, *, &&, || in any order, also nested like s = a + s + b),
+ * where e doesn't mention s. Every update of s in the body uses the same
+ * operator, and s isn't read anywhere else in the body, so the threads can each
+ * start from the identity of the operator and their results can be combined in
+ * any order. The value s had on the host is combined with them at the end.
+ */
+public class KernelReduction {
+
+    public enum Operator {
+        SUM("+"), PRODUCT("*"), MIN("min"), MAX("max"), AND("&&"), OR("||");
+
+        public final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        // && and || reduce bools, the others numbers
+        public boolean isLogical() {
+            return this == AND || this == OR;
+        }
+    }
+
+    public final Map<String, Operator> variables = new TreeMap<>(); // reduced scalar -> its operator
+    public final Map<String, String> problems = new TreeMap<>();    // assigned scalar that isn't a reduction -> why
+
+    // The reductions of a defer body, null if it has none. externalVars are the variables the kernel gets
+    // from the host.
+    public static KernelReduction of(Defer df, Map<String, Type> externalVars) {
+        KernelReduction reduction = analyze(df, externalVars::get);
+        return reduction.variables.isEmpty() ? null : reduction;
+    }
+
+    // Reductions and other assignments of the body to scalars of the enclosing scopes, whose types outerTypes
+    // gives (null for names it doesn't know)
+    public static KernelReduction analyze(Defer df, Function<String, Type> outerTypes) {
+        Map<String, List<Assign>> updates = new HashMap<>();
+        Map<String, Integer> mentions = new HashMap<>();
+        Set<String> assigned = new TreeSet<>();
+        Set<String> declared = new HashSet<>();
+        collect(df.stmt, updates, mentions, assigned, declared);
+        for (Pair<String, SizeParam> dim : df.dim) {
+            declared.add(dim.elem1);
+        }
+
+        KernelReduction reduction = new KernelReduction();
+        for (String var : assigned) {
+            if (declared.contains(var) || !(outerTypes.apply(var) instanceof SimpleType)) continue;
+
+            Operator operator = null;
+            String problem = null;
+            for (Assign assign : updates.get(var)) {
+                Operator update = operatorOf(assign.expr, var);
+                if (update == null) {
+                    problem = "'" + var + "' is declared outside the defer block, it can only be updated as a reduction like "
+                            + var + " = " + var + " + e";
+                    break;
+                }
+                if (operator != null && operator != update) {
+                    problem = "'" + var + "' is reduced with both " + operator.symbol + " and " + update.symbol;
+                    break;
+                }
+                operator = update;
+            }
+            // Every update mentions it once, anything more is a read of an unfinished value
+            if (problem == null && mentions.getOrDefault(var, 0) != updates.get(var).size()) {
+                problem = "'" + var + "' is reduced in the defer block, so the block can't read it";
+            }
+
+            if (problem == null) {
+                reduction.variables.put(var, operator);
+            } else {
+                reduction.problems.put(var, problem);
+            }
+        }
+        return reduction;
+    }
+
+    // The operator of var = expr as an update of a reduction of var, null if it isn't one
+    public static Operator operatorOf(Expr expr, String var) {
+        Expr top = unparen(expr);
+        Operator operator;
+        if (top instanceof BinExpr bin) {
+            operator = operatorOf(bin.op);
+            if (operator == null) return null;
+        } else if (top instanceof FuncCallExpr call && call.name.equals("min")) {
+            operator = Operator.MIN;
+        } else if (top instanceof FuncCallExpr call && call.name.equals("max")) {
+            operator = Operator.MAX;
+        } else {
+            return null;
+        }
+        return accumulates(top, var, operator) ? operator : null;
+    }
+
+    // Whether expr is var combined with expressions that don't mention it, through operator only.
+    // Minus only takes var on its left, s = e - s doesn't reduce.
+    private static boolean accumulates(Expr expr, String var, Operator operator) {
+        expr = unparen(expr);
+        if (expr instanceof Ident ident) {
+            return ident.name.equals(var);
+        }
+        if (expr instanceof BinExpr bin && operatorOf(bin.op) == operator) {
+            if (bin.op == Binoperator.MINUS) {
+                return accumulates(bin.left, var, operator) && !mentions(bin.right, var);
+            }
+            return (accumulates(bin.left, var, operator) && !mentions(bin.right, var))
+                    || (accumulates(bin.right, var, operator) && !mentions(bin.left, var));
+        }
+        if (expr instanceof FuncCallExpr call && call.actualParameters.size() == 2
+                && ((operator == Operator.MIN && call.name.equals("min")) || (operator == Operator.MAX && call.name.equals("max")))) {
+            Expr first = call.actualParameters.get(0), second = call.actualParameters.get(1);
+            return (accumulates(first, var, operator) && !mentions(second, var))
+                    || (accumulates(second, var, operator) && !mentions(first, var));
+        }
+        return false;
+    }
+
+    private static Operator operatorOf(Binoperator op) {
+        switch (op) {
+            case ADD: case MINUS: return Operator.SUM;
+            case TIMES: return Operator.PRODUCT;
+            case AND: return Operator.AND;
+            case OR: return Operator.OR;
+            default: return null;
+        }
+    }
+
+    private static boolean mentions(Expr expr, String var) {
+        Map<String, Integer> names = new HashMap<>();
+        count(expr, names);
+        return names.containsKey(var);
+    }
+
+    private static Expr unparen(Expr expr) {
+        while (expr instanceof ParenExpr paren) {
+            expr = paren.expr;
+        }
+        return expr;
+    }
+
+    // Assignments to each scalar and the number of times each name is read. assigned and declared get the
+    // names the body assigns and declares outside of nested defer blocks.
+    private static void collect(Stmt stmt, Map<String, List<Assign>> updates, Map<String, Integer> mentions,
+                                Set<String> assigned, Set<String> declared) {
+        if (stmt == null) return;
+
+        switch (stmt) {
+            case Assign assign:
+                if (assign.target instanceof Ident target) {
+                    updates.computeIfAbsent(target.name, k -> new ArrayList<>()).add(assign);
+                    assigned.add(target.name);
+                } else {
+                    count(assign.target, mentions);
+                }
+                count(assign.expr, mentions);
+                break;
+            case Declaration decl:
+                declared.add(decl.ident);
+                count(decl.expr, mentions);
+                collect(decl.stmt, updates, mentions, assigned, declared);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collect(s, updates, mentions, assigned, declared);
+                }
+                break;
+            case Comp comp:
+                collect(comp.stmt1, updates, mentions, assigned, declared);
+                collect(comp.stmt2, updates, mentions, assigned, declared);
+                break;
+            case If ifStmt:
+                count(ifStmt.cond, mentions);
+                collect(ifStmt.then, updates, mentions, assigned, declared);
+                collect(ifStmt.els, updates, mentions, assigned, declared);
+                break;
+            case While whileStmt:
+                count(whileStmt.cond, mentions);
+                collect(whileStmt.stmt, updates, mentions, assigned, declared);
+                break;
+            case Defer defer:
+                collect(defer.stmt, updates, mentions, new HashSet<>(), new HashSet<>());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void count(Expr expr, Map<String, Integer> mentions) {
+        if (expr == null) return;
+
+        switch (expr) {
+            case Ident ident:
+                mentions.merge(ident.name, 1, Integer::sum);
+                break;
+            case BinExpr bin:
+                count(bin.left, mentions);
+                count(bin.right, mentions);
+                break;
+            case UnExpr un:
+                count(un.expr, mentions);
+                break;
+            case ParenExpr paren:
+                count(paren.expr, mentions);
+                break;
+            case FuncCallExpr call:
+                for (Expr arg : call.actualParameters) {
+                    count(arg, mentions);
+                }
+                break;
+            case TensorAccessExpr tae:
+                count(tae.listExpr, mentions);
+                for (Expr index : tae.indices) {
+                    count(index, mentions);
+                }
+                break;
+            case TensorDefExpr tde:
+                for (Expr e : tde.exprs) {
+                    count(e, mentions);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
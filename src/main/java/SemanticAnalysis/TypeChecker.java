@@ -55,12 +55,29 @@ public class TypeChecker {
         return globalEnv;
     }
 
+    // Step 1 of check() on its own: builds the global function table, checking is done per function afterwards
+    public void declareFunctions(Prog program) {
+        globalEnv = buildFunctionEnvironment(program);
+    }
+
+    // A checker for one function that shares the (read-only) function table of this checker but has its own errors.
+    // Forked checkers can check different functions at the same time.
+    public TypeChecker forkForFunction() {
+        TypeChecker fork = new TypeChecker();
+        fork.globalEnv = globalEnv;
+        fork.functionDefinitions = functionDefinitions;
+        return fork;
+    }
+
     private TypeEnvironment buildFunctionEnvironment(Prog program) {
         TypeEnvironment env = new TypeEnvironment(); // Global scope
         FuncDef current = program.func;
 
         while (current != null) {
-            if (env.lookup(current.procname) != null) {
+            if (current.procname.equals("min") || current.procname.equals("max")) {
+                // Calls of these names always go to the built-ins, so the function could never be called
+                addError("Function name is a built-in", 0, current.procname);
+            } else if (env.lookup(current.procname) != null) {
                 addError("Duplicate function definition", 0, current.procname);
             } else {
                 // Store the return type in environment
@@ -76,8 +93,13 @@ public class TypeChecker {
     }
 
     private void checkDefinitions(FuncDef funcDef) {
-        if (funcDef == null) return;
+        for (FuncDef f = funcDef; f != null; f = f.nextFunc) {
+            checkFunction(f);
+        }
+    }
 
+    // Checks a single function definition against the global function table
+    public void checkFunction(FuncDef funcDef) {
         // create local environment for this function
         TypeEnvironment localEnv = globalEnv.copy();
 
@@ -106,9 +128,6 @@ public class TypeChecker {
             addError("Missing return expression", 0,
                     "Non-void function '" + funcDef.procname + "' must have a return expression");
         }
-
-        // Continue with next function
-        checkDefinitions(funcDef.nextFunc);
     }
 
     public void checkStmt(Stmt stmt, TypeEnvironment env, String functionContext) {
@@ -191,6 +210,13 @@ public class TypeChecker {
                 }
             }
 
+        else if (stmt instanceof Block) {
+            Block block = (Block) stmt;
+            for (Stmt s : block.stmts) {
+                checkStmt(s, env, functionContext);
+            }
+        }
+
         else if (stmt instanceof Comp) {
             Comp comp = (Comp) stmt;
             checkStmt(comp.stmt1, env, functionContext);
@@ -266,6 +292,21 @@ public class TypeChecker {
             inDefer = true;
             checkStmt(defer.stmt, deferEnv, functionContext);
             inDefer = previous;
+
+            // Scalars of the host the body assigns are only combined back as reductions
+            KernelReduction reduction = KernelReduction.analyze(defer, env::lookup);
+            for (Map.Entry<String, String> problem : reduction.problems.entrySet()) {
+                addError("Invalid assignment in defer block", line, problem.getValue());
+            }
+            for (Map.Entry<String, KernelReduction.Operator> reduced : reduction.variables.entrySet()) {
+                Type varType = env.lookup(reduced.getKey());
+                KernelReduction.Operator op = reduced.getValue();
+                if (op.isLogical() ? !isBoolType(varType) : !isNumericType(varType)) {
+                    addError("Invalid reduction", line,
+                            "Reduction with " + op.symbol + " needs " + (op.isLogical() ? "a bool" : "an int or double")
+                                    + " but '" + reduced.getKey() + "' has type " + typeToString(varType));
+                }
+            }
         }
     }
 
@@ -377,6 +418,24 @@ public class TypeChecker {
                 return new TensorType(new SimpleType(SimpleTypesEnum.INT), dims);
             }
 
+            if (funcCall.name.equals("min") || funcCall.name.equals("max")) {
+                // "min" and "max" take 2 numbers, the result is a double if either is one
+                if (funcCall.actualParameters.size() != 2) {
+                    addError("Built-in function '" + funcCall.name + "' expects 2 numeric arguments", getLineNumber(expr));
+                    return null;
+                }
+
+                Type arg1 = checkExpr(funcCall.actualParameters.get(0), env);
+                Type arg2 = checkExpr(funcCall.actualParameters.get(1), env);
+
+                if (!isNumericType(arg1) || !isNumericType(arg2)) {
+                    addError("'" + funcCall.name + "' arguments must be int or double", getLineNumber(expr));
+                    return null;
+                }
+
+                return isDoubleType(arg1) || isDoubleType(arg2) ? new SimpleType(SimpleTypesEnum.DOUBLE) : new SimpleType(SimpleTypesEnum.INT);
+            }
+
             // Look up function return type for regular functions
             Type funcType = env.lookup(funcCall.name);
             if (funcType == null) {
@@ -0,0 +1,127 @@
+package TestFiles.Benchmarks;
+
+/*
+ * BoltProgramGenerator
+ *
+ * Generates synthetic, type-correct BOLT programs for the compiler benchmarks.
+ * A program is shaped by three knobs that can be scaled independently:
+ * - functionCount:  number of function definitions (plus a main that calls them)
+ * - statementCount: number of top-level statements in each function body
+ * - deferCount:     number of defer blocks in each function body
+ *
+ * The statements are a mix of declarations, assignments, if/else and while
+ * loops so that every compiler phase has representative work to do.
+ */
+
+public class BoltProgramGenerator {
+    private static final int VECTOR_SIZE = 16;
+
+    private final int functionCount;
+    private final int statementCount;
+    private final int deferCount;
+
+    public BoltProgramGenerator(int functionCount, int statementCount, int deferCount) {
+        this.functionCount = functionCount;
+        this.statementCount = statementCount;
+        this.deferCount = deferCount;
+    }
+
+    public String generate() {
+        StringBuilder sb = new StringBuilder();
+        for (int f = 0; f < functionCount; f++) {
+            generateFunction(sb, f);
+        }
+        generateMain(sb);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "functions=" + functionCount + " statements=" + statementCount + " defers=" + deferCount;
+    }
+
+    private void generateFunction(StringBuilder sb, int index) {
+        sb.append("func: int f").append(index).append("(int x) {\n");
+        sb.append("    int acc = x;\n");
+
+        if (deferCount > 0) {
+            sb.append("    vector[int, ").append(VECTOR_SIZE).append("] data = {");
+            for (int i = 0; i < VECTOR_SIZE; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(i);
+            }
+            sb.append("};\n");
+        }
+
+        // Spread the defer blocks evenly between the ordinary statements
+        int defersLeft = deferCount;
+        int deferEvery = deferCount > 0 ? Math.max(1, statementCount / deferCount) : Integer.MAX_VALUE;
+
+        for (int s = 0; s < statementCount; s++) {
+            generateStatement(sb, s);
+            if (defersLeft > 0 && (s + 1) % deferEvery == 0) {
+                generateDefer(sb, deferCount - defersLeft);
+                defersLeft--;
+            }
+        }
+        while (defersLeft > 0) {
+            generateDefer(sb, deferCount - defersLeft);
+            defersLeft--;
+        }
+
+        if (deferCount > 0) {
+            sb.append("    acc = acc + data[0];\n");
+        }
+        sb.append("    return acc;\n");
+        sb.append("}\n\n");
+    }
+
+    private void generateStatement(StringBuilder sb, int s) {
+        switch (s % 5) {
+            case 0:
+                sb.append("    int v").append(s).append(" = acc * ").append(s % 7 + 1).append(" + x;\n");
+                break;
+            case 1:
+                sb.append("    acc = acc + ").append(s).append(" % 3;\n");
+                break;
+            case 2:
+                sb.append("    if (acc > ").append(s).append(") then {\n");
+                sb.append("        acc = acc - 1;\n");
+                sb.append("    } else {\n");
+                sb.append("        acc = acc + 2;\n");
+                sb.append("    }\n");
+                break;
+            case 3:
+                sb.append("    int w").append(s).append(" = 0;\n");
+                sb.append("    while (w").append(s).append(" < 3) do {\n");
+                sb.append("        w").append(s).append(" = w").append(s).append(" + 1;\n");
+                sb.append("        acc = acc + w").append(s).append(";\n");
+                sb.append("    }\n");
+                break;
+            default:
+                sb.append("    bool b").append(s).append(" = acc >= x && !(acc == 0);\n");
+                break;
+        }
+    }
+
+    private void generateDefer(StringBuilder sb, int d) {
+        sb.append("    defer[(i, ").append(VECTOR_SIZE).append(")] {\n");
+        sb.append("        int t").append(d).append(" = data[i] * 2;\n");
+        sb.append("        if (t").append(d).append(" > x) then {\n");
+        sb.append("            data[i] = t").append(d).append(" - x;\n");
+        sb.append("        } else {\n");
+        sb.append("            data[i] = t").append(d).append(" + ").append(d).append(";\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    private void generateMain(StringBuilder sb) {
+        sb.append("func: int main() {\n");
+        sb.append("    int total = 0;\n");
+        for (int f = 0; f < functionCount; f++) {
+            sb.append("    total = total + f").append(f).append("(").append(f % 10).append(");\n");
+        }
+        sb.append("    return total;\n");
+        sb.append("}\n");
+    }
+}
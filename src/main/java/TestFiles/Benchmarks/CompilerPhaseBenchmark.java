@@ -0,0 +1,280 @@
+package TestFiles.Benchmarks;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Program.Prog;
+import DataflowAnalysis.CFGAnalysis;
+import DataflowAnalysis.CFGBuilder;
+import SemanticAnalysis.TypeChecker;
+import SemanticAnalysis.TypeEnvironment;
+import Transpiler.Transpiler;
+import boltparser.FunctionCFGInfo;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/*
+ * CompilerPhaseBenchmark
+ *
+ * Measures each compiler phase in isolation on generated BOLT programs:
+ * - parse:     Scanner + Parser (source bytes -> AST)
+ * - typecheck: TypeChecker.check
+ * - cfg:       CFGBuilder.buildFunctionCFG, liveness and the transfer plan for every function
+ * - transpile: Transpiler.TranspileProg (CUDA host code + kernels.h)
+ *
+ * Every phase gets the output of the previous phase as a pre-built fixture, so the
+ * numbers only contain the cost of the phase itself. For each phase the benchmark
+ * reports time/op, allocated bytes/op and the resulting allocation rate.
+ *
+ * The corpus is scaled along one axis at a time (function count, statement count
+ * and defer-block count) starting from a small base program, which makes it easy
+ * to spot phases that scale worse than linearly.
+ *
+ * Usage:
+ *   java TestFiles.Benchmarks.CompilerPhaseBenchmark [options]
+ *     --functions=10,100,1000   function counts to sweep
+ *     --statements=10,100,1000  statement counts to sweep
+ *     --defers=0,10,100         defer counts to sweep
+ *     --phases=parse,typecheck,cfg,transpile
+ *     --warmup=5                warmup iterations per measurement
+ *     --iterations=10           minimum measured iterations
+ *     --min-time=1000           minimum measured time in milliseconds
+ */
+
+public class CompilerPhaseBenchmark {
+    private static final int BASE_FUNCTIONS = 10;
+    private static final int BASE_STATEMENTS = 20;
+    private static final int BASE_DEFERS = 2;
+
+    private static int warmupIterations = 5;
+    private static int minIterations = 10;
+    private static long minTimeNanos = 1_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Result of measuring one phase on one corpus
+    static class Measurement {
+        final String phase;
+        final String corpus;
+        final int iterations;
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Measurement(String phase, String corpus, int iterations, double nanosPerOp, double bytesPerOp) {
+            this.phase = phase;
+            this.corpus = corpus;
+            this.iterations = iterations;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        double allocationRateMBPerSecond() {
+            if (nanosPerOp == 0) return 0;
+            return (bytesPerOp / (1024.0 * 1024.0)) / (nanosPerOp / 1e9);
+        }
+    }
+
+    // A unit of work that is measured, the return value is kept alive to avoid dead code elimination
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    private static Object blackhole;
+
+    public static void main(String[] args) throws Exception {
+        int[] functionCounts = {10, 100, 1000};
+        int[] statementCounts = {10, 100, 1000};
+        int[] deferCounts = {0, 10, 100};
+        Set<String> phases = new LinkedHashSet<>(Arrays.asList("parse", "typecheck", "cfg", "transpile"));
+
+        for (String arg : args) {
+            if (arg.startsWith("--functions=")) {
+                functionCounts = parseIntList(arg.substring("--functions=".length()));
+            } else if (arg.startsWith("--statements=")) {
+                statementCounts = parseIntList(arg.substring("--statements=".length()));
+            } else if (arg.startsWith("--defers=")) {
+                deferCounts = parseIntList(arg.substring("--defers=".length()));
+            } else if (arg.startsWith("--phases=")) {
+                phases = new LinkedHashSet<>(Arrays.asList(arg.substring("--phases=".length()).split(",")));
+            } else if (arg.startsWith("--warmup=")) {
+                warmupIterations = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                minIterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--min-time=")) {
+                minTimeNanos = Long.parseLong(arg.substring("--min-time=".length())) * 1_000_000L;
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        if (threadBean.isThreadAllocatedMemorySupported()) {
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            System.out.println("Warning: allocation measurement is not supported by this JVM, alloc columns will be 0");
+        }
+
+        // Build the corpus, scaling one axis at a time from the base program
+        List<BoltProgramGenerator> corpus = new ArrayList<>();
+        for (int f : functionCounts) corpus.add(new BoltProgramGenerator(f, BASE_STATEMENTS, BASE_DEFERS));
+        for (int s : statementCounts) corpus.add(new BoltProgramGenerator(BASE_FUNCTIONS, s, BASE_DEFERS));
+        for (int d : deferCounts) corpus.add(new BoltProgramGenerator(BASE_FUNCTIONS, BASE_STATEMENTS, d));
+
+        File outputDir = Files.createTempDirectory("bolt-bench").toFile();
+        outputDir.deleteOnExit();
+
+        System.out.println("=== BOLT Compiler Phase Benchmarks ===");
+        System.out.println("warmup=" + warmupIterations + " iterations>=" + minIterations +
+                " min-time=" + (minTimeNanos / 1_000_000L) + "ms");
+        System.out.println();
+        printHeader();
+
+        List<Measurement> results = new ArrayList<>();
+        for (BoltProgramGenerator generator : corpus) {
+            results.addAll(benchmarkCorpus(generator, phases, outputDir));
+        }
+
+        System.out.println();
+        System.out.println("Completed " + results.size() + " measurements");
+    }
+
+    private static List<Measurement> benchmarkCorpus(BoltProgramGenerator generator, Set<String> phases, File outputDir) throws Exception {
+        List<Measurement> results = new ArrayList<>();
+        String corpusName = generator.toString();
+        byte[] source = generator.generate().getBytes(StandardCharsets.UTF_8);
+
+        // Fixtures: every phase runs on the output of the previous one
+        Prog prog = parse(source);
+        TypeChecker checker = new TypeChecker();
+        checker.check(prog);
+        TypeEnvironment globalTypes = checker.getGlobalEnvironment();
+        Map<String, FunctionCFGInfo> cfgs = analyze(prog);
+        String baseFilename = new File(outputDir, "bench").getPath();
+
+        if (phases.contains("parse")) {
+            results.add(report(measure("parse", corpusName, () -> parse(source))));
+        }
+        if (phases.contains("typecheck")) {
+            results.add(report(measure("typecheck", corpusName, () -> {
+                TypeChecker tc = new TypeChecker();
+                tc.check(prog);
+                return tc;
+            })));
+        }
+        if (phases.contains("cfg")) {
+            results.add(report(measure("cfg", corpusName, () -> analyze(prog))));
+        }
+        if (phases.contains("transpile")) {
+            // The transpiler traces to stdout, keep that out of the console but inside the measurement
+            PrintStream console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Measurement m;
+            try {
+                m = measure("transpile", corpusName, () -> {
+                    Transpiler.TranspileProg(baseFilename, prog, globalTypes, cfgs);
+                    return null;
+                });
+            } finally {
+                System.setOut(console);
+            }
+            results.add(report(m));
+        }
+        return results;
+    }
+
+    // Measurement settings for other benchmarks that reuse measure()
+    static void configure(int warmup, int iterations, long minTimeMillis) {
+        warmupIterations = warmup;
+        minIterations = iterations;
+        minTimeNanos = minTimeMillis * 1_000_000L;
+    }
+
+    static Prog parse(byte[] source) {
+        Scanner scanner = new Scanner(new ByteArrayInputStream(source));
+        Parser parser = new Parser(scanner);
+        parser.Parse();
+        if (parser.hasErrors()) {
+            throw new IllegalStateException("Generated program does not parse");
+        }
+        return parser.mainNode;
+    }
+
+    // Same analysis as boltparser.Main, without the printing
+    static Map<String, FunctionCFGInfo> analyze(Prog prog) {
+        CFGBuilder builder = new CFGBuilder();
+        Map<String, FunctionCFGInfo> allFunctionCFGs = new HashMap<>();
+        for (FuncDef func = prog.func; func != null; func = func.nextFunc) {
+            FunctionCFGInfo cfgInfo = new FunctionCFGInfo(func.procname);
+            CFGBuilder.CFGNode entry = builder.buildFunctionCFG(func);
+            collectAllNodes(entry, cfgInfo.allNodes);
+            cfgInfo.liveness = CFGAnalysis.performLiveness(cfgInfo.allNodes);
+            cfgInfo.transfers = CFGAnalysis.planMemoryTransfers(func, cfgInfo.allNodes, cfgInfo.liveness);
+            allFunctionCFGs.put(func.procname, cfgInfo);
+        }
+        return allFunctionCFGs;
+    }
+
+    // Depth first discovery order, identical to Main.collectAllNodes
+    private static void collectAllNodes(CFGBuilder.CFGNode entry, List<CFGBuilder.CFGNode> result) {
+        Set<CFGBuilder.CFGNode> visited = new HashSet<>();
+        Deque<CFGBuilder.CFGNode> stack = new ArrayDeque<>();
+        stack.push(entry);
+        while (!stack.isEmpty()) {
+            CFGBuilder.CFGNode node = stack.pop();
+            if (node == null || !visited.add(node)) continue;
+            result.add(node);
+            for (int i = node.successors.size() - 1; i >= 0; i--) {
+                stack.push(node.successors.get(i));
+            }
+        }
+    }
+
+    static Measurement measure(String phase, String corpus, Operation op) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            blackhole = op.run();
+        }
+
+        int iterations = 0;
+        long startBytes = threadBean.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            blackhole = op.run();
+            iterations++;
+            elapsed = System.nanoTime() - start;
+        } while (iterations < minIterations || elapsed < minTimeNanos);
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - startBytes;
+
+        return new Measurement(phase, corpus, iterations,
+                (double) elapsed / iterations, Math.max(0, allocated) / (double) iterations);
+    }
+
+    private static void printHeader() {
+        System.out.println(String.format("%-10s %-40s %8s %14s %14s %14s",
+                "phase", "corpus", "iters", "time/op (ms)", "alloc/op (MB)", "alloc (MB/s)"));
+    }
+
+    private static Measurement report(Measurement m) {
+        System.out.println(String.format(Locale.ROOT, "%-10s %-40s %8d %14.3f %14.3f %14.1f",
+                m.phase, m.corpus, m.iterations, m.nanosPerOp / 1e6,
+                m.bytesPerOp / (1024.0 * 1024.0), m.allocationRateMBPerSecond()));
+        return m;
+    }
+
+    private static int[] parseIntList(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
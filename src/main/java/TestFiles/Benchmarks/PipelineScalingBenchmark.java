@@ -0,0 +1,121 @@
+package TestFiles.Benchmarks;
+
+import AbstractSyntax.Program.Prog;
+import boltparser.CompilerPipeline;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * PipelineScalingBenchmark
+ *
+ * Measures how the per-function CompilerPipeline scales with the number of
+ * worker threads on a program with many functions. The same program is
+ * compiled with a ForkJoinPool of 1, 2, 4, ... threads (up to the number of
+ * available processors) and the sequential pipeline as a baseline. For every
+ * run it reports time/op, speedup over the sequential pipeline and parallel
+ * efficiency (speedup / threads).
+ *
+ * The generated code of every run is compared with the sequential output, so
+ * the benchmark also checks that the parallel mode is deterministic.
+ *
+ * Usage:
+ *   java TestFiles.Benchmarks.PipelineScalingBenchmark [options]
+ *     --functions=2000   functions in the generated program
+ *     --statements=20    statements per function
+ *     --defers=2         defer blocks per function
+ *     --threads=1,2,4    thread counts to measure (default: powers of two up to the core count)
+ *     --warmup=3 --iterations=5 --min-time=2000
+ */
+
+public class PipelineScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int functions = 2000;
+        int statements = 20;
+        int defers = 2;
+        List<Integer> threadCounts = new ArrayList<>();
+        int warmup = 3;
+        int iterations = 5;
+        long minTimeMillis = 2000;
+
+        for (String arg : args) {
+            if (arg.startsWith("--functions=")) {
+                functions = Integer.parseInt(arg.substring("--functions=".length()));
+            } else if (arg.startsWith("--statements=")) {
+                statements = Integer.parseInt(arg.substring("--statements=".length()));
+            } else if (arg.startsWith("--defers=")) {
+                defers = Integer.parseInt(arg.substring("--defers=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                for (String t : arg.substring("--threads=".length()).split(",")) {
+                    threadCounts.add(Integer.parseInt(t.trim()));
+                }
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--min-time=")) {
+                minTimeMillis = Long.parseLong(arg.substring("--min-time=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (threadCounts.isEmpty()) {
+            for (int t = 1; t < cores; t *= 2) threadCounts.add(t);
+            threadCounts.add(cores);
+        }
+
+        BoltProgramGenerator generator = new BoltProgramGenerator(functions, statements, defers);
+        Prog prog = CompilerPhaseBenchmark.parse(generator.generate().getBytes(StandardCharsets.UTF_8));
+
+        System.out.println("=== BOLT Pipeline Scaling Benchmark ===");
+        System.out.println("program: " + generator + ", available processors: " + cores);
+        System.out.println();
+        System.out.println(String.format("%-12s %8s %14s %10s %12s %10s",
+                "mode", "iters", "time/op (ms)", "speedup", "efficiency", "output"));
+
+        // The transpiler traces to stdout, keep that out of the report
+        PrintStream console = System.out;
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+
+        CompilerPhaseBenchmark.configure(warmup, iterations, minTimeMillis);
+
+        System.setOut(quiet);
+        CompilerPipeline.Result reference = new CompilerPipeline().compile(prog);
+        CompilerPhaseBenchmark.Measurement sequential = CompilerPhaseBenchmark.measure("pipeline", generator.toString(),
+                () -> new CompilerPipeline().compile(prog));
+        System.setOut(console);
+        printRow(console, "sequential", sequential, sequential, 1, "reference");
+
+        for (int threads : threadCounts) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                System.setOut(quiet);
+                CompilerPipeline.Result parallelResult = new CompilerPipeline(pool).compile(prog);
+                CompilerPhaseBenchmark.Measurement m = CompilerPhaseBenchmark.measure("pipeline", generator.toString(),
+                        () -> new CompilerPipeline(pool).compile(prog));
+                System.setOut(console);
+
+                boolean same = parallelResult.program.hostCode.equals(reference.program.hostCode)
+                        && parallelResult.program.kernelsHeader.equals(reference.program.kernelsHeader);
+                printRow(console, threads + " threads", m, sequential, threads, same ? "identical" : "DIFFERENT");
+            } finally {
+                System.setOut(console);
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static void printRow(PrintStream out, String mode, CompilerPhaseBenchmark.Measurement m,
+                                 CompilerPhaseBenchmark.Measurement baseline, int threads, String output) {
+        double speedup = baseline.nanosPerOp / m.nanosPerOp;
+        out.println(String.format(Locale.ROOT, "%-12s %8d %14.3f %10.2f %12.2f %10s",
+                mode, m.iterations, m.nanosPerOp / 1e6, speedup, speedup / threads, output));
+    }
+}
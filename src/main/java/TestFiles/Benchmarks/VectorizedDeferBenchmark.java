@@ -0,0 +1,179 @@
+package TestFiles.Benchmarks;
+
+import AbstractSyntax.Program.Prog;
+import AbstractSyntax.Types.SimpleTypesEnum;
+import Interpreter.Tensor;
+import JvmCompiler.CompiledProgram;
+import JvmCompiler.JvmCompiler;
+import SemanticAnalysis.TypeChecker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * VectorizedDeferBenchmark
+ *
+ * Measures elementwise defer blocks compiled by the JvmCompiler with their
+ * rows on the Vector API against the same program run point by point:
+ * - saxpy: y[i] = a * x[i] + y[i] on double vectors
+ * - scale: m[i, j] = m[i, j] * s on a double matrix
+ * - affine: m[i, j] = m[i, j] * 3 + 1 on an int matrix
+ *
+ * Every call runs the defer block --repeats times, so copying the arguments
+ * into the call is a small part of it. The call returns the sum of the result,
+ * which has to be the same on both paths. Needs the Vector API module:
+ *
+ *   java --add-modules jdk.incubator.vector TestFiles.Benchmarks.VectorizedDeferBenchmark
+ *
+ * The point by point loops are counted loops over arrays, which C2 may
+ * vectorize by itself (superword). -XX:-UseSuperWord compares with scalar
+ * code that it doesn't.
+ *
+ * Usage:
+ *   java TestFiles.Benchmarks.VectorizedDeferBenchmark [options]
+ *     --size=65536       points of every defer block
+ *     --repeats=100      defer blocks per call
+ *     --threads=0        threads of the ForkJoinPool, 0 runs on the calling thread
+ *     --warmup=5 --iterations=10 --min-time=2000
+ */
+
+public class VectorizedDeferBenchmark {
+    private static final int COLUMNS = 1000; // an odd row length, so the rows have tails
+
+    public static void main(String[] args) throws Exception {
+        int size = 65536;
+        int repeats = 100;
+        int threads = 0;
+        int warmup = 5;
+        int iterations = 10;
+        long minTimeMillis = 2000;
+
+        for (String arg : args) {
+            if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(arg.substring("--size=".length()));
+            } else if (arg.startsWith("--repeats=")) {
+                repeats = Integer.parseInt(arg.substring("--repeats=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--min-time=")) {
+                minTimeMillis = Long.parseLong(arg.substring("--min-time=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        if (!JvmCompiler.vectorApiAvailable()) {
+            System.out.println("The Vector API is not available, run with --add-modules jdk.incubator.vector");
+            return;
+        }
+
+        int rows = Math.max(1, size / COLUMNS);
+        Prog prog = program(size, rows, repeats);
+        ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : null;
+        try {
+            CompiledProgram scalar = JvmCompiler.compile(prog, pool, false);
+            CompiledProgram vector = JvmCompiler.compile(prog, pool, true);
+
+            Tensor x = Tensor.zeros(SimpleTypesEnum.DOUBLE, size);
+            Tensor y = Tensor.zeros(SimpleTypesEnum.DOUBLE, size);
+            Tensor m = Tensor.zeros(SimpleTypesEnum.DOUBLE, rows, COLUMNS);
+            Tensor k = Tensor.zeros(SimpleTypesEnum.INT, rows, COLUMNS);
+            for (int i = 0; i < size; i++) {
+                x.doubles[i] = (i % 17) * 0.25;
+                y.doubles[i] = (i % 5) - 2.0;
+            }
+            for (int i = 0; i < m.size(); i++) {
+                m.doubles[i] = (i % 13) * 0.5 + 1.0;
+                k.ints[i] = i % 11 - 5;
+            }
+
+            System.out.println("=== BOLT Vectorized Defer Benchmark ===");
+            System.out.println("points: " + size + " (" + rows + "x" + COLUMNS + " matrices), repeats: " + repeats
+                    + ", threads: " + (threads > 0 ? threads : "calling thread"));
+            System.out.println();
+            System.out.println(String.format("%-8s %8s %16s %16s %10s %10s",
+                    "kernel", "iters", "scalar (ms/op)", "vector (ms/op)", "speedup", "result"));
+
+            CompilerPhaseBenchmark.configure(warmup, iterations, minTimeMillis);
+            Object[][] kernels = {{"saxpy", x, y, 1.5}, {"scale", m, 1.0000001}, {"affine", k}};
+            for (Object[] kernel : kernels) {
+                String name = (String) kernel[0];
+                Object[] kernelArgs = Arrays.copyOfRange(kernel, 1, kernel.length);
+                Object scalarResult = scalar.call(name, kernelArgs);
+                Object vectorResult = vector.call(name, kernelArgs);
+                CompilerPhaseBenchmark.Measurement s = CompilerPhaseBenchmark.measure(name, "scalar",
+                        () -> scalar.call(name, kernelArgs));
+                CompilerPhaseBenchmark.Measurement v = CompilerPhaseBenchmark.measure(name, "vector",
+                        () -> vector.call(name, kernelArgs));
+                System.out.println(String.format(Locale.ROOT, "%-8s %8d %16.3f %16.3f %10.2f %10s",
+                        name, v.iterations, s.nanosPerOp / 1e6, v.nanosPerOp / 1e6, s.nanosPerOp / v.nanosPerOp,
+                        scalarResult.equals(vectorResult) ? "identical" : "DIFFERENT"));
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static Prog program(int size, int rows, int repeats) {
+        String source =
+                "func: double saxpy(vector[double, N] x, vector[double, N] y, double a) {\n" +
+                "    int r = 0;\n" +
+                "    while (r < REPEATS) do {\n" +
+                "        defer[(i, N)] {\n" +
+                "            y[i] = a * x[i] + y[i];\n" +
+                "        }\n" +
+                "        r = r + 1;\n" +
+                "    }\n" +
+                "    double sum = 0.0;\n" +
+                "    defer[(i, N)] {\n" +
+                "        sum = sum + y[i];\n" +
+                "    }\n" +
+                "    return sum;\n" +
+                "}\n" +
+                "func: double scale(matrix[double, ROWS, COLUMNS] m, double s) {\n" +
+                "    int r = 0;\n" +
+                "    while (r < REPEATS) do {\n" +
+                "        defer[(i, ROWS), (j, COLUMNS)] {\n" +
+                "            m[i, j] = m[i, j] * s;\n" +
+                "        }\n" +
+                "        r = r + 1;\n" +
+                "    }\n" +
+                "    double sum = 0.0;\n" +
+                "    defer[(i, ROWS), (j, COLUMNS)] {\n" +
+                "        sum = sum + m[i, j];\n" +
+                "    }\n" +
+                "    return sum;\n" +
+                "}\n" +
+                "func: int affine(matrix[int, ROWS, COLUMNS] m) {\n" +
+                "    int r = 0;\n" +
+                "    while (r < REPEATS) do {\n" +
+                "        defer[(i, ROWS), (j, COLUMNS)] {\n" +
+                "            m[i, j] = m[i, j] * 3 + 1;\n" +
+                "        }\n" +
+                "        r = r + 1;\n" +
+                "    }\n" +
+                "    int sum = 0;\n" +
+                "    defer[(i, ROWS), (j, COLUMNS)] {\n" +
+                "        sum = sum + m[i, j];\n" +
+                "    }\n" +
+                "    return sum;\n" +
+                "}\n" +
+                "func: int main() {\n" +
+                "    return 0;\n" +
+                "}\n";
+        source = source.replace("REPEATS", String.valueOf(repeats)).replace("ROWS", String.valueOf(rows))
+                .replace("COLUMNS", String.valueOf(COLUMNS)).replace(", N]", ", " + size + "]")
+                .replace("(i, N)", "(i, " + size + ")");
+        Prog prog = CompilerPhaseBenchmark.parse(source.getBytes(StandardCharsets.UTF_8));
+        new TypeChecker().check(prog);
+        return prog;
+    }
+}
@@ -0,0 +1,152 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Types.SimpleTypesEnum;
+import Interpreter.Tensor;
+
+/*
+ * The matmul program that the backend tests run, with its inputs and its
+ * result computed in Java.
+ *
+ * run(A, B, C, a) fills A and B, stores their product in C and folds C into a
+ * weighted total, together with dot, lo and allSmall reduced over a. The sizes
+ * are no multiple of the block shape, the step of a tile or the ranges of a
+ * pool of threads.
+ */
+
+final class MatmulProgram {
+    static final int N = 37, K = 21, M = 45, LENGTH = 1000;
+
+    // A and B filled in defer blocks and their product stored in C
+    static final String MATMUL =
+            "    defer[(i, 37), (k, 21)] {\n" +
+            "        A[i, k] = (i * 3 + k * 5) % 7 - 3;\n" +
+            "    }\n" +
+            "    defer[(k, 21), (j, 45)] {\n" +
+            "        B[k, j] = (k * 2 + j) % 5 - 2;\n" +
+            "    }\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        int k = 0;\n" +
+            "        int acc = 0;\n" +
+            "        while (k < 21) do {\n" +
+            "            acc = acc + A[i, k] * B[k, j];\n" +
+            "            k = k + 1;\n" +
+            "        }\n" +
+            "        C[i, j] = acc;\n" +
+            "    }\n";
+
+    static final String RUN =
+            "func: int run(matrix[int, 37, 21] A, matrix[int, 21, 45] B, matrix[int, 37, 45] C, vector[int, 1000] a) {\n" +
+            MATMUL +
+            "    defer[(i, 1000)] {\n" +
+            "        a[i] = (i * 7) % 13 - 6;\n" +
+            "    }\n" +
+            "    int dot = 3;\n" +
+            "    int lo = 100;\n" +
+            "    bool allSmall = true;\n" +
+            "    defer[(i, 1000)] {\n" +
+            "        dot = dot + a[i] * a[i];\n" +
+            "        lo = min(lo, a[i]);\n" +
+            "        allSmall = allSmall && a[i] < 7;\n" +
+            "    }\n" +
+            "    int total = 0;\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        total = total + C[i, j] * (i + 2 * j + 1);\n" +
+            "    }\n" +
+            "    int flags = 0;\n" +
+            "    if (allSmall) then {\n" +
+            "        flags = 1;\n" +
+            "    }\n" +
+            "    return total + dot * 10 + lo * 1000 + flags * 1000000;\n" +
+            "}\n";
+
+    // A double reduction over C, whose rounding depends on the order of the additions
+    static final String NORM =
+            "func: double norm(matrix[int, 37, 45] C) {\n" +
+            "    double sum = 0.0;\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        sum = sum + C[i, j] * 0.1;\n" +
+            "    }\n" +
+            "    return sum;\n" +
+            "}\n";
+
+    static final String MAIN =
+            "func: int main() {\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    // Calls run of the OpenMP output a.cpp and prints result=<what it returned>
+    static final String OPENMP_DRIVER =
+            "#include <cstdio>\n" +
+            "#define main bolt_main\n" +
+            "#include \"a.cpp\"\n" +
+            "#undef main\n" +
+            "int main() {\n" +
+            "    IntTensor A(std::vector<int>(37 * 21), {37, 21});\n" +
+            "    IntTensor B(std::vector<int>(21 * 45), {21, 45});\n" +
+            "    IntTensor C(std::vector<int>(37 * 45), {37, 45});\n" +
+            "    IntTensor a(std::vector<int>(1000), {1000});\n" +
+            "    std::printf(\"result=%d\\n\", run(A, B, C, a));\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    private MatmulProgram() {
+    }
+
+    // New arguments of run for the Interpreter and the JvmCompiler
+    static Object[] arguments() {
+        return new Object[]{Tensor.zeros(SimpleTypesEnum.INT, N, K), Tensor.zeros(SimpleTypesEnum.INT, K, M),
+                Tensor.zeros(SimpleTypesEnum.INT, N, M), Tensor.zeros(SimpleTypesEnum.INT, LENGTH)};
+    }
+
+    // An argument of norm with positive and negative values
+    static Tensor normArgument() {
+        Tensor c = Tensor.zeros(SimpleTypesEnum.INT, N, M);
+        for (int i = 0; i < c.size(); i++) {
+            c.ints[i] = (i * 37) % 101 - 50;
+        }
+        return c;
+    }
+
+    // C as MATMUL computes it, element by element
+    static int[][] product() {
+        int[][] a = new int[N][K], b = new int[K][M], c = new int[N][M];
+        for (int i = 0; i < N; i++) {
+            for (int k = 0; k < K; k++) {
+                a[i][k] = (i * 3 + k * 5) % 7 - 3;
+            }
+        }
+        for (int k = 0; k < K; k++) {
+            for (int j = 0; j < M; j++) {
+                b[k][j] = (k * 2 + j) % 5 - 2;
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                for (int k = 0; k < K; k++) {
+                    c[i][j] += a[i][k] * b[k][j];
+                }
+            }
+        }
+        return c;
+    }
+
+    // What run returns
+    static int reference() {
+        int[][] c = product();
+        int total = 0;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                total += c[i][j] * (i + 2 * j + 1);
+            }
+        }
+        int dot = 3, lo = 100;
+        boolean allSmall = true;
+        for (int i = 0; i < LENGTH; i++) {
+            int v = (i * 7) % 13 - 6;
+            dot += v * v;
+            lo = Math.min(lo, v);
+            allSmall = allSmall && v < 7;
+        }
+        return total + dot * 10 + lo * 1000 + (allSmall ? 1 : 0) * 1000000;
+    }
+}
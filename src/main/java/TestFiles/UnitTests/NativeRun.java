@@ -0,0 +1,107 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compiles generated programs with g++ and runs them, for the unit tests that
+ * check what the generated code computes.
+ *
+ * CUDA code is compiled as C++ against the headers in emulation/, which run
+ * the kernels on the CPU. OpenMP code only needs tensor.h and runs with 4
+ * threads, so its loops are split even on a machine with fewer cores. A test
+ * is skipped where the headers or g++ can't be found.
+ */
+
+final class NativeRun {
+    enum Target { EMULATED_CUDA, OPENMP }
+
+    final int exitCode;
+    final String output; // stdout and stderr of the run
+
+    private NativeRun(int exitCode, String output) {
+        this.exitCode = exitCode;
+        this.output = output;
+    }
+
+    //Writes the program (a.cu, or a.cpp if it's host only) and the driver into a new directory, compiles the
+    //driver, or the program itself if there is no driver, and runs it. Returns null after printing why the
+    //test was skipped or failed.
+    static NativeRun run(String test, GeneratedProgram program, String driver, Target target) {
+        File tensorHeader = findFile("tensor.h");
+        File emulation = findFile("emulation/cuda_runtime.h");
+        if (tensorHeader == null || (target == Target.EMULATED_CUDA && emulation == null)) {
+            System.out.println(" " + test + " skipped | " + (tensorHeader == null ? "tensor.h" : "emulation headers")
+                    + " not found");
+            return null;
+        }
+
+        try {
+            File dir = Files.createTempDirectory("bolt_" + test).toFile();
+            String source;
+            if (driver != null) {
+                source = "driver.cpp";
+                Files.writeString(new File(dir, source).toPath(), driver);
+            } else {
+                source = program.hostOnly ? "a.cpp" : "a.cu";
+            }
+            if (program != null) {
+                program.write(new File(dir, "a").getPath());
+            }
+            File binary = new File(dir, "a.out");
+
+            List<String> command = new ArrayList<>(List.of("g++", "-std=c++17"));
+            if (target == Target.EMULATED_CUDA) {
+                command.addAll(List.of("-x", "c++", "-I" + emulation.getParent()));
+            } else {
+                command.add("-fopenmp"); // no emulation headers, the program must not need CUDA at all
+            }
+            command.addAll(List.of("-I" + tensorHeader.getParent(), source, "-o", binary.getPath()));
+
+            Process compiler;
+            try {
+                compiler = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+            } catch (IOException e) {
+                System.out.println(" " + test + " skipped | g++ not available");
+                return null;
+            }
+            String errors = new String(compiler.getInputStream().readAllBytes());
+            if (compiler.waitFor() != 0) {
+                System.out.println(" " + test + " failed | " + source + " doesn't compile:\n" + errors);
+                return null;
+            }
+
+            ProcessBuilder builder = new ProcessBuilder(binary.getPath()).redirectErrorStream(true);
+            if (target == Target.OPENMP) {
+                builder.environment().put("OMP_NUM_THREADS", "4");
+            }
+            Process process = builder.start();
+            String output = new String(process.getInputStream().readAllBytes());
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                System.out.println(" " + test + " failed | " + source + " didn't finish");
+                return null;
+            }
+            return new NativeRun(process.exitValue(), output);
+        } catch (Exception e) {
+            System.out.println(" " + test + " failed | " + e);
+            return null;
+        }
+    }
+
+    //The tests run from TestFiles or the source root, so the files are in one of these
+    static File findFile(String file) {
+        for (String root : new String[]{"..", ".", "src/main/java", "../../../..", "../../.."}) {
+            if (new File(root, file).isFile()) {
+                return new File(root, file).getAbsoluteFile();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,111 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Program.Prog;
+import SemanticAnalysis.TypeChecker;
+import Transpiler.GeneratedProgram;
+import Transpiler.Transpiler;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * Unit tests for emitting generated code into a buffer.
+ *
+ * This includes:
+ * - Deep left-nested expressions are emitted in full and in order
+ * - Assembling into caller supplied Appendables gives the same files
+ * - Writing a file to a stream produces exactly the generated bytes
+ */
+
+public class TestCodeEmitter {
+    private static final int CHAIN_LENGTH = 2000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestCodeEmitter...");
+
+        testDeepExpression();           //1 + 2 + ... + n comes out as written
+        testAssembleIntoAppendable();   //same output as the GeneratedProgram buffers
+        testWriteToStream();            //bytes of the stream match the generated code
+    }
+
+    static void testDeepExpression() throws Exception {
+        StringBuilder expr = new StringBuilder("1");
+        for (int i = 2; i <= CHAIN_LENGTH; i++) {
+            expr.append(" + ").append(i);
+        }
+        Prog prog = parse("func: int main() {\n    int x = " + expr + ";\n    return x;\n}\n");
+
+        GeneratedProgram program = transpiler(prog).generate(prog);
+        if (program.hostCode.contains("int x = " + expr + ";\n")) {
+            System.out.println(" testDeepExpression passed");
+        } else {
+            System.out.println(" testDeepExpression failed | expression was not emitted as written");
+        }
+    }
+
+    static void testAssembleIntoAppendable() throws Exception {
+        Prog prog = parse(program());
+        Transpiler transpiler = transpiler(prog);
+        GeneratedProgram program = transpiler.generate(prog);
+
+        List<Transpiler.FunctionUnit> units = new ArrayList<>();
+        for (FuncDef f = prog.func; f != null; f = f.nextFunc) {
+            units.add(transpiler.transpileFunction(f));
+        }
+        StringBuilder host = new StringBuilder();
+        StringBuilder kernels = new StringBuilder();
+        transpiler.assemble(prog, units, host, kernels);
+
+        if (program.hostCode.contentEquals(host) && program.kernelsHeader.contentEquals(kernels)) {
+            System.out.println(" testAssembleIntoAppendable passed");
+        } else {
+            System.out.println(" testAssembleIntoAppendable failed | output differs from GeneratedProgram");
+        }
+    }
+
+    static void testWriteToStream() throws Exception {
+        Prog prog = parse(program());
+        GeneratedProgram program = transpiler(prog).generate(prog);
+
+        ByteArrayOutputStream host = new ByteArrayOutputStream();
+        ByteArrayOutputStream kernels = new ByteArrayOutputStream();
+        program.writeHostCode(host);
+        program.writeKernelsHeader(kernels);
+
+        if (host.toString(StandardCharsets.UTF_8).equals(program.hostCode)
+                && kernels.toString(StandardCharsets.UTF_8).equals(program.kernelsHeader)) {
+            System.out.println(" testWriteToStream passed");
+        } else {
+            System.out.println(" testWriteToStream failed | written bytes differ from the generated code");
+        }
+    }
+
+    //One function with a defer block, so both files have generated content
+    private static String program() {
+        return "func: int main() {\n"
+                + "    vector[int, 4] a = {1, 2, 3, 4};\n"
+                + "    int k = 2;\n"
+                + "    defer[(i, 4)] {\n"
+                + "        a[i] = a[i] * (k + 1);\n"
+                + "    }\n"
+                + "    return a[0];\n"
+                + "}\n";
+    }
+
+    private static Prog parse(String source) {
+        Parser parser = new Parser(new Scanner(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))));
+        parser.Parse();
+        return parser.mainNode;
+    }
+
+    private static Transpiler transpiler(Prog prog) {
+        TypeChecker checker = new TypeChecker();
+        checker.check(prog);
+        return new Transpiler(checker.getGlobalEnvironment(), null);
+    }
+}
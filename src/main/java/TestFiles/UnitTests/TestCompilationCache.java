@@ -0,0 +1,132 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import boltparser.CompilationCache;
+import boltparser.CompilerPipeline;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Unit tests for the incremental compilation cache.
+ *
+ * This includes:
+ * - Recompiling an unchanged program entirely from the cache
+ * - Recompiling only the function that was edited
+ * - Recompiling callers when the signature of a callee changes
+ * - Kernel parameters in a stable (sorted) order
+ *
+ * Output from the cache must be identical to compiling without it.
+ */
+
+public class TestCompilationCache {
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestCompilationCache...");
+
+        testUnchangedProgram();       //second compile takes every function from the cache
+        testEditedFunction();         //only the edited function is compiled again
+        testChangedSignature();       //callers of a changed function are compiled again
+        testSortedKernelParameters(); //kernel parameters are sorted by name
+    }
+
+    static void testUnchangedProgram() throws Exception {
+        File dir = Files.createTempDirectory("bolt-cache").toFile();
+        String source = program("x + 1", "int");
+
+        CompilerPipeline.Result first = compile(source, new CompilationCache(dir));
+        CompilerPipeline.Result second = compile(source, new CompilationCache(dir));
+        CompilerPipeline.Result uncached = compile(source, null);
+
+        if (first.cachedFunctions == 0 && second.compiledFunctions == 0 && second.cachedFunctions == 3
+                && sameOutput(second, uncached)) {
+            System.out.println(" testUnchangedProgram passed");
+        } else {
+            System.out.println(" testUnchangedProgram failed | compiled " + second.compiledFunctions
+                    + ", cached " + second.cachedFunctions + ", same output " + sameOutput(second, uncached));
+        }
+    }
+
+    static void testEditedFunction() throws Exception {
+        File dir = Files.createTempDirectory("bolt-cache").toFile();
+        compile(program("x + 1", "int"), new CompilationCache(dir));
+
+        String edited = program("x + 2", "int");
+        CompilerPipeline.Result result = compile(edited, new CompilationCache(dir));
+
+        if (result.compiledFunctions == 1 && result.cfgs.containsKey("inc") && sameOutput(result, compile(edited, null))) {
+            System.out.println(" testEditedFunction passed");
+        } else {
+            System.out.println(" testEditedFunction failed | recompiled " + result.cfgs.keySet());
+        }
+    }
+
+    static void testChangedSignature() throws Exception {
+        File dir = Files.createTempDirectory("bolt-cache").toFile();
+        compile(program("x + 1", "int"), new CompilationCache(dir));
+
+        // inc now returns a double, so twice (which calls it) must be checked again and gets a type error
+        CompilerPipeline.Result result = compile(program("1.5", "double"), new CompilationCache(dir));
+
+        if (result.cfgs.containsKey("inc") && result.cfgs.containsKey("twice") && result.hasErrors()) {
+            System.out.println(" testChangedSignature passed");
+        } else {
+            System.out.println(" testChangedSignature failed | recompiled " + result.cfgs.keySet()
+                    + ", errors " + result.errors);
+        }
+    }
+
+    static void testSortedKernelParameters() throws Exception {
+        String source = "func: int main() {\n"
+                + "    vector[int, 4] zeta = {1, 2, 3, 4};\n"
+                + "    vector[int, 4] alpha = {1, 2, 3, 4};\n"
+                + "    int mid = 2;\n"
+                + "    defer[(i, 4)] {\n"
+                + "        zeta[i] = alpha[i] * mid;\n"
+                + "    }\n"
+                + "    return zeta[0];\n"
+                + "}\n";
+        String kernels = compile(source, null).program.kernelsHeader;
+
+        if (kernels.contains("main_A(const int* __restrict__ alpha_data, TensorShape alpha_shape, int mid, int* zeta_data, TensorShape zeta_shape)")) {
+            System.out.println(" testSortedKernelParameters passed");
+        } else {
+            System.out.println(" testSortedKernelParameters failed | unexpected kernel signature");
+        }
+    }
+
+    //Three functions: inc (with the given body and return type), twice calling inc, and main with a defer block
+    private static String program(String incBody, String incType) {
+        return "func: " + incType + " inc(int x) {\n"
+                + "    return " + incBody + ";\n"
+                + "}\n"
+                + "func: int twice(int x) {\n"
+                + "    int y = inc(x);\n"
+                + "    return inc(y);\n"
+                + "}\n"
+                + "func: int main() {\n"
+                + "    vector[int, 4] a = {1, 2, 3, 4};\n"
+                + "    defer[(i, 4)] {\n"
+                + "        a[i] = a[i] + 1;\n"
+                + "    }\n"
+                + "    return twice(a[0]);\n"
+                + "}\n";
+    }
+
+    private static CompilerPipeline.Result compile(String source, CompilationCache cache) throws Exception {
+        Parser parser = new Parser(new Scanner(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))));
+        parser.Parse();
+        Prog prog = parser.mainNode;
+        return new CompilerPipeline(null, cache).compile(prog);
+    }
+
+    private static boolean sameOutput(CompilerPipeline.Result a, CompilerPipeline.Result b) {
+        return a.program != null && b.program != null
+                && a.program.hostCode.equals(b.program.hostCode)
+                && a.program.kernelsHeader.equals(b.program.kernelsHeader);
+    }
+}
@@ -0,0 +1,107 @@
+package TestFiles.UnitTests;
+
+import boltparser.CompileServer;
+import boltparser.CompilerPipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Unit tests for the compile server.
+ *
+ * This includes:
+ * - Answering PING, COMPILE and QUIT requests over a stream
+ * - Returning the generated files in the response
+ * - Reporting type errors instead of generated code
+ * - Serving an unchanged program from the cache
+ */
+
+public class TestCompileServer {
+    private static final String VALID_PROGRAM =
+            "func: int main() {\n" +
+            "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+            "    defer[(i, 4)] {\n" +
+            "        a[i] = a[i] + 1;\n" +
+            "    }\n" +
+            "    return a[0];\n" +
+            "}\n";
+
+    private static final String INVALID_PROGRAM =
+            "func: int main() {\n" +
+            "    int x = true;\n" +
+            "    return x;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestCompileServer...");
+
+        testCompileRequest();   //OK response with the .cu file and kernels.h
+        testErrorRequest();     //ERROR response listing the type errors
+        testPingAndQuit();      //requests after QUIT are not answered
+        testCachedProgram();    //second compile of the same source returns the cached result
+    }
+
+    static void testCompileRequest() throws Exception {
+        String response = serve(compileRequest(VALID_PROGRAM));
+        CompileServer.Response expected = new CompileServer(new CompilerPipeline(), 1).compile(VALID_PROGRAM);
+
+        String hostCode = expected.program.hostCode;
+        String kernelsHeader = expected.program.kernelsHeader;
+        String header = "OK " + bytes(hostCode) + " " + bytes(kernelsHeader) + "\n";
+        if (response.equals(header + hostCode + kernelsHeader) && kernelsHeader.contains("__global__ void main_A(")) {
+            System.out.println(" testCompileRequest passed");
+        } else {
+            System.out.println(" testCompileRequest failed | unexpected response: " + firstLine(response));
+        }
+    }
+
+    static void testErrorRequest() throws Exception {
+        String response = serve(compileRequest(INVALID_PROGRAM));
+        if (response.startsWith("ERROR ") && !response.startsWith("ERROR 0")) {
+            System.out.println(" testErrorRequest passed");
+        } else {
+            System.out.println(" testErrorRequest failed | unexpected response: " + firstLine(response));
+        }
+    }
+
+    static void testPingAndQuit() throws Exception {
+        String response = serve("PING\nQUIT\nPING\n");
+        if (response.equals("PONG\nBYE\n")) {
+            System.out.println(" testPingAndQuit passed");
+        } else {
+            System.out.println(" testPingAndQuit failed | unexpected response: " + response);
+        }
+    }
+
+    static void testCachedProgram() throws Exception {
+        CompileServer server = new CompileServer(new CompilerPipeline(), 4);
+        CompileServer.Response first = server.compile(VALID_PROGRAM);
+        CompileServer.Response second = server.compile(new String(VALID_PROGRAM.toCharArray()));
+        if (first == second) {
+            System.out.println(" testCachedProgram passed");
+        } else {
+            System.out.println(" testCachedProgram failed | program was compiled twice");
+        }
+    }
+
+    private static String serve(String requests) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CompileServer(new CompilerPipeline(), 4).serve(
+                new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)), out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String compileRequest(String source) {
+        return "COMPILE " + bytes(source) + "\n" + source;
+    }
+
+    private static int bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String firstLine(String s) {
+        int end = s.indexOf('\n');
+        return end < 0 ? s : s.substring(0, end);
+    }
+}
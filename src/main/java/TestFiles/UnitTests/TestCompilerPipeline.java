@@ -0,0 +1,103 @@
+package TestFiles.UnitTests;
+
+import boltparser.Main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/*
+ * Unit tests for the parallel per-function CompilerPipeline.
+ *
+ * This includes:
+ * - Compiling a program of many functions with --parallel=N and without it
+ * - Comparing the written .cu and kernels.h files byte for byte
+ * - The same output for every number of threads and every run
+ *
+ * The sequential run goes through the classic path of Main, so the pipeline
+ * has to produce exactly what the Transpiler alone does.
+ */
+
+public class TestCompilerPipeline {
+    private static final int FUNCTION_COUNT = 24;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestCompilerPipeline...");
+
+        testParallelMatchesSequential();  //--parallel=N writes the same files as the sequential compile
+    }
+
+    static void testParallelMatchesSequential() throws Exception {
+        File root = Files.createTempDirectory("bolt-pipeline").toFile();
+        byte[][] sequential = compile(root, "seq");
+
+        for (String threads : new String[]{"1", "2", "4", "8"}) {
+            for (int run = 0; run < 3; run++) {
+                byte[][] parallel = compile(root, "par" + threads + "_" + run, "--parallel=" + threads);
+                if (!Arrays.equals(sequential[0], parallel[0]) || !Arrays.equals(sequential[1], parallel[1])) {
+                    System.out.println(" testParallelMatchesSequential failed | --parallel=" + threads + " run " + run
+                            + " differs in " + (Arrays.equals(sequential[0], parallel[0]) ? "kernels.h" : "prog.cu"));
+                    return;
+                }
+            }
+        }
+        if (sequential[0].length > 0 && sequential[1].length > 0) {
+            System.out.println(" testParallelMatchesSequential passed");
+        } else {
+            System.out.println(" testParallelMatchesSequential failed | nothing was generated");
+        }
+    }
+
+    // Runs Main on the program in a directory of its own and returns the bytes of prog.cu and kernels.h
+    private static byte[][] compile(File root, String name, String... options) throws Exception {
+        File dir = new File(root, name);
+        dir.mkdirs();
+        File source = new File(dir, "prog.bolt");
+        Files.write(source.toPath(), program().getBytes(StandardCharsets.UTF_8));
+
+        String[] args = Arrays.copyOf(options, options.length + 1);
+        args[options.length] = source.getPath();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8));
+        try {
+            Main.main(args);
+        } finally {
+            System.setOut(stdout);
+        }
+
+        File cu = new File(dir, "prog.cu");
+        File header = new File(dir, "kernels.h");
+        if (!cu.exists() || !header.exists()) {
+            return new byte[][]{new byte[0], new byte[0]};
+        }
+        return new byte[][]{Files.readAllBytes(cu.toPath()), Files.readAllBytes(header.toPath())};
+    }
+
+    // Functions with scalar code, calls and defer blocks, called in a chain from main
+    private static String program() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < FUNCTION_COUNT; i++) {
+            source.append("func: int f").append(i).append("(int x) {\n")
+                    .append("    vector[int, 8] v = {1, 2, 3, 4, 5, 6, 7, 8};\n")
+                    .append("    defer[(k, 8)] {\n")
+                    .append("        v[k] = v[k] * ").append(i + 2).append(" + x;\n")
+                    .append("    }\n")
+                    .append("    int y = v[").append(i % 8).append("];\n")
+                    .append("    while (y > 100) do {\n")
+                    .append("        y = y - 100;\n")
+                    .append("    }\n");
+            if (i > 0) {
+                source.append("    y = y + f").append(i - 1).append("(x - 1);\n");
+            }
+            source.append("    return y;\n")
+                    .append("}\n");
+        }
+        source.append("func: int main() {\n")
+                .append("    return f").append(FUNCTION_COUNT - 1).append("(3);\n")
+                .append("}\n");
+        return source.toString();
+    }
+}
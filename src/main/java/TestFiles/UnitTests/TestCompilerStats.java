@@ -0,0 +1,141 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import boltparser.CompilerPipeline;
+import boltparser.CompilerStats;
+import boltparser.Main;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Unit tests for the compiler statistics.
+ *
+ * This includes:
+ * - Reporting the pipeline phases and counters as JSON
+ * - Generated code is the same with and without statistics
+ * - No trace output unless it was asked for
+ * - Only the report on stdout when --stats has no file to write it to
+ */
+
+public class TestCompilerStats {
+    private static final String PROGRAM =
+            "func: int main() {\n" +
+            "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+            "    defer[(i, 4)] {\n" +
+            "        a[i] = a[i] + 1;\n" +
+            "    }\n" +
+            "    return a[0];\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestCompilerStats...");
+
+        testPhasesAndCounters();   //JSON lists the timed phases and the counts
+        testSameOutput();          //statistics don't change the generated code
+        testNoTraceByDefault();    //nothing is printed while compiling without --trace
+        testReportOnStdout();      //--stats alone leaves only the JSON on stdout
+    }
+
+    static void testPhasesAndCounters() throws Exception {
+        CompilerStats stats = new CompilerStats();
+        compile(stats, false);
+        String json = stats.toJson();
+
+        boolean phases = json.contains("\"typecheck\": {\"calls\": 1") && json.contains("\"cfg\": {\"calls\": 1")
+                && json.contains("\"codegen\": {\"calls\": 1") && json.contains("\"assemble\": {\"calls\": 1");
+        boolean counters = json.contains("\"functions\": 1") && json.contains("\"kernels\": 1")
+                && json.contains("\"memoryTransfers\": ") && !json.contains("\"memoryTransfers\": 0")
+                && json.contains("\"astNodes\": ") && json.contains("\"cfgNodes\": ");
+        if (phases && counters) {
+            System.out.println(" testPhasesAndCounters passed");
+        } else {
+            System.out.println(" testPhasesAndCounters failed | unexpected report:\n" + json);
+        }
+    }
+
+    static void testSameOutput() throws Exception {
+        CompilerPipeline.Result measured = compile(new CompilerStats(), false);
+        CompilerPipeline.Result plain = compile(CompilerStats.DISABLED, false);
+
+        if (measured.program.hostCode.equals(plain.program.hostCode)
+                && measured.program.kernelsHeader.equals(plain.program.kernelsHeader)
+                && CompilerStats.DISABLED.toJson().contains("\"phases\": {}")) {
+            System.out.println(" testSameOutput passed");
+        } else {
+            System.out.println(" testSameOutput failed | generated code differs with statistics enabled");
+        }
+    }
+
+    static void testNoTraceByDefault() throws Exception {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            compile(CompilerStats.DISABLED, false);
+        } finally {
+            System.setOut(stdout);
+        }
+        String quiet = captured.toString(StandardCharsets.UTF_8);
+
+        captured.reset();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            compile(CompilerStats.DISABLED, true);
+        } finally {
+            System.setOut(stdout);
+        }
+        String traced = captured.toString(StandardCharsets.UTF_8);
+
+        if (!quiet.contains("[DEBUG]") && traced.contains("[DEBUG]")) {
+            System.out.println(" testNoTraceByDefault passed");
+        } else {
+            System.out.println(" testNoTraceByDefault failed | trace output " + (quiet.contains("[DEBUG]")
+                    ? "printed without --trace" : "missing with --trace"));
+        }
+    }
+
+    static void testReportOnStdout() throws Exception {
+        File source = new File(Files.createTempDirectory("bolt_stats").toFile(), "prog.bolt");
+        Files.writeString(source.toPath(), PROGRAM);
+        String path = source.getPath();
+
+        for (String[] args : new String[][]{{"--stats", path}, {"--stats", "--parallel=2", path}}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(), err = new ByteArrayOutputStream();
+            PrintStream stdout = System.out, stderr = System.err;
+            System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8));
+            try {
+                Main.main(args);
+            } finally {
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+            String report = out.toString(StandardCharsets.UTF_8).trim();
+            if (!report.startsWith("{") || !report.endsWith("}") || !report.contains("\"codegen\": {\"calls\": 1")
+                    || !err.toString(StandardCharsets.UTF_8).contains("Parsing completed")) {
+                System.out.println(" testReportOnStdout failed | " + String.join(" ", args) + " printed more than the report:\n"
+                        + report);
+                return;
+            }
+        }
+        System.out.println(" testReportOnStdout passed");
+    }
+
+    private static CompilerPipeline.Result compile(CompilerStats stats, boolean trace) throws Exception {
+        Parser parser = new Parser(new Scanner(new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.UTF_8))));
+        parser.Parse();
+        Prog prog = parser.mainNode;
+
+        CompilerPipeline pipeline = new CompilerPipeline();
+        pipeline.setStats(stats);
+        pipeline.setDebug(trace);
+        return pipeline.compile(prog);
+    }
+}
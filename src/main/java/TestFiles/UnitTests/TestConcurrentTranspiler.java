@@ -0,0 +1,128 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Program.Prog;
+import SemanticAnalysis.TypeChecker;
+import Transpiler.Transpiler;
+import boltparser.CompilerPipeline;
+import boltparser.FunctionCFGInfo;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Unit tests for running several Transpiler instances at the same time.
+ *
+ * This includes:
+ * - Compiling the same programs sequentially and on a thread pool
+ * - Comparing the generated .cu and kernels.h files byte for byte
+ * - Checking that kernel names start over for every program
+ *
+ * Each program is compiled into its own directory, so any state shared
+ * between compilations shows up as a difference in the output.
+ */
+
+public class TestConcurrentTranspiler {
+    private static final int PROGRAM_COUNT = 16;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestConcurrentTranspiler...");
+
+        testConcurrentOutputMatchesSequential();  //same output no matter how the compilations interleave
+        testKernelNamesPerProgram();              //first kernel of every program is named main_A
+    }
+
+    static void testConcurrentOutputMatchesSequential() throws Exception {
+        File root = Files.createTempDirectory("bolt-concurrent").toFile();
+
+        // Sequential reference
+        for (int i = 0; i < PROGRAM_COUNT; i++) {
+            compile(program(i), new File(root, "seq" + i));
+        }
+
+        // Same programs on a thread pool
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < PROGRAM_COUNT; i++) {
+            final int index = i;
+            futures.add(pool.submit(() -> {
+                compile(program(index), new File(root, "par" + index));
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+
+        for (int i = 0; i < PROGRAM_COUNT; i++) {
+            for (String name : new String[]{"prog.cu", "kernels.h"}) {
+                String seq = read(new File(root, "seq" + i + "/" + name));
+                String par = read(new File(root, "par" + i + "/" + name));
+                if (!seq.equals(par)) {
+                    System.out.println(" testConcurrentOutputMatchesSequential failed | program " + i + " differs in " + name);
+                    return;
+                }
+            }
+        }
+        System.out.println(" testConcurrentOutputMatchesSequential passed");
+    }
+
+    static void testKernelNamesPerProgram() throws Exception {
+        File root = Files.createTempDirectory("bolt-kernel-names").toFile();
+        compile(program(3), new File(root, "first"));
+        compile(program(3), new File(root, "second"));
+
+        String second = read(new File(root, "second/kernels.h"));
+        if (second.contains("__global__ void main_A(") && second.equals(read(new File(root, "first/kernels.h")))) {
+            System.out.println(" testKernelNamesPerProgram passed");
+        } else {
+            System.out.println(" testKernelNamesPerProgram failed | kernel names leaked between programs");
+        }
+    }
+
+    //Program i has i % 4 + 1 defer blocks, so the programs need different numbers of kernel names
+    private static String program(int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("func: int main() {\n");
+        sb.append("    vector[int, 4] a = {1, 2, 3, ").append(i).append("};\n");
+        sb.append("    int k = ").append(i).append(";\n");
+        for (int d = 0; d <= i % 4; d++) {
+            sb.append("    defer[(i, 4)] {\n");
+            sb.append("        a[i] = a[i] + k;\n");
+            sb.append("    }\n");
+        }
+        sb.append("    return a[0];\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void compile(String source, File dir) throws Exception {
+        dir.mkdirs();
+        Parser parser = new Parser(new Scanner(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))));
+        parser.Parse();
+        Prog prog = parser.mainNode;
+
+        TypeChecker checker = new TypeChecker();
+        checker.check(prog);
+
+        Map<String, FunctionCFGInfo> cfgs = new HashMap<>();
+        for (FuncDef f = prog.func; f != null; f = f.nextFunc) {
+            cfgs.put(f.procname, CompilerPipeline.analyzeFunction(f));
+        }
+
+        new Transpiler(checker.getGlobalEnvironment(), cfgs).transpile(new File(dir, "prog").getPath(), prog);
+    }
+
+    private static String read(File f) throws Exception {
+        return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+    }
+}
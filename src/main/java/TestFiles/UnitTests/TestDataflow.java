@@ -0,0 +1,144 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import DataflowAnalysis.CFGAnalysis;
+import DataflowAnalysis.CFGBuilder;
+import boltparser.CompilerPipeline;
+import boltparser.FunctionCFGInfo;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.util.*;
+
+/*
+ * Unit tests for the dataflow analyses.
+ *
+ * This includes:
+ * - Liveness around a loop and a branch
+ * - Use-def chains from reaching definitions
+ * - Assigning a tensor element keeps earlier definitions of the tensor, and keeps it live
+ * - A long straight-line function
+ */
+
+public class TestDataflow {
+    //Node ids follow the statements: x 0, y 1, while 2, x = 3, if 4, y = 5, y = 6, z 7, return 8
+    private static final String LOOP_PROGRAM =
+            "func: int main() {\n" +
+            "    int x = 1;\n" +
+            "    int y = 2;\n" +
+            "    while (x < 10) do {\n" +
+            "        x = x + y;\n" +
+            "    }\n" +
+            "    if (x > 5) then {\n" +
+            "        y = 3;\n" +
+            "    } else {\n" +
+            "        y = 4;\n" +
+            "    }\n" +
+            "    int z = y;\n" +
+            "    return z;\n" +
+            "}\n";
+
+    private static final int CHAIN_LENGTH = 2000;
+
+    public static void main(String[] args) {
+        System.out.println(" Running TestDataflow...");
+
+        testLiveness();         //live variables at the loop, the branch and the start
+        testReachingDefs();     //definitions from both the loop body and before it reach the condition
+        testTensorElement();    //a[0] = ... doesn't hide the declaration of a, or end its liveness
+        testLongFunction();     //each use in a chain of assignments sees only the previous one
+    }
+
+    static void testLiveness() {
+        FunctionCFGInfo info = analyze(LOOP_PROGRAM);
+        CFGAnalysis.Liveness atStart = info.liveness.get(node(info, 0));
+        CFGAnalysis.Liveness atLoop = info.liveness.get(node(info, 2));
+        CFGAnalysis.Liveness atBranch = info.liveness.get(node(info, 4));
+
+        if (atStart.in.isEmpty() && atLoop.out.equals(Set.of("x", "y")) && atBranch.in.equals(Set.of("x"))
+                && atBranch.out.isEmpty()) {
+            System.out.println(" testLiveness passed");
+        } else {
+            System.out.println(" testLiveness failed | start " + atStart.in + ", loop " + atLoop.out
+                    + ", branch " + atBranch.in + " / " + atBranch.out);
+        }
+    }
+
+    static void testReachingDefs() {
+        FunctionCFGInfo info = analyze(LOOP_PROGRAM);
+        Map<String, Set<CFGBuilder.CFGNode>> atLoop = info.useDef.get(node(info, 2));
+        Map<String, Set<CFGBuilder.CFGNode>> atZ = info.useDef.get(node(info, 7));
+
+        if (ids(atLoop.get("x")).equals(List.of(0, 3)) && ids(atZ.get("y")).equals(List.of(5, 6))) {
+            System.out.println(" testReachingDefs passed");
+        } else {
+            System.out.println(" testReachingDefs failed | x at loop " + ids(atLoop.get("x"))
+                    + ", y at z " + ids(atZ.get("y")));
+        }
+    }
+
+    static void testTensorElement() {
+        FunctionCFGInfo info = analyze("func: int main() {\n"
+                + "    vector[int, 2] a = {1, 2};\n"
+                + "    a[0] = 5;\n"
+                + "    int b = a[1];\n"
+                + "    return b;\n"
+                + "}\n");
+        List<Integer> defs = ids(info.useDef.get(node(info, 2)).get("a"));
+
+        boolean live = info.liveness.get(node(info, 1)).in.contains("a");
+
+        if (defs.equals(List.of(0, 1)) && live) {
+            System.out.println(" testTensorElement passed");
+        } else {
+            System.out.println(" testTensorElement failed | a defined at " + defs + ", live before a[0] = 5 " + live);
+        }
+    }
+
+    static void testLongFunction() {
+        StringBuilder source = new StringBuilder("func: int main() {\n    int x = 0;\n");
+        for (int i = 1; i < CHAIN_LENGTH; i++) {
+            source.append("    x = x + ").append(i).append(";\n");
+        }
+        source.append("    return x;\n}\n");
+        FunctionCFGInfo info = analyze(source.toString());
+
+        boolean chained = true;
+        for (int i = 1; i < CHAIN_LENGTH && chained; i++) {
+            chained = ids(info.useDef.get(node(info, i)).get("x")).equals(List.of(i - 1))
+                    && info.liveness.get(node(info, i)).out.equals(Set.of("x"));
+        }
+        if (chained) {
+            System.out.println(" testLongFunction passed");
+        } else {
+            System.out.println(" testLongFunction failed | a use sees the wrong definitions");
+        }
+    }
+
+    private static FunctionCFGInfo analyze(String source) {
+        Parser parser = new Parser(Scanner.forSource(source));
+        parser.Parse();
+        Prog prog = parser.mainNode;
+        return CompilerPipeline.analyzeFunction(prog.func);
+    }
+
+    private static CFGBuilder.CFGNode node(FunctionCFGInfo info, int id) {
+        for (CFGBuilder.CFGNode node : info.allNodes) {
+            if (node.id == id) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("No node " + id);
+    }
+
+    private static List<Integer> ids(Set<CFGBuilder.CFGNode> nodes) {
+        List<Integer> ids = new ArrayList<>();
+        if (nodes != null) {
+            for (CFGBuilder.CFGNode node : nodes) {
+                ids.add(node.id);
+            }
+            Collections.sort(ids);
+        }
+        return ids;
+    }
+}
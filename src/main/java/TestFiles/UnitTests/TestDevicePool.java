@@ -0,0 +1,110 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+/*
+ * Unit tests for the caching device memory pool of tensor.h.
+ *
+ * This includes:
+ * - Generated code allocating and releasing device buffers through the pool
+ * - Hits, misses, peak bytes and outstanding blocks with the host memory backend
+ * - A tensor declared in a host loop reusing its buffer in every iteration
+ *
+ * The C++ tests are compiled with g++ against the CPU emulation of the CUDA
+ * runtime, and skipped when g++ or the headers can't be found.
+ */
+
+public class TestDevicePool {
+    private static final String LOOP_PROGRAM =
+            "func: int main() {\n" +
+            "    int k = 0;\n" +
+            "    int total = 0;\n" +
+            "    while (k < 5) do {\n" +
+            "        vector[int, 4] v = {1, 2, 3, 4};\n" +
+            "        defer[(i, 4)] {\n" +
+            "            v[i] = v[i] * k;\n" +
+            "        }\n" +
+            "        total = total + v[3];\n" +
+            "        k = k + 1;\n" +
+            "    }\n" +
+            "    return total;\n" +
+            "}\n";
+
+    // Sizes are rounded up to 1024 and 256 bytes, the second allocation of 1024 is a hit
+    private static final String STATS_DRIVER =
+            "#include <cstdio>\n" +
+            "#include \"tensor.h\"\n" +
+            "int main() {\n" +
+            "    DevicePool pool(HOST_MEMORY_BACKEND);\n" +
+            "    void* a = pool.allocate(1000);\n" +
+            "    pool.release(a);\n" +
+            "    void* b = pool.allocate(900);\n" +
+            "    void* c = pool.allocate(100);\n" +
+            "    DevicePoolStats inUse = pool.stats();\n" +
+            "    pool.release(b);\n" +
+            "    pool.release(c);\n" +
+            "    DevicePoolStats s = pool.stats();\n" +
+            "    std::printf(\"reused=%d hits=%ld misses=%ld peak=%zu outstanding=%ld/%ld cached=%zu rate=%.2f\\n\",\n" +
+            "                a == b, s.hits, s.misses, s.peakBytes, inUse.outstandingBlocks, s.outstandingBlocks,\n" +
+            "                s.cachedBytes, s.hitRate());\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    private static final String LOOP_DRIVER =
+            "#include <cstdio>\n" +
+            "#define main bolt_main\n" +
+            "#include \"a.cu\"\n" +
+            "#undef main\n" +
+            "int main() {\n" +
+            "    int result = bolt_main();\n" +
+            "    DevicePoolStats s = bolt_device_pool().stats();\n" +
+            "    std::printf(\"result=%d hits=%ld misses=%ld outstanding=%ld\\n\", result, s.hits, s.misses,\n" +
+            "                s.outstandingBlocks);\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestDevicePool...");
+
+        GeneratedProgram program = TestPrograms.compile(LOOP_PROGRAM);
+
+        testPooledAllocation(program);  //no cudaMalloc or cudaFree left in the host code
+        testPoolStatistics();           //counters after a hit and two misses
+        testLoopReuse(program);         //five iterations, one real allocation
+    }
+
+    static void testPooledAllocation(GeneratedProgram program) {
+        String host = program.hostCode;
+        if (host.contains("int* device_v_data = static_cast<int*>(bolt_device_pool().allocate(v.components.size() * sizeof(int)));")
+                && host.contains("bolt_device_pool().release(device_v_data);")
+                && !host.contains("cudaMalloc") && !host.contains("cudaFree")) {
+            System.out.println(" testPooledAllocation passed");
+        } else {
+            System.out.println(" testPooledAllocation failed | device buffers bypass the pool:\n" + host);
+        }
+    }
+
+    static void testPoolStatistics() {
+        String expected = "reused=1 hits=1 misses=2 peak=1280 outstanding=2/0 cached=1280 rate=0.33";
+        NativeRun run = NativeRun.run("testPoolStatistics", null, STATS_DRIVER, NativeRun.Target.EMULATED_CUDA);
+        if (run == null) return;
+
+        if (run.output.trim().equals(expected)) {
+            System.out.println(" testPoolStatistics passed");
+        } else {
+            System.out.println(" testPoolStatistics failed | expected " + expected + ", got " + run.output.trim());
+        }
+    }
+
+    static void testLoopReuse(GeneratedProgram program) {
+        String expected = "result=40 hits=4 misses=1 outstanding=0";
+        NativeRun run = NativeRun.run("testLoopReuse", program, LOOP_DRIVER, NativeRun.Target.EMULATED_CUDA);
+        if (run == null) return;
+
+        if (run.output.trim().equals(expected)) {
+            System.out.println(" testLoopReuse passed");
+        } else {
+            System.out.println(" testLoopReuse failed | expected " + expected + ", got " + run.output.trim());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+/*
+ * Unit tests for keeping tensors on the device between kernels.
+ *
+ * This includes:
+ * - Consecutive defers on the same tensor without copies between them
+ * - Copies hoisted out of a host loop that runs kernels
+ * - Downloads only before host code that reads the tensor
+ * - No download for a tensor nothing reads afterwards
+ */
+
+public class TestDeviceResidency {
+    private static final String UPLOAD_X = "cudaMemcpyAsync(device_x_data, x.getData()";
+    private static final String DOWNLOAD_X = "cudaMemcpyAsync(x.getData(), device_x_data";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestDeviceResidency...");
+
+        testConsecutiveDefers();    //one upload before the first kernel, one download before the return
+        testLoopHoisting();         //the loop body has no copies at all
+        testHostReadBetween();      //the host read downloads, the next kernel doesn't upload again
+        testDeadAfterBranch();      //a tensor written in one branch and never read isn't downloaded
+    }
+
+    static void testConsecutiveDefers() throws Exception {
+        String host = TestPrograms.compile("func: int main() {\n"
+                + "    vector[int, 4] x = {1, 2, 3, 4};\n"
+                + "    defer[(i, 4)] {\n"
+                + "        x[i] = x[i] + 1;\n"
+                + "    }\n"
+                + "    defer[(i, 2)] {\n"
+                + "        x[i] = x[i] * 2;\n"
+                + "    }\n"
+                + "    return x[0];\n"
+                + "}\n").hostCode;
+
+        int launchA = host.indexOf("BOLT_LAUNCH(main_A,");
+        int launchB = host.indexOf("BOLT_LAUNCH(main_B,");
+        if (count(host, UPLOAD_X) == 1 && count(host, DOWNLOAD_X) == 1 && host.indexOf(UPLOAD_X) < launchA
+                && host.indexOf(DOWNLOAD_X) > launchB && count(host, "int* device_x_data = static_cast<int*>(bolt_device_pool().allocate(") == 1
+                && count(host, "bolt_device_pool().release(device_x_data);") == 1) {
+            System.out.println(" testConsecutiveDefers passed");
+        } else {
+            System.out.println(" testConsecutiveDefers failed | unexpected transfers:\n" + host);
+        }
+    }
+
+    static void testLoopHoisting() throws Exception {
+        GeneratedProgram program = TestPrograms.compile("func: int main() {\n"
+                + "    vector[int, 4] x = {1, 2, 3, 4};\n"
+                + "    int k = 0;\n"
+                + "    while (k < 100) do {\n"
+                + "        defer[(i, 4)] {\n"
+                + "            x[i] = x[i] + k;\n"
+                + "        }\n"
+                + "        k = k + 1;\n"
+                + "    }\n"
+                + "    return x[3];\n"
+                + "}\n");
+        String host = program.hostCode;
+
+        int loop = host.indexOf("while(");
+        int loopEnd = host.indexOf("}\n", host.indexOf("k = k + 1;"));
+        String body = host.substring(loop, loopEnd);
+        if (host.indexOf(UPLOAD_X) < loop && host.indexOf(DOWNLOAD_X) > loopEnd && !body.contains("cudaMemcpy")
+                && program.transferCount == 2) {
+            System.out.println(" testLoopHoisting passed");
+        } else {
+            System.out.println(" testLoopHoisting failed | unexpected transfers:\n" + host);
+        }
+    }
+
+    static void testHostReadBetween() throws Exception {
+        String host = TestPrograms.compile("func: int main() {\n"
+                + "    vector[int, 4] x = {1, 2, 3, 4};\n"
+                + "    vector[int, 4] y = {0, 0, 0, 0};\n"
+                + "    defer[(i, 4)] {\n"
+                + "        x[i] = x[i] + 1;\n"
+                + "    }\n"
+                + "    int first = x[0];\n"
+                + "    defer[(i, 4)] {\n"
+                + "        y[i] = x[i] * first;\n"
+                + "    }\n"
+                + "    return y[1];\n"
+                + "}\n").hostCode;
+
+        int read = host.indexOf("int first = x.access({0});");
+        if (count(host, UPLOAD_X) == 1 && count(host, DOWNLOAD_X) == 1 && host.indexOf(DOWNLOAD_X) < read
+                && host.indexOf(DOWNLOAD_X) > host.indexOf("BOLT_LAUNCH(main_A,")
+                && !host.contains("cudaMemcpyAsync(device_y_data")) {
+            System.out.println(" testHostReadBetween passed");
+        } else {
+            System.out.println(" testHostReadBetween failed | unexpected transfers:\n" + host);
+        }
+    }
+
+    static void testDeadAfterBranch() throws Exception {
+        String host = TestPrograms.compile("func: int main() {\n"
+                + "    vector[int, 4] x = {1, 2, 3, 4};\n"
+                + "    int k = 2;\n"
+                + "    if (k > 1) then {\n"
+                + "        defer[(i, 4)] {\n"
+                + "            x[i] = x[i] + 1;\n"
+                + "        }\n"
+                + "    } else {\n"
+                + "        k = 0;\n"
+                + "    }\n"
+                + "    return k;\n"
+                + "}\n").hostCode;
+
+        if (count(host, UPLOAD_X) == 1 && count(host, DOWNLOAD_X) == 0 && host.contains("bolt_device_pool().release(device_x_data);")) {
+            System.out.println(" testDeadAfterBranch passed");
+        } else {
+            System.out.println(" testDeadAfterBranch failed | unexpected transfers:\n" + host);
+        }
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,200 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import Interpreter.ExecutionError;
+import Interpreter.Interpreter;
+import Interpreter.Tensor;
+import Transpiler.GeneratedProgram;
+import boltparser.CompilerPipeline;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Unit tests for running BOLT programs on the JVM with the Interpreter.
+ *
+ * This includes:
+ * - Recursive functions, loops and the int/double arithmetic of C++
+ * - Defer blocks split across a ForkJoinPool with the same results as in order,
+ *   including their reductions into scalars of the host
+ * - Tensors passed and assigned by value
+ * - Errors of the running program, like an index out of bounds
+ * - The same result as the OpenMP output of the program compiled with g++
+ *   (skipped when g++ or tensor.h can't be found)
+ */
+
+public class TestInterpreter {
+    private static final String FUNCTIONS =
+            "func: int factorial(int n) {\n" +
+            "    int result = 1;\n" +
+            "    int counter = 1;\n" +
+            "    while (counter <= n) do {\n" +
+            "        result = result * counter;\n" +
+            "        counter = counter + 1;\n" +
+            "    }\n" +
+            "    return result;\n" +
+            "}\n" +
+            "func: int fibonacci(int n) {\n" +
+            "    int result = 0;\n" +
+            "    if (n <= 1) then {\n" +
+            "        result = n;\n" +
+            "    } else {\n" +
+            "        int prev1 = fibonacci(n - 1);\n" +
+            "        int prev2 = fibonacci(n - 2);\n" +
+            "        result = prev1 + prev2;\n" +
+            "    }\n" +
+            "    return result;\n" +
+            "}\n" +
+            "func: double average(int a, int b, int c) {\n" +
+            "    int sum = a + b + c;\n" +
+            "    double count = 3.0;\n" +
+            "    return sum / count;\n" +
+            "}\n" +
+            "func: int mixed(int a, int b) {\n" +
+            "    return a / b + a % b * 100 + -a / b * 10000;\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    private static final String PROGRAM = MatmulProgram.RUN + MatmulProgram.NORM + MatmulProgram.MAIN;
+
+    private static final String VALUES =
+            "func: int clear(vector[int, 3] v) {\n" +
+            "    v[0] = 0;\n" +
+            "    return v[0];\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    vector[int, 3] a = {1, 2, 3};\n" +
+            "    vector[int, 3] b = a;\n" +
+            "    b[1] = 20;\n" +
+            "    int cleared = clear(a);\n" +
+            "    matrix[int, 2, 2] m = {{1, 2}, {3, 4}};\n" +
+            "    return a[0] * 1000 + a[1] * 100 + b[1] + cleared + m[1, 0] * 10000;\n" +
+            "}\n";
+
+    private static final String OUT_OF_BOUNDS =
+            "func: int main() {\n" +
+            "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+            "    defer[(i, 5)] {\n" +
+            "        a[i] = i;\n" +
+            "    }\n" +
+            "    return a[0];\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestInterpreter...");
+
+        Prog program = TestPrograms.parse(PROGRAM);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            testScalarFunctions();              //recursion, loops and C++ arithmetic
+            testParallelDefers(program, pool);  //same result with and without the pool
+            testDoubleReduction(program, pool); //the same rounding with any number of threads
+            testTensorValues();                 //copies on assignment and calls
+            testExecutionErrors(pool);          //index out of bounds in a defer block
+            testGeneratedCode(program);         //same result as the OpenMP output
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static void testScalarFunctions() throws Exception {
+        Interpreter interpreter = new Interpreter(TestPrograms.parse(FUNCTIONS));
+        Object factorial = interpreter.call("factorial", 10);
+        Object fibonacci = interpreter.call("fibonacci", 20);
+        Object average = interpreter.call("average", 10, 20, 31);
+        Object mixed = interpreter.call("mixed", 47, 5);
+        // test.bolt of the repository if the test runs inside it
+        File testFile = NativeRun.findFile("test.bolt");
+        Object testBolt = testFile != null ? new Interpreter(TestPrograms.parse(Files.readString(testFile.toPath()))).call("main") : 13;
+        int expectedMixed = 47 / 5 + 47 % 5 * 100 + -47 / 5 * 10000;
+        if (factorial.equals(3628800) && fibonacci.equals(6765) && average.equals(61 / 3.0)
+                && mixed.equals(expectedMixed) && testBolt.equals(13)) {
+            System.out.println(" testScalarFunctions passed");
+        } else {
+            System.out.println(" testScalarFunctions failed | got " + factorial + ", " + fibonacci + ", " + average
+                    + ", " + mixed + " and " + testBolt);
+        }
+    }
+
+    static void testParallelDefers(Prog program, ForkJoinPool pool) {
+        Object sequential = new Interpreter(program).call("run", MatmulProgram.arguments());
+        Object parallel = new Interpreter(program, pool).call("run", MatmulProgram.arguments());
+        int expected = MatmulProgram.reference();
+        if (sequential.equals(expected) && parallel.equals(expected)) {
+            System.out.println(" testParallelDefers passed");
+        } else {
+            System.out.println(" testParallelDefers failed | expected " + expected + ", got " + sequential
+                    + " in order and " + parallel + " in parallel");
+        }
+    }
+
+    static void testDoubleReduction(Prog program, ForkJoinPool pool) {
+        Tensor c = MatmulProgram.normArgument();
+        ForkJoinPool two = new ForkJoinPool(2);
+        try {
+            Object sequential = new Interpreter(program).call("norm", c);
+            Object four = new Interpreter(program, pool).call("norm", c);
+            Object twoThreads = new Interpreter(program, two).call("norm", c);
+            double sum = 0;
+            for (int v : c.ints) sum += v * 0.1;
+            if (sequential.equals(four) && sequential.equals(twoThreads) && Math.abs((Double) sequential - sum) < 1e-6) {
+                System.out.println(" testDoubleReduction passed");
+            } else {
+                System.out.println(" testDoubleReduction failed | " + sequential + ", " + four + " and " + twoThreads
+                        + ", expected about " + sum);
+            }
+        } finally {
+            two.shutdown();
+        }
+    }
+
+    static void testTensorValues() throws Exception {
+        Tensor v = Tensor.ofInts(new int[]{5, 6, 7}, 3);
+        Interpreter interpreter = new Interpreter(TestPrograms.parse(VALUES));
+        Object cleared = interpreter.call("clear", v);
+        Object result = interpreter.call("main");
+        // a is unchanged by b[1] = 20 and by clear(a)
+        if (cleared.equals(0) && v.ints[0] == 5 && result.equals(30000 + 1000 + 200 + 20 + 0)) {
+            System.out.println(" testTensorValues passed");
+        } else {
+            System.out.println(" testTensorValues failed | got " + cleared + " and " + result + ", argument now " + v);
+        }
+    }
+
+    static void testExecutionErrors(ForkJoinPool pool) throws Exception {
+        try {
+            Object result = new Interpreter(TestPrograms.parse(OUT_OF_BOUNDS), pool).call("main");
+            System.out.println(" testExecutionErrors failed | returned " + result);
+        } catch (ExecutionError e) {
+            if (e.getMessage().contains("Index 4 out of bounds")) {
+                System.out.println(" testExecutionErrors passed");
+            } else {
+                System.out.println(" testExecutionErrors failed | " + e.getMessage());
+            }
+        }
+    }
+
+    static void testGeneratedCode(Prog program) {
+        try {
+            Object interpreted = new Interpreter(program).call("run", MatmulProgram.arguments());
+
+            CompilerPipeline pipeline = new CompilerPipeline();
+            pipeline.setOpenMP(true);
+            GeneratedProgram generated = TestPrograms.compile(PROGRAM, pipeline);
+            NativeRun run = NativeRun.run("testGeneratedCode", generated, MatmulProgram.OPENMP_DRIVER,
+                    NativeRun.Target.OPENMP);
+            if (run == null) return;
+
+            String output = run.output.trim();
+            if (output.equals("result=" + interpreted)) {
+                System.out.println(" testGeneratedCode passed");
+            } else {
+                System.out.println(" testGeneratedCode failed | interpreted " + interpreted + ", compiled " + output);
+            }
+        } catch (Exception e) {
+            System.out.println(" testGeneratedCode failed | " + e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import Interpreter.ExecutionError;
+import Interpreter.Interpreter;
+import Interpreter.Tensor;
+import JvmCompiler.CompiledProgram;
+import JvmCompiler.JvmCompiler;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Unit tests for compiling BOLT programs to JVM bytecode with the JvmCompiler.
+ *
+ * This includes:
+ * - The same results as the Interpreter for functions, defer blocks and
+ *   reductions, in order and on a ForkJoinPool
+ * - Double reductions rounded like the Interpreter's with any number of threads
+ * - Tensors passed and assigned by value
+ * - Errors of the running program as ExecutionErrors
+ * - Defer methods on the component arrays with a counted inner loop
+ * - A recursive function running much faster than in the Interpreter
+ * (skipped when there is no Java compiler)
+ */
+
+public class TestJvmCompiler {
+    private static final String FUNCTIONS =
+            "func: int factorial(int n) {\n" +
+            "    int result = 1;\n" +
+            "    int counter = 1;\n" +
+            "    while (counter <= n) do {\n" +
+            "        result = result * counter;\n" +
+            "        counter = counter + 1;\n" +
+            "    }\n" +
+            "    return result;\n" +
+            "}\n" +
+            "func: int fibonacci(int n) {\n" +
+            "    int result = 0;\n" +
+            "    if (n <= 1) then {\n" +
+            "        result = n;\n" +
+            "    } else {\n" +
+            "        int prev1 = fibonacci(n - 1);\n" +
+            "        int prev2 = fibonacci(n - 2);\n" +
+            "        result = prev1 + prev2;\n" +
+            "    }\n" +
+            "    return result;\n" +
+            "}\n" +
+            "func: double average(int a, int b, int c) {\n" +
+            "    int sum = a + b + c;\n" +
+            "    double count = 3.0;\n" +
+            "    return sum / count;\n" +
+            "}\n" +
+            "func: int mixed(int a, int b) {\n" +
+            "    return a / b + a % b * 100 + -a / b * 10000;\n" +
+            "}\n" +
+            "func: int shadowed(int n) {\n" +
+            "    int x = n;\n" +
+            "    if (n > 0) then {\n" +
+            "        int x = n * 2;\n" +
+            "        n = x;\n" +
+            "    }\n" +
+            "    return x + n;\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    private static final String PROGRAM = MatmulProgram.RUN + MatmulProgram.NORM + MatmulProgram.MAIN;
+
+    private static final String VALUES =
+            "func: int clear(vector[int, 3] v) {\n" +
+            "    v[0] = 0;\n" +
+            "    return v[0];\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    vector[int, 3] a = {1, 2, 3};\n" +
+            "    vector[int, 3] b = a;\n" +
+            "    b[1] = 20;\n" +
+            "    int cleared = clear(a);\n" +
+            "    matrix[int, 2, 2] m = {{1, 2}, {3, 4}};\n" +
+            "    vector[int, 2] r = {5, 6};\n" +
+            "    matrix[int, 2, 2] s = {r, r};\n" +
+            "    return a[0] * 1000 + a[1] * 100 + b[1] + cleared + m[1, 0] * 10000 + s[1, 1] * 100000;\n" +
+            "}\n";
+
+    private static final String ERRORS =
+            "func: int outOfBounds() {\n" +
+            "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+            "    defer[(i, 5)] {\n" +
+            "        a[i] = i;\n" +
+            "    }\n" +
+            "    return a[0];\n" +
+            "}\n" +
+            "func: int divide(int a, int b) {\n" +
+            "    return a / b;\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestJvmCompiler...");
+
+        if (javax.tools.ToolProvider.getSystemJavaCompiler() == null) {
+            System.out.println(" testJvmCompiler skipped | no Java compiler, the tests need a JDK");
+            return;
+        }
+        Prog program = TestPrograms.parse(PROGRAM);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            testScalarFunctions();              //same results as the Interpreter
+            testParallelDefers(program, pool);  //same result with and without the pool
+            testDoubleReduction(program, pool); //the Interpreter's rounding with any number of threads
+            testTensorValues();                 //copies on assignment and calls
+            testExecutionErrors(pool);          //index out of bounds and division by zero
+            testGeneratedSource(program);       //defer methods on the component arrays
+            testCompiledSpeed();                //recursion without the interpreter's overhead
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static void testScalarFunctions() throws Exception {
+        Prog prog = TestPrograms.parse(FUNCTIONS);
+        CompiledProgram compiled = JvmCompiler.compile(prog, null);
+        Interpreter interpreter = new Interpreter(prog);
+        Object[][] calls = {{"factorial", 10}, {"fibonacci", 20}, {"average", 10, 20, 31}, {"mixed", 47, 5},
+                {"mixed", -47, 5}, {"shadowed", 3}, {"shadowed", -3}};
+        for (Object[] call : calls) {
+            Object[] arguments = java.util.Arrays.copyOfRange(call, 1, call.length);
+            Object expected = interpreter.call((String) call[0], arguments);
+            Object actual = compiled.call((String) call[0], arguments);
+            if (!expected.equals(actual)) {
+                System.out.println(" testScalarFunctions failed | " + call[0] + " returned " + actual
+                        + ", the Interpreter " + expected);
+                return;
+            }
+        }
+        System.out.println(" testScalarFunctions passed");
+    }
+
+    static void testParallelDefers(Prog program, ForkJoinPool pool) throws Exception {
+        Object interpreted = new Interpreter(program).call("run", MatmulProgram.arguments());
+        Object sequential = JvmCompiler.compile(program, null).call("run", MatmulProgram.arguments());
+        Object parallel = JvmCompiler.compile(program, pool).call("run", MatmulProgram.arguments());
+        if (interpreted.equals(sequential) && interpreted.equals(parallel)) {
+            System.out.println(" testParallelDefers passed");
+        } else {
+            System.out.println(" testParallelDefers failed | interpreted " + interpreted + ", compiled " + sequential
+                    + " in order and " + parallel + " in parallel");
+        }
+    }
+
+    static void testDoubleReduction(Prog program, ForkJoinPool pool) throws Exception {
+        Tensor c = MatmulProgram.normArgument();
+        ForkJoinPool two = new ForkJoinPool(2);
+        try {
+            Object interpreted = new Interpreter(program, pool).call("norm", c);
+            Object sequential = JvmCompiler.compile(program, null).call("norm", c);
+            Object four = JvmCompiler.compile(program, pool).call("norm", c);
+            Object twoThreads = JvmCompiler.compile(program, two).call("norm", c);
+            if (interpreted.equals(sequential) && interpreted.equals(four) && interpreted.equals(twoThreads)) {
+                System.out.println(" testDoubleReduction passed");
+            } else {
+                System.out.println(" testDoubleReduction failed | interpreted " + interpreted + ", compiled "
+                        + sequential + ", " + four + " and " + twoThreads);
+            }
+        } finally {
+            two.shutdown();
+        }
+    }
+
+    static void testTensorValues() throws Exception {
+        Tensor v = Tensor.ofInts(new int[]{5, 6, 7}, 3);
+        Prog prog = TestPrograms.parse(VALUES);
+        CompiledProgram compiled = JvmCompiler.compile(prog, null);
+        Object cleared = compiled.call("clear", v);
+        Object result = compiled.call("main");
+        Object expected = new Interpreter(prog).call("main");
+        // a is unchanged by b[1] = 20 and by clear(a)
+        if (cleared.equals(0) && v.ints[0] == 5 && result.equals(expected)) {
+            System.out.println(" testTensorValues passed");
+        } else {
+            System.out.println(" testTensorValues failed | got " + cleared + " and " + result + ", expected "
+                    + expected + ", argument now " + v);
+        }
+    }
+
+    static void testExecutionErrors(ForkJoinPool pool) throws Exception {
+        CompiledProgram compiled = JvmCompiler.compile(TestPrograms.parse(ERRORS), pool);
+        String outOfBounds = error(compiled, "outOfBounds");
+        String division = error(compiled, "divide", 1, 0);
+        String shape = error(JvmCompiler.compile(TestPrograms.parse(VALUES), pool), "clear", Tensor.ofInts(new int[]{1, 2}, 2));
+        if (outOfBounds.contains("Index 4 out of bounds") && division.equals("Division by zero")
+                && shape.contains("extent 3")) {
+            System.out.println(" testExecutionErrors passed");
+        } else {
+            System.out.println(" testExecutionErrors failed | " + outOfBounds + ", " + division + " and " + shape);
+        }
+    }
+
+    static void testGeneratedSource(Prog program) throws Exception {
+        String source = JvmCompiler.generate(program);
+        if (source.contains("private static Object[] run_defer0(long bolt_start, long bolt_end, int bolt_n0, int bolt_n1, Tensor v_A, int[] v_A_data)")
+                && source.contains("for (int v_k = bolt_first; v_k < bolt_last; v_k++) {")
+                && source.contains("v_A_data[v_i * 21 + v_k]")
+                && source.contains("public static int f_run(Tensor v_A, Tensor v_B, Tensor v_C, Tensor v_a)")) {
+            System.out.println(" testGeneratedSource passed");
+        } else {
+            System.out.println(" testGeneratedSource failed | generated\n" + source);
+        }
+    }
+
+    static void testCompiledSpeed() throws Exception {
+        Prog prog = TestPrograms.parse(FUNCTIONS);
+        CompiledProgram compiled = JvmCompiler.compile(prog, null);
+        Interpreter interpreter = new Interpreter(prog);
+
+        long start = System.nanoTime();
+        Object interpreted = interpreter.call("fibonacci", 24);
+        long interpreterTime = System.nanoTime() - start;
+
+        Object result = null;
+        long compiledTime = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            start = System.nanoTime();
+            result = compiled.call("fibonacci", 24);
+            compiledTime = Math.min(compiledTime, System.nanoTime() - start);
+        }
+        // Far apart on any machine, so the test doesn't depend on its speed
+        if (interpreted.equals(result) && compiledTime * 5 < interpreterTime) {
+            System.out.println(" testCompiledSpeed passed");
+        } else {
+            System.out.println(" testCompiledSpeed failed | fibonacci(24) took " + compiledTime / 1000 + " us compiled and "
+                    + interpreterTime / 1000 + " us interpreted, results " + result + " and " + interpreted);
+        }
+    }
+
+    // The message of the ExecutionError of a call, or what it returned
+    private static String error(CompiledProgram compiled, String name, Object... args) {
+        try {
+            return "returned " + compiled.call(name, args);
+        } catch (ExecutionError e) {
+            return e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+import boltparser.Main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Unit tests for the fusion of adjacent defer blocks into one kernel.
+ *
+ * This includes:
+ * - Elementwise defers over the same iteration space fused into one launch
+ * - A dead intermediate tensor replaced by a local of the kernel
+ * - An intermediate that is read afterwards kept as a tensor
+ * - No fusion when a thread reads an element another thread wrote
+ * - No fusion over different iteration spaces
+ * - Type errors reported by Main before any defers are fused
+ */
+
+public class TestKernelFusion {
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestKernelFusion...");
+
+        testFusedPipeline();        //b = a * 2 and c = b + 1 become one kernel without b
+        testLiveIntermediate();     //b is returned, so the kernel still stores it
+        testNeighbourRead();        //c[i] = b[3 - i] needs b from other threads
+        testDifferentSpaces();      //defers over 4 and 2 threads stay apart
+        testTypeErrorsFirst();      //Main checks the program as written, then analyzes it
+    }
+
+    static String pipeline(String second, String result) {
+        return "func: int main() {\n"
+                + "    vector[int, 4] a = {1, 2, 3, 4};\n"
+                + "    vector[int, 4] b = {0, 0, 0, 0};\n"
+                + "    vector[int, 4] c = {0, 0, 0, 0};\n"
+                + "    defer[(i, 4)] {\n"
+                + "        b[i] = a[i] * 2;\n"
+                + "    }\n"
+                + second
+                + "    return " + result + ";\n"
+                + "}\n";
+    }
+
+    static void testFusedPipeline() throws Exception {
+        GeneratedProgram program = TestPrograms.compile(pipeline("    defer[(i, 4)] {\n        c[i] = b[i] + 1;\n    }\n", "c[3]"));
+        String kernels = program.kernelsHeader;
+
+        if (program.kernelCount == 1 && kernels.contains("int b_elem = a_data[i] * 2;")
+                && kernels.contains("c_data[i] = b_elem + 1;") && !kernels.contains("b_data")
+                && !program.hostCode.contains("device_b_data")) {
+            System.out.println(" testFusedPipeline passed");
+        } else {
+            System.out.println(" testFusedPipeline failed | kernels: " + program.kernelCount + "\n" + kernels);
+        }
+    }
+
+    static void testLiveIntermediate() throws Exception {
+        GeneratedProgram program = TestPrograms.compile(pipeline("    defer[(i, 4)] {\n        c[i] = b[i] + 1;\n    }\n", "c[3] + b[2]"));
+        String kernels = program.kernelsHeader;
+
+        if (program.kernelCount == 1 && kernels.contains("b_data[i] = a_data[i] * 2;")
+                && kernels.contains("c_data[i] = b_data[i] + 1;")
+                && program.hostCode.contains("cudaMemcpyAsync(b.getData(), device_b_data")) {
+            System.out.println(" testLiveIntermediate passed");
+        } else {
+            System.out.println(" testLiveIntermediate failed | b is not kept:\n" + kernels);
+        }
+    }
+
+    static void testNeighbourRead() throws Exception {
+        GeneratedProgram program = TestPrograms.compile(pipeline("    defer[(i, 4)] {\n        c[i] = b[3 - i];\n    }\n", "c[0]"));
+
+        if (program.kernelCount == 2) {
+            System.out.println(" testNeighbourRead passed");
+        } else {
+            System.out.println(" testNeighbourRead failed | kernels: " + program.kernelCount + "\n" + program.kernelsHeader);
+        }
+    }
+
+    static void testDifferentSpaces() throws Exception {
+        GeneratedProgram program = TestPrograms.compile(pipeline("    defer[(i, 2)] {\n        c[i] = b[i] + 1;\n    }\n", "c[1]"));
+
+        if (program.kernelCount == 2 && program.kernelsHeader.contains("b_data[i] = a_data[i] * 2;")) {
+            System.out.println(" testDifferentSpaces passed");
+        } else {
+            System.out.println(" testDifferentSpaces failed | kernels: " + program.kernelCount + "\n" + program.kernelsHeader);
+        }
+    }
+
+    static void testTypeErrorsFirst() throws Exception {
+        File dir = Files.createTempDirectory("bolt-fusion").toFile();
+        File file = new File(dir, "prog.bolt");
+        String source = pipeline("    defer[(i, 4)] {\n        c[i] = b[i] * 1.5;\n    }\n", "c[3]");
+        Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+        System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8));
+        try {
+            Main.main(new String[]{"--trace", file.getPath()});
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        String trace = out.toString(StandardCharsets.UTF_8);
+        String errors = err.toString(StandardCharsets.UTF_8);
+
+        // The CFG trace would show the fused defers, it must not be printed for a program with type errors
+        if (errors.contains("Cannot assign double to tensor element of type int")
+                && !trace.contains("=== Control Flow Graph ===") && !new File(dir, "prog.cu").exists()) {
+            System.out.println(" testTypeErrorsFirst passed");
+        } else {
+            System.out.println(" testTypeErrorsFirst failed | the program was analyzed before its type errors were reported");
+        }
+    }
+}
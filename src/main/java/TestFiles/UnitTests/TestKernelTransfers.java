@@ -0,0 +1,111 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+/*
+ * Unit tests for the memory transfers around a kernel.
+ *
+ * This includes:
+ * - Tensors the kernel only reads are not copied back, and are const in the kernel
+ * - Tensors the kernel overwrites completely are only allocated, not uploaded
+ * - Tensors the kernel writes only partly are still uploaded
+ * - Tensors written over a range named by a size variable are still uploaded,
+ *   the variable may have changed since the tensor was declared
+ */
+
+public class TestKernelTransfers {
+    private static final String PROGRAM =
+            "func: int main() {\n" +
+            "    vector[int, 4] src = {1, 2, 3, 4};\n" +
+            "    vector[int, 4] dst = {0, 0, 0, 0};\n" +
+            "    vector[int, 4] part = {0, 0, 0, 0};\n" +
+            "    defer[(i, 4)] {\n" +
+            "        dst[i] = src[i] * 2;\n" +
+            "        if (i < 2) then {\n" +
+            "            part[i] = src[i];\n" +
+            "        } else {\n" +
+            "        }\n" +
+            "    }\n" +
+            "    return dst[0] + part[0];\n" +
+            "}\n";
+
+    // c keeps 8 elements after n becomes 4, so the kernel only writes half of it
+    private static final String RESIZED =
+            "func: int main() {\n" +
+            "    int n = 8;\n" +
+            "    vector[int, n] c;\n" +
+            "    int k = 0;\n" +
+            "    while (k < n) do {\n" +
+            "        c[k] = 2;\n" +
+            "        k = k + 1;\n" +
+            "    }\n" +
+            "    n = 4;\n" +
+            "    defer[(i, n)] {\n" +
+            "        c[i] = 1;\n" +
+            "    }\n" +
+            "    return c[7];\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestKernelTransfers...");
+
+        GeneratedProgram program = TestPrograms.compile(PROGRAM);
+
+        testReadOnly(program);      //src goes up but not back
+        testWriteOnly(program);     //dst comes back but isn't uploaded
+        testPartialWrite(program);  //part keeps the elements the kernel doesn't write
+        testResizedExtent();        //a range of n doesn't cover a tensor declared with n
+    }
+
+    static void testReadOnly(GeneratedProgram program) {
+        boolean signature = program.kernelsHeader.contains("const int* __restrict__ src_data, TensorShape src_shape");
+        boolean upload = program.hostCode.contains("cudaMemcpyAsync(device_src_data, src.getData()");
+        boolean download = program.hostCode.contains("cudaMemcpyAsync(src.getData()");
+        boolean freed = program.hostCode.contains("bolt_device_pool().release(device_src_data);");
+
+        if (signature && upload && !download && freed) {
+            System.out.println(" testReadOnly passed");
+        } else {
+            System.out.println(" testReadOnly failed | signature " + signature + ", upload " + upload
+                    + ", download " + download + ", freed " + freed);
+        }
+    }
+
+    static void testWriteOnly(GeneratedProgram program) {
+        boolean allocated = program.hostCode.contains("int* device_dst_data = static_cast<int*>(bolt_device_pool().allocate(");
+        boolean upload = program.hostCode.contains("cudaMemcpyAsync(device_dst_data, dst.getData()");
+        boolean download = program.hostCode.contains("cudaMemcpyAsync(dst.getData()");
+
+        if (allocated && !upload && download && program.kernelsHeader.contains("int* dst_data, TensorShape dst_shape")
+                && !program.kernelsHeader.contains("const int* __restrict__ dst_data")) {
+            System.out.println(" testWriteOnly passed");
+        } else {
+            System.out.println(" testWriteOnly failed | allocated " + allocated + ", upload " + upload
+                    + ", download " + download);
+        }
+    }
+
+    static void testPartialWrite(GeneratedProgram program) {
+        boolean upload = program.hostCode.contains("cudaMemcpyAsync(device_part_data, part.getData()");
+        boolean download = program.hostCode.contains("cudaMemcpyAsync(part.getData()");
+
+        // src up, dst down, part up and down
+        if (upload && download && program.transferCount == 4) {
+            System.out.println(" testPartialWrite passed");
+        } else {
+            System.out.println(" testPartialWrite failed | upload " + upload + ", download " + download
+                    + ", transfers " + program.transferCount);
+        }
+    }
+
+    static void testResizedExtent() throws Exception {
+        GeneratedProgram program = TestPrograms.compile(RESIZED);
+        boolean upload = program.hostCode.contains("cudaMemcpyAsync(device_c_data, c.getData()");
+
+        if (upload) {
+            System.out.println(" testResizedExtent passed");
+        } else {
+            System.out.println(" testResizedExtent failed | c is not uploaded, the elements from n = 4 on would be lost");
+        }
+    }
+}
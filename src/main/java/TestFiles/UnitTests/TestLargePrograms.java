@@ -0,0 +1,147 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import AbstractSyntax.Statements.Block;
+import SemanticAnalysis.TypeChecker;
+import Transpiler.GeneratedProgram;
+import Transpiler.Transpiler;
+import boltparser.AstPrinter;
+import boltparser.CompilerPipeline;
+import boltparser.CompilerStats;
+import boltparser.Main;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Unit tests for compiling very long programs.
+ *
+ * This includes:
+ * - A straight-line function with tens of thousands of statements
+ * - A program with thousands of functions
+ * - Printing the CFG of the long function with --trace
+ *
+ * Every phase (type checking, CFG, code generation, printing) must get
+ * through them without overflowing the stack.
+ */
+
+public class TestLargePrograms {
+    private static final int STATEMENTS = 50_000;
+    private static final int FUNCTIONS = 5_000;
+
+    public static void main(String[] args) {
+        System.out.println(" Running TestLargePrograms...");
+
+        testLongFunction();       //one function body becomes one flat block
+        testManyFunctions();      //prototypes and checking walk the function chain
+        testTracedLongFunction(); //--trace prints the CFG of a long function
+    }
+
+    static void testLongFunction() {
+        try {
+            Prog prog = parse(longFunction());
+            GeneratedProgram program = compileAll(prog);
+            boolean flat = prog.func.funcBody instanceof Block block && block.stmts.size() == STATEMENTS;
+
+            if (flat && program.hostCode.contains("x = x + 6;")) {
+                System.out.println(" testLongFunction passed");
+            } else {
+                System.out.println(" testLongFunction failed | body is not one block of " + STATEMENTS + " statements");
+            }
+        } catch (StackOverflowError e) {
+            System.out.println(" testLongFunction failed | stack overflow");
+        } catch (Exception e) {
+            System.out.println(" testLongFunction failed | " + e);
+        }
+    }
+
+    static void testManyFunctions() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < FUNCTIONS; i++) {
+            source.append("func: int f").append(i).append("(int x) {\n    return x + ").append(i).append(";\n}\n");
+        }
+        source.append("func: int main() {\n    return f").append(FUNCTIONS - 1).append("(1);\n}\n");
+
+        try {
+            GeneratedProgram program = compileAll(parse(source.toString()));
+
+            if (program.hostCode.contains("int f" + (FUNCTIONS - 1) + "(int x);")) {
+                System.out.println(" testManyFunctions passed");
+            } else {
+                System.out.println(" testManyFunctions failed | prototype of the last function is missing");
+            }
+        } catch (StackOverflowError e) {
+            System.out.println(" testManyFunctions failed | stack overflow");
+        } catch (Exception e) {
+            System.out.println(" testManyFunctions failed | " + e);
+        }
+    }
+
+    static void testTracedLongFunction() {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        try {
+            File dir = Files.createTempDirectory("bolt-large").toFile();
+            File file = new File(dir, "long.bolt");
+            Files.write(file.toPath(), longFunction().getBytes(StandardCharsets.UTF_8));
+
+            System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+            try {
+                Main.main(new String[]{"--trace", file.getPath()});
+            } finally {
+                System.setOut(stdout);
+            }
+
+            String trace = captured.toString(StandardCharsets.UTF_8);
+            if (trace.contains("Node ID: " + STATEMENTS) && new File(dir, "long.cu").exists()) {
+                System.out.println(" testTracedLongFunction passed");
+            } else {
+                System.out.println(" testTracedLongFunction failed | the CFG trace or long.cu is missing");
+            }
+        } catch (StackOverflowError e) {
+            System.out.println(" testTracedLongFunction failed | stack overflow");
+        } catch (Exception e) {
+            System.out.println(" testTracedLongFunction failed | " + e);
+        }
+    }
+
+    //main with STATEMENTS statements in a row
+    private static String longFunction() {
+        StringBuilder source = new StringBuilder("func: int main() {\n    int x = 0;\n");
+        for (int i = 1; i < STATEMENTS; i++) {
+            source.append("    x = x + ").append(i % 7).append(";\n");
+        }
+        source.append("    return x;\n}\n");
+        return source.toString();
+    }
+
+    private static Prog parse(String source) {
+        Parser parser = new Parser(Scanner.forSource(source));
+        parser.Parse();
+        return parser.mainNode;
+    }
+
+    //Runs every tree walk: whole-program checking, the pipeline, the printer and the statistics
+    private static GeneratedProgram compileAll(Prog prog) throws Exception {
+        TypeChecker checker = new TypeChecker();
+        checker.check(prog);
+        new AstPrinter().printProgram(prog);
+        CompilerStats stats = new CompilerStats();
+        stats.countProgram(prog);
+
+        CompilerPipeline.Result result = new CompilerPipeline().compile(prog);
+        if (result.hasErrors()) {
+            throw new IllegalStateException("Type errors: " + result.errors);
+        }
+        GeneratedProgram program = new Transpiler(checker.getGlobalEnvironment(), null).generate(prog);
+        if (!program.hostCode.equals(result.program.hostCode)) {
+            throw new IllegalStateException("Pipeline and Transpiler disagree");
+        }
+        return program;
+    }
+}
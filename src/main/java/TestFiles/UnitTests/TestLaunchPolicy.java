@@ -0,0 +1,199 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import Transpiler.GeneratedProgram;
+import Transpiler.LaunchPolicy;
+import Transpiler.OccupancyLaunchPolicy;
+import Transpiler.TuningTable;
+import boltparser.CompilationCache;
+import boltparser.CompilerPipeline;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.stream.Collectors;
+
+/*
+ * Unit tests for the launch policies that choose kernel block shapes.
+ *
+ * The launch configurations of the generated code are compared with golden
+ * copies. This includes:
+ * - Blocks of the default policy shaped to tall, skinny and unknown iteration spaces
+ * - Block shapes taken from a tuning table, the default for kernels not in it
+ * - A recorded table written to a file and read back
+ * - Errors in a table file reported with their line
+ * - The launch policy as part of the compilation cache key
+ */
+
+public class TestLaunchPolicy {
+    private static final String PROGRAM =
+            "func: int tall(matrix[int, 4096, 4] M) {\n" +
+            "    defer[(i, 4096), (j, 4)] {\n" +
+            "        M[i, j] = M[i, j] * 2;\n" +
+            "    }\n" +
+            "    return M[0, 0];\n" +
+            "}\n" +
+            "func: int scale(tensor[int, 4, n, 2] T, int n) {\n" +
+            "    defer[(i, 4), (j, n)] {\n" +
+            "        T[i, j, 1] = T[i, j, 0] * 2;\n" +
+            "    }\n" +
+            "    return T[0, 0, 0];\n" +
+            "}\n" +
+            "func: int cube(tensor[int, k, k, k] C, int k) {\n" +
+            "    defer[(i, k), (j, k), (l, k)] {\n" +
+            "        C[i, j, l] = C[i, j, l] + 1;\n" +
+            "    }\n" +
+            "    return C[0, 0, 0];\n" +
+            "}\n" +
+            "func: int small(vector[int, 1000] w) {\n" +
+            "    defer[(i, 1000)] {\n" +
+            "        w[i] = w[i] * 3;\n" +
+            "    }\n" +
+            "    return w[1];\n" +
+            "}\n";
+
+    private static final String GOLDEN_OCCUPANCY =
+            "dim3 blockShape_tall_A(128, 1);\n" +
+            "dim3 amountOfBlocks_tall_A(32, 4);\n" +
+            "dim3 blockShape_scale_A(1, 256);\n" +
+            "dim3 amountOfBlocks_scale_A(4, (n + 255) / 256);\n" +
+            "dim3 blockShape_cube_A(8, 8, 4);\n" +
+            "dim3 amountOfBlocks_cube_A((k + 7) / 8, (k + 7) / 8, (k + 3) / 4);\n" +
+            "dim3 blockShape_small_A(32);\n" +
+            "dim3 amountOfBlocks_small_A(32);\n";
+
+    private static final String TABLE =
+            "# tuned on a test run\n" +
+            "tall_A(int[2]) 4096x4 32x4\n" +
+            "scale_A(int[3],int) 4xn 4x64   # the whole first axis in one block\n" +
+            "small_A(int[1]) 2000 64\n";
+
+    private static final String GOLDEN_TABLE =
+            "dim3 blockShape_tall_A(32, 4);\n" +
+            "dim3 amountOfBlocks_tall_A(128, 1);\n" +
+            "dim3 blockShape_scale_A(4, 64);\n" +
+            "dim3 amountOfBlocks_scale_A(1, (n + 63) / 64);\n" +
+            "dim3 blockShape_cube_A(8, 8, 4);\n" +
+            "dim3 amountOfBlocks_cube_A((k + 7) / 8, (k + 7) / 8, (k + 3) / 4);\n" +
+            "dim3 blockShape_small_A(32);\n" +
+            "dim3 amountOfBlocks_small_A(32);\n";
+
+    private static final String GOLDEN_RECORDED =
+            "# <kernel signature> <problem size> <block shape>\n" +
+            "cube_A(int[3],int) kxkxk 8x8x4\n" +
+            "scale_A(int[3],int) 4xn 1x256\n" +
+            "small_A(int[1]) 1000 32\n" +
+            "tall_A(int[2]) 4096x4 32x4\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestLaunchPolicy...");
+
+        testOccupancyLaunches();    //default block shapes follow the iteration spaces
+        testTableLaunches();        //tall_A and scale_A from the table, small_A's entry is for another size
+        testRecordedTable();        //every kernel of the program written to the table
+        testInvalidTable();         //a block shape with too many threads
+        testPolicyInCacheKey();     //another table gives other cache keys
+    }
+
+    static void testOccupancyLaunches() throws Exception {
+        String launches = launches(compile(new OccupancyLaunchPolicy()));
+        if (launches.equals(GOLDEN_OCCUPANCY)) {
+            System.out.println(" testOccupancyLaunches passed");
+        } else {
+            System.out.println(" testOccupancyLaunches failed | launches differ from the golden copy:\n" + launches);
+        }
+    }
+
+    static void testTableLaunches() throws Exception {
+        String launches = launches(compile(table(TABLE)));
+        if (launches.equals(GOLDEN_TABLE)) {
+            System.out.println(" testTableLaunches passed");
+        } else {
+            System.out.println(" testTableLaunches failed | launches differ from the golden copy:\n" + launches);
+        }
+    }
+
+    static void testRecordedTable() throws Exception {
+        TuningTable table = new TuningTable(new OccupancyLaunchPolicy());
+        table.put("tall_A(int[2])", "4096x4", new int[]{32, 4});
+        table.setRecording(true);
+        compile(table);
+
+        File file = new File(Files.createTempDirectory("bolt_tuning").toFile(), "launch.table");
+        table.write(file);
+        String written = Files.readString(file.toPath());
+        TuningTable loaded = TuningTable.load(file, new OccupancyLaunchPolicy());
+        int[] scale = loaded.lookup("scale_A(int[3],int)", "4xn");
+
+        if (!written.equals(GOLDEN_RECORDED)) {
+            System.out.println(" testRecordedTable failed | table differs from the golden copy:\n" + written);
+        } else if (scale == null || scale[0] != 1 || scale[1] != 256) {
+            System.out.println(" testRecordedTable failed | scale_A not read back");
+        } else {
+            System.out.println(" testRecordedTable passed");
+        }
+    }
+
+    static void testInvalidTable() throws Exception {
+        try {
+            table("tall_A(int[2]) 4096x4 64x4\ntall_A(int[2]) 4096x4 64x32\n");
+            System.out.println(" testInvalidTable failed | no error for 2048 threads per block");
+        } catch (IOException e) {
+            if (e.getMessage().contains(":2: block shape 64x32")) {
+                System.out.println(" testInvalidTable passed");
+            } else {
+                System.out.println(" testInvalidTable failed | unexpected error: " + e.getMessage());
+            }
+        }
+    }
+
+    static void testPolicyInCacheKey() throws Exception {
+        File dir = Files.createTempDirectory("bolt_tuning_cache").toFile();
+        CompilationCache cache = new CompilationCache(dir);
+
+        compile(new OccupancyLaunchPolicy(), cache);
+        String tuned = launches(compile(table(TABLE), cache));
+        String retuned = launches(compile(table(TABLE), cache));
+
+        if (cache.getHits() == 4 && tuned.equals(GOLDEN_TABLE) && retuned.equals(GOLDEN_TABLE)) {
+            System.out.println(" testPolicyInCacheKey passed");
+        } else {
+            System.out.println(" testPolicyInCacheKey failed | hits: " + cache.getHits() + ", misses: "
+                    + cache.getMisses() + "\n" + tuned);
+        }
+    }
+
+    // The launch configuration lines of the host code
+    private static String launches(GeneratedProgram program) {
+        return program.hostCode.lines()
+                .filter(line -> line.startsWith("dim3 "))
+                .map(line -> line + "\n")
+                .collect(Collectors.joining());
+    }
+
+    private static TuningTable table(String contents) throws IOException {
+        File file = File.createTempFile("bolt_tuning", ".table");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), contents);
+        return TuningTable.load(file, new OccupancyLaunchPolicy());
+    }
+
+    private static GeneratedProgram compile(LaunchPolicy policy) throws Exception {
+        return compile(policy, null);
+    }
+
+    private static GeneratedProgram compile(LaunchPolicy policy, CompilationCache cache) throws Exception {
+        Parser parser = new Parser(Scanner.forSource(PROGRAM));
+        parser.Parse();
+        Prog prog = parser.mainNode;
+        CompilerPipeline pipeline = new CompilerPipeline(null, cache);
+        pipeline.setLaunchPolicy(policy);
+        CompilerPipeline.Result result = pipeline.compile(prog);
+        if (result.hasErrors()) {
+            throw new IllegalStateException("Type errors: " + result.errors);
+        }
+        return result.program;
+    }
+}
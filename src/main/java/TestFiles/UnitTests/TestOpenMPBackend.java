@@ -0,0 +1,109 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+import boltparser.CompilationCache;
+import boltparser.CompilerPipeline;
+import java.io.File;
+import java.nio.file.Files;
+
+/*
+ * Unit tests for the C++ backend with OpenMP loops instead of CUDA kernels.
+ *
+ * This includes:
+ * - Every defer block as one parallel loop nest over its iteration space,
+ *   collapsed when it has more than one dimension
+ * - Reductions of the body as reduction clauses of the loop
+ * - A single .cpp file without CUDA, also when taken from a cache that
+ *   holds the CUDA code of the same functions
+ * - The program compiled with g++ -fopenmp and run, with the result compared
+ *   to the one computed in Java (skipped when g++ or tensor.h can't be found)
+ */
+
+public class TestOpenMPBackend {
+    private static final String PROGRAM = MatmulProgram.RUN + MatmulProgram.MAIN;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestOpenMPBackend...");
+
+        CompilerPipeline pipeline = new CompilerPipeline();
+        pipeline.setOpenMP(true);
+        GeneratedProgram program = TestPrograms.compile(PROGRAM, pipeline);
+
+        testLoopNests(program);         //a parallel loop nest per defer block
+        testReductionClauses(program);  //dot, lo and allSmall reduced by OpenMP
+        testHostOnlyOutput(program);    //one .cpp file that doesn't need CUDA
+        testSeparateCacheEntries();     //CUDA code in the cache isn't used for OpenMP
+        testReferenceRun(program);      //same result as computed here
+    }
+
+    static void testLoopNests(GeneratedProgram program) {
+        String code = program.hostCode;
+        if (code.contains("#pragma omp parallel for collapse(2)\nfor(int i = 0; i < 37; i++) {\nfor(int j = 0; j < 45; j++) {\n")
+                && code.contains("#pragma omp parallel for\nfor(int i = 0; i < 1000; i++) {\na_data[i] = ")
+                && code.contains("acc = acc + A_data[i * 21 + k] * B_data[k * 45 + j];")
+                && code.contains("const int* A_data = A.getData();") && code.contains("int* C_data = C.getData();")) {
+            System.out.println(" testLoopNests passed");
+        } else {
+            System.out.println(" testLoopNests failed | unexpected loops:\n" + code);
+        }
+    }
+
+    static void testReductionClauses(GeneratedProgram program) {
+        String code = program.hostCode;
+        if (code.contains("#pragma omp parallel for reduction(&&:allSmall) reduction(+:dot) reduction(min:lo)\n")
+                && code.contains("#pragma omp parallel for collapse(2) reduction(+:total)\n")
+                && code.contains("lo = bolt_min(lo, a_data[i]);") && !code.contains("_partials")) {
+            System.out.println(" testReductionClauses passed");
+        } else {
+            System.out.println(" testReductionClauses failed | missing reduction clauses:\n" + code);
+        }
+    }
+
+    static void testHostOnlyOutput(GeneratedProgram program) {
+        try {
+            File dir = Files.createTempDirectory("bolt_openmp_output").toFile();
+            program.write(new File(dir, "a").getPath());
+            String code = program.hostCode;
+            if (program.hostOnly && program.kernelCount == 0 && program.transferCount == 0
+                    && new File(dir, "a.cpp").isFile() && !new File(dir, "a.cu").exists() && !new File(dir, "kernels.h").exists()
+                    && code.contains("#define BOLT_HOST_ONLY\n#include \"tensor.h\"") && !code.contains("cuda")
+                    && !code.contains("kernels.h") && !code.contains("BOLT_LAUNCH")) {
+                System.out.println(" testHostOnlyOutput passed");
+            } else {
+                System.out.println(" testHostOnlyOutput failed | output needs CUDA:\n" + code);
+            }
+        } catch (Exception e) {
+            System.out.println(" testHostOnlyOutput failed | " + e);
+        }
+    }
+
+    static void testSeparateCacheEntries() {
+        try {
+            File cacheDir = Files.createTempDirectory("bolt_openmp_cache").toFile();
+            TestPrograms.compile(PROGRAM, new CompilerPipeline(null, new CompilationCache(cacheDir)));
+            CompilerPipeline pipeline = new CompilerPipeline(null, new CompilationCache(cacheDir));
+            pipeline.setOpenMP(true);
+            String code = TestPrograms.compile(PROGRAM, pipeline).hostCode;
+            if (code.contains("#pragma omp parallel for") && !code.contains("BOLT_LAUNCH")) {
+                System.out.println(" testSeparateCacheEntries passed");
+            } else {
+                System.out.println(" testSeparateCacheEntries failed | CUDA code taken from the cache:\n" + code);
+            }
+        } catch (Exception e) {
+            System.out.println(" testSeparateCacheEntries failed | " + e);
+        }
+    }
+
+    static void testReferenceRun(GeneratedProgram program) {
+        NativeRun run = NativeRun.run("testReferenceRun", program, MatmulProgram.OPENMP_DRIVER,
+                NativeRun.Target.OPENMP);
+        if (run == null) return;
+
+        String expected = "result=" + MatmulProgram.reference();
+        if (run.output.trim().equals(expected)) {
+            System.out.println(" testReferenceRun passed");
+        } else {
+            System.out.println(" testReferenceRun failed | expected " + expected + ", got " + run.output.trim());
+        }
+    }
+}
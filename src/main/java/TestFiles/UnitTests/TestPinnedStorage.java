@@ -0,0 +1,97 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+/*
+ * Unit tests for page-locked storage of tensors that are copied to the device.
+ *
+ * This includes:
+ * - Tensors used by a defer pinned, host-only tensors left pageable
+ * - The host waiting for an upload before it overwrites the pinned copy
+ * - The allocator of tensor.h: copies keep their memory, assignments keep their own
+ *
+ * The C++ tests are compiled with g++ against the CPU emulation of the CUDA
+ * runtime, and skipped when g++ or the headers can't be found.
+ */
+
+public class TestPinnedStorage {
+    private static final String PROGRAM =
+            "func: int main() {\n" +
+            "    vector[int, 4] x = {1, 2, 3, 4};\n" +
+            "    vector[int, 4] y = {0, 0, 0, 0};\n" +
+            "    vector[int, 4] z = {5, 6, 7, 8};\n" +
+            "    defer[(i, 4)] {\n" +
+            "        y[i] = x[i] * 2;\n" +
+            "    }\n" +
+            "    x[0] = 100;\n" +
+            "    return y[0] + x[0] + z[1];\n" +
+            "}\n";
+    private static final int EXPECTED_RESULT = 108; // y[0] = 1 * 2, uploaded before x[0] changed
+
+    private static final String ALLOCATOR_DRIVER =
+            "#include <cstdio>\n" +
+            "#include \"tensor.h\"\n" +
+            "int main() {\n" +
+            "    IntTensor pinned = IntTensor({1, 2, 3}, {3}, pinned_tensor_allocator<int>());\n" +
+            "    IntTensor pageable = IntTensor({4, 5, 6}, {3});\n" +
+            "    IntTensor copy = pinned;\n" +
+            "    pinned = pageable + pageable;\n" +
+            "    pageable.pin();\n" +
+            "    bool pinnedKept = pinned.components.get_allocator() == pinned_tensor_allocator<int>();\n" +
+            "    bool copyPinned = copy.components.get_allocator() == pinned_tensor_allocator<int>();\n" +
+            "    bool pinMoved = pageable.components.get_allocator() == pinned_tensor_allocator<int>();\n" +
+            "    std::printf(\"kept=%d copy=%d pin=%d values=%d,%d,%d blocks=%ld\\n\", pinnedKept, copyPinned, pinMoved,\n" +
+            "                pinned.access({0}), copy.access({2}), pageable.access({1}),\n" +
+            "                bolt_pinned_pool().stats().outstandingBlocks);\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestPinnedStorage...");
+
+        GeneratedProgram program = TestPrograms.compile(PROGRAM);
+
+        testResidentPinned(program);        //x and y are pinned, z never leaves the host
+        testWaitBeforeOverwrite(program);   //x[0] = 100 waits for the upload of x
+        testTensorAllocator();              //allocator of copies and assignments
+    }
+
+    static void testResidentPinned(GeneratedProgram program) {
+        String host = program.hostCode;
+        if (host.contains("x.pin();") && host.contains("y.pin();") && !host.contains("z.pin();")) {
+            System.out.println(" testResidentPinned passed");
+        } else {
+            System.out.println(" testResidentPinned failed | unexpected pinned tensors:\n" + host);
+        }
+    }
+
+    static void testWaitBeforeOverwrite(GeneratedProgram program) {
+        String host = program.hostCode;
+        int write = host.indexOf("x.setAt({0}, 100);");
+        int wait = host.lastIndexOf("cudaEventSynchronize(event_x);", write);
+        if (wait < host.indexOf("BOLT_LAUNCH(main_A,")) {
+            System.out.println(" testWaitBeforeOverwrite failed | no wait before the host write:\n" + host);
+            return;
+        }
+
+        NativeRun run = NativeRun.run("testWaitBeforeOverwrite", program, null, NativeRun.Target.EMULATED_CUDA);
+        if (run == null) return;
+        if (run.exitCode == EXPECTED_RESULT) {
+            System.out.println(" testWaitBeforeOverwrite passed");
+        } else {
+            System.out.println(" testWaitBeforeOverwrite failed | returned " + run.exitCode + ", expected " + EXPECTED_RESULT);
+        }
+    }
+
+    static void testTensorAllocator() {
+        String expected = "kept=1 copy=1 pin=1 values=8,3,5 blocks=3";
+        NativeRun run = NativeRun.run("testTensorAllocator", null, ALLOCATOR_DRIVER, NativeRun.Target.EMULATED_CUDA);
+        if (run == null) return;
+
+        if (run.output.trim().equals(expected)) {
+            System.out.println(" testTensorAllocator passed");
+        } else {
+            System.out.println(" testTensorAllocator failed | expected " + expected + ", got " + run.output.trim());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import SemanticAnalysis.TypeChecker;
+import Transpiler.GeneratedProgram;
+import boltparser.CompilerPipeline;
+import boltparser.Parser;
+import boltparser.Scanner;
+import java.util.List;
+
+/*
+ * Parses and compiles the BOLT programs of the unit tests. A program that
+ * doesn't parse or type check throws, so a broken test program shows its
+ * errors instead of failing the test on wrong output.
+ */
+
+final class TestPrograms {
+    private TestPrograms() {
+    }
+
+    // The generated code of source, compiled by a new CompilerPipeline
+    static GeneratedProgram compile(String source) throws Exception {
+        return compile(source, new CompilerPipeline());
+    }
+
+    static GeneratedProgram compile(String source, CompilerPipeline pipeline) throws Exception {
+        CompilerPipeline.Result result = pipeline.compile(syntaxTree(source));
+        if (result.hasErrors()) {
+            throw new IllegalStateException("Type errors: " + result.errors);
+        }
+        return result.program;
+    }
+
+    // The errors of compiling source, empty if there are none
+    static List<String> errors(String source) throws Exception {
+        return new CompilerPipeline().compile(syntaxTree(source)).errors;
+    }
+
+    // The syntax tree of source, for the Interpreter and the JvmCompiler, after it passed the type checker
+    static Prog parse(String source) throws Exception {
+        Prog prog = syntaxTree(source);
+        TypeChecker checker = new TypeChecker();
+        try {
+            checker.check(prog);
+        } catch (RuntimeException e) {
+            if (!checker.hasErrors()) throw e;
+            // check() only counts the errors, the checker has the messages
+            throw new IllegalStateException("Type errors: " + checker.getErrors(), e);
+        }
+        return prog;
+    }
+
+    private static Prog syntaxTree(String source) throws Exception {
+        Parser parser = new Parser(Scanner.forSource(source));
+        parser.Parse();
+        if (parser.hasErrors() || parser.mainNode == null) {
+            throw new IllegalStateException("Syntax errors in\n" + source);
+        }
+        return parser.mainNode;
+    }
+}
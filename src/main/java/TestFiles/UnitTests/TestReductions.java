@@ -0,0 +1,234 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+import java.util.List;
+
+/*
+ * Unit tests for reductions of defer blocks into scalars of the host.
+ *
+ * This includes:
+ * - The kernel of a dot product: a value per thread, a tree in shared memory
+ *   and a result per block
+ * - The results of the blocks folded into the host's value
+ * - Assignments to host scalars that aren't reductions, reads of a reduced
+ *   scalar and reductions of the wrong type reported by the type checker
+ * - Scalars declared in the defer block assigned as before
+ * - Functions named like the built-ins min and max rejected
+ * - Every operator run against the CPU emulation of the CUDA runtime, with the
+ *   results compared to a reference computed here (skipped when g++ or the
+ *   headers can't be found)
+ */
+
+public class TestReductions {
+    private static final int N = 1000, ROWS = 37, COLS = 45;
+
+    // Sizes that are no multiple of the block shape, and host values that aren't the identities
+    private static final String PROGRAM =
+            "func: int run(vector[int, 1000] a, vector[int, 1000] b, matrix[double, 37, 45] m) {\n" +
+            "    defer[(i, 1000)] {\n" +
+            "        a[i] = (i * 7) % 13 - 6;\n" +
+            "        b[i] = (i * 5) % 11 - 5;\n" +
+            "    }\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        m[i, j] = 0.5 * i - 0.25 * j;\n" +
+            "    }\n" +
+            "    int dot = 3;\n" +
+            "    int lo = 100;\n" +
+            "    int hi = -100;\n" +
+            "    bool allSmall = true;\n" +
+            "    bool anyZero = false;\n" +
+            "    int prod = 2;\n" +
+            "    defer[(i, 1000)] {\n" +
+            "        dot = dot + a[i] * b[i];\n" +
+            "        lo = min(lo, a[i] - b[i]);\n" +
+            "        hi = max(b[i] * 2, hi);\n" +
+            "        allSmall = allSmall && a[i] < 7;\n" +
+            "        anyZero = (a[i] == 0) || anyZero;\n" +
+            "        if (i < 5) then {\n" +
+            "            prod = prod * (i + 1);\n" +
+            "        }\n" +
+            "    }\n" +
+            "    double norm = 0.0;\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        norm = norm + m[i, j] * m[i, j];\n" +
+            "    }\n" +
+            "    int flags = 0;\n" +
+            "    if (allSmall) then {\n" +
+            "        flags = flags + 1;\n" +
+            "    }\n" +
+            "    if (anyZero) then {\n" +
+            "        flags = flags + 2;\n" +
+            "    }\n" +
+            "    int large = 0;\n" +
+            "    if (norm > 85000.0) then {\n" +
+            "        large = 1;\n" +
+            "    }\n" +
+            "    return dot + lo * 1000 + hi * 100000 + flags * 10000000 + prod * 100000000 + large;\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    private static final String DRIVER =
+            "#include <cstdio>\n" +
+            "#define main bolt_main\n" +
+            "#include \"a.cu\"\n" +
+            "#undef main\n" +
+            "int main() {\n" +
+            "    IntTensor a(std::vector<int>(1000), {1000});\n" +
+            "    IntTensor b(std::vector<int>(1000), {1000});\n" +
+            "    DoubleTensor m(std::vector<double>(37 * 45), {37, 45});\n" +
+            "    std::printf(\"result=%d\\n\", run(a, b, m));\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestReductions...");
+
+        GeneratedProgram program = TestPrograms.compile(PROGRAM);
+
+        testReductionKernel(program);   //dot, lo, hi, ... reduced in shared memory
+        testHostCombine(program);       //results of the blocks combined with the host's values
+        testInvalidReductions();        //lost assignments, reads and wrong types rejected
+        testLocalAssignments();         //a scalar of the kernel needs no reduction
+        testBuiltinNames();             //functions can't be named min or max
+        testReferenceRun(program);      //same results as computed on the CPU
+    }
+
+    static void testReductionKernel(GeneratedProgram program) {
+        String kernel = kernel(program.kernelsHeader, "run_C");
+        if (kernel.contains("int* dot_partials") && kernel.contains("\tint dot = 0;\n")
+                && kernel.contains("\tint lo = INT_MAX;\n") && kernel.contains("\tbool allSmall = true;\n")
+                && kernel.contains("bool bolt_active = i < 1000;") && !kernel.contains("return;")
+                && kernel.contains("__shared__ int dot_reduce[")
+                && kernel.contains("dot_reduce[bolt_thread] = dot_reduce[bolt_thread] + dot_reduce[bolt_thread + bolt_half];")
+                && kernel.contains("lo_reduce[bolt_thread] = bolt_min(lo_reduce[bolt_thread], lo_reduce[bolt_thread + bolt_half]);")
+                && kernel.contains("dot_partials[blockIdx.x + blockIdx.y * gridDim.x + blockIdx.z * gridDim.x * gridDim.y] = dot_reduce[0];")) {
+            System.out.println(" testReductionKernel passed");
+        } else {
+            System.out.println(" testReductionKernel failed | unexpected kernel:\n" + kernel);
+        }
+    }
+
+    static void testHostCombine(GeneratedProgram program) {
+        String host = program.hostCode.toString();
+        if (host.contains("int bolt_blocks_run_C = amountOfBlocks_run_C.x * amountOfBlocks_run_C.y * amountOfBlocks_run_C.z;")
+                && host.contains("dot = dot + host_run_C_dot_partials[bolt_block];")
+                && host.contains("hi = bolt_max(hi, host_run_C_hi_partials[bolt_block]);")
+                && host.contains("norm = norm + host_run_D_norm_partials[bolt_block];")
+                && host.contains("bolt_device_pool().release(device_run_C_dot_partials);")) {
+            System.out.println(" testHostCombine passed");
+        } else {
+            System.out.println(" testHostCombine failed | partials not combined:\n" + host);
+        }
+    }
+
+    static void testInvalidReductions() throws Exception {
+        String[][] cases = {
+                {"s = a[i];", "can only be updated as a reduction"},
+                {"s = s + a[i];\n        a[i] = s;", "can't read it"},
+                {"s = s + a[i];\n        s = s * 2;", "reduced with both + and *"},
+                {"s = a[i] - s;", "can only be updated as a reduction"},
+                {"s = s && a[i] > 0;", "Reduction with && needs a bool"},
+        };
+        for (String[] c : cases) {
+            String source =
+                    "func: int main() {\n" +
+                    "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+                    "    int s = 0;\n" +
+                    "    defer[(i, 4)] {\n" +
+                    "        " + c[0] + "\n" +
+                    "    }\n" +
+                    "    return s;\n" +
+                    "}\n";
+            List<String> errors = TestPrograms.errors(source);
+            if (errors.stream().noneMatch(e -> e.contains(c[1]))) {
+                System.out.println(" testInvalidReductions failed | no error \"" + c[1] + "\" for " + c[0] + ": " + errors);
+                return;
+            }
+        }
+        System.out.println(" testInvalidReductions passed");
+    }
+
+    static void testLocalAssignments() throws Exception {
+        String source =
+                "func: int main() {\n" +
+                "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+                "    defer[(i, 4)] {\n" +
+                "        int t = 0;\n" +
+                "        t = a[i] * 2;\n" +
+                "        a[i] = t;\n" +
+                "    }\n" +
+                "    return a[0];\n" +
+                "}\n";
+        GeneratedProgram program = TestPrograms.compile(source);
+        String kernels = program.kernelsHeader.toString();
+        if (!kernels.contains("_partials") && !kernels.contains("__shared__") && kernels.contains("if(i >= 4) return;")) {
+            System.out.println(" testLocalAssignments passed");
+        } else {
+            System.out.println(" testLocalAssignments failed | unexpected reduction:\n" + kernels);
+        }
+    }
+
+    static void testBuiltinNames() throws Exception {
+        String source =
+                "func: int max(int a, int b) {\n" +
+                "    int r = a + b;\n" +
+                "    return r;\n" +
+                "}\n" +
+                "func: int main() {\n" +
+                "    return max(3, 4);\n" +
+                "}\n";
+        List<String> errors = TestPrograms.errors(source);
+        if (errors.stream().anyMatch(e -> e.contains("Function name is a built-in") && e.contains("max"))) {
+            System.out.println(" testBuiltinNames passed");
+        } else {
+            System.out.println(" testBuiltinNames failed | max was accepted: " + errors);
+        }
+    }
+
+    static void testReferenceRun(GeneratedProgram program) {
+        NativeRun run = NativeRun.run("testReferenceRun", program, DRIVER, NativeRun.Target.EMULATED_CUDA);
+        if (run == null) return;
+
+        String expected = "result=" + reference();
+        if (run.output.trim().equals(expected)) {
+            System.out.println(" testReferenceRun passed");
+        } else {
+            System.out.println(" testReferenceRun failed | expected " + expected + ", got " + run.output.trim());
+        }
+    }
+
+    // PROGRAM computed on the CPU, one element after the other
+    private static int reference() {
+        int dot = 3, lo = 100, hi = -100, prod = 2;
+        boolean allSmall = true, anyZero = false;
+        for (int i = 0; i < N; i++) {
+            int a = (i * 7) % 13 - 6;
+            int b = (i * 5) % 11 - 5;
+            dot += a * b;
+            lo = Math.min(lo, a - b);
+            hi = Math.max(b * 2, hi);
+            allSmall = allSmall && a < 7;
+            anyZero = a == 0 || anyZero;
+            if (i < 5) prod *= i + 1;
+        }
+        double norm = 0.0;
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                double m = 0.5 * i - 0.25 * j;
+                norm += m * m;
+            }
+        }
+        int flags = (allSmall ? 1 : 0) + (anyZero ? 2 : 0);
+        return dot + lo * 1000 + hi * 100000 + flags * 10000000 + prod * 100000000 + (norm > 85000.0 ? 1 : 0);
+    }
+
+    private static String kernel(CharSequence kernels, String name) {
+        String code = kernels.toString();
+        int start = code.indexOf("__global__ void " + name + "(");
+        if (start < 0) return "";
+        int end = code.indexOf("__global__", start + 1);
+        return end < 0 ? code.substring(start) : code.substring(start, end);
+    }
+}
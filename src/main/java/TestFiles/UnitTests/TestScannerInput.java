@@ -0,0 +1,128 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import boltparser.CompilerPipeline;
+import boltparser.Parser;
+import boltparser.Scanner;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Unit tests for the scanner's input sources.
+ *
+ * This includes:
+ * - Scanning a String, a StringBuilder and a slice of a char array
+ * - Scanning a memory-mapped file, with and without a UTF-8 byte order mark
+ * - A source larger than the scanner's 64KB file window
+ *
+ * Every source must compile to the same code as reading the file.
+ */
+
+public class TestScannerInput {
+    private static final String PROGRAM =
+            "func: int main() {\r\n" +
+            "    // comment\r\n" +
+            "    vector[int, 4] a = {1, 2, 3, 4};\r\n" +
+            "    defer[(i, 4)] {\r\n" +
+            "        a[i] = a[i] + 1; /* block\r\n comment */\r\n" +
+            "    }\r\n" +
+            "    return a[0];\r\n" +
+            "}\r\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestScannerInput...");
+
+        String expected = compile(new Scanner(write(PROGRAM, false).getPath()));
+
+        testString(expected);           //String and StringBuilder sources
+        testCharArraySlice(expected);   //only the given range of the array is scanned
+        testMappedFile(expected);       //mapped file with and without byte order mark
+        testLargeSource();              //source longer than one 64KB window
+    }
+
+    static void testString(String expected) throws Exception {
+        String fromString = compile(Scanner.forSource(PROGRAM));
+        String fromBuilder = compile(Scanner.forSource(new StringBuilder(PROGRAM)));
+        String withMark = compile(Scanner.forSource("\uFEFF" + PROGRAM));
+
+        if (expected.equals(fromString) && expected.equals(fromBuilder) && expected.equals(withMark)) {
+            System.out.println(" testString passed");
+        } else {
+            System.out.println(" testString failed | output differs from scanning the file");
+        }
+    }
+
+    static void testCharArraySlice(String expected) throws Exception {
+        String padded = "garbage" + PROGRAM + "garbage";
+        char[] chars = padded.toCharArray();
+        String fromSlice = compile(Scanner.forSource(chars, "garbage".length(), PROGRAM.length()));
+
+        if (expected.equals(fromSlice)) {
+            System.out.println(" testCharArraySlice passed");
+        } else {
+            System.out.println(" testCharArraySlice failed | output differs from scanning the file");
+        }
+    }
+
+    static void testMappedFile(String expected) throws Exception {
+        String mapped = compile(Scanner.forMappedFile(write(PROGRAM, false).getPath()));
+        String mappedWithMark = compile(Scanner.forMappedFile(write(PROGRAM, true).getPath()));
+
+        if (expected.equals(mapped) && expected.equals(mappedWithMark)) {
+            System.out.println(" testMappedFile passed");
+        } else {
+            System.out.println(" testMappedFile failed | output differs from scanning the file");
+        }
+    }
+
+    static void testLargeSource() throws Exception {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; source.length() < 200_000; i++) {
+            source.append("func: int f").append(i).append("(int x) {\n")
+                    .append("    /* padding padding padding padding padding padding */\n")
+                    .append("    return x * ").append(i).append(" + 1;\n")
+                    .append("}\n");
+        }
+        source.append(PROGRAM);
+        File file = write(source.toString(), false);
+
+        String fromFile = compile(new Scanner(file.getPath()));
+        String mapped = compile(Scanner.forMappedFile(file.getPath()));
+        String fromString = compile(Scanner.forSource(source));
+
+        if (fromFile.equals(mapped) && fromFile.equals(fromString) && fromFile.contains("f999(")) {
+            System.out.println(" testLargeSource passed");
+        } else {
+            System.out.println(" testLargeSource failed | sources longer than 64KB are scanned differently");
+        }
+    }
+
+    private static String compile(Scanner scanner) throws Exception {
+        Parser parser = new Parser(scanner);
+        parser.Parse();
+        if (parser.hasErrors()) {
+            return "parse errors";
+        }
+        Prog prog = parser.mainNode;
+        CompilerPipeline.Result result = new CompilerPipeline().compile(prog);
+        return result.hasErrors() ? "type errors " + result.errors : result.program.hostCode + result.program.kernelsHeader;
+    }
+
+    private static File write(String source, boolean byteOrderMark) throws Exception {
+        File file = File.createTempFile("bolt-scanner", ".bolt");
+        file.deleteOnExit();
+        byte[] text = source.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = text;
+        if (byteOrderMark) {
+            bytes = new byte[text.length + 3];
+            bytes[0] = (byte) 0xEF;
+            bytes[1] = (byte) 0xBB;
+            bytes[2] = (byte) 0xBF;
+            System.arraycopy(text, 0, bytes, 3, text.length);
+        }
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+}
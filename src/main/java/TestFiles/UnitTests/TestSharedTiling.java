@@ -0,0 +1,167 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+/*
+ * Unit tests for shared memory tiles of matmul- and stencil-shaped defer bodies.
+ *
+ * This includes:
+ * - A loop accumulating a[i, k] * b[k, j] reading both from tiles loaded per step of k
+ * - Reads at offsets from the thread variables served from a tile with a halo
+ * - Other access patterns left reading global memory
+ * - The tiled program run against the CPU emulation of the CUDA runtime, with the
+ *   result compared to a reference computed here (skipped when g++ or the headers
+ *   can't be found)
+ */
+
+public class TestSharedTiling {
+    private static final int N = MatmulProgram.N, M = MatmulProgram.M;
+
+    // Sizes that are no multiple of the block shape or the step of the loop
+    private static final String PROGRAM =
+            "func: int run(matrix[int, 37, 21] A, matrix[int, 21, 45] B, matrix[int, 37, 45] C, matrix[int, 37, 45] S) {\n" +
+            MatmulProgram.MATMUL +
+            "    defer[(i, 35), (j, 43)] {\n" +
+            "        S[i + 1, j + 1] = C[i, j + 1] + C[i + 2, j + 1] + C[i + 1, j] + C[i + 1, j + 2] - 4 * C[i + 1, j + 1];\n" +
+            "    }\n" +
+            "    int total = 0;\n" +
+            "    int r = 0;\n" +
+            "    while (r < 37) do {\n" +
+            "        int c = 0;\n" +
+            "        while (c < 45) do {\n" +
+            "            total = total + C[r, c] * (r + 2 * c + 1) + S[r, c];\n" +
+            "            c = c + 1;\n" +
+            "        }\n" +
+            "        r = r + 1;\n" +
+            "    }\n" +
+            "    return total;\n" +
+            "}\n" +
+            MatmulProgram.MAIN;
+
+    // a[2 * i] is not an offset, c[i] = a[i] has one, and a[i, k * 2] is not the counter
+    private static final String UNTILED_PROGRAM =
+            "func: int main() {\n" +
+            "    vector[int, 8] a = {1, 2, 3, 4, 5, 6, 7, 8};\n" +
+            "    vector[int, 4] b = {0, 0, 0, 0};\n" +
+            "    vector[int, 8] c = {0, 0, 0, 0, 0, 0, 0, 0};\n" +
+            "    matrix[int, 2, 8] m = {{1, 2, 3, 4, 5, 6, 7, 8}, {8, 7, 6, 5, 4, 3, 2, 1}};\n" +
+            "    vector[int, 2] s = {0, 0};\n" +
+            "    defer[(i, 4)] {\n" +
+            "        b[i] = a[2 * i] + a[i + 1];\n" +
+            "    }\n" +
+            "    defer[(i, 8)] {\n" +
+            "        c[i] = a[i];\n" +
+            "    }\n" +
+            "    defer[(i, 2)] {\n" +
+            "        int k = 0;\n" +
+            "        while (k < 4) do {\n" +
+            "            s[i] = s[i] + m[i, k * 2];\n" +
+            "            k = k + 1;\n" +
+            "        }\n" +
+            "    }\n" +
+            "    return b[0] + c[1] + s[0];\n" +
+            "}\n";
+
+    private static final String DRIVER =
+            "#include <cstdio>\n" +
+            "#define main bolt_main\n" +
+            "#include \"a.cu\"\n" +
+            "#undef main\n" +
+            "int main() {\n" +
+            "    IntTensor A(std::vector<int>(37 * 21), {37, 21});\n" +
+            "    IntTensor B(std::vector<int>(21 * 45), {21, 45});\n" +
+            "    IntTensor C(std::vector<int>(37 * 45), {37, 45});\n" +
+            "    IntTensor S(std::vector<int>(37 * 45), {37, 45});\n" +
+            "    std::printf(\"result=%d\\n\", run(A, B, C, S));\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestSharedTiling...");
+
+        GeneratedProgram program = TestPrograms.compile(PROGRAM);
+
+        testMatmulTiles(program);       //A and B read from tiles inside the loop
+        testStencilTiles(program);      //the four neighbours of C from one tile with a halo
+        testUntiledPatterns();          //nothing to share, every kernel unchanged
+        testReferenceRun(program);      //same result as computed on the CPU
+    }
+
+    static void testMatmulTiles(GeneratedProgram program) {
+        String kernel = kernel(program.kernelsHeader, "run_C");
+        String step = line(kernel, "acc = acc + ");
+        if (kernel.contains("__shared__ int A_tile0[") && kernel.contains("__shared__ int B_tile1[")
+                && kernel.contains("__syncthreads();") && step.contains("A_tile0[threadIdx.x * 16 + (k - bolt_tile_start)]")
+                && step.contains("B_tile1[(k - bolt_tile_start) * ") && !step.contains("_data[")
+                && kernel.contains("if(bolt_active) {\nC_data[i * 45 + j] = acc;\n}")) {
+            System.out.println(" testMatmulTiles passed");
+        } else {
+            System.out.println(" testMatmulTiles failed | loop is not tiled:\n" + kernel);
+        }
+    }
+
+    static void testStencilTiles(GeneratedProgram program) {
+        String kernel = kernel(program.kernelsHeader, "run_D");
+        String store = line(kernel, "S_data[");
+        if (kernel.contains("__shared__ int C_tile0[") && kernel.contains("if(!bolt_active) return;")
+                && store.contains("C_tile0[") && !store.contains("C_data[")) {
+            System.out.println(" testStencilTiles passed");
+        } else {
+            System.out.println(" testStencilTiles failed | neighbours are not tiled:\n" + kernel);
+        }
+    }
+
+    static void testUntiledPatterns() throws Exception {
+        String kernels = TestPrograms.compile(UNTILED_PROGRAM).kernelsHeader;
+        if (!kernels.contains("__shared__") && !kernels.contains("__syncthreads")
+                && kernels.contains("b_data[i] = a_data[(2 * i)] + a_data[(i + 1)];")
+                && kernels.contains("m_data[i * 8 + (k * 2)]")) {
+            System.out.println(" testUntiledPatterns passed");
+        } else {
+            System.out.println(" testUntiledPatterns failed | unexpected tiles:\n" + kernels);
+        }
+    }
+
+    static void testReferenceRun(GeneratedProgram program) {
+        NativeRun run = NativeRun.run("testReferenceRun", program, DRIVER, NativeRun.Target.EMULATED_CUDA);
+        if (run == null) return;
+
+        String expected = "result=" + reference();
+        if (run.output.trim().equals(expected)) {
+            System.out.println(" testReferenceRun passed");
+        } else {
+            System.out.println(" testReferenceRun failed | expected " + expected + ", got " + run.output.trim());
+        }
+    }
+
+    // PROGRAM computed on the CPU, element by element from global memory
+    private static int reference() {
+        int[][] c = MatmulProgram.product(), s = new int[N][M];
+        for (int i = 0; i < N - 2; i++) {
+            for (int j = 0; j < M - 2; j++) {
+                s[i + 1][j + 1] = c[i][j + 1] + c[i + 2][j + 1] + c[i + 1][j] + c[i + 1][j + 2] - 4 * c[i + 1][j + 1];
+            }
+        }
+        int total = 0;
+        for (int r = 0; r < N; r++) {
+            for (int col = 0; col < M; col++) {
+                total += c[r][col] * (r + 2 * col + 1) + s[r][col];
+            }
+        }
+        return total;
+    }
+
+    private static String kernel(String kernels, String name) {
+        int start = kernels.indexOf("__global__ void " + name + "(");
+        if (start < 0) return "";
+        int end = kernels.indexOf("__global__", start + 1);
+        return end < 0 ? kernels.substring(start) : kernels.substring(start, end);
+    }
+
+    private static String line(String code, String prefix) {
+        for (String line : code.split("\n")) {
+            if (line.trim().startsWith(prefix)) return line;
+        }
+        return "";
+    }
+}
@@ -0,0 +1,95 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+/*
+ * Unit tests for the stream schedule of kernel launches and transfers.
+ * The defers have different sizes, so they are not fused into one kernel.
+ *
+ * This includes:
+ * - Defers on disjoint tensors launched on different streams
+ * - A defer that depends on both waiting for the events of its tensors
+ * - No device-wide synchronization, the host only waits for its downloads
+ * - The generated program run against the CPU emulation of the CUDA runtime
+ *   (skipped when g++ or the emulation header can't be found)
+ */
+
+public class TestStreamSchedule {
+    private static final String PROGRAM =
+            "func: int main() {\n" +
+            "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+            "    vector[int, 8] b = {5, 6, 7, 8, 9, 10, 11, 12};\n" +
+            "    defer[(i, 4)] {\n" +
+            "        a[i] = a[i] * 2;\n" +
+            "    }\n" +
+            "    defer[(i, 8)] {\n" +
+            "        b[i] = b[i] + 1;\n" +
+            "    }\n" +
+            "    defer[(i, 4)] {\n" +
+            "        a[i] = a[i] + b[i + 4];\n" +
+            "    }\n" +
+            "    return a[0] + b[3];\n" +
+            "}\n";
+    private static final int EXPECTED_RESULT = 21; // a[0] = 1 * 2 + (9 + 1), b[3] = 8 + 1
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestStreamSchedule...");
+
+        GeneratedProgram program = TestPrograms.compile(PROGRAM);
+
+        testDisjointStreams(program);   //a and b are computed on their own streams
+        testJoinWaits(program);         //main_C waits for the last work on a and b
+        testNoDeviceSync(program);      //downloads wait for their event only
+        testEmulatedRun(program);       //the schedule computes the right result
+    }
+
+    static void testDisjointStreams(GeneratedProgram program) {
+        String host = program.hostCode;
+        boolean first = host.contains("BOLT_LAUNCH(main_A, amountOfBlocks_main_A, blockShape_main_A, bolt_streams[0])");
+        boolean second = host.contains("BOLT_LAUNCH(main_B, amountOfBlocks_main_B, blockShape_main_B, bolt_streams[1])");
+
+        if (host.contains("cudaStream_t bolt_streams[2];") && first && second) {
+            System.out.println(" testDisjointStreams passed");
+        } else {
+            System.out.println(" testDisjointStreams failed | unexpected streams:\n" + host);
+        }
+    }
+
+    static void testJoinWaits(GeneratedProgram program) {
+        String host = program.hostCode;
+        int launch = host.indexOf("BOLT_LAUNCH(main_C,");
+        String before = host.substring(host.indexOf("BOLT_LAUNCH(main_B,"), launch);
+        String after = host.substring(launch);
+
+        if (before.contains("cudaStreamWaitEvent(bolt_streams[1], event_a, 0);")
+                && before.contains("cudaStreamWaitEvent(bolt_streams[1], event_b, 0);")
+                && after.contains("cudaEventRecord(event_a, bolt_streams[1]);")) {
+            System.out.println(" testJoinWaits passed");
+        } else {
+            System.out.println(" testJoinWaits failed | missing waits or records around main_C:\n" + host);
+        }
+    }
+
+    static void testNoDeviceSync(GeneratedProgram program) {
+        String host = program.hostCode;
+        if (!host.contains("cudaDeviceSynchronize") && !host.contains("cudaMemcpy(")
+                && host.contains("cudaMemcpyAsync(a.getData(), device_a_data")
+                && host.contains("cudaEventSynchronize(event_a);")) {
+            System.out.println(" testNoDeviceSync passed");
+        } else {
+            System.out.println(" testNoDeviceSync failed | host waits for more than its downloads:\n" + host);
+        }
+    }
+
+    static void testEmulatedRun(GeneratedProgram program) {
+        NativeRun run = NativeRun.run("testEmulatedRun", program, null, NativeRun.Target.EMULATED_CUDA);
+        if (run == null) return;
+
+        if (run.exitCode == EXPECTED_RESULT) {
+            System.out.println(" testEmulatedRun passed");
+        } else {
+            System.out.println(" testEmulatedRun failed | returned " + run.exitCode + ", expected "
+                    + EXPECTED_RESULT + " " + run.output);
+        }
+    }
+}
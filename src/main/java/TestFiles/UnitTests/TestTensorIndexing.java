@@ -0,0 +1,73 @@
+package TestFiles.UnitTests;
+
+import Transpiler.GeneratedProgram;
+
+/*
+ * Unit tests for tensor indexing in generated kernels.
+ *
+ * This includes:
+ * - Constant strides when every size is a literal
+ * - Stride parameters, computed at the launch, for sizes given by a variable
+ * - Size variables of the thread dimensions passed to the kernel
+ * - Shapes passed by value instead of copied to device memory
+ */
+
+public class TestTensorIndexing {
+    private static final String PROGRAM =
+            "func: int scale(tensor[int, 4, n, 2] T, int n) {\n" +
+            "    defer[(i, 4), (j, n)] {\n" +
+            "        T[i, j, 1] = T[i, j, 0] * 2;\n" +
+            "    }\n" +
+            "    return T[0, 0, 0];\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    matrix[int, 2, 3] M = {{1, 2, 3}, {4, 5, 6}};\n" +
+            "    defer[(i, 2), (j, 3)] {\n" +
+            "        M[i, j] = M[i, j] * M[i, 2 - j];\n" +
+            "    }\n" +
+            "    return M[0, 0];\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestTensorIndexing...");
+
+        GeneratedProgram program = TestPrograms.compile(PROGRAM);
+
+        testConstantStrides(program);   //matrix access becomes M_data[i * 3 + j]
+        testVariableStrides(program);   //stride over n is a kernel parameter
+        testShapeByValue(program);      //no device allocation for the dimensions
+    }
+
+    static void testConstantStrides(GeneratedProgram program) {
+        String kernels = program.kernelsHeader;
+        if (kernels.contains("M_data[i * 3 + j] = M_data[i * 3 + j] * M_data[i * 3 + (2 - j)];")
+                && !kernels.contains("tensor_access(") && !kernels.contains("tensor_set(")) {
+            System.out.println(" testConstantStrides passed");
+        } else {
+            System.out.println(" testConstantStrides failed | unexpected kernel code:\n" + kernels);
+        }
+    }
+
+    static void testVariableStrides(GeneratedProgram program) {
+        boolean signature = program.kernelsHeader.contains("scale_A(int* T_data, TensorShape T_shape, int T_stride0, int n)");
+        boolean access = program.kernelsHeader.contains("T_data[i * T_stride0 + j * 2 + 1] = T_data[i * T_stride0 + j * 2 + 0] * 2;");
+        boolean launch = program.hostCode.contains("(device_T_data, T.shape(), T.dimensions[1] * T.dimensions[2], n);");
+
+        if (signature && access && launch) {
+            System.out.println(" testVariableStrides passed");
+        } else {
+            System.out.println(" testVariableStrides failed | signature " + signature + ", access " + access
+                    + ", launch " + launch);
+        }
+    }
+
+    static void testShapeByValue(GeneratedProgram program) {
+        String host = program.hostCode;
+        if (host.contains("(device_M_data, M.shape());") && !host.contains("_dims")
+                && program.kernelsHeader.contains("main_A(int* M_data, TensorShape M_shape)")) {
+            System.out.println(" testShapeByValue passed");
+        } else {
+            System.out.println(" testShapeByValue failed | dimensions are still copied to the device");
+        }
+    }
+}
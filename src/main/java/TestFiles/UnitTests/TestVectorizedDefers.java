@@ -0,0 +1,146 @@
+package TestFiles.UnitTests;
+
+import AbstractSyntax.Program.Prog;
+import AbstractSyntax.Types.SimpleTypesEnum;
+import Interpreter.Interpreter;
+import Interpreter.Tensor;
+import JvmCompiler.CompiledProgram;
+import JvmCompiler.JvmCompiler;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Unit tests for the defer bodies the JvmCompiler runs on the Vector API.
+ *
+ * This includes:
+ * - Elementwise bodies on double and int vectors, with a scalar loop for the
+ *   rest of every row
+ * - Bodies that use their indices as values, reduce or branch staying scalar
+ * - The same results with and without vectors as the Interpreter, in order and
+ *   on a ForkJoinPool, for rows that don't fill the lanes
+ * (the results are skipped when java runs without --add-modules jdk.incubator.vector)
+ */
+
+public class TestVectorizedDefers {
+    private static final int LENGTH = 1003, N = 37, M = 45;
+
+    private static final String PROGRAM =
+            "func: double saxpy(vector[double, 1003] x, vector[double, 1003] y, double a) {\n" +
+            "    defer[(i, 1003)] {\n" +
+            "        y[i] = a * x[i] + y[i];\n" +
+            "    }\n" +
+            "    double sum = 0.0;\n" +
+            "    defer[(i, 1003)] {\n" +
+            "        sum = sum + y[i];\n" +
+            "    }\n" +
+            "    return sum;\n" +
+            "}\n" +
+            "func: int affine(matrix[int, 37, 45] m, int n) {\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        m[i, j] = max(m[i, j], 0 - i) * (n / 3) + i;\n" +
+            "    }\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        m[i, j] = min(-m[i, j], n) - m[i, j];\n" +
+            "    }\n" +
+            "    int sum = 0;\n" +
+            "    defer[(i, 37), (j, 45)] {\n" +
+            "        sum = sum + m[i, j] * (j + 1);\n" +
+            "    }\n" +
+            "    return sum;\n" +
+            "}\n" +
+            "func: double scalar(vector[double, 1003] x) {\n" +
+            "    defer[(i, 1003)] {\n" +
+            "        x[i] = i * 0.5;\n" +
+            "    }\n" +
+            "    defer[(i, 1003)] {\n" +
+            "        if (x[i] > 100.0) then {\n" +
+            "            x[i] = x[i] / 2.0;\n" +
+            "        }\n" +
+            "    }\n" +
+            "    return x[1002];\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" Running TestVectorizedDefers...");
+
+        if (javax.tools.ToolProvider.getSystemJavaCompiler() == null) {
+            System.out.println(" testVectorizedDefers skipped | no Java compiler, the tests need a JDK");
+            return;
+        }
+        Prog program = TestPrograms.parse(PROGRAM);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            testVectorizedSource(program);   //vector loops for elementwise bodies only
+            testSameResults(program, pool);  //vectors, scalars and the Interpreter agree
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static void testVectorizedSource(Prog program) throws Exception {
+        String source = JvmCompiler.generate(program, true);
+        String saxpy = method(source, "saxpy_defer0");
+        String affine = method(source, "affine_defer0") + method(source, "affine_defer1");
+        String scalar = method(source, "scalar_defer0") + method(source, "scalar_defer1")
+                + method(source, "saxpy_defer1") + method(source, "affine_defer2");
+        if (saxpy.contains("DoubleVector.fromArray(bolt_doubles, v_x_data, v_i)")
+                && saxpy.contains(".intoArray(v_y_data, v_i)")
+                && saxpy.contains("the rest of the row")
+                && affine.contains("IntVector.fromArray(bolt_ints, v_m_data, v_i * 45 + v_j)")
+                && affine.contains(".neg()")
+                && !scalar.contains("Vector")
+                && !JvmCompiler.generate(program, false).contains("Vector")) {
+            System.out.println(" testVectorizedSource passed");
+        } else {
+            System.out.println(" testVectorizedSource failed | generated\n" + source);
+        }
+    }
+
+    static void testSameResults(Prog program, ForkJoinPool pool) throws Exception {
+        if (!JvmCompiler.vectorApiAvailable()) {
+            System.out.println(" testSameResults skipped | run with --add-modules jdk.incubator.vector");
+            return;
+        }
+        Tensor x = Tensor.zeros(SimpleTypesEnum.DOUBLE, LENGTH);
+        Tensor y = Tensor.zeros(SimpleTypesEnum.DOUBLE, LENGTH);
+        Tensor m = Tensor.zeros(SimpleTypesEnum.INT, N, M);
+        for (int i = 0; i < LENGTH; i++) {
+            x.doubles[i] = (i % 17) * 0.25;
+            y.doubles[i] = (i % 5) - 2.0;
+        }
+        for (int i = 0; i < m.size(); i++) {
+            m.ints[i] = i % 11 - 5;
+        }
+        Object[][] calls = {{"saxpy", x, y, 1.5}, {"affine", m, 7}, {"scalar", x}};
+
+        Interpreter interpreter = new Interpreter(program);
+        CompiledProgram[] compilations = {JvmCompiler.compile(program, null, true),
+                JvmCompiler.compile(program, pool, true), JvmCompiler.compile(program, null, false),
+                JvmCompiler.compile(program, pool, false)};
+        for (Object[] call : calls) {
+            Object[] arguments = java.util.Arrays.copyOfRange(call, 1, call.length);
+            Object expected = interpreter.call((String) call[0], arguments);
+            for (CompiledProgram compiled : compilations) {
+                Object actual = compiled.call((String) call[0], arguments);
+                if (!expected.equals(actual)) {
+                    System.out.println(" testSameResults failed | " + call[0] + " returned " + actual
+                            + ", the Interpreter " + expected);
+                    return;
+                }
+            }
+        }
+        System.out.println(" testSameResults passed");
+    }
+
+    // The generated defer method of that name, up to the next one
+    private static String method(String source, String name) {
+        int start = source.indexOf("private static Object[] " + name + "(");
+        if (start < 0) {
+            return "";
+        }
+        int end = source.indexOf("private static Object[] ", start + 1);
+        return end < 0 ? source.substring(start) : source.substring(start, end);
+    }
+}
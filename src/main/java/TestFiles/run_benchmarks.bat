@@ -0,0 +1,57 @@
+:: run_benchmarks.bat
+:: -------------------
+:: Compiles the compiler and runs the per-phase benchmarks in TestFiles/Benchmarks/
+:: Output .class files are placed in TestFiles/out/
+:: Results are printed as one line per phase and corpus (time/op, alloc/op, alloc rate)
+:: Extra arguments are passed on to the benchmark, e.g. run_benchmarks.bat --functions=10,100
+:: The pipeline scaling benchmark (threads vs. time on a program with thousands of functions) runs afterwards
+:: The vectorized defer benchmark (Vector API vs. point by point defer bodies on the JVM) runs last
+
+@echo off
+echo ================================
+echo Cleaning previous output...
+echo ================================
+rmdir /s /q out 2>nul
+mkdir out
+
+echo ================================
+echo Compiling benchmark files...
+echo ================================
+
+javac -d out -cp .. ^
+..\AbstractSyntax\Definitions\*.java ^
+..\AbstractSyntax\Expressions\*.java ^
+..\AbstractSyntax\Program\*.java ^
+..\AbstractSyntax\SizeParams\*.java ^
+..\AbstractSyntax\Statements\*.java ^
+..\AbstractSyntax\Types\*.java ^
+..\boltparser\*.java ^
+..\DataflowAnalysis\*.java ^
+..\Interpreter\*.java ^
+..\JvmCompiler\*.java ^
+..\Lib\*.java ^
+..\SemanticAnalysis\*.java ^
+..\Transpiler\*.java ^
+Benchmarks\BoltProgramGenerator.java ^
+Benchmarks\CompilerPhaseBenchmark.java ^
+Benchmarks\PipelineScalingBenchmark.java ^
+Benchmarks\VectorizedDeferBenchmark.java
+
+if %ERRORLEVEL% NEQ 0 (
+    echo Compilation failed.
+    pause
+    exit /b
+)
+
+echo ================================
+echo Running benchmarks...
+echo ================================
+cd out
+
+java -Xss16m TestFiles.Benchmarks.CompilerPhaseBenchmark %*
+echo ----------------------------------
+java -Xss16m TestFiles.Benchmarks.PipelineScalingBenchmark
+echo ----------------------------------
+java --add-modules jdk.incubator.vector TestFiles.Benchmarks.VectorizedDeferBenchmark
+
+pause
@@ -29,7 +29,33 @@ UnitTests\TestASTNodes.java ^
 UnitTests\TestExprChecker.java ^
 UnitTests\TestTypeSystem.java ^
 UnitTests\TestStmtChecker.java ^
-UnitTests\TestBuiltinFunctions.java
+UnitTests\TestBuiltinFunctions.java ^
+UnitTests\TestConcurrentTranspiler.java ^
+UnitTests\TestCompilerPipeline.java ^
+UnitTests\TestCodeEmitter.java ^
+UnitTests\TestCompileServer.java ^
+UnitTests\TestCompilationCache.java ^
+UnitTests\TestCompilerStats.java ^
+UnitTests\TestScannerInput.java ^
+UnitTests\TestDataflow.java ^
+UnitTests\TestLargePrograms.java ^
+UnitTests\TestTensorIndexing.java ^
+UnitTests\TestKernelTransfers.java ^
+UnitTests\TestDeviceResidency.java ^
+UnitTests\TestStreamSchedule.java ^
+UnitTests\TestKernelFusion.java ^
+UnitTests\NativeRun.java ^
+UnitTests\TestPrograms.java ^
+UnitTests\MatmulProgram.java ^
+UnitTests\TestDevicePool.java ^
+UnitTests\TestPinnedStorage.java ^
+UnitTests\TestLaunchPolicy.java ^
+UnitTests\TestSharedTiling.java ^
+UnitTests\TestReductions.java ^
+UnitTests\TestOpenMPBackend.java ^
+UnitTests\TestInterpreter.java ^
+UnitTests\TestJvmCompiler.java ^
+UnitTests\TestVectorizedDefers.java
 
 if %ERRORLEVEL% NEQ 0 (
     echo Compilation failed.
@@ -53,5 +79,51 @@ java TestFiles.UnitTests.TestStmtChecker
 echo ----------------------------------
 java TestFiles.UnitTests.TestBuiltinFunctions
 echo ----------------------------------
+java TestFiles.UnitTests.TestConcurrentTranspiler
+echo ----------------------------------
+java TestFiles.UnitTests.TestCompilerPipeline
+echo ----------------------------------
+java TestFiles.UnitTests.TestCodeEmitter
+echo ----------------------------------
+java TestFiles.UnitTests.TestCompileServer
+echo ----------------------------------
+java TestFiles.UnitTests.TestCompilationCache
+echo ----------------------------------
+java TestFiles.UnitTests.TestCompilerStats
+echo ----------------------------------
+java TestFiles.UnitTests.TestScannerInput
+echo ----------------------------------
+java TestFiles.UnitTests.TestDataflow
+echo ----------------------------------
+java TestFiles.UnitTests.TestLargePrograms
+echo ----------------------------------
+java TestFiles.UnitTests.TestTensorIndexing
+echo ----------------------------------
+java TestFiles.UnitTests.TestKernelTransfers
+echo ----------------------------------
+java TestFiles.UnitTests.TestDeviceResidency
+echo ----------------------------------
+java TestFiles.UnitTests.TestStreamSchedule
+echo ----------------------------------
+java TestFiles.UnitTests.TestKernelFusion
+echo ----------------------------------
+java TestFiles.UnitTests.TestDevicePool
+echo ----------------------------------
+java TestFiles.UnitTests.TestPinnedStorage
+echo ----------------------------------
+java TestFiles.UnitTests.TestLaunchPolicy
+echo ----------------------------------
+java TestFiles.UnitTests.TestSharedTiling
+echo ----------------------------------
+java TestFiles.UnitTests.TestReductions
+echo ----------------------------------
+java TestFiles.UnitTests.TestOpenMPBackend
+echo ----------------------------------
+java TestFiles.UnitTests.TestInterpreter
+echo ----------------------------------
+java TestFiles.UnitTests.TestJvmCompiler
+echo ----------------------------------
+java --add-modules jdk.incubator.vector TestFiles.UnitTests.TestVectorizedDefers
+echo ----------------------------------
 
 pause
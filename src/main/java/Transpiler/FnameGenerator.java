@@ -6,13 +6,19 @@ public class FnameGenerator {
     private int currentIndex = 0;
     private int amountOfRounds = 0;
     private boolean invertedAlphabetCaps = false;
+    private final String prefix;
 
     public FnameGenerator(){
+        this("");
+    }
 
+    // Every generated name starts with prefix
+    public FnameGenerator(String prefix){
+        this.prefix = prefix;
     }
 
     public String generateFunctionName() throws Exception{
-        String fName = "";
+        String fName = prefix;
         if (amountOfRounds > 0) {
             fName += bigAlphabetArray[amountOfRounds];
             fName += bigAlphabetArray[currentIndex];
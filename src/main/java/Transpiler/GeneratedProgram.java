@@ -0,0 +1,62 @@
+package Transpiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Generated CUDA code of one program: the host file and the kernels.h it includes. A host-only program
+// (from the OpenMPTranspiler) is a single C++ file and has an empty kernels.h.
+public class GeneratedProgram {
+    public final String hostCode;
+    public final String kernelsHeader;
+    public final int kernelCount;
+    public final int transferCount; // tensor copies between host and device
+    public final boolean hostOnly;
+
+    public GeneratedProgram(String hostCode, String kernelsHeader, int kernelCount, int transferCount) {
+        this(hostCode, kernelsHeader, kernelCount, transferCount, false);
+    }
+
+    private GeneratedProgram(String hostCode, String kernelsHeader, int kernelCount, int transferCount, boolean hostOnly) {
+        this.hostCode = hostCode;
+        this.kernelsHeader = kernelsHeader;
+        this.kernelCount = kernelCount;
+        this.transferCount = transferCount;
+        this.hostOnly = hostOnly;
+    }
+
+    public static GeneratedProgram hostOnly(String code) {
+        return new GeneratedProgram(code, "", 0, 0, true);
+    }
+
+    // Writes <fileName>.cu and kernels.h next to it (a.cu in the working directory if fileName is null),
+    // or <fileName>.cpp (a.cpp) alone for a host-only program
+    public void write(String fileName) throws IOException {
+        if (hostOnly) {
+            try (FileOutputStream out = new FileOutputStream(fileName == null ? "a.cpp" : fileName + ".cpp")) {
+                writeHostCode(out);
+            }
+            return;
+        }
+        File outputFile = new File(fileName == null ? "a.cu" : fileName + ".cu");
+        try (FileOutputStream fOut = new FileOutputStream(outputFile)) {
+            writeHostCode(fOut);
+        }
+        // The .cu file includes kernels.h by relative path
+        File headerFile = new File(outputFile.getAbsoluteFile().getParentFile(), "kernels.h");
+        try (FileOutputStream kfOut = new FileOutputStream(headerFile)) {
+            writeKernelsHeader(kfOut);
+        }
+    }
+
+    // Each file is encoded once and handed to the stream in a single write
+    public void writeHostCode(OutputStream out) throws IOException {
+        out.write(hostCode.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeKernelsHeader(OutputStream out) throws IOException {
+        out.write(kernelsHeader.getBytes(StandardCharsets.UTF_8));
+    }
+}
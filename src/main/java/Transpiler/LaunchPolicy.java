@@ -0,0 +1,63 @@
+package Transpiler;
+
+import AbstractSyntax.SizeParams.*;
+
+import java.util.List;
+
+/*
+ * Chooses the block shape a kernel is launched with.
+ *
+ * The Transpiler asks the policy once per defer block, with the signature of
+ * the generated kernel and the sizes of its iteration space, and derives the
+ * grid from the answer. The block shape is a compile time constant in the
+ * generated code, so the policy's choice can be seen (and compared) in the .cu
+ * file. Policies are shared by the functions of a program, which can be
+ * compiled concurrently.
+ */
+public interface LaunchPolicy {
+    int WARP_SIZE = 32;
+    int MAX_THREADS_PER_BLOCK = 1024;
+    int[] MAX_BLOCK_DIMS = {1024, 1024, 64}; // x, y and z limits of a CUDA block
+
+    // Threads per block along each axis of sizes, sizes.size() numbers
+    int[] blockShape(String kernelSignature, List<SizeParam> sizes);
+
+    // Name and settings of the policy. Part of the compilation cache key, so it has to change
+    // whenever the policy would choose differently for the same kernel.
+    String describe();
+
+    // The sizes of an iteration space as written in the table, e.g. 1024x4 or nx4
+    static String problemSize(List<SizeParam> sizes) {
+        StringBuilder sb = new StringBuilder();
+        for (SizeParam size : sizes) {
+            if (sb.length() > 0) sb.append('x');
+            sb.append(Transpiler.transpileSizeParameters(size));
+        }
+        return sb.toString();
+    }
+
+    // Block shape in the same notation, e.g. 64x4
+    static String shapeString(int[] shape) {
+        StringBuilder sb = new StringBuilder();
+        for (int extent : shape) {
+            if (sb.length() > 0) sb.append('x');
+            sb.append(extent);
+        }
+        return sb.toString();
+    }
+
+    // Null if the shape can't be launched with rank axes
+    static String checkShape(int[] shape, int rank) {
+        if (shape.length != rank) {
+            return "has " + shape.length + " axes instead of " + rank;
+        }
+        int threads = 1;
+        for (int axis = 0; axis < shape.length; axis++) {
+            if (shape[axis] < 1 || shape[axis] > MAX_BLOCK_DIMS[axis]) {
+                return "axis " + axis + " must be between 1 and " + MAX_BLOCK_DIMS[axis];
+            }
+            threads *= shape[axis];
+        }
+        return threads > MAX_THREADS_PER_BLOCK ? "has more than " + MAX_THREADS_PER_BLOCK + " threads" : null;
+    }
+}
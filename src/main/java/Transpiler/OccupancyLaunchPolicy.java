@@ -0,0 +1,117 @@
+package Transpiler;
+
+import AbstractSyntax.SizeParams.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Default launch policy: full warps, a block size that keeps the
+ * multiprocessors busy, and a block shaped like the iteration space.
+ *
+ * Blocks get threadsPerBlock threads (256 by default: 8 warps, so a
+ * multiprocessor with 2048 thread slots still holds 8 blocks when the kernel
+ * uses a moderate number of registers). The threads are handed out by
+ * doubling the axis with the most iterations per thread, and no axis gets more
+ * threads than it has iterations. A 4 x n space gets 1x256 blocks instead of
+ * 4x16 ones, a space of unknown sizes the usual 256, 16x16 or 8x8x4.
+ *
+ * When all sizes are known and there would be fewer blocks than
+ * multiprocessors, blocks are halved (down to one warp) to spread the work
+ * over more of them: a 4096x4 space gets 128x1 blocks, 128 of them.
+ */
+public class OccupancyLaunchPolicy implements LaunchPolicy {
+    public static final int DEFAULT_THREADS_PER_BLOCK = 256;
+    public static final int DEFAULT_MULTIPROCESSORS = 80;
+
+    private final int threadsPerBlock;
+    private final int multiprocessors;
+
+    public OccupancyLaunchPolicy() {
+        this(DEFAULT_THREADS_PER_BLOCK, DEFAULT_MULTIPROCESSORS);
+    }
+
+    public OccupancyLaunchPolicy(int threadsPerBlock, int multiprocessors) {
+        if (threadsPerBlock < 1 || threadsPerBlock > MAX_THREADS_PER_BLOCK) {
+            throw new IllegalArgumentException("threadsPerBlock must be between 1 and " + MAX_THREADS_PER_BLOCK);
+        }
+        this.threadsPerBlock = threadsPerBlock;
+        this.multiprocessors = multiprocessors;
+    }
+
+    @Override
+    public int[] blockShape(String kernelSignature, List<SizeParam> sizes) {
+        int rank = sizes.size();
+        long[] extents = new long[rank]; // Long.MAX_VALUE if only known at run time
+        boolean allKnown = true;
+        for (int axis = 0; axis < rank; axis++) {
+            if (sizes.get(axis) instanceof SPInt size) {
+                extents[axis] = Math.max(1, size.value);
+            } else {
+                extents[axis] = Long.MAX_VALUE;
+                allKnown = false;
+            }
+        }
+
+        int[] shape = new int[rank];
+        Arrays.fill(shape, 1);
+        int threads = 1;
+        while (true) {
+            int axis = axisToGrow(extents, shape, threads);
+            if (axis < 0) break;
+            int grown = (int) Math.min(Math.min(shape[axis] * 2L, extents[axis]), MAX_BLOCK_DIMS[axis]);
+            threads = threads / shape[axis] * grown;
+            shape[axis] = grown;
+        }
+
+        if (allKnown) {
+            while (threads > WARP_SIZE && blockCount(extents, shape) < multiprocessors) {
+                int axis = largestAxis(shape);
+                int shrunk = (shape[axis] + 1) / 2;
+                threads = threads / shape[axis] * shrunk;
+                shape[axis] = shrunk;
+            }
+        }
+        return shape;
+    }
+
+    // The axis with the most iterations per thread that can still double within the block, -1 if none.
+    // Ties go to the axis with fewer threads, then to the lower axis.
+    private int axisToGrow(long[] extents, int[] shape, int threads) {
+        int best = -1;
+        double bestRatio = 0;
+        for (int axis = 0; axis < shape.length; axis++) {
+            long limit = Math.min(extents[axis], MAX_BLOCK_DIMS[axis]);
+            long grown = Math.min(shape[axis] * 2L, limit);
+            if (grown <= shape[axis] || threads / shape[axis] * grown > threadsPerBlock) continue;
+
+            double ratio = extents[axis] == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : (double) extents[axis] / shape[axis];
+            if (best < 0 || ratio > bestRatio || (ratio == bestRatio && shape[axis] < shape[best])) {
+                best = axis;
+                bestRatio = ratio;
+            }
+        }
+        return best;
+    }
+
+    private static long blockCount(long[] extents, int[] shape) {
+        long blocks = 1;
+        for (int axis = 0; axis < shape.length; axis++) {
+            blocks *= (extents[axis] + shape[axis] - 1) / shape[axis];
+        }
+        return blocks;
+    }
+
+    private static int largestAxis(int[] shape) {
+        int largest = 0;
+        for (int axis = 1; axis < shape.length; axis++) {
+            if (shape[axis] > shape[largest]) largest = axis;
+        }
+        return largest;
+    }
+
+    @Override
+    public String describe() {
+        return "occupancy " + threadsPerBlock + " " + multiprocessors;
+    }
+}
@@ -0,0 +1,141 @@
+package Transpiler;
+
+import AbstractSyntax.Program.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import DataflowAnalysis.KernelAccess;
+import Lib.*;
+import SemanticAnalysis.KernelReduction;
+import SemanticAnalysis.TypeEnvironment;
+import boltparser.FunctionCFGInfo;
+
+import java.util.*;
+
+/*
+ * Transpiles a type checked BOLT program to C++ with OpenMP, for machines
+ * without a GPU.
+ *
+ * The host code is the same as the CUDA Transpiler's. A defer block becomes a
+ * loop nest over its iteration space instead of a kernel launch, split across
+ * the threads of the machine with
+ *
+ *   #pragma omp parallel for collapse(n) reduction(op:s)
+ *
+ * The body is generated like a kernel body: the tensors are read through
+ * a_data[i * stride + j] on their host storage, which the loops get from
+ * tensor.h before the nest. The reductions of the body (see KernelReduction)
+ * become reduction clauses, OpenMP has the same operators and identities.
+ *
+ * There are no copies to a device, so the output is a single .cpp file that
+ * includes tensor.h with BOLT_HOST_ONLY set and compiles with any C++17
+ * compiler, e.g. g++ -fopenmp. Without OpenMP the pragmas are ignored and the
+ * loops run sequentially with the same results.
+ */
+public class OpenMPTranspiler extends Transpiler {
+
+    public OpenMPTranspiler(TypeEnvironment globalTypes) {
+        super(globalTypes, null);
+    }
+
+    private OpenMPTranspiler(TypeEnvironment globalTypes, FnameGenerator names) {
+        super(globalTypes, null, names);
+    }
+
+    // Without CFG info there is no transfer plan, so the host code gets no streams or copies
+    @Override
+    Transpiler newUnit(Map<String, FunctionCFGInfo> cfgs, FnameGenerator names) {
+        return new OpenMPTranspiler(globalTypeEnv, names);
+    }
+
+    @Override
+    public GeneratedProgram assemble(Prog root, List<FunctionUnit> units) throws Exception {
+        int length = 0;
+        for (FunctionUnit unit : units) {
+            length += unit.hostCode.length();
+        }
+
+        StringBuilder out = new StringBuilder(length + 1024);
+        out.append("#include <algorithm>\n");
+        out.append("#include <vector>\n");
+        out.append("#define BOLT_HOST_ONLY\n");
+        out.append("#include \"tensor.h\"\n\n");
+
+        addPrototype(out, root.func);
+        out.append("\n");
+
+        for (FunctionUnit unit : units) {
+            out.append(unit.hostCode);
+        }
+        return GeneratedProgram.hostOnly(out.toString());
+    }
+
+    @Override
+    void transpileDefer(Appendable fWriter, Defer defer, String functionName) throws Exception {
+        // Named like the kernels, only used in the comment
+        String loopName = fnameGenerator.generateFunctionName();
+
+        Set<String> threadVars = new HashSet<>();
+        for (Pair<String, SizeParam> dim : defer.dim) {
+            threadVars.add(dim.elem1);
+        }
+        Map<String, Type> externalVars = analyzeExternalVariables(defer, threadVars);
+        KernelAccess access = KernelAccess.of(defer, externalVars);
+        KernelReduction reduction = KernelReduction.of(defer, externalVars);
+
+        // Generated like a kernel body, every tensor access goes to the storage declared before the loops
+        StringBuilder body = new StringBuilder();
+        currentKernel = new KernelInfo(defer, loopName, externalVars, access, null, null, reduction);
+        try {
+            transpileStmt(body, defer.stmt, null, true, "kernel");
+        } finally {
+            currentKernel = null;
+        }
+
+        fWriter.append("// ").append(loopName).append("\n");
+        fWriter.append("{\n");
+        // The names a kernel body uses for its tensor parameters, the shape only for tensor_access/tensor_set
+        for (Map.Entry<String, Type> entry : externalVars.entrySet()) {
+            if (!(entry.getValue() instanceof TensorType tt)) continue;
+            String var = entry.getKey();
+            String dataType = getCudaType(tt.componentType);
+            if (!access.writes.contains(var)) {
+                fWriter.append("const ");
+            }
+            fWriter.append(dataType).append("* ").append(var).append("_data = ").append(var).append(".getData();\n");
+            if (body.indexOf(var + "_shape") >= 0) {
+                fWriter.append("TensorShape ").append(var).append("_shape = ").append(var).append(".shape();\n");
+            }
+            for (int axis : variableStrideAxes(tt)) {
+                fWriter.append("int ").append(var).append("_stride").append(String.valueOf(axis)).append(" = ");
+                for (int d = axis + 1; d < tt.dimensions.size(); d++) {
+                    if (d > axis + 1) fWriter.append(" * ");
+                    fWriter.append(var).append(".dimensions[").append(String.valueOf(d)).append("]");
+                }
+                fWriter.append(";\n");
+            }
+        }
+
+        fWriter.append("#pragma omp parallel for");
+        if (defer.dim.size() > 1) {
+            fWriter.append(" collapse(").append(String.valueOf(defer.dim.size())).append(")");
+        }
+        if (reduction != null) {
+            for (Map.Entry<String, KernelReduction.Operator> reduced : reduction.variables.entrySet()) {
+                fWriter.append(" reduction(").append(reduced.getValue().symbol).append(":").append(reduced.getKey()).append(")");
+            }
+        }
+        fWriter.append("\n");
+
+        for (Pair<String, SizeParam> dim : defer.dim) {
+            fWriter.append("for(int ").append(dim.elem1).append(" = 0; ").append(dim.elem1).append(" < ")
+                    .append(transpileSizeParameters(dim.elem2)).append("; ").append(dim.elem1).append("++) {\n");
+        }
+        fWriter.append(body);
+
+        for (int d = 0; d < defer.dim.size(); d++) {
+            fWriter.append("}\n");
+        }
+        fWriter.append("}\n");
+    }
+}
@@ -13,102 +13,239 @@ import Lib.*;
 
 //Semantic Analysis
 import SemanticAnalysis.TypeEnvironment;
+import SemanticAnalysis.KernelReduction;
 import boltparser.FunctionCFGInfo;
 
+//Dataflow analysis
+import DataflowAnalysis.KernelAccess;
+import DataflowAnalysis.KernelTiling;
+import DataflowAnalysis.TransferPlan;
+
 //Java libraries
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
-
+import java.util.TreeMap;
+
+/*
+ * Transpiles a type checked BOLT program to CUDA.
+ *
+ * All state of a compilation (kernel names, collected kernels, type and CFG
+ * information) lives in the Transpiler instance, so one instance compiles one
+ * program. Separate instances share nothing and can run concurrently, e.g. on
+ * a thread pool, as long as they write to different output directories.
+ *
+ * Code is emitted straight into an Appendable instead of being built up as
+ * strings: every expression and statement appends its parts to the buffer of
+ * the function being generated, so deeply nested expressions cost time linear
+ * in the size of the output. The buffers of all functions are joined into one
+ * buffer per output file, which is then written in a single write.
+ */
 public class Transpiler {
-    static boolean hasMain = false;
-    static FnameGenerator fnameGenerator = new FnameGenerator();
-    static TypeEnvironment globalTypeEnv;
-    static Map<String, Type> currentFunctionTypes = new HashMap<>();
-    static Map<String, FunctionCFGInfo> currentFunctionCFGs = new HashMap<>();
-    static Set<String> declaredDeviceVariables = new HashSet<>();
+    private boolean hasMain = false;
+    final FnameGenerator fnameGenerator;
+    final TypeEnvironment globalTypeEnv;
+    private final Map<String, Type> currentFunctionTypes = new HashMap<>();
+    private final Map<String, FunctionCFGInfo> currentFunctionCFGs;
+    private final Set<String> declaredDeviceVariables = new HashSet<>();
+    private static final int MAX_KERNEL_TENSOR_RANK = 8; // TENSOR_MAX_RANK in tensor.h
+    private static final int SHARED_MEMORY_BYTES = 48 * 1024; // static shared memory of a block
+    private static final int LOOP_TILE_STEP = 16; // iterations of a tiled loop loaded at a time
+    private boolean debug = false; // [DEBUG] tracing of the code generation on System.out
+    private int transferCount = 0;
+    private LaunchPolicy launchPolicy = new OccupancyLaunchPolicy();
 
     // Kernel information storage
     static class KernelInfo {
         public Defer deferBlock;
         public String kernelName;
         public Map<String, Type> externalVariables;
+        public KernelAccess access;
+        public int[] blockShape;
+        public KernelTiling tiling; // reads served from shared memory, null if there are none
+        public KernelReduction reduction; // scalars the threads accumulate into, null if there are none
 
-        public KernelInfo(Defer defer, String name, Map<String, Type> vars) {
+        public KernelInfo(Defer defer, String name, Map<String, Type> vars, KernelAccess access, int[] blockShape,
+                          KernelTiling tiling, KernelReduction reduction) {
             this.deferBlock = defer;
             this.kernelName = name;
             this.externalVariables = vars;
+            this.access = access;
+            this.blockShape = blockShape;
+            this.tiling = tiling;
+            this.reduction = reduction;
+        }
+
+        // Threads outside the iteration space have to reach the barriers of the kernel as well
+        boolean hasBarriers() {
+            return tiling != null || reduction != null;
         }
     }
 
-    static ArrayList<KernelInfo> kernelsToGenerate = new ArrayList<>();
+    // Generated code of a single function: its host code and the kernels its defer blocks launch
+    public static class FunctionUnit {
+        public final String functionName;
+        public final CharSequence hostCode;
+        public final CharSequence kernelCode;
+        public final int kernelCount;
+        public final int transferCount; // tensor copies between host and device
+
+        public FunctionUnit(String functionName, CharSequence hostCode, CharSequence kernelCode, int kernelCount, int transferCount) {
+            this.functionName = functionName;
+            this.hostCode = hostCode;
+            this.kernelCode = kernelCode;
+            this.kernelCount = kernelCount;
+            this.transferCount = transferCount;
+        }
+    }
 
-    public static void TranspileProg(String fileName, Prog root, TypeEnvironment globalTypes, Map<String, FunctionCFGInfo> cfgInfo) {
-        // Store the type environment and CFG info
-        globalTypeEnv = globalTypes;
-        currentFunctionCFGs = cfgInfo;
+    private final ArrayList<KernelInfo> kernelsToGenerate = new ArrayList<>();
+    KernelInfo currentKernel; // kernel whose body is being generated, null in host code
+    private TransferPlan transferPlan; // device copies of the current function's tensors, null without CFG info
 
-        // Clear any previous kernels
-        kernelsToGenerate.clear();
+    public Transpiler(TypeEnvironment globalTypes, Map<String, FunctionCFGInfo> cfgInfo) {
+        this(globalTypes, cfgInfo, new FnameGenerator());
+    }
 
-        File outputFile;
-        if(fileName == null){
-            fileName = "a.cu";
-        } else {
-            fileName = fileName + ".cu";
-        }
-        outputFile = new File(fileName);
+    Transpiler(TypeEnvironment globalTypes, Map<String, FunctionCFGInfo> cfgInfo, FnameGenerator names) {
+        this.globalTypeEnv = globalTypes;
+        this.currentFunctionCFGs = cfgInfo != null ? cfgInfo : new HashMap<>();
+        this.fnameGenerator = names;
+    }
+
+    // Off by default, the tracing costs more than the code generation itself on large programs
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
 
-        try(FileWriter fWriter = new FileWriter(outputFile)){
-            // Add includes
-            fWriter.append("#include <cuda_runtime.h>\n");
-            fWriter.append("#include <algorithm>\n");
-            fWriter.append("#include <vector>\n");
-            fWriter.append("#include \"tensor.h\"\n");
-            fWriter.append("#include \"kernels.h\"\n\n");
+    // Chooses the block shapes of the kernel launches, an OccupancyLaunchPolicy by default
+    public void setLaunchPolicy(LaunchPolicy launchPolicy) {
+        this.launchPolicy = launchPolicy;
+    }
+
+    // Compiles a program with a fresh Transpiler, kept for existing callers
+    public static void TranspileProg(String fileName, Prog root, TypeEnvironment globalTypes, Map<String, FunctionCFGInfo> cfgInfo) {
+        new Transpiler(globalTypes, cfgInfo).transpile(fileName, root);
+    }
 
+    // Writes <fileName>.cu and a kernels.h next to it (a.cu in the working directory if fileName is null)
+    public void transpile(String fileName, Prog root) {
+        GeneratedProgram program;
+        try {
             if(!(root instanceof Prog)){
                 throw new Exception("Incorrect root for abstract syntax tree");
             }
-
-            // Generate function prototypes
-            addPrototype(fWriter, root.func);
-            fWriter.write("\n");
-
-            // Generate function definitions
-            transpileDef(fWriter, root.func);
+            program = generate(root);
         } catch(Exception e){
-            System.out.println("Error generating main CUDA file: " + e.getMessage());
+            System.out.println("Error generating CUDA code: " + e.getMessage());
             e.printStackTrace();
+            return;
         }
 
-        // Generate kernels.h file
-        generateKernelsHeader();
+        try {
+            program.write(fileName);
+        } catch (IOException e) {
+            System.out.println("Error writing generated files: " + e.getMessage());
+            e.printStackTrace();
+        }
     }
 
-    private static void generateKernelsHeader() {
-        try(FileWriter kfWriter = new FileWriter(new File("kernels.h"))) {
-            kfWriter.append("#include <cuda_runtime.h>\n");
-            kfWriter.append("#include <algorithm>\n");
-            kfWriter.append("#include \"tensor.h\"\n\n");
+    // Generates the whole program one function at a time
+    public GeneratedProgram generate(Prog root) throws Exception {
+        List<FunctionUnit> units = new ArrayList<>();
+        for (FuncDef f = root.func; f != null; f = f.nextFunc) {
+            units.add(transpileFunction(f));
+        }
+        return assemble(root, units);
+    }
 
-            for (KernelInfo kernelInfo : kernelsToGenerate) {
-                generateKernelFunction(kfWriter, kernelInfo);
-            }
-        } catch (Exception e) {
-            System.out.println("Error generating kernels.h: " + e.getMessage());
-            e.printStackTrace();
+    // Generates one function. Kernels are named after the function (f_A, f_B, ...), so the code of a
+    // function does not depend on the functions around it and functions can be generated independently,
+    // in parallel or taken from a cache. Only reads shared state, so it is safe to call concurrently.
+    public FunctionUnit transpileFunction(FuncDef f) throws Exception {
+        return transpileFunction(f, currentFunctionCFGs.get(f.procname));
+    }
+
+    // Same as above with the CFG analysis of the function passed in directly
+    public FunctionUnit transpileFunction(FuncDef f, FunctionCFGInfo cfgInfo) throws Exception {
+        Map<String, FunctionCFGInfo> cfgs = new HashMap<>();
+        if (cfgInfo != null) {
+            cfgs.put(f.procname, cfgInfo);
+        }
+        Transpiler unit = newUnit(cfgs, new FnameGenerator(f.procname + "_"));
+        unit.debug = debug;
+        unit.launchPolicy = launchPolicy;
+
+        StringBuilder hostCode = new StringBuilder();
+        unit.transpileDef(hostCode, f);
+
+        StringBuilder kernelCode = new StringBuilder();
+        for (int i = 0; i < unit.kernelsToGenerate.size(); i++) {
+            unit.generateKernelFunction(kernelCode, unit.kernelsToGenerate.get(i));
+        }
+
+        return new FunctionUnit(f.procname, hostCode, kernelCode, unit.kernelsToGenerate.size(), unit.transferCount);
+    }
+
+    // The Transpiler that generates one function, of the same kind as this one
+    Transpiler newUnit(Map<String, FunctionCFGInfo> cfgs, FnameGenerator names) {
+        return new Transpiler(globalTypeEnv, cfgs, names);
+    }
+
+    // Stitches per-function output together in the order of the units, one buffer per output file
+    public GeneratedProgram assemble(Prog root, List<FunctionUnit> units) throws Exception {
+        int hostLength = 0;
+        int kernelLength = 0;
+        int kernelCount = 0;
+        int transferCount = 0;
+        for (FunctionUnit unit : units) {
+            hostLength += unit.hostCode.length();
+            kernelLength += unit.kernelCode.length();
+            kernelCount += unit.kernelCount;
+            transferCount += unit.transferCount;
         }
+
+        // Headers and prototypes are small compared to the function bodies
+        StringBuilder fWriter = new StringBuilder(hostLength + 1024);
+        StringBuilder kfWriter = new StringBuilder(kernelLength + 128);
+        assemble(root, units, fWriter, kfWriter);
+
+        return new GeneratedProgram(fWriter.toString(), kfWriter.toString(), kernelCount, transferCount);
     }
 
-    private static void generateKernelFunction(FileWriter kfWriter, KernelInfo kernelInfo) throws Exception {
+    // Same as above, appending the .cu file and kernels.h to caller supplied outputs
+    public void assemble(Prog root, List<FunctionUnit> units, Appendable fWriter, Appendable kfWriter) throws Exception {
+        // Add includes
+        fWriter.append("#include <cuda_runtime.h>\n");
+        fWriter.append("#include <algorithm>\n");
+        fWriter.append("#include <vector>\n");
+        fWriter.append("#include \"tensor.h\"\n");
+        fWriter.append("#include \"kernels.h\"\n\n");
+
+        // Generate function prototypes
+        addPrototype(fWriter, root.func);
+        fWriter.append("\n");
+
+        // Function definitions
+        for (FunctionUnit unit : units) {
+            fWriter.append(unit.hostCode);
+        }
+
+        kfWriter.append("#include <cuda_runtime.h>\n");
+        kfWriter.append("#include <algorithm>\n");
+        kfWriter.append("#include \"tensor.h\"\n\n");
+        for (FunctionUnit unit : units) {
+            kfWriter.append(unit.kernelCode);
+        }
+    }
+
+    private void generateKernelFunction(Appendable kfWriter, KernelInfo kernelInfo) throws Exception {
         // Generate kernel signature
-        kfWriter.append("__global__ void " + kernelInfo.kernelName + "(");
+        kfWriter.append("__global__ void ").append(kernelInfo.kernelName).append("(");
 
         // Generate parameters based on actual types
         boolean first = true;
@@ -119,13 +256,26 @@ public class Transpiler {
             if (!first) kfWriter.append(", ");
 
             if (type instanceof TensorType) {
-                // For tensors, pass data array and dimensions separately
+                // For tensors, pass the data array and the shape (by value) separately
                 TensorType tensorType = (TensorType) type;
                 String dataType = getCudaType(tensorType.componentType);
-                kfWriter.append(dataType + "* " + var + "_data, int* " + var + "_dims");
+                if (kernelInfo.access.needsDownload(var)) {
+                    kfWriter.append(dataType).append("* ");
+                } else {
+                    kfWriter.append("const ").append(dataType).append("* __restrict__ ");
+                }
+                kfWriter.append(var).append("_data, TensorShape ").append(var).append("_shape");
+                for (int axis : variableStrideAxes(tensorType)) {
+                    kfWriter.append(", int ").append(var).append("_stride").append(String.valueOf(axis));
+                }
             } else if (type instanceof SimpleType) {
                 SimpleType simpleType = (SimpleType) type;
-                kfWriter.append(getCudaType(simpleType) + " " + var);
+                if (isReduced(kernelInfo, var)) {
+                    // One result per block, combined on the host
+                    kfWriter.append(getCudaType(simpleType)).append("* ").append(var).append("_partials");
+                } else {
+                    kfWriter.append(getCudaType(simpleType)).append(" ").append(var);
+                }
             }
             first = false;
         }
@@ -134,31 +284,335 @@ public class Transpiler {
         // Generate thread index calculations
         generateThreadIndexing(kfWriter, kernelInfo);
 
+        // Every thread accumulates from the identity, the host's value is combined in at the end
+        if (kernelInfo.reduction != null) {
+            for (Map.Entry<String, KernelReduction.Operator> reduced : kernelInfo.reduction.variables.entrySet()) {
+                SimpleType type = (SimpleType) kernelInfo.externalVariables.get(reduced.getKey());
+                kfWriter.append("\t").append(getCudaType(type)).append(" ").append(reduced.getKey()).append(" = ")
+                        .append(reductionIdentity(reduced.getValue(), type)).append(";\n");
+            }
+        }
+
         // Generate kernel body
-        transpileStmt(kfWriter, kernelInfo.deferBlock.stmt, null, true, "kernel");
+        currentKernel = kernelInfo;
+        try {
+            if (kernelInfo.tiling != null) {
+                generateTiledBody(kfWriter, kernelInfo);
+            } else if (kernelInfo.reduction != null) {
+                kfWriter.append("if(bolt_active) {\n");
+                transpileStmt(kfWriter, kernelInfo.deferBlock.stmt, null, true, "kernel");
+                kfWriter.append("}\n");
+            } else {
+                transpileStmt(kfWriter, kernelInfo.deferBlock.stmt, null, true, "kernel");
+            }
+        } finally {
+            currentKernel = null;
+        }
+
+        if (kernelInfo.reduction != null) {
+            generateBlockReduction(kfWriter, kernelInfo);
+        }
 
         kfWriter.append("}\n\n");
     }
 
-    private static void generateThreadIndexing(FileWriter kfWriter, KernelInfo kernelInfo) throws Exception {
+    // Loads the stencil tiles and runs the body in the threads of the iteration space. With a tiled loop
+    // every thread of the block runs the loop's steps, so it gets to the barriers around their loads, and
+    // the other top-level statements are guarded instead.
+    private void generateTiledBody(Appendable kfWriter, KernelInfo kernelInfo) throws Exception {
+        KernelTiling tiling = kernelInfo.tiling;
+        for (int t = 0; t < tiling.tiles.size(); t++) {
+            KernelTiling.Tile tile = tiling.tiles.get(t);
+            TensorType tt = (TensorType) kernelInfo.externalVariables.get(tile.tensor);
+            kfWriter.append("\t__shared__ ").append(getCudaType(tt.componentType)).append(" ").append(tileName(tiling, tile))
+                    .append("[").append(String.valueOf(product(tileExtents(tiling, tile, kernelInfo.blockShape)))).append("];\n");
+        }
+
+        boolean stencils = false;
+        for (KernelTiling.Tile tile : tiling.tiles) {
+            if (!tile.inLoop) {
+                appendTileLoad(kfWriter, kernelInfo, tile, "\t");
+                stencils = true;
+            }
+        }
+        if (stencils) kfWriter.append("\t__syncthreads();\n");
+
+        if (!tiling.hasLoopTiles() && kernelInfo.reduction != null) {
+            kfWriter.append("if(bolt_active) {\n");
+            transpileStmt(kfWriter, kernelInfo.deferBlock.stmt, null, true, "kernel");
+            kfWriter.append("}\n");
+            return;
+        } else if (!tiling.hasLoopTiles()) {
+            kfWriter.append("\tif(!bolt_active) return;\n");
+            transpileStmt(kfWriter, kernelInfo.deferBlock.stmt, null, true, "kernel");
+            return;
+        }
+
+        for (Stmt stmt : ((Block) kernelInfo.deferBlock.stmt).stmts) {
+            if (stmt == tiling.loop) {
+                generateTiledLoop(kfWriter, kernelInfo);
+            } else if (stmt instanceof Declaration) {
+                transpileStmt(kfWriter, stmt, null, true, "kernel");
+            } else {
+                kfWriter.append("if(bolt_active) {\n");
+                transpileStmt(kfWriter, stmt, null, true, "kernel");
+                kfWriter.append("}\n");
+            }
+        }
+    }
+
+    // The loop in steps of the counter: the block loads the step's tiles, then its threads run the step
+    private void generateTiledLoop(Appendable kfWriter, KernelInfo kernelInfo) throws Exception {
+        KernelTiling tiling = kernelInfo.tiling;
+        String step = String.valueOf(loopStep(tiling));
+        kfWriter.append("for(int bolt_tile_start = ").append(tiling.counter).append("; bolt_tile_start < ");
+        transpileExpr(kfWriter, tiling.bound, null, true);
+        kfWriter.append("; bolt_tile_start += ").append(step).append(") {\n");
+        for (KernelTiling.Tile tile : tiling.tiles) {
+            if (tile.inLoop) {
+                appendTileLoad(kfWriter, kernelInfo, tile, "");
+            }
+        }
+        kfWriter.append("__syncthreads();\n");
+        kfWriter.append("if(bolt_active) {\n");
+        kfWriter.append("while((");
+        transpileExpr(kfWriter, tiling.loop.cond, null, true);
+        kfWriter.append(") && ").append(tiling.counter).append(" < bolt_tile_start + ").append(step).append(") {\n");
+        transpileStmt(kfWriter, tiling.loop.stmt, null, true, "kernel");
+        kfWriter.append("}\n");
+        kfWriter.append("}\n");
+        kfWriter.append("__syncthreads();\n");
+        kfWriter.append("}\n");
+    }
+
+    // Tree reduction of the threads' values in shared memory: each level combines the upper half of the
+    // remaining values into the lower half. Thread 0 writes the block's result to its slot of the partials.
+    private void generateBlockReduction(Appendable kfWriter, KernelInfo kernelInfo) throws Exception {
+        Map<String, KernelReduction.Operator> reduced = kernelInfo.reduction.variables;
+        int threads = product(kernelInfo.blockShape);
+        int half = Integer.highestOneBit(threads) == threads ? threads / 2 : Integer.highestOneBit(threads);
+
+        for (String var : reduced.keySet()) {
+            SimpleType type = (SimpleType) kernelInfo.externalVariables.get(var);
+            kfWriter.append("\t__shared__ ").append(getCudaType(type)).append(" ").append(var).append("_reduce[")
+                    .append(String.valueOf(threads)).append("];\n");
+            kfWriter.append("\t").append(var).append("_reduce[bolt_thread] = ").append(var).append(";\n");
+        }
+        kfWriter.append("\t__syncthreads();\n");
+        if (half > 0) {
+            kfWriter.append("\tfor(int bolt_half = ").append(String.valueOf(half)).append("; bolt_half > 0; bolt_half /= 2) {\n");
+            kfWriter.append("\t\tif(bolt_thread < bolt_half && bolt_thread + bolt_half < ").append(String.valueOf(threads)).append(") {\n");
+            for (Map.Entry<String, KernelReduction.Operator> entry : reduced.entrySet()) {
+                String values = entry.getKey() + "_reduce";
+                kfWriter.append("\t\t\t").append(values).append("[bolt_thread] = ")
+                        .append(combine(entry.getValue(), values + "[bolt_thread]", values + "[bolt_thread + bolt_half]"))
+                        .append(";\n");
+            }
+            kfWriter.append("\t\t}\n");
+            kfWriter.append("\t\t__syncthreads();\n");
+            kfWriter.append("\t}\n");
+        }
+        kfWriter.append("\tif(bolt_thread == 0) {\n");
+        for (String var : reduced.keySet()) {
+            kfWriter.append("\t\t").append(var).append("_partials[blockIdx.x + blockIdx.y * gridDim.x + blockIdx.z * gridDim.x * gridDim.y] = ")
+                    .append(var).append("_reduce[0];\n");
+        }
+        kfWriter.append("\t}\n");
+    }
+
+    // C++ expression combining two values of a reduction
+    private static String combine(KernelReduction.Operator op, String a, String b) {
+        switch (op) {
+            case MIN: return "bolt_min(" + a + ", " + b + ")";
+            case MAX: return "bolt_max(" + a + ", " + b + ")";
+            default: return a + " " + op.symbol + " " + b;
+        }
+    }
+
+    // Value a thread starts its part of a reduction from, the limits come from <climits> and <cfloat> in tensor.h
+    private static String reductionIdentity(KernelReduction.Operator op, SimpleType type) {
+        boolean isDouble = type.type == SimpleTypesEnum.DOUBLE;
+        switch (op) {
+            case SUM: return isDouble ? "0.0" : "0";
+            case PRODUCT: return isDouble ? "1.0" : "1";
+            case MIN: return isDouble ? "DBL_MAX" : "INT_MAX";
+            case MAX: return isDouble ? "-DBL_MAX" : "INT_MIN";
+            case AND: return "true";
+            default: return "false";
+        }
+    }
+
+    private static boolean isReduced(KernelInfo kernelInfo, String var) {
+        return kernelInfo.reduction != null && kernelInfo.reduction.variables.containsKey(var);
+    }
+
+    // The threads of the block load elements bolt_thread, bolt_thread + threads, ... of the tile, the last
+    // axis fastest so neighbouring threads read neighbouring elements. Elements outside the tensor are 0.
+    private void appendTileLoad(Appendable out, KernelInfo kernelInfo, KernelTiling.Tile tile, String indent) throws Exception {
+        KernelTiling tiling = kernelInfo.tiling;
+        int[] shape = kernelInfo.blockShape;
+        int[] extents = tileExtents(tiling, tile, shape);
+        String[] cudaAxes = {"x", "y", "z"};
+
+        out.append(indent).append("for(int bolt_e = bolt_thread; bolt_e < ").append(String.valueOf(product(extents)))
+                .append("; bolt_e += ").append(String.valueOf(product(shape))).append(") {\n");
+        ArrayList<Expr> indices = new ArrayList<>();
+        StringBuilder inside = new StringBuilder();
+        int after = product(extents);
+        for (int axis = 0; axis < extents.length; axis++) {
+            after /= extents[axis];
+            String g = "bolt_g" + axis;
+            out.append(indent).append("\tint ").append(g).append(" = ");
+            if (tile.axes[axis] == KernelTiling.LOOP_AXIS) {
+                out.append("bolt_tile_start");
+            } else {
+                int d = tile.axes[axis];
+                out.append("blockIdx.").append(cudaAxes[d]).append(" * ").append(String.valueOf(shape[d]));
+                if (tile.low[axis] != 0) {
+                    out.append(tile.low[axis] < 0 ? " - " : " + ").append(String.valueOf(Math.abs(tile.low[axis])));
+                }
+            }
+            out.append(" + bolt_e");
+            if (after > 1) out.append(" / ").append(String.valueOf(after));
+            if (axis > 0) out.append(" % ").append(String.valueOf(extents[axis]));
+            out.append(";\n");
+
+            if (inside.length() > 0) inside.append(" && ");
+            if (tile.axes[axis] == KernelTiling.LOOP_AXIS || tile.low[axis] < 0) {
+                inside.append(g).append(" >= 0 && ");
+            }
+            inside.append(g).append(" < ").append(tile.tensor).append("_shape.dims[").append(String.valueOf(axis)).append("]");
+            indices.add(new Ident(g));
+        }
+        out.append(indent).append("\t").append(tileName(tiling, tile)).append("[bolt_e] = ").append(inside).append(" ? ");
+        appendFlatElement(out, new TensorAccessExpr(new Ident(tile.tensor), indices),
+                (TensorType) kernelInfo.externalVariables.get(tile.tensor));
+        out.append(" : 0;\n");
+        out.append(indent).append("}\n");
+    }
+
+    // tile[local0 * stride0 + ... + localn], the element of the thread (of the counter) moved by the read's offsets
+    private void appendTileElement(Appendable out, KernelTiling.TiledRead read) throws Exception {
+        KernelTiling tiling = currentKernel.tiling;
+        KernelTiling.Tile tile = read.tile;
+        int[] extents = tileExtents(tiling, tile, currentKernel.blockShape);
         String[] cudaAxes = {"x", "y", "z"};
 
+        out.append(tileName(tiling, tile)).append("[");
+        int after = product(extents);
+        for (int axis = 0; axis < extents.length; axis++) {
+            after /= extents[axis];
+            if (axis > 0) out.append(" + ");
+            String local;
+            if (tile.axes[axis] == KernelTiling.LOOP_AXIS) {
+                local = "(" + tiling.counter + " - bolt_tile_start)";
+            } else {
+                int shift = read.offsets[axis] - tile.low[axis];
+                local = "threadIdx." + cudaAxes[tile.axes[axis]];
+                if (shift != 0) {
+                    local = after > 1 ? "(" + local + " + " + shift + ")" : local + " + " + shift;
+                }
+            }
+            out.append(local);
+            if (after > 1) out.append(" * ").append(String.valueOf(after));
+        }
+        out.append("]");
+    }
+
+    private static String tileName(KernelTiling tiling, KernelTiling.Tile tile) {
+        return tile.tensor + "_tile" + tiling.tiles.indexOf(tile);
+    }
+
+    // Elements of the tile along each tensor axis: the block's threads and the halo, or a step of the loop
+    private static int[] tileExtents(KernelTiling tiling, KernelTiling.Tile tile, int[] blockShape) {
+        int[] extents = new int[tile.axes.length];
+        for (int axis = 0; axis < extents.length; axis++) {
+            extents[axis] = tile.axes[axis] == KernelTiling.LOOP_AXIS ? loopStep(tiling)
+                    : blockShape[tile.axes[axis]] + tile.high[axis] - tile.low[axis];
+        }
+        return extents;
+    }
+
+    // Iterations per step, fewer if the loop is known to be shorter
+    private static int loopStep(KernelTiling tiling) {
+        if (tiling.start instanceof IntVal start && tiling.bound instanceof IntVal bound) {
+            return Math.max(1, Math.min(LOOP_TILE_STEP, bound.value - start.value));
+        }
+        return LOOP_TILE_STEP;
+    }
+
+    private static long sharedMemoryBytes(KernelTiling tiling, int[] blockShape, Map<String, Type> externalVars) {
+        long bytes = 0;
+        for (KernelTiling.Tile tile : tiling.tiles) {
+            TensorType tt = (TensorType) externalVars.get(tile.tensor);
+            bytes += (long) product(tileExtents(tiling, tile, blockShape)) * elementBytes(tt.componentType);
+        }
+        return bytes;
+    }
+
+    // The values of the block's threads for each reduction
+    private static long sharedMemoryBytes(KernelReduction reduction, int[] blockShape, Map<String, Type> externalVars) {
+        long bytes = 0;
+        for (String var : reduction.variables.keySet()) {
+            bytes += (long) product(blockShape) * elementBytes((SimpleType) externalVars.get(var));
+        }
+        return bytes;
+    }
+
+    private static int elementBytes(SimpleType type) {
+        return switch (type.type) {
+            case DOUBLE -> 8;
+            case BOOL, CHAR -> 1;
+            default -> 4;
+        };
+    }
+
+    private static int product(int[] values) {
+        int product = 1;
+        for (int value : values) {
+            product *= value;
+        }
+        return product;
+    }
+
+    // Threads outside the iteration space return, or with shared memory tiles or reductions only mark
+    // themselves inactive, since they still have to take part in loading the tiles and combining the values
+    private void generateThreadIndexing(Appendable kfWriter, KernelInfo kernelInfo) throws Exception {
+        String[] cudaAxes = {"x", "y", "z"};
+        boolean tiled = kernelInfo.hasBarriers();
+        StringBuilder active = new StringBuilder();
+
         int dimIndex = 0;
         for (Pair<String, SizeParam> dim : kernelInfo.deferBlock.dim) {
             String threadVar = dim.elem1;
             String axis = cudaAxes[dimIndex];
 
-            kfWriter.append("\tint " + threadVar + " = blockIdx." + axis + " * blockDim." + axis + " + threadIdx." + axis + ";\n");
+            kfWriter.append("\tint ").append(threadVar).append(" = blockIdx.").append(axis)
+                    .append(" * blockDim.").append(axis).append(" + threadIdx.").append(axis).append(";\n");
 
             // Add bounds check
             String dimLimit = transpileSizeParameters(dim.elem2);
-            kfWriter.append("\tif(" + threadVar + " >= " + dimLimit + ") return;\n");
+            if (tiled) {
+                if (active.length() > 0) active.append(" && ");
+                active.append(threadVar).append(" < ").append(dimLimit);
+            } else {
+                kfWriter.append("\tif(").append(threadVar).append(" >= ").append(dimLimit).append(") return;\n");
+            }
 
             dimIndex++;
         }
+
+        if (tiled) {
+            int[] shape = kernelInfo.blockShape;
+            kfWriter.append("\tbool bolt_active = ").append(active).append(";\n");
+            kfWriter.append("\tint bolt_thread = threadIdx.x");
+            if (shape.length > 1) kfWriter.append(" + threadIdx.y * ").append(String.valueOf(shape[0]));
+            if (shape.length > 2) kfWriter.append(" + threadIdx.z * ").append(String.valueOf(shape[0] * shape[1]));
+            kfWriter.append(";\n");
+        }
     }
 
-    private static String getCudaType(SimpleType simpleType) {
+    static String getCudaType(SimpleType simpleType) {
         switch (simpleType.type) {
             case INT: return "int";
             case DOUBLE: return "double";
@@ -169,37 +623,45 @@ public class Transpiler {
     }
 
     // Analyze external variables and their types
-    private static Map<String, Type> analyzeExternalVariables(Defer df, Set<String> threadVars) {
+    Map<String, Type> analyzeExternalVariables(Defer df, Set<String> threadVars) {
         Set<String> usedVars = new HashSet<>();
         Set<String> declaredVars = new HashSet<>();
 
         // Collect variables from the defer block
         collectVariablesFromStmt(df.stmt, usedVars, declaredVars);
+        // Sizes of the thread dimensions are used by the bounds checks
+        for (Pair<String, SizeParam> dim : df.dim) {
+            if (dim.elem2 instanceof SPIdent size) {
+                usedVars.add(size.ident);
+            }
+        }
 
         // External vars = used - declared - thread vars
         Set<String> externalVars = new HashSet<>(usedVars);
         externalVars.removeAll(declaredVars);
         externalVars.removeAll(threadVars);
 
-        System.out.println("[DEBUG] Used vars: " + usedVars);
-        System.out.println("[DEBUG] Declared vars: " + declaredVars);
-        System.out.println("[DEBUG] Thread vars: " + threadVars);
-        System.out.println("[DEBUG] External vars (before type lookup): " + externalVars);
+        if (debug) {
+            System.out.println("[DEBUG] Used vars: " + usedVars);
+            System.out.println("[DEBUG] Declared vars: " + declaredVars);
+            System.out.println("[DEBUG] Thread vars: " + threadVars);
+            System.out.println("[DEBUG] External vars (before type lookup): " + externalVars);
+        }
 
-        // Map to types using the function-local type map
-        Map<String, Type> externalVarsWithTypes = new HashMap<>();
+        // Map to types using the function-local type map, sorted by name so kernel parameters have a stable order
+        Map<String, Type> externalVarsWithTypes = new TreeMap<>();
         for (String var : externalVars) {
             Type varType = currentFunctionTypes.get(var);
             if (varType != null) {
                 externalVarsWithTypes.put(var, varType);
-                System.out.println("[DEBUG] Found external var: " + var + " of type " + getTypeString(varType));
+                if (debug) System.out.println("[DEBUG] Found external var: " + var + " of type " + getTypeString(varType));
             } else {
                 // Try the global environment as fallback
                 Type globalType = globalTypeEnv.lookup(var);
                 if (globalType != null) {
                     externalVarsWithTypes.put(var, globalType);
-                    System.out.println("[DEBUG] Found external var in global env: " + var + " of type " + getTypeString(globalType));
-                } else {
+                    if (debug) System.out.println("[DEBUG] Found external var in global env: " + var + " of type " + getTypeString(globalType));
+                } else if (debug) {
                     System.out.println("[DEBUG] Could not find type for variable: " + var);
                 }
             }
@@ -241,6 +703,12 @@ public class Transpiler {
                 }
                 break;
 
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collectVariablesFromStmt(s, used, declared);
+                }
+                break;
+
             case Comp comp:
                 collectVariablesFromStmt(comp.stmt1, used, declared);
                 collectVariablesFromStmt(comp.stmt2, used, declared);
@@ -313,30 +781,62 @@ public class Transpiler {
         }
     }
 
-    static void transpileDef(FileWriter fileWriter, FuncDef f) throws Exception {
+    void transpileDef(Appendable fileWriter, FuncDef f) throws Exception {
         if (f == null) return;
 
         // Clear types for each new function
         currentFunctionTypes.clear();
         declaredDeviceVariables.clear();
-        System.out.println("[DEBUG] Starting function: " + f.procname);
+        // Parameters can be used in defer blocks (as tensors or as sizes) like local variables
+        if (f.formalParams != null) {
+            for (Pair<Type, String> param : f.formalParams) {
+                currentFunctionTypes.put(param.elem2, param.elem1);
+            }
+        }
+        if (debug) System.out.println("[DEBUG] Starting function: " + f.procname);
+
+        FunctionCFGInfo cfgInfo = currentFunctionCFGs.get(f.procname);
+        transferPlan = cfgInfo != null ? transferPlanOf(f, cfgInfo) : null;
+        if (debug && transferPlan != null) System.out.print("[DEBUG] Transfer plan:\n" + transferPlan);
 
         printFunctionHeader(fileWriter, f);
         fileWriter.append(" {\n");
+        int streams = transferPlan != null ? transferPlan.streamCount() : 0;
+        if (streams > 0) {
+            fileWriter.append("cudaStream_t bolt_streams[").append(String.valueOf(streams)).append("];\n");
+            fileWriter.append("for (int s = 0; s < ").append(String.valueOf(streams))
+                    .append("; s++) cudaStreamCreateWithFlags(&bolt_streams[s], cudaStreamNonBlocking);\n");
+        }
+        if (transferPlan != null) emitTransferActions(fileWriter, transferPlan.atEntry());
 
         // Pass function name to transpileStmt for CFG lookup
         transpileStmt(fileWriter, f.funcBody, null, false, f.procname);
 
-        String returnExpr = transpileExpr(f.returnExpr, null, false);
-        fileWriter.append("return " + returnExpr + ";\n");
+        if (transferPlan != null) emitTransferActions(fileWriter, transferPlan.atExit());
+        if (streams > 0) {
+            fileWriter.append("for (int s = 0; s < ").append(String.valueOf(streams))
+                    .append("; s++) cudaStreamDestroy(bolt_streams[s]);\n");
+        }
+        fileWriter.append("return ");
+        transpileExpr(fileWriter, f.returnExpr, null, false);
+        fileWriter.append(";\n");
         fileWriter.append("}\n\n");
+    }
 
-        transpileDef(fileWriter, f.nextFunc);
+    // The transfer plan the analysis of the function made, see CFGAnalysis.planMemoryTransfers
+    private static TransferPlan transferPlanOf(FuncDef f, FunctionCFGInfo cfgInfo) {
+        if (cfgInfo.transfers == null) {
+            throw new IllegalStateException("The CFG info of function '" + f.procname + "' has no transfer plan");
+        }
+        return cfgInfo.transfers;
     }
 
-    static void transpileStmt(FileWriter fWriter, Stmt s, ArrayList<String> forbiddenIdentifiers, boolean inKernel, String functionName) throws Exception {
+    void transpileStmt(Appendable fWriter, Stmt s, ArrayList<String> forbiddenIdentifiers, boolean inKernel, String functionName) throws Exception {
         if (s == null) return;
 
+        boolean planned = !inKernel && transferPlan != null;
+        if (planned) emitTransferActions(fWriter, transferPlan.before(s));
+
         switch (s) {
             case Assign asgn:
                 transpileAssignment(fWriter, asgn, inKernel);
@@ -346,6 +846,12 @@ public class Transpiler {
                 transpileDeclaration(fWriter, decl, inKernel, functionName);
                 break;
 
+            case Block block:
+                for (Stmt stmt : block.stmts) {
+                    transpileStmt(fWriter, stmt, forbiddenIdentifiers, inKernel, functionName);
+                }
+                break;
+
             case Comp comp:
                 transpileStmt(fWriter, comp.stmt1, forbiddenIdentifiers, inKernel, functionName);
                 transpileStmt(fWriter, comp.stmt2, forbiddenIdentifiers, inKernel, functionName);
@@ -370,90 +876,103 @@ public class Transpiler {
             default:
                 break;
         }
-    }
 
-    private static void transpileAssignment(FileWriter fWriter, Assign asgn, boolean inKernel) throws Exception {
-        String expr = transpileExpr(asgn.expr, null, inKernel);
+        if (planned) emitTransferActions(fWriter, transferPlan.after(s));
+    }
 
+    private void transpileAssignment(Appendable fWriter, Assign asgn, boolean inKernel) throws Exception {
         if (asgn.isSimpleAssignment()) {
             // Simple assignment: x = value
-            String ident = asgn.getIdentifier();
-            fWriter.append(ident + " = " + expr + ";\n");
+            fWriter.append(asgn.getIdentifier()).append(" = ");
+            transpileExpr(fWriter, asgn.expr, null, inKernel);
+            fWriter.append(";\n");
         } else {
             // Tensor assignment: tensor[i,j] = value
             if (asgn.target instanceof TensorAccessExpr) {
                 TensorAccessExpr tae = (TensorAccessExpr) asgn.target;
-                String baseExpr = transpileExpr(tae.listExpr, null, inKernel);
-
-                if (inKernel) {
-                    // Build indices array
-                    StringBuilder indices = new StringBuilder();
-                    for (int i = 0; i < tae.indices.size(); i++) {
-                        if (i > 0) indices.append(", ");
-                        indices.append(transpileExpr(tae.indices.get(i), null, inKernel));
-                    }
 
+                if (inKernel && kernelTensorType(tae) != null) {
+                    // Direct store with the strides of the tensor's type
+                    appendFlatElement(fWriter, tae, kernelTensorType(tae));
+                    fWriter.append(" = ");
+                    transpileExpr(fWriter, asgn.expr, null, inKernel);
+                    fWriter.append(";\n");
+                } else if (inKernel) {
                     // Use the generic function for any dimension
                     fWriter.append("{\n");
-                    fWriter.append("    int indices[] = {" + indices + "};\n");
-                    fWriter.append("    tensor_set(" + baseExpr + "_data, indices, " +
-                            baseExpr + "_dims, " + tae.indices.size() + ", " + expr + ");\n");
+                    fWriter.append("    int indices[] = {");
+                    transpileExprList(fWriter, tae.indices, inKernel);
+                    fWriter.append("};\n");
+                    fWriter.append("    tensor_set(");
+                    transpileExpr(fWriter, tae.listExpr, null, inKernel);
+                    fWriter.append("_data, indices, ");
+                    transpileExpr(fWriter, tae.listExpr, null, inKernel);
+                    fWriter.append("_shape.dims, ").append(String.valueOf(tae.indices.size())).append(", ");
+                    transpileExpr(fWriter, asgn.expr, null, inKernel);
+                    fWriter.append(");\n");
                     fWriter.append("}\n");
                 } else {
                     // Host code - use host methods
-                    StringBuilder indices = new StringBuilder();
-                    for (int i = 0; i < tae.indices.size(); i++) {
-                        if (i > 0) indices.append(", ");
-                        indices.append(transpileExpr(tae.indices.get(i), null, inKernel));
-                    }
-                    fWriter.append(baseExpr + ".setAt({" + indices + "}, " + expr + ");\n");
+                    transpileExpr(fWriter, tae.listExpr, null, inKernel);
+                    fWriter.append(".setAt({");
+                    transpileExprList(fWriter, tae.indices, inKernel);
+                    fWriter.append("}, ");
+                    transpileExpr(fWriter, asgn.expr, null, inKernel);
+                    fWriter.append(");\n");
                 }
             }
         }
     }
 
-    private static void transpileDeclaration(FileWriter fWriter, Declaration decl, boolean inKernel, String functionName) throws Exception {
+    private void transpileDeclaration(Appendable fWriter, Declaration decl, boolean inKernel, String functionName) throws Exception {
         String type = boltToCudaTypeConverter(decl.t);
         String ident = decl.ident;
 
         // Store the type for later use
         currentFunctionTypes.put(ident, decl.t);
-        System.out.println("[DEBUG] Stored type for " + ident + ": " + getTypeString(decl.t));
+        if (debug) System.out.println("[DEBUG] Stored type for " + ident + ": " + getTypeString(decl.t));
 
+        fWriter.append(type).append(" ").append(ident);
         if (decl.expr != null) {
-            String expr = transpileExpr(decl.expr, decl.t, inKernel);
-            fWriter.append(type + " " + ident + " = " + expr + ";\n");
-        } else {
-            fWriter.append(type + " " + ident + ";\n");
+            fWriter.append(" = ");
+            transpileExpr(fWriter, decl.expr, decl.t, inKernel);
         }
+        fWriter.append(";\n");
 
         transpileStmt(fWriter, decl.stmt, null, inKernel, functionName);
     }
 
-    private static void transpileIf(FileWriter fWriter, If ifStmt, ArrayList<String> forbiddenIdentifiers, boolean inKernel, String functionName) throws Exception {
-        String cond = transpileExpr(ifStmt.cond, null, inKernel);
-        fWriter.append("if(" + cond + ") {\n");
+    private void transpileIf(Appendable fWriter, If ifStmt, ArrayList<String> forbiddenIdentifiers, boolean inKernel, String functionName) throws Exception {
+        fWriter.append("if(");
+        transpileExpr(fWriter, ifStmt.cond, null, inKernel);
+        fWriter.append(") {\n");
         transpileStmt(fWriter, ifStmt.then, forbiddenIdentifiers, inKernel, functionName);
+        boolean planned = !inKernel && transferPlan != null;
+        if (planned) emitTransferActions(fWriter, transferPlan.atThenEnd(ifStmt));
         fWriter.append("}\n");
 
-        if (ifStmt.els != null) {
+        // Transfers at the end of the else branch need one even if the program has none
+        if (ifStmt.els != null || (planned && !transferPlan.atElseEnd(ifStmt).isEmpty())) {
             fWriter.append("else {\n");
             transpileStmt(fWriter, ifStmt.els, forbiddenIdentifiers, inKernel, functionName);
+            if (planned) emitTransferActions(fWriter, transferPlan.atElseEnd(ifStmt));
             fWriter.append("}\n");
         }
     }
 
-    private static void transpileWhile(FileWriter fWriter, While whileStmt, ArrayList<String> forbiddenIdentifiers, boolean inKernel, String functionName) throws Exception {
-        String cond = transpileExpr(whileStmt.cond, null, inKernel);
-        fWriter.append("while(" + cond + ") {\n");
+    private void transpileWhile(Appendable fWriter, While whileStmt, ArrayList<String> forbiddenIdentifiers, boolean inKernel, String functionName) throws Exception {
+        fWriter.append("while(");
+        transpileExpr(fWriter, whileStmt.cond, null, inKernel);
+        fWriter.append(") {\n");
         transpileStmt(fWriter, whileStmt.stmt, forbiddenIdentifiers, inKernel, functionName);
+        if (!inKernel && transferPlan != null) emitTransferActions(fWriter, transferPlan.atBodyEnd(whileStmt));
         fWriter.append("}\n");
     }
 
-    private static void transpileDefer(FileWriter fWriter, Defer defer, String functionName) throws Exception {
+    void transpileDefer(Appendable fWriter, Defer defer, String functionName) throws Exception {
         // Generate kernel name
         String kernelName = fnameGenerator.generateFunctionName();
-        System.out.println("[DEBUG] Generated kernel name: " + kernelName);
+        if (debug) System.out.println("[DEBUG] Generated kernel name: " + kernelName);
 
         // Get thread variables
         Set<String> threadVars = new HashSet<>();
@@ -463,135 +982,306 @@ public class Transpiler {
 
         // Analyze external variables with types
         Map<String, Type> externalVars = analyzeExternalVariables(defer, threadVars);
-        System.out.println("[DEBUG] External vars with types: " + externalVars);
+        if (debug) System.out.println("[DEBUG] External vars with types: " + externalVars);
+
+        KernelAccess access = KernelAccess.of(defer, externalVars);
+        if (debug) System.out.println("[DEBUG] Kernel reads: " + access.reads + ", writes: " + access.writes);
+        KernelReduction reduction = KernelReduction.of(defer, externalVars);
 
         // Generate memory transfers using CFG information
-        generateMemoryTransfers(fWriter, externalVars, kernelName, functionName, true); // CPU -> GPU
+        generateMemoryTransfers(fWriter, externalVars, access, functionName, true); // CPU -> GPU
 
         // Generate kernel launch configuration
-        generateKernelLaunch(fWriter, defer, kernelName);
+        int[] blockShape = generateKernelLaunch(fWriter, defer, kernelName, externalVars);
+
+        if (reduction != null) {
+            allocatePartials(fWriter, kernelName, reduction, externalVars);
+        }
 
         // Generate kernel call with device pointers
-        generateKernelCallWithDevicePointers(fWriter, kernelName, externalVars);
+        int stream = transferPlan != null ? transferPlan.streamOf(defer) : -1;
+        generateKernelCallWithDevicePointers(fWriter, kernelName, externalVars, reduction, stream);
+
+        if (reduction != null) {
+            combinePartials(fWriter, kernelName, reduction, externalVars, stream);
+        }
 
         // Generate memory transfers back
-        generateMemoryTransfers(fWriter, externalVars, kernelName, functionName, false); // GPU -> CPU
+        generateMemoryTransfers(fWriter, externalVars, access, functionName, false); // GPU -> CPU
+
+        // Store kernel info for later generation, tiles only get the shared memory the reductions leave
+        KernelTiling tiling = KernelTiling.of(defer, externalVars, access);
+        long reductionBytes = reduction != null ? sharedMemoryBytes(reduction, blockShape, externalVars) : 0;
+        if (tiling != null && sharedMemoryBytes(tiling, blockShape, externalVars) + reductionBytes > SHARED_MEMORY_BYTES) {
+            tiling = null;
+        }
+        kernelsToGenerate.add(new KernelInfo(defer, kernelName, externalVars, access, blockShape, tiling, reduction));
+    }
+
+    // A device buffer per reduction with a slot for the result of every block
+    private void allocatePartials(Appendable fWriter, String kernelName, KernelReduction reduction,
+                                  Map<String, Type> externalVars) throws Exception {
+        String blocks = "bolt_blocks_" + kernelName;
+        String grid = "amountOfBlocks_" + kernelName;
+        fWriter.append("int ").append(blocks).append(" = ").append(grid).append(".x * ").append(grid).append(".y * ")
+                .append(grid).append(".z;\n");
+        for (String var : reduction.variables.keySet()) {
+            String dataType = getCudaType((SimpleType) externalVars.get(var));
+            fWriter.append(dataType).append("* ").append(partialsName(kernelName, var)).append(" = static_cast<")
+                    .append(dataType).append("*>(bolt_device_pool().allocate(").append(blocks).append(" * sizeof(")
+                    .append(dataType).append(")));\n");
+        }
+    }
 
-        // Store kernel info for later generation
-        kernelsToGenerate.add(new KernelInfo(defer, kernelName, externalVars));
+    // Waits for the kernel, then folds the results of its blocks into the host's values in block order
+    private void combinePartials(Appendable fWriter, String kernelName, KernelReduction reduction,
+                                 Map<String, Type> externalVars, int stream) throws Exception {
+        String blocks = "bolt_blocks_" + kernelName;
+        if (stream >= 0) {
+            fWriter.append("cudaStreamSynchronize(bolt_streams[").append(String.valueOf(stream)).append("]);\n");
+        }
+        for (Map.Entry<String, KernelReduction.Operator> entry : reduction.variables.entrySet()) {
+            String var = entry.getKey();
+            String dataType = getCudaType((SimpleType) externalVars.get(var));
+            String device = partialsName(kernelName, var);
+            String host = "host_" + kernelName + "_" + var + "_partials";
+            fWriter.append("std::unique_ptr<").append(dataType).append("[]> ").append(host).append("(new ")
+                    .append(dataType).append("[").append(blocks).append("]);\n");
+            fWriter.append("cudaMemcpy(").append(host).append(".get(), ").append(device).append(", ").append(blocks)
+                    .append(" * sizeof(").append(dataType).append("), cudaMemcpyDeviceToHost);\n");
+            fWriter.append("for(int bolt_block = 0; bolt_block < ").append(blocks).append("; bolt_block++) {\n");
+            fWriter.append(var).append(" = ").append(combine(entry.getValue(), var, host + "[bolt_block]")).append(";\n");
+            fWriter.append("}\n");
+            fWriter.append("bolt_device_pool().release(").append(device).append(");\n");
+        }
+    }
+
+    private static String partialsName(String kernelName, String var) {
+        return "device_" + kernelName + "_" + var + "_partials";
     }
 
     // Method to generate memory transfers based on CFG analysis
-    private static void generateMemoryTransfers(FileWriter fWriter, Map<String, Type> externalVars,
-                                                String kernelName, String functionName, boolean cpuToGpu) throws Exception {
+    private void generateMemoryTransfers(Appendable fWriter, Map<String, Type> externalVars, KernelAccess access,
+                                                String functionName, boolean cpuToGpu) throws Exception {
 
-        System.out.println("[DEBUG] Generating memory transfers - CPU to GPU: " + cpuToGpu);
+        if (debug) System.out.println("[DEBUG] Generating memory transfers - CPU to GPU: " + cpuToGpu);
 
         // Get CFG info for this function
         FunctionCFGInfo cfgInfo = currentFunctionCFGs.get(functionName);
         if (cfgInfo == null) {
-            System.out.println("[DEBUG] No CFG info found for function: " + functionName);
+            if (debug) System.out.println("[DEBUG] No CFG info found for function: " + functionName);
+            return;
+        }
+
+        // Tensors of the function are moved by its transfer plan, this only handles the ones it doesn't know
+        Map<String, Type> unplanned = new TreeMap<>();
+        for (Map.Entry<String, Type> entry : externalVars.entrySet()) {
+            if (transferPlan == null || !transferPlan.isResident(entry.getKey())) {
+                unplanned.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (unplanned.values().stream().noneMatch(t -> t instanceof TensorType)) {
             return;
         }
 
         if (cpuToGpu) {
             fWriter.append("// Memory transfer: CPU -> GPU\n");
-            for (Map.Entry<String, Type> entry : externalVars.entrySet()) {
+            for (Map.Entry<String, Type> entry : unplanned.entrySet()) {
                 String varName = entry.getKey();
                 Type varType = entry.getValue();
 
                 if (varType instanceof TensorType) {
-                    generateTensorCpuToGpu(fWriter, varName, kernelName, varType);
+                    generateTensorCpuToGpu(fWriter, varName, varType, access.needsUpload(varName));
                 }
                 // For scalar types, no explicit transfer needed - passed by value
             }
         } else {
             fWriter.append("// Memory transfer: GPU -> CPU\n");
-            for (Map.Entry<String, Type> entry : externalVars.entrySet()) {
+            for (Map.Entry<String, Type> entry : unplanned.entrySet()) {
                 String varName = entry.getKey();
                 Type varType = entry.getValue();
 
                 if (varType instanceof TensorType) {
-                    generateTensorGpuToCpu(fWriter, varName, kernelName, varType);
+                    generateTensorGpuToCpu(fWriter, varName, varType, access.needsDownload(varName));
                 }
             }
         }
     }
 
-    // generate CPU to GPU tensor transfer
-    private static void generateTensorCpuToGpu(FileWriter fWriter, String varName, String kernelName, Type tensorType) throws Exception {
+    // Emits the actions of the transfer plan at one point of the host code. Copies are queued on the
+    // tensor's stream behind its event, the host only blocks after a download.
+    private void emitTransferActions(Appendable fWriter, List<TransferPlan.Action> actions) throws Exception {
+        for (TransferPlan.Action action : actions) {
+            String varName = action.variable;
+            TensorType tt = (TensorType) currentFunctionTypes.get(varName);
+            String dataType = getCudaType(tt.componentType);
+            String deviceDataName = "device_" + varName + "_data";
+            String event = "event_" + varName;
+            String stream = "bolt_streams[" + transferPlan.homeStream(varName) + "]";
+            String size = varName + ".components.size() * sizeof(" + dataType + ")";
+
+            switch (action.kind) {
+                case ALLOCATE:
+                    if (tt.dimensions.size() > MAX_KERNEL_TENSOR_RANK) {
+                        throw new Exception("Tensor " + varName + " has more than " + MAX_KERNEL_TENSOR_RANK
+                                + " dimensions and can't be passed to a kernel");
+                    }
+                    fWriter.append(dataType).append("* ").append(deviceDataName).append(" = static_cast<").append(dataType)
+                            .append("*>(bolt_device_pool().allocate(").append(size).append("));\n");
+                    // Copies from page-locked memory are asynchronous and skip the staging buffer
+                    fWriter.append(varName).append(".pin();\n");
+                    fWriter.append("cudaEvent_t ").append(event).append(";\n");
+                    fWriter.append("cudaEventCreateWithFlags(&").append(event).append(", cudaEventDisableTiming);\n");
+                    break;
+                case UPLOAD:
+                    transferCount++;
+                    fWriter.append("cudaStreamWaitEvent(").append(stream).append(", ").append(event).append(", 0);\n");
+                    fWriter.append("cudaMemcpyAsync(").append(deviceDataName).append(", ").append(varName).append(".getData(), ")
+                            .append(size).append(", cudaMemcpyHostToDevice, ").append(stream).append(");\n");
+                    fWriter.append("cudaEventRecord(").append(event).append(", ").append(stream).append(");\n");
+                    break;
+                case DOWNLOAD:
+                    transferCount++;
+                    fWriter.append("cudaStreamWaitEvent(").append(stream).append(", ").append(event).append(", 0);\n");
+                    fWriter.append("cudaMemcpyAsync(").append(varName).append(".getData(), ").append(deviceDataName).append(", ")
+                            .append(size).append(", cudaMemcpyDeviceToHost, ").append(stream).append(");\n");
+                    fWriter.append("cudaEventRecord(").append(event).append(", ").append(stream).append(");\n");
+                    fWriter.append("cudaEventSynchronize(").append(event).append(");\n");
+                    break;
+                case SYNC:
+                    fWriter.append("cudaEventSynchronize(").append(event).append(");\n");
+                    break;
+                case FREE:
+                    fWriter.append("cudaEventSynchronize(").append(event).append(");\n");
+                    fWriter.append("cudaEventDestroy(").append(event).append(");\n");
+                    fWriter.append("bolt_device_pool().release(").append(deviceDataName).append(");\n");
+                    break;
+            }
+        }
+    }
+
+    // CPU to GPU tensor transfer: allocates the device copy of a tensor, and uploads its contents if upload is set
+    private void generateTensorCpuToGpu(Appendable fWriter, String varName, Type tensorType, boolean upload) throws Exception {
         if (tensorType instanceof TensorType) {
             TensorType tt = (TensorType) tensorType;
             String dataType = getCudaType(tt.componentType);
             String sizeOfType = "sizeof(" + dataType + ")";
 
             String deviceDataName = "device_" + varName + "_data";
-            String deviceDimsName = "device_" + varName + "_dims";
+            if (tt.dimensions.size() > MAX_KERNEL_TENSOR_RANK) {
+                throw new Exception("Tensor " + varName + " has more than " + MAX_KERNEL_TENSOR_RANK
+                        + " dimensions and can't be passed to a kernel");
+            }
 
             // Only declare if not already declared
             if (!declaredDeviceVariables.contains(deviceDataName)) {
-                fWriter.append(dataType + "* " + deviceDataName + ";\n");
-                fWriter.append("int* " + deviceDimsName + ";\n");
+                fWriter.append(dataType).append("* ").append(deviceDataName).append(";\n");
                 declaredDeviceVariables.add(deviceDataName);
-                declaredDeviceVariables.add(deviceDimsName);
             }
 
-            // Always allocate and copy (in case it was freed earlier)
-            fWriter.append("cudaMalloc(&" + deviceDataName + ", " + varName + ".components.size() * " + sizeOfType + ");\n");
-            fWriter.append("cudaMalloc(&" + deviceDimsName + ", " + varName + ".dimensions.size() * sizeof(int));\n");
-            fWriter.append("cudaMemcpy(" + deviceDataName + ", " + varName + ".getData(), " + varName + ".components.size() * " + sizeOfType + ", cudaMemcpyHostToDevice);\n");
-            fWriter.append("cudaMemcpy(" + deviceDimsName + ", " + varName + ".getDims(), " + varName + ".dimensions.size() * sizeof(int), cudaMemcpyHostToDevice);\n");
+            // Always allocate (in case it was freed earlier), the pool reuses the freed block
+            fWriter.append(deviceDataName).append(" = static_cast<").append(dataType).append("*>(bolt_device_pool().allocate(")
+                    .append(varName).append(".components.size() * ").append(sizeOfType).append("));\n");
+            if (upload) {
+                transferCount++;
+                fWriter.append("cudaMemcpy(").append(deviceDataName).append(", ").append(varName).append(".getData(), ")
+                        .append(varName).append(".components.size() * ").append(sizeOfType).append(", cudaMemcpyHostToDevice);\n");
+            }
         }
     }
-    // generate GPU to CPU tensor transfer
-    private static void generateTensorGpuToCpu(FileWriter fWriter, String varName, String kernelName, Type tensorType) throws Exception {
+
+    // GPU to CPU tensor transfer: downloads the contents of a tensor if download is set, and frees the device copy
+    private void generateTensorGpuToCpu(Appendable fWriter, String varName, Type tensorType, boolean download) throws Exception {
         if (tensorType instanceof TensorType) {
             TensorType tt = (TensorType) tensorType;
             String dataType = getCudaType(tt.componentType);
             String sizeOfType = "sizeof(" + dataType + ")";
 
-            fWriter.append("cudaMemcpy(" + varName + ".getData(), device_" + varName + "_data, " + varName + ".components.size() * " + sizeOfType + ", cudaMemcpyDeviceToHost);\n");
-            fWriter.append("cudaFree(device_" + varName + "_data);\n");
-            fWriter.append("cudaFree(device_" + varName + "_dims);\n");
+            if (download) {
+                transferCount++;
+                fWriter.append("cudaMemcpy(").append(varName).append(".getData(), device_").append(varName).append("_data, ")
+                        .append(varName).append(".components.size() * ").append(sizeOfType).append(", cudaMemcpyDeviceToHost);\n");
+            }
+            fWriter.append("bolt_device_pool().release(device_").append(varName).append("_data);\n");
         }
     }
 
-    private static void generateKernelLaunch(FileWriter fWriter, Defer defer, String kernelName) throws Exception {
-        int dimCount = defer.dim.size();
+    // The block shape comes from the launch policy, the grid covers the iteration space with it.
+    // Returns the block shape.
+    private int[] generateKernelLaunch(Appendable fWriter, Defer defer, String kernelName, Map<String, Type> externalVars) throws Exception {
+        List<SizeParam> sizes = new ArrayList<>();
+        for (Pair<String, SizeParam> dim : defer.dim) {
+            sizes.add(dim.elem2);
+        }
+        int[] shape = launchPolicy.blockShape(kernelSignature(kernelName, externalVars), sizes);
+        String error = LaunchPolicy.checkShape(shape, sizes.size());
+        if (error != null) {
+            throw new Exception("Launch policy chose block shape " + LaunchPolicy.shapeString(shape) + " for "
+                    + kernelName + ", which " + error);
+        }
 
-        switch (dimCount) {
-            case 1:
-                String size1 = transpileSizeParameters(defer.dim.get(0).elem2);
-                fWriter.append("int blockSize_" + kernelName + " = (256 < " + size1 + ") ? 256 : " + size1 + ";\n");
-                fWriter.append("dim3 blockShape_" + kernelName + "(blockSize_" + kernelName + ");\n");
-                fWriter.append("dim3 amountOfBlocks_" + kernelName + "((" + size1 + " + blockSize_" + kernelName + " - 1) / blockSize_" + kernelName + ");\n");
-                break;
+        fWriter.append("dim3 blockShape_").append(kernelName).append("(");
+        for (int axis = 0; axis < shape.length; axis++) {
+            if (axis > 0) fWriter.append(", ");
+            fWriter.append(String.valueOf(shape[axis]));
+        }
+        fWriter.append(");\n");
 
-            case 2:
-                String sizeX = transpileSizeParameters(defer.dim.get(0).elem2);
-                String sizeY = transpileSizeParameters(defer.dim.get(1).elem2);
-                fWriter.append("int blockX_" + kernelName + " = (16 < " + sizeX + ") ? 16 : " + sizeX + ";\n");
-                fWriter.append("int blockY_" + kernelName + " = (16 < " + sizeY + ") ? 16 : " + sizeY + ";\n");
-                fWriter.append("dim3 blockShape_" + kernelName + "(blockX_" + kernelName + ", blockY_" + kernelName + ");\n");
-                fWriter.append("dim3 amountOfBlocks_" + kernelName + "((" + sizeX + " + blockX_" + kernelName + " - 1) / blockX_" + kernelName + ", (" + sizeY + " + blockY_" + kernelName + " - 1) / blockY_" + kernelName + ");\n");
-                break;
+        fWriter.append("dim3 amountOfBlocks_").append(kernelName).append("(");
+        for (int axis = 0; axis < shape.length; axis++) {
+            if (axis > 0) fWriter.append(", ");
+            SizeParam size = sizes.get(axis);
+            if (size instanceof SPInt constant) {
+                fWriter.append(String.valueOf((constant.value + shape[axis] - 1) / shape[axis]));
+            } else if (shape[axis] == 1) {
+                fWriter.append(transpileSizeParameters(size));
+            } else {
+                fWriter.append("(").append(transpileSizeParameters(size)).append(" + ")
+                        .append(String.valueOf(shape[axis] - 1)).append(") / ").append(String.valueOf(shape[axis]));
+            }
+        }
+        fWriter.append(");\n");
+        return shape;
+    }
 
-            case 3:
-                String sizeX3 = transpileSizeParameters(defer.dim.get(0).elem2);
-                String sizeY3 = transpileSizeParameters(defer.dim.get(1).elem2);
-                String sizeZ3 = transpileSizeParameters(defer.dim.get(2).elem2);
-                fWriter.append("int blockX_" + kernelName + " = (8 < " + sizeX3 + ") ? 8 : " + sizeX3 + ";\n");
-                fWriter.append("int blockY_" + kernelName + " = (8 < " + sizeY3 + ") ? 8 : " + sizeY3 + ";\n");
-                fWriter.append("int blockZ_" + kernelName + " = (4 < " + sizeZ3 + ") ? 4 : " + sizeZ3 + ";\n");
-                fWriter.append("dim3 blockShape_" + kernelName + "(blockX_" + kernelName + ", blockY_" + kernelName + ", blockZ_" + kernelName + ");\n");
-                fWriter.append("dim3 amountOfBlocks_" + kernelName + "((" + sizeX3 + " + blockX_" + kernelName + " - 1) / blockX_" + kernelName + ", (" + sizeY3 + " + blockY_" + kernelName + " - 1) / blockY_" + kernelName + ", (" + sizeZ3 + " + blockZ_" + kernelName + " - 1) / blockZ_" + kernelName + ");\n");
-                break;
+    // Name and parameter types of a kernel, e.g. main_A(int[2],int), the key of a TuningTable
+    static String kernelSignature(String kernelName, Map<String, Type> externalVars) {
+        StringBuilder sb = new StringBuilder(kernelName).append('(');
+        boolean first = true;
+        for (Type type : externalVars.values()) {
+            if (!first) sb.append(',');
+            if (type instanceof TensorType tensorType) {
+                sb.append(getCudaType(tensorType.componentType)).append('[').append(tensorType.dimensions.size()).append(']');
+            } else if (type instanceof SimpleType simpleType) {
+                sb.append(getCudaType(simpleType));
+            }
+            first = false;
         }
+        return sb.append(')').toString();
     }
 
-    // generate kernel call with device pointers instead of host pointers
-    private static void generateKernelCallWithDevicePointers(FileWriter fWriter, String kernelName, Map<String, Type> externalVars) throws Exception {
-        fWriter.append(kernelName + "<<<amountOfBlocks_" + kernelName + ", blockShape_" + kernelName + ">>>(");
+    // Kernel call with device pointers instead of host pointers, launched on the given stream after the
+    // previous work on its resident tensors, or synchronously on the default stream if stream is -1
+    private void generateKernelCallWithDevicePointers(Appendable fWriter, String kernelName, Map<String, Type> externalVars,
+                                                      KernelReduction reduction, int stream) throws Exception {
+        String streamName = stream >= 0 ? "bolt_streams[" + stream + "]" : "0";
+        List<String> events = new ArrayList<>();
+        boolean unplanned = false;
+        for (Map.Entry<String, Type> entry : externalVars.entrySet()) {
+            if (entry.getValue() instanceof TensorType) {
+                if (stream >= 0 && transferPlan.isResident(entry.getKey())) {
+                    events.add("event_" + entry.getKey());
+                } else {
+                    unplanned = true;
+                }
+            }
+        }
+
+        for (String event : events) {
+            fWriter.append("cudaStreamWaitEvent(").append(streamName).append(", ").append(event).append(", 0);\n");
+        }
+        fWriter.append("BOLT_LAUNCH(").append(kernelName).append(", amountOfBlocks_").append(kernelName)
+                .append(", blockShape_").append(kernelName).append(", ").append(streamName).append(")(");
 
         boolean first = true;
         for (Map.Entry<String, Type> entry : externalVars.entrySet()) {
@@ -601,8 +1291,19 @@ public class Transpiler {
             if (!first) fWriter.append(", ");
 
             if (type instanceof TensorType) {
-                // Use device pointers instead of host pointers
-                fWriter.append("device_" + var + "_data, device_" + var + "_dims");
+                // Device pointer for the data, the shape is copied by value with the launch
+                fWriter.append("device_").append(var).append("_data, ").append(var).append(".shape()");
+                // Strides that depend on sizes only known at run time, computed once per launch
+                for (int axis : variableStrideAxes((TensorType) type)) {
+                    fWriter.append(", ");
+                    for (int d = axis + 1; d < ((TensorType) type).dimensions.size(); d++) {
+                        if (d > axis + 1) fWriter.append(" * ");
+                        fWriter.append(var).append(".dimensions[").append(String.valueOf(d)).append("]");
+                    }
+                }
+            } else if (reduction != null && reduction.variables.containsKey(var)) {
+                // Buffer for the results of the blocks
+                fWriter.append(partialsName(kernelName, var));
             } else {
                 // Scalar types passed by value
                 fWriter.append(var);
@@ -611,134 +1312,224 @@ public class Transpiler {
         }
 
         fWriter.append(");\n");
-        fWriter.append("cudaDeviceSynchronize();\n");
+
+        for (String event : events) {
+            fWriter.append("cudaEventRecord(").append(event).append(", ").append(streamName).append(");\n");
+        }
+        // Tensors copied around this launch alone need it finished before they are copied back
+        if (stream < 0) {
+            fWriter.append("cudaDeviceSynchronize();\n");
+        } else if (unplanned) {
+            fWriter.append("cudaStreamSynchronize(").append(streamName).append(");\n");
+        }
     }
 
-    static String transpileExpr(Expr e, Type optionalTypeObject, boolean inKernel) throws Exception {
-        if (e == null) return "";
+    // Appends the CUDA code of an expression to out
+    void transpileExpr(Appendable out, Expr e, Type optionalTypeObject, boolean inKernel) throws Exception {
+        if (e == null) return;
 
         switch (e) {
             case BinExpr be:
-                String e1 = transpileExpr(be.left, null, inKernel);
-                String e2 = transpileExpr(be.right, null, inKernel);
-                return e1 + " " + getBinOp(be.op) + " " + e2;
+                transpileExpr(out, be.left, null, inKernel);
+                out.append(" ").append(getBinOp(be.op)).append(" ");
+                transpileExpr(out, be.right, null, inKernel);
+                break;
 
             case IntVal iv:
-                return String.valueOf(iv.value);
+                out.append(String.valueOf(iv.value));
+                break;
 
             case BoolVal bv:
-                return String.valueOf(bv.value);
+                out.append(String.valueOf(bv.value));
+                break;
 
             case CharVal cv:
-                return "'" + cv.val + "'";
+                out.append("'").append(String.valueOf(cv.val)).append("'");
+                break;
 
             case DoubleVal dv:
-                return String.valueOf(dv.val);
+                out.append(String.valueOf(dv.val));
+                break;
 
             case Ident id:
-                return id.name;
+                out.append(id.name);
+                break;
 
             case ParenExpr pe:
-                return "(" + transpileExpr(pe.expr, null, inKernel) + ")";
+                out.append("(");
+                transpileExpr(out, pe.expr, null, inKernel);
+                out.append(")");
+                break;
 
             case UnExpr ue:
-                return getUnOp(ue.op) + transpileExpr(ue.expr, null, inKernel);
+                out.append(getUnOp(ue.op));
+                transpileExpr(out, ue.expr, null, inKernel);
+                break;
 
             case FuncCallExpr func:
-                if (func.name.equals("zeros")) {
-                    String rows = transpileExpr(func.actualParameters.get(0), null, inKernel);
-                    String cols = transpileExpr(func.actualParameters.get(1), null, inKernel);
-                    return "IntTensor(std::vector<int>(" + rows + " * " + cols + ", 0), {" + rows + ", " + cols + "})";
-                } else if (func.name.equals("ones")) {
-                    String rows = transpileExpr(func.actualParameters.get(0), null, inKernel);
-                    String cols = transpileExpr(func.actualParameters.get(1), null, inKernel);
-                    return "IntTensor(std::vector<int>(" + rows + " * " + cols + ", 1), {" + rows + ", " + cols + "})";
+                if (func.name.equals("zeros") || func.name.equals("ones")) {
+                    Expr rows = func.actualParameters.get(0);
+                    Expr cols = func.actualParameters.get(1);
+                    out.append("IntTensor(std::vector<int>(");
+                    transpileExpr(out, rows, null, inKernel);
+                    out.append(" * ");
+                    transpileExpr(out, cols, null, inKernel);
+                    out.append(func.name.equals("zeros") ? ", 0), {" : ", 1), {");
+                    transpileExpr(out, rows, null, inKernel);
+                    out.append(", ");
+                    transpileExpr(out, cols, null, inKernel);
+                    out.append("})");
+                    break;
+                }
+                if (func.name.equals("min") || func.name.equals("max")) {
+                    // Built-ins of tensor.h, which work on the host and the device
+                    out.append("bolt_");
                 }
-                StringBuilder params = new StringBuilder();
+                out.append(func.name).append("(");
                 if (func.actualParameters != null) {
-                    for (int i = 0; i < func.actualParameters.size(); i++) {
-                        if (i > 0) params.append(", ");
-                        params.append(transpileExpr(func.actualParameters.get(i), null, inKernel));
-                    }
+                    transpileExprList(out, func.actualParameters, inKernel);
                 }
-                return func.name + "(" + params + ")";
+                out.append(")");
+                break;
 
             case TensorAccessExpr tae:
-                String baseExpr = transpileExpr(tae.listExpr, null, inKernel);
-
-                if (inKernel) {
-                    // Build indices array inline
-                    StringBuilder indices = new StringBuilder();
-                    for (int i = 0; i < tae.indices.size(); i++) {
-                        if (i > 0) indices.append(", ");
-                        indices.append(transpileExpr(tae.indices.get(i), null, inKernel));
-                    }
-
+                if (inKernel && currentKernel != null && currentKernel.tiling != null
+                        && currentKernel.tiling.reads.containsKey(tae)) {
+                    // Element of a shared memory tile
+                    appendTileElement(out, currentKernel.tiling.reads.get(tae));
+                } else if (inKernel && kernelTensorType(tae) != null) {
+                    // Direct load with the strides of the tensor's type
+                    appendFlatElement(out, tae, kernelTensorType(tae));
+                } else if (inKernel) {
                     // Use statement expression for inline array creation
-                    return "({\n" +
-                            "    int _indices[] = {" + indices + "};\n" +
-                            "    tensor_access(" + baseExpr + "_data, _indices, " +
-                            baseExpr + "_dims, " + tae.indices.size() + ");\n" +
-                            "})";
+                    out.append("({\n");
+                    out.append("    int _indices[] = {");
+                    transpileExprList(out, tae.indices, inKernel);
+                    out.append("};\n");
+                    out.append("    tensor_access(");
+                    transpileExpr(out, tae.listExpr, null, inKernel);
+                    out.append("_data, _indices, ");
+                    transpileExpr(out, tae.listExpr, null, inKernel);
+                    out.append("_shape.dims, ").append(String.valueOf(tae.indices.size())).append(");\n");
+                    out.append("})");
                 } else {
                     // Host code - use host methods
-                    StringBuilder indices = new StringBuilder();
-                    for (int i = 0; i < tae.indices.size(); i++) {
-                        if (i > 0) indices.append(", ");
-                        indices.append(transpileExpr(tae.indices.get(i), null, inKernel));
-                    }
-                    return baseExpr + ".access({" + indices + "})";
+                    transpileExpr(out, tae.listExpr, null, inKernel);
+                    out.append(".access({");
+                    transpileExprList(out, tae.indices, inKernel);
+                    out.append("})");
                 }
-
+                break;
 
             case TensorDefExpr tde:
-                return transpileTensorDef(tde, optionalTypeObject, inKernel);
+                transpileTensorDef(out, tde, optionalTypeObject, inKernel);
+                break;
 
             default:
-                return "";
+                break;
         }
     }
 
-    private static String transpileTensorDef(TensorDefExpr tde, Type optionalTypeObject, boolean inKernel) throws Exception {
-        // Get dimensions
-        ArrayList<String> dimensions = new ArrayList<>();
-        if (optionalTypeObject instanceof TensorType) {
-            TensorType tensorType = (TensorType) optionalTypeObject;
-            for (SizeParam sp : tensorType.dimensions) {
-                dimensions.add(transpileSizeParameters(sp));
+    // Type of the kernel parameter a tensor access reads or writes, if every axis is indexed.
+    // null for anything else, which goes through the generic tensor_access/tensor_set of tensor.h.
+    private TensorType kernelTensorType(TensorAccessExpr tae) {
+        if (currentKernel == null || !(tae.listExpr instanceof Ident ident)) {
+            return null;
+        }
+        if (currentKernel.externalVariables.get(ident.name) instanceof TensorType tt
+                && tt.dimensions.size() == tae.indices.size()) {
+            return tt;
+        }
+        return null;
+    }
+
+    // name_data[i0 * stride0 + i1 * stride1 + ... + in], row-major like the host tensor classes
+    private void appendFlatElement(Appendable out, TensorAccessExpr tae, TensorType type) throws Exception {
+        String name = ((Ident) tae.listExpr).name;
+        int rank = tae.indices.size();
+        out.append(name).append("_data[");
+        for (int axis = 0; axis < rank; axis++) {
+            if (axis > 0) out.append(" + ");
+            Expr index = tae.indices.get(axis);
+            boolean simple = index instanceof Ident || index instanceof IntVal || index instanceof ParenExpr;
+            if (!simple) out.append("(");
+            transpileExpr(out, index, null, true);
+            if (!simple) out.append(")");
+            if (axis < rank - 1) {
+                Long stride = constantStride(type, axis);
+                if (stride == null) {
+                    out.append(" * ").append(name).append("_stride").append(String.valueOf(axis));
+                } else if (stride != 1) {
+                    out.append(" * ").append(String.valueOf(stride));
+                }
             }
         }
+        out.append("]");
+    }
 
-        StringBuilder sbDim = new StringBuilder("{");
-        for (int i = 0; i < dimensions.size(); i++) {
-            if (i > 0) sbDim.append(", ");
-            sbDim.append(dimensions.get(i));
+    // Product of the sizes after axis, null if one of them is a size variable
+    private static Long constantStride(TensorType type, int axis) {
+        long stride = 1;
+        for (int d = axis + 1; d < type.dimensions.size(); d++) {
+            if (!(type.dimensions.get(d) instanceof SPInt size)) {
+                return null;
+            }
+            stride *= size.value;
         }
-        sbDim.append("}");
+        return stride;
+    }
 
-        // Get components
-        ArrayList<String> components = new ArrayList<>();
-        getTensorComponents(tde, components, inKernel);
+    // Axes whose stride isn't a constant, each one is passed to the kernel as <tensor>_stride<axis>
+    static List<Integer> variableStrideAxes(TensorType type) {
+        List<Integer> axes = new ArrayList<>();
+        for (int axis = 0; axis < type.dimensions.size() - 1; axis++) {
+            if (constantStride(type, axis) == null) {
+                axes.add(axis);
+            }
+        }
+        return axes;
+    }
 
-        StringBuilder sbComponents = new StringBuilder("{");
-        for (int i = 0; i < components.size(); i++) {
-            if (i > 0) sbComponents.append(", ");
-            sbComponents.append(components.get(i));
+    // Appends a comma separated list of expressions
+    private void transpileExprList(Appendable out, List<Expr> exprs, boolean inKernel) throws Exception {
+        for (int i = 0; i < exprs.size(); i++) {
+            if (i > 0) out.append(", ");
+            transpileExpr(out, exprs.get(i), null, inKernel);
         }
-        sbComponents.append("}");
+    }
+
+    private void transpileTensorDef(Appendable out, TensorDefExpr tde, Type optionalTypeObject, boolean inKernel) throws Exception {
+        out.append(boltToCudaTypeConverter(optionalTypeObject)).append("(");
 
-        return boltToCudaTypeConverter(optionalTypeObject) + "(" + sbComponents + ", " + sbDim + ")";
+        // Components, nested tensor literals are flattened
+        out.append("{");
+        transpileTensorComponents(out, tde, true, inKernel);
+        out.append("}, ");
+
+        // Dimensions
+        out.append("{");
+        if (optionalTypeObject instanceof TensorType) {
+            TensorType tensorType = (TensorType) optionalTypeObject;
+            for (int i = 0; i < tensorType.dimensions.size(); i++) {
+                if (i > 0) out.append(", ");
+                out.append(transpileSizeParameters(tensorType.dimensions.get(i)));
+            }
+        }
+        out.append("})");
     }
 
-    static void getTensorComponents(TensorDefExpr tde, ArrayList<String> components, boolean inKernel) throws Exception {
+    // Returns whether nothing has been appended yet, so the next component knows if it needs a separator
+    private boolean transpileTensorComponents(Appendable out, TensorDefExpr tde, boolean first, boolean inKernel) throws Exception {
         for (Expr expression : tde.exprs) {
             if (expression instanceof TensorDefExpr) {
-                getTensorComponents((TensorDefExpr) expression, components, inKernel);
+                first = transpileTensorComponents(out, (TensorDefExpr) expression, first, inKernel);
             } else {
-                String transpiledExpression = transpileExpr(expression, null, inKernel);
-                components.add(transpiledExpression);
+                if (!first) out.append(", ");
+                transpileExpr(out, expression, null, inKernel);
+                first = false;
             }
         }
+        return first;
     }
 
     static String transpileSizeParameters(SizeParam sp) {
@@ -753,33 +1544,30 @@ public class Transpiler {
     }
 
     // Helper methods
-    static void printFunctionHeader(FileWriter fWriter, FuncDef f) throws Exception {
-        String rtype = boltToCudaTypeConverter(f.returnType);
-        String procName = f.procname;
-        StringBuilder params = new StringBuilder();
+    void printFunctionHeader(Appendable fWriter, FuncDef f) throws Exception {
+        fWriter.append(boltToCudaTypeConverter(f.returnType)).append(" ").append(f.procname).append("(");
 
         if (f.formalParams != null) {
             for (int i = 0; i < f.formalParams.size(); i++) {
-                if (i > 0) params.append(", ");
+                if (i > 0) fWriter.append(", ");
                 Pair<Type, String> p = f.formalParams.get(i);
-                params.append(boltToCudaTypeConverter(p.elem1)).append(" ").append(p.elem2);
+                fWriter.append(boltToCudaTypeConverter(p.elem1)).append(" ").append(p.elem2);
             }
         }
 
-        fWriter.append(rtype + " " + procName + "(" + params + ")");
+        fWriter.append(")");
     }
 
-    static void addPrototype(FileWriter fWriter, FuncDef f) throws Exception {
-        if (f == null) return;
-
-        if (f.procname.equals("main")) {
-            hasMain = true;
-        } else {
-            printFunctionHeader(fWriter, f);
-            fWriter.append(";\n");
+    // Prototypes of f and every function after it
+    void addPrototype(Appendable fWriter, FuncDef f) throws Exception {
+        for (; f != null; f = f.nextFunc) {
+            if (f.procname.equals("main")) {
+                hasMain = true;
+            } else {
+                printFunctionHeader(fWriter, f);
+                fWriter.append(";\n");
+            }
         }
-
-        addPrototype(fWriter, f.nextFunc);
     }
 
     static String boltToCudaTypeConverter(Type t) throws Exception {
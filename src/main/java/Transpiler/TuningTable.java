@@ -0,0 +1,156 @@
+package Transpiler;
+
+import AbstractSyntax.SizeParams.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/*
+ * Launch policy backed by a table of measured block shapes.
+ *
+ * An offline tuning run times the kernels of a program with different block
+ * shapes and writes the best ones to a table file, which later compilations
+ * read back. A kernel is looked up by its signature and the sizes of its
+ * iteration space, kernels that are not in the table fall back to another
+ * policy. One entry per line, # starts a comment:
+ *
+ *   main_A(int[2],int) 4096x4 64x4
+ *
+ * The signature is the kernel's name with the types of its parameters (a
+ * tensor as its component type and rank), so an entry no longer applies once
+ * the defer block uses different variables. Sizes only known at run time are
+ * written as the name of the size variable.
+ *
+ * With recording on, the fallback's choice for every kernel that is not in
+ * the table is added to it, so writing the table after a compilation gives a
+ * tuner every kernel of the program to start from.
+ */
+public class TuningTable implements LaunchPolicy {
+    private final LaunchPolicy fallback;
+    private final Map<String, int[]> entries = new TreeMap<>(); // "signature size" -> shape
+    private final Map<String, int[]> recorded = new TreeMap<>(); // choices of the fallback
+    private boolean recording = false;
+
+    public TuningTable(LaunchPolicy fallback) {
+        this.fallback = fallback;
+    }
+
+    // The table in file, which has to exist
+    public static TuningTable load(File file, LaunchPolicy fallback) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath() + " does not exist");
+        }
+        TuningTable table = new TuningTable(fallback);
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            table.read(in, file.getPath());
+        }
+        return table;
+    }
+
+    void read(BufferedReader in, String source) throws IOException {
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) continue;
+            if (fields.length != 3) {
+                throw new IOException(source + ":" + lineNumber + ": expected <kernel signature> <problem size> <block shape>");
+            }
+
+            int[] shape;
+            try {
+                shape = Arrays.stream(fields[2].split("x")).mapToInt(Integer::parseInt).toArray();
+            } catch (NumberFormatException e) {
+                throw new IOException(source + ":" + lineNumber + ": block shape " + fields[2] + " is not a list of numbers");
+            }
+            String error = LaunchPolicy.checkShape(shape, fields[1].split("x").length);
+            if (error != null) {
+                throw new IOException(source + ":" + lineNumber + ": block shape " + fields[2] + " " + error);
+            }
+            entries.put(fields[0] + " " + fields[1], shape);
+        }
+    }
+
+    // Adds the block shape of a kernel, replacing the one it had
+    public synchronized void put(String kernelSignature, String problemSize, int[] shape) {
+        String error = LaunchPolicy.checkShape(shape, problemSize.split("x").length);
+        if (error != null) {
+            throw new IllegalArgumentException("Block shape " + LaunchPolicy.shapeString(shape) + " " + error);
+        }
+        entries.put(kernelSignature + " " + problemSize, shape.clone());
+        recorded.remove(kernelSignature + " " + problemSize);
+    }
+
+    // The block shape in the table, null if the kernel isn't in it
+    public synchronized int[] lookup(String kernelSignature, String problemSize) {
+        int[] shape = entries.get(kernelSignature + " " + problemSize);
+        return shape != null ? shape.clone() : null;
+    }
+
+    // Add the fallback's choices to the table from now on
+    public synchronized void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    @Override
+    public int[] blockShape(String kernelSignature, List<SizeParam> sizes) {
+        String key = kernelSignature + " " + LaunchPolicy.problemSize(sizes);
+        synchronized (this) {
+            int[] shape = entries.get(key);
+            if (shape != null) {
+                return shape.clone();
+            }
+        }
+
+        int[] shape = fallback.blockShape(kernelSignature, sizes);
+        if (recording) {
+            synchronized (this) {
+                recorded.putIfAbsent(key, shape.clone());
+            }
+        }
+        return shape;
+    }
+
+    // Recorded choices are left out, they are the fallback's anyway
+    @Override
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        appendEntries(sb, entries);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return "table " + HexFormat.of().formatHex(digest, 0, 8) + " " + fallback.describe();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Writes the entries and the recorded choices sorted by kernel, through a temporary file that is renamed
+    public synchronized void write(File file) throws IOException {
+        Map<String, int[]> all = new TreeMap<>(recorded);
+        all.putAll(entries);
+        StringBuilder sb = new StringBuilder("# <kernel signature> <problem size> <block shape>\n");
+        appendEntries(sb, all);
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            Files.writeString(temp.toPath(), sb, StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void appendEntries(StringBuilder sb, Map<String, int[]> table) {
+        for (Map.Entry<String, int[]> entry : table.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(LaunchPolicy.shapeString(entry.getValue())).append('\n');
+        }
+    }
+}
@@ -65,12 +65,21 @@ public class AstPrinter {
         dedent();
     }
 
-    private void printFuncDef(FuncDef func) {
-        if (func == null) {
+    private void printFuncDef(FuncDef first) {
+        if (first == null) {
             appendLine("NULL FUNCTION");
             return;
         }
 
+        for (FuncDef func = first; func != null; func = func.nextFunc) {
+            if (func != first) {
+                appendLine(""); // Empty line for readability
+            }
+            printSingleFuncDef(func);
+        }
+    }
+
+    private void printSingleFuncDef(FuncDef func) {
         appendLine("FUNCTION DEFINITION: " + func.procname);
         indent();
 
@@ -102,12 +111,6 @@ public class AstPrinter {
         dedent();
 
         dedent();
-
-        // Print the next function in the chain
-        if (func.nextFunc != null) {
-            appendLine(""); // Empty line for readability
-            printFuncDef(func.nextFunc);
-        }
     }
 
     private void printStmt(Stmt stmt) {
@@ -116,7 +119,18 @@ public class AstPrinter {
             return;
         }
 
-        if (stmt instanceof Comp) {
+        if (stmt instanceof Block) {
+            Block block = (Block) stmt;
+            appendLine("BLOCK (" + block.stmts.size() + " statements)");
+            indent();
+            for (int i = 0; i < block.stmts.size(); i++) {
+                appendLine("Statement " + (i + 1) + ":");
+                indent();
+                printStmt(block.stmts.get(i));
+                dedent();
+            }
+            dedent();
+        } else if (stmt instanceof Comp) {
             Comp comp = (Comp) stmt;
             appendLine("COMPOUND STATEMENT");
             indent();
@@ -0,0 +1,445 @@
+package boltparser;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.SizeParams.*;
+import AbstractSyntax.Statements.*;
+import AbstractSyntax.Types.*;
+import Lib.Pair;
+import Transpiler.Transpiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * On-disk cache of the generated code of single functions.
+ *
+ * A function is stored under a hash of everything its type checking and code
+ * generation depend on: its own syntax tree (which includes its signature and
+ * the declared types of its locals) and the signatures of the functions it
+ * refers to, and the settings of the code generation such as the launch
+ * policy. A name that is not a function is hashed as such, so adding a
+ * function with that name changes the key as well. The generated code of a
+ * function only depends on the function itself, kernels are named after it and
+ * their parameters are sorted, so a cached entry can be reused in any program.
+ *
+ * The kernels of a function are stored together with its host code, since they
+ * are generated from the function's own defer blocks and can't change without
+ * the function changing.
+ *
+ * Only functions without type errors are stored. Entries are written to a
+ * temporary file and renamed, so several compilations can share a directory.
+ */
+public class CompilationCache {
+    // Part of every key, bump it when the generated code changes for the same input
+    private static final String FORMAT_VERSION = "bolt-unit-13";
+
+    private final File directory;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public CompilationCache(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    // Hex SHA-256 of the function and the signatures it refers to, null if the function can't be cached.
+    // functions is the program's function table.
+    public String key(FuncDef f, Map<String, FuncDef> functions) {
+        return key(f, functions, "");
+    }
+
+    // Same as above for code generated with the given settings, e.g. the description of the launch policy
+    public String key(FuncDef f, Map<String, FuncDef> functions, String configuration) {
+        StringBuilder sb = new StringBuilder(FORMAT_VERSION).append('\n');
+        if (!configuration.isEmpty()) {
+            sb.append("config ").append(configuration).append('\n');
+        }
+        try {
+            appendFunction(sb, f);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        // Sorted, so the key does not depend on the order of the references in the body
+        Set<String> referenced = new TreeSet<>();
+        collectNames(f.funcBody, referenced);
+        collectNames(f.returnExpr, referenced);
+        for (String name : referenced) {
+            FuncDef callee = functions.get(name);
+            sb.append("\nref ");
+            appendName(sb, name);
+            if (callee == null) {
+                sb.append(" none");
+            } else {
+                sb.append(' ');
+                appendSignature(sb, callee);
+            }
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // The cached code of a function, null if there is none (or it can't be read)
+    public Transpiler.FunctionUnit load(String key, String functionName) {
+        File file = new File(directory, key + ".unit");
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!in.readUTF().equals(FORMAT_VERSION)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            int kernelCount = in.readInt();
+            int transferCount = in.readInt();
+            String hostCode = readString(in);
+            String kernelCode = readString(in);
+            hits.incrementAndGet();
+            return new Transpiler.FunctionUnit(functionName, hostCode, kernelCode, kernelCount, transferCount);
+        } catch (IOException e) {
+            // A damaged entry is a miss, it is overwritten when the function is stored again
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void store(String key, Transpiler.FunctionUnit unit) throws IOException {
+        File target = new File(directory, key + ".unit");
+        File temp = File.createTempFile(key, ".tmp", directory);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeUTF(FORMAT_VERSION);
+                out.writeInt(unit.kernelCount);
+                out.writeInt(unit.transferCount);
+                writeString(out, unit.hostCode);
+                writeString(out, unit.kernelCode);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence s) throws IOException {
+        byte[] bytes = s.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Names of all identifiers and called functions in a statement or expression
+    private static void collectNames(Stmt stmt, Set<String> names) {
+        switch (stmt) {
+            case null:
+                break;
+            case Declaration decl:
+                collectNames(decl.expr, names);
+                collectNames(decl.stmt, names);
+                break;
+            case Assign assign:
+                collectNames(assign.target, names);
+                collectNames(assign.expr, names);
+                break;
+            case Block block:
+                for (Stmt s : block.stmts) {
+                    collectNames(s, names);
+                }
+                break;
+            case Comp comp:
+                collectNames(comp.stmt1, names);
+                collectNames(comp.stmt2, names);
+                break;
+            case If ifStmt:
+                collectNames(ifStmt.cond, names);
+                collectNames(ifStmt.then, names);
+                collectNames(ifStmt.els, names);
+                break;
+            case While whileStmt:
+                collectNames(whileStmt.cond, names);
+                collectNames(whileStmt.stmt, names);
+                break;
+            case Defer defer:
+                collectNames(defer.stmt, names);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void collectNames(Expr expr, Set<String> names) {
+        switch (expr) {
+            case null:
+                break;
+            case Ident ident:
+                names.add(ident.name);
+                break;
+            case BinExpr binExpr:
+                collectNames(binExpr.left, names);
+                collectNames(binExpr.right, names);
+                break;
+            case UnExpr unExpr:
+                collectNames(unExpr.expr, names);
+                break;
+            case ParenExpr parenExpr:
+                collectNames(parenExpr.expr, names);
+                break;
+            case FuncCallExpr funcCall:
+                names.add(funcCall.name);
+                for (Expr param : funcCall.actualParameters) {
+                    collectNames(param, names);
+                }
+                break;
+            case TensorAccessExpr tensorAccess:
+                collectNames(tensorAccess.listExpr, names);
+                for (Expr index : tensorAccess.indices) {
+                    collectNames(index, names);
+                }
+                break;
+            case TensorDefExpr tensorDef:
+                for (Expr element : tensorDef.exprs) {
+                    collectNames(element, names);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Canonical text of a syntax tree. Names are length prefixed, so no two different trees give the same text.
+
+    private static void appendFunction(StringBuilder sb, FuncDef f) {
+        sb.append("(func ");
+        appendSignature(sb, f);
+        sb.append(' ');
+        appendName(sb, f.procname);
+        for (Pair<Type, String> param : f.formalParams) {
+            sb.append(' ');
+            appendName(sb, param.elem2);
+        }
+        sb.append(' ');
+        appendStmt(sb, f.funcBody);
+        sb.append(' ');
+        appendExpr(sb, f.returnExpr);
+        sb.append(')');
+    }
+
+    private static void appendSignature(StringBuilder sb, FuncDef f) {
+        sb.append("(sig ");
+        appendType(sb, f.returnType);
+        for (Pair<Type, String> param : f.formalParams) {
+            sb.append(' ');
+            appendType(sb, param.elem1);
+        }
+        sb.append(')');
+    }
+
+    private static void appendStmt(StringBuilder sb, Stmt stmt) {
+        switch (stmt) {
+            case null:
+                sb.append('_');
+                break;
+            case Declaration decl:
+                sb.append("(decl ");
+                appendType(sb, decl.t);
+                sb.append(' ');
+                appendName(sb, decl.ident);
+                sb.append(' ');
+                appendExpr(sb, decl.expr);
+                sb.append(' ');
+                appendStmt(sb, decl.stmt);
+                sb.append(')');
+                break;
+            case Assign assign:
+                sb.append("(assign ");
+                appendExpr(sb, assign.target);
+                sb.append(' ');
+                appendExpr(sb, assign.expr);
+                sb.append(')');
+                break;
+            case Block block:
+                sb.append("(block ").append(block.stmts.size());
+                for (Stmt s : block.stmts) {
+                    sb.append(' ');
+                    appendStmt(sb, s);
+                }
+                sb.append(')');
+                break;
+            case Comp comp:
+                sb.append("(comp ");
+                appendStmt(sb, comp.stmt1);
+                sb.append(' ');
+                appendStmt(sb, comp.stmt2);
+                sb.append(')');
+                break;
+            case If ifStmt:
+                sb.append("(if ");
+                appendExpr(sb, ifStmt.cond);
+                sb.append(' ');
+                appendStmt(sb, ifStmt.then);
+                sb.append(' ');
+                appendStmt(sb, ifStmt.els);
+                sb.append(')');
+                break;
+            case While whileStmt:
+                sb.append("(while ");
+                appendExpr(sb, whileStmt.cond);
+                sb.append(' ');
+                appendStmt(sb, whileStmt.stmt);
+                sb.append(')');
+                break;
+            case Defer defer:
+                sb.append("(defer");
+                for (Pair<String, SizeParam> dim : defer.dim) {
+                    sb.append(' ');
+                    appendName(sb, dim.elem1);
+                    sb.append(' ');
+                    appendSizeParam(sb, dim.elem2);
+                }
+                sb.append(' ');
+                appendStmt(sb, defer.stmt);
+                sb.append(')');
+                break;
+            default:
+                // Not hashed by content, so a key could be shared by different functions
+                throw new IllegalArgumentException("Can't hash statement " + stmt.getClass().getName());
+        }
+    }
+
+    private static void appendExpr(StringBuilder sb, Expr expr) {
+        switch (expr) {
+            case null:
+                sb.append('_');
+                break;
+            case BinExpr binExpr:
+                sb.append("(bin ").append(binExpr.op).append(' ');
+                appendExpr(sb, binExpr.left);
+                sb.append(' ');
+                appendExpr(sb, binExpr.right);
+                sb.append(')');
+                break;
+            case UnExpr unExpr:
+                sb.append("(un ").append(unExpr.op).append(' ');
+                appendExpr(sb, unExpr.expr);
+                sb.append(')');
+                break;
+            case Ident ident:
+                sb.append("(id ");
+                appendName(sb, ident.name);
+                sb.append(')');
+                break;
+            case IntVal intVal:
+                sb.append("(int ").append(intVal.value).append(')');
+                break;
+            case DoubleVal doubleVal:
+                sb.append("(double ").append(doubleVal.val).append(')');
+                break;
+            case BoolVal boolVal:
+                sb.append("(bool ").append(boolVal.value).append(')');
+                break;
+            case CharVal charVal:
+                sb.append("(char ").append((int) charVal.val).append(')');
+                break;
+            case ParenExpr parenExpr:
+                sb.append("(paren ");
+                appendExpr(sb, parenExpr.expr);
+                sb.append(')');
+                break;
+            case FuncCallExpr funcCall:
+                sb.append("(call ");
+                appendName(sb, funcCall.name);
+                for (Expr param : funcCall.actualParameters) {
+                    sb.append(' ');
+                    appendExpr(sb, param);
+                }
+                sb.append(')');
+                break;
+            case TensorAccessExpr tensorAccess:
+                sb.append("(access ");
+                appendExpr(sb, tensorAccess.listExpr);
+                for (Expr index : tensorAccess.indices) {
+                    sb.append(' ');
+                    appendExpr(sb, index);
+                }
+                sb.append(')');
+                break;
+            case TensorDefExpr tensorDef:
+                sb.append("(tensor");
+                for (Expr element : tensorDef.exprs) {
+                    sb.append(' ');
+                    appendExpr(sb, element);
+                }
+                sb.append(')');
+                break;
+            default:
+                throw new IllegalArgumentException("Can't hash expression " + expr.getClass().getName());
+        }
+    }
+
+    private static void appendType(StringBuilder sb, Type type) {
+        switch (type) {
+            case null:
+                sb.append('_');
+                break;
+            case SimpleType simpleType:
+                sb.append(simpleType.type);
+                break;
+            case TensorType tensorType:
+                sb.append("(tensor ").append(tensorType.componentType.type);
+                for (SizeParam dim : tensorType.dimensions) {
+                    sb.append(' ');
+                    appendSizeParam(sb, dim);
+                }
+                sb.append(')');
+                break;
+            default:
+                throw new IllegalArgumentException("Can't hash type " + type.getClass().getName());
+        }
+    }
+
+    private static void appendSizeParam(StringBuilder sb, SizeParam sizeParam) {
+        switch (sizeParam) {
+            case SPInt spInt:
+                sb.append(spInt.value);
+                break;
+            case SPIdent spIdent:
+                appendName(sb, spIdent.ident);
+                break;
+            default:
+                throw new IllegalArgumentException("Can't hash size parameter " + sizeParam);
+        }
+    }
+
+    private static void appendName(StringBuilder sb, String name) {
+        sb.append(name.length()).append(':').append(name);
+    }
+}
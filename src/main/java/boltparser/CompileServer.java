@@ -0,0 +1,310 @@
+package boltparser;
+
+import AbstractSyntax.Program.Prog;
+import Transpiler.GeneratedProgram;
+import Transpiler.OccupancyLaunchPolicy;
+import Transpiler.TuningTable;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Long running compiler that keeps the JVM and the compiler classes warm.
+ *
+ * Starting a JVM and running a cold Parser and TypeChecker for every file costs
+ * far more than compiling a typical BOLT program, so a build can start one
+ * server and send it every file instead. The server reads requests from stdin
+ * (answering on stdout) or from connections on a port of the loopback address,
+ * and returns the generated .cu file and kernels.h in the response instead of
+ * writing them to disk.
+ *
+ * Protocol, all text UTF-8, every header line ends with \n:
+ *   COMPILE <n>\n<n bytes of BOLT source>
+ *       -> OK <h> <k>\n<h bytes of the .cu file><k bytes of kernels.h>
+ *       -> ERROR <e>\n<e lines, one per parse or type error>
+ *   PING -> PONG
+ *   QUIT -> BYE, then the connection (or in stdin mode the server) stops
+ *
+ * Results are cached by source text, so compiling an unchanged file again only
+ * costs the lookup. With --cache-dir the functions of a changed file are also
+ * looked up in a CompilationCache, so only the functions that changed are
+ * compiled again.
+ */
+public class CompileServer {
+    private static final int DEFAULT_CACHE_SIZE = 64;
+    private static final int DEFAULT_WARMUP_ROUNDS = 50;
+
+    // Small program touching every phase, compiled at startup to get the JIT going
+    private static final String WARMUP_PROGRAM =
+            "func: int scale(int x) {\n" +
+            "    int y = x * 2 + 1;\n" +
+            "    if(y > 10) {\n" +
+            "        y = y - 10;\n" +
+            "    } else {\n" +
+            "        y = y + 1;\n" +
+            "    }\n" +
+            "    return y;\n" +
+            "}\n" +
+            "func: int main() {\n" +
+            "    vector[int, 4] a = {1, 2, 3, 4};\n" +
+            "    int k = scale(3);\n" +
+            "    while(k > 0) {\n" +
+            "        k = k - 1;\n" +
+            "    }\n" +
+            "    defer[(i, 4)] {\n" +
+            "        a[i] = a[i] * (k + 1);\n" +
+            "    }\n" +
+            "    return a[0];\n" +
+            "}\n";
+
+    private final CompilerPipeline pipeline;
+    private final Map<String, Response> cache;
+
+    // Answer to one COMPILE request, either the generated files or the errors
+    public static class Response {
+        public final GeneratedProgram program; // null if there were errors
+        public final List<String> errors;
+
+        Response(GeneratedProgram program, List<String> errors) {
+            this.program = program;
+            this.errors = errors;
+        }
+    }
+
+    public CompileServer(CompilerPipeline pipeline, int cacheSize) {
+        this.pipeline = pipeline;
+        // Access ordered, so the least recently used program is evicted first
+        this.cache = new LinkedHashMap<String, Response>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = -1; // -1 = stdin/stdout
+        int parallelism = 0;
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        int warmupRounds = DEFAULT_WARMUP_ROUNDS;
+        String cacheDir = null;
+        String tuningTable = null;
+        boolean verbose = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.equals("--parallel")) {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--parallel=")) {
+                parallelism = Integer.parseInt(arg.substring("--parallel=".length()));
+            } else if (arg.startsWith("--cache=")) {
+                cacheSize = Integer.parseInt(arg.substring("--cache=".length()));
+            } else if (arg.startsWith("--cache-dir=")) {
+                cacheDir = arg.substring("--cache-dir=".length());
+            } else if (arg.startsWith("--warmup=")) {
+                warmupRounds = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--tuning-table=")) {
+                tuningTable = arg.substring("--tuning-table=".length());
+            } else if (arg.equals("--verbose")) {
+                verbose = true;
+            } else {
+                System.err.println("Usage: java CompileServer [--port=<port>] [--parallel[=threads]] [--cache=<programs>] [--cache-dir=<dir>] [--warmup=<rounds>] [--tuning-table=<file>] [--verbose]");
+                return;
+            }
+        }
+
+        // The compiler phases print debug output to System.out, which in stdin mode is the response channel
+        PrintStream responseOut = System.out;
+        System.setOut(verbose ? System.err : new PrintStream(OutputStream.nullOutputStream()));
+
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+        CompilationCache functionCache = cacheDir != null ? new CompilationCache(new File(cacheDir)) : null;
+        CompilerPipeline pipeline = new CompilerPipeline(pool, functionCache);
+        if (tuningTable != null) {
+            pipeline.setLaunchPolicy(TuningTable.load(new File(tuningTable), new OccupancyLaunchPolicy()));
+        }
+        CompileServer server = new CompileServer(pipeline, cacheSize);
+
+        long start = System.nanoTime();
+        server.warmUp(warmupRounds);
+        System.err.println("Compile server warmed up in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        if (port < 0) {
+            server.serve(System.in, responseOut);
+        } else {
+            server.listen(port);
+        }
+        System.exit(0);
+    }
+
+    // Compiles a fixed program a number of times, bypassing the cache
+    public void warmUp(int rounds) throws Exception {
+        for (int i = 0; i < rounds; i++) {
+            compileUncached(WARMUP_PROGRAM);
+        }
+    }
+
+    // Accepts connections on the loopback address, each connection is served on its own thread
+    public void listen(int port) throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Compile server listening on " + serverSocket.getLocalSocketAddress());
+            while (true) {
+                Socket socket = serverSocket.accept();
+                connections.submit(() -> {
+                    try (Socket s = socket) {
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException e) {
+                        System.err.println("Connection failed: " + e.getMessage());
+                    }
+                    return null;
+                });
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    // Answers requests until QUIT or the end of the input
+    public void serve(InputStream rawIn, OutputStream rawOut) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(rawIn);
+        BufferedOutputStream out = new BufferedOutputStream(rawOut);
+
+        String header;
+        while ((header = readLine(in)) != null) {
+            if (header.isEmpty()) {
+                continue;
+            }
+            String[] parts = header.split(" ");
+            switch (parts[0]) {
+                case "COMPILE":
+                    int length;
+                    try {
+                        length = Integer.parseInt(parts[1]);
+                    } catch (RuntimeException e) {
+                        writeErrors(out, List.of("Malformed request: " + header));
+                        out.flush();
+                        return; // the source bytes can't be skipped without a length
+                    }
+                    byte[] source = in.readNBytes(length);
+                    if (source.length < length) {
+                        writeErrors(out, List.of("Unexpected end of input in request source"));
+                        out.flush();
+                        return;
+                    }
+                    writeResponse(out, compile(new String(source, StandardCharsets.UTF_8)));
+                    break;
+                case "PING":
+                    out.write("PONG\n".getBytes(StandardCharsets.UTF_8));
+                    break;
+                case "QUIT":
+                    out.write("BYE\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    return;
+                default:
+                    writeErrors(out, List.of("Unknown request: " + header));
+                    break;
+            }
+            out.flush();
+        }
+    }
+
+    // Returns the cached result for the same source, compiling it first if needed
+    public Response compile(String source) {
+        synchronized (cache) {
+            Response cached = cache.get(source);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // Compiled outside the lock, so two requests for the same new source may both compile it
+        Response response = compileUncached(source);
+        synchronized (cache) {
+            cache.put(source, response);
+        }
+        return response;
+    }
+
+    Response compileUncached(String source) {
+        ByteArrayOutputStream parseErrors = new ByteArrayOutputStream();
+        Parser parser = new Parser(Scanner.forSource(source));
+        parser.errors.errorStream = new PrintStream(parseErrors, true, StandardCharsets.UTF_8);
+        try {
+            parser.Parse();
+        } catch (RuntimeException e) {
+            return new Response(null, List.of("Error during parsing: " + e));
+        }
+
+        if (parser.hasErrors()) {
+            return new Response(null, lines(parseErrors.toString(StandardCharsets.UTF_8)));
+        }
+        Prog ast = parser.mainNode;
+        if (ast == null) {
+            return new Response(null, List.of("No AST generated (empty program)"));
+        }
+
+        try {
+            CompilerPipeline.Result result = pipeline.compile(ast);
+            if (result.hasErrors()) {
+                return new Response(null, result.errors);
+            }
+            return new Response(result.program, List.of());
+        } catch (Exception e) {
+            return new Response(null, List.of("Error during compilation: " + e));
+        }
+    }
+
+    private static void writeResponse(OutputStream out, Response response) throws IOException {
+        if (response.program == null) {
+            writeErrors(out, response.errors);
+            return;
+        }
+        byte[] hostCode = response.program.hostCode.getBytes(StandardCharsets.UTF_8);
+        byte[] kernelsHeader = response.program.kernelsHeader.getBytes(StandardCharsets.UTF_8);
+        out.write(("OK " + hostCode.length + " " + kernelsHeader.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(hostCode);
+        out.write(kernelsHeader);
+    }
+
+    private static void writeErrors(OutputStream out, List<String> errors) throws IOException {
+        StringBuilder sb = new StringBuilder("ERROR ").append(errors.size()).append("\n");
+        for (String error : errors) {
+            // One line per error, so the client can read them by count
+            sb.append(error.replace('\n', ' ').replace('\r', ' ')).append("\n");
+        }
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Reads up to and without the next \n, null at the end of the input
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> lines(String text) {
+        List<String> result = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (!line.isBlank()) {
+                result.add(line.strip());
+            }
+        }
+        return result;
+    }
+}
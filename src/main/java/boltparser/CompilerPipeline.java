@@ -0,0 +1,235 @@
+package boltparser;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Program.Prog;
+import AbstractSyntax.Statements.Defer;
+import DataflowAnalysis.CFGAnalysis;
+import DataflowAnalysis.CFGBuilder;
+import DataflowAnalysis.KernelFusion;
+import SemanticAnalysis.TypeChecker;
+import SemanticAnalysis.TypeEnvironment;
+import Transpiler.GeneratedProgram;
+import Transpiler.LaunchPolicy;
+import Transpiler.OccupancyLaunchPolicy;
+import Transpiler.OpenMPTranspiler;
+import Transpiler.Transpiler;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/*
+ * Runs the compiler phases after parsing for a whole program.
+ *
+ * Only building the global function table needs the whole program. After that,
+ * type checking, CFG construction, liveness analysis and code generation of a
+ * function only depend on the function itself and the function table, so every
+ * function is compiled as a separate task. With a ForkJoinPool the tasks run in
+ * parallel; without one they run on the calling thread.
+ *
+ * The per-function results are stitched together in program order and kernels
+ * are named after their function, so the output is identical to the sequential
+ * Transpiler no matter how the tasks are scheduled.
+ *
+ * With a CompilationCache, a function whose key is in the cache skips all of
+ * its phases and its stored code is used instead.
+ *
+ * Phase times and counters go to a CompilerStats if one is set.
+ *
+ * Kernel block shapes come from a LaunchPolicy, which is part of the cache key
+ * since it changes the generated code. With OpenMP on, the program is generated
+ * for the CPU by the OpenMPTranspiler instead, under a cache key of its own.
+ */
+public class CompilerPipeline {
+    private final ForkJoinPool pool; // null runs every task on the calling thread
+    private final CompilationCache cache; // null compiles every function
+    private CompilerStats stats = CompilerStats.DISABLED;
+    private boolean debug = false;
+    private LaunchPolicy launchPolicy = new OccupancyLaunchPolicy();
+    private boolean openMP = false;
+
+    // Everything the pipeline produced for one program
+    public static class Result {
+        public final List<String> errors = new ArrayList<>();
+        public final Map<String, FunctionCFGInfo> cfgs = new LinkedHashMap<>(); // functions taken from the cache have none
+        public TypeEnvironment globalTypes;
+        public GeneratedProgram program; // null if there were type errors
+        public int compiledFunctions;
+        public int cachedFunctions;
+
+        public boolean hasErrors() {
+            return !errors.isEmpty();
+        }
+    }
+
+    // Output of the per-function phases
+    private static class FunctionResult {
+        List<String> errors;
+        FunctionCFGInfo cfgInfo; // null if the function came from the cache
+        Transpiler.FunctionUnit unit;
+    }
+
+    public CompilerPipeline() {
+        this(null, null);
+    }
+
+    public CompilerPipeline(ForkJoinPool pool) {
+        this(pool, null);
+    }
+
+    public CompilerPipeline(ForkJoinPool pool, CompilationCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    public void setStats(CompilerStats stats) {
+        this.stats = stats;
+    }
+
+    // Turns on the [DEBUG] tracing of the code generation
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    public void setLaunchPolicy(LaunchPolicy launchPolicy) {
+        this.launchPolicy = launchPolicy;
+    }
+
+    // C++ with OpenMP loops instead of CUDA kernels
+    public void setOpenMP(boolean openMP) {
+        this.openMP = openMP;
+    }
+
+    public Result compile(Prog prog) throws Exception {
+        Result result = new Result();
+        stats.countProgram(prog);
+
+        // Global function table, shared read-only by all function tasks
+        TypeChecker checker = new TypeChecker();
+        stats.time("declare", () -> {
+            checker.declareFunctions(prog);
+            return null;
+        });
+        result.errors.addAll(checker.getErrors());
+        result.globalTypes = checker.getGlobalEnvironment();
+        Transpiler transpiler = openMP ? new OpenMPTranspiler(result.globalTypes) : new Transpiler(result.globalTypes, null);
+        transpiler.setDebug(debug);
+        transpiler.setLaunchPolicy(launchPolicy);
+        String configuration = openMP ? "openmp" : launchPolicy.describe();
+
+        List<FuncDef> functions = new ArrayList<>();
+        Map<String, FuncDef> functionTable = new HashMap<>();
+        for (FuncDef f = prog.func; f != null; f = f.nextFunc) {
+            functions.add(f);
+            functionTable.putIfAbsent(f.procname, f); // duplicates are reported by declareFunctions
+        }
+
+        List<FunctionResult> functionResults = new ArrayList<>();
+        if (pool == null) {
+            for (FuncDef f : functions) {
+                functionResults.add(compileFunction(checker, transpiler, configuration, functionTable, f));
+            }
+        } else {
+            List<ForkJoinTask<FunctionResult>> tasks = new ArrayList<>();
+            for (FuncDef f : functions) {
+                tasks.add(pool.submit(() -> compileFunction(checker, transpiler, configuration, functionTable, f)));
+            }
+            for (ForkJoinTask<FunctionResult> task : tasks) {
+                functionResults.add(join(task));
+            }
+        }
+
+        // Stitch in program order
+        List<Transpiler.FunctionUnit> units = new ArrayList<>();
+        for (FunctionResult fr : functionResults) {
+            result.errors.addAll(fr.errors);
+            if (fr.cfgInfo != null) {
+                result.cfgs.put(fr.cfgInfo.functionName, fr.cfgInfo);
+                result.compiledFunctions++;
+            } else {
+                result.cachedFunctions++;
+            }
+            if (fr.unit != null) {
+                units.add(fr.unit);
+                stats.count("kernels", fr.unit.kernelCount);
+                stats.count("memoryTransfers", fr.unit.transferCount);
+            }
+        }
+        stats.count("compiledFunctions", result.compiledFunctions);
+        stats.count("cachedFunctions", result.cachedFunctions);
+
+        if (!result.hasErrors()) {
+            result.program = stats.time("assemble", () -> transpiler.assemble(prog, units));
+        }
+        return result;
+    }
+
+    private FunctionResult compileFunction(TypeChecker checker, Transpiler transpiler, String configuration,
+                                           Map<String, FuncDef> functionTable, FuncDef f) throws Exception {
+        FunctionResult result = new FunctionResult();
+
+        String key = cache != null ? stats.time("cacheKey", () -> cache.key(f, functionTable, configuration)) : null;
+        if (key != null) {
+            result.unit = stats.time("cacheLoad", () -> cache.load(key, f.procname));
+            if (result.unit != null) {
+                result.errors = List.of();
+                return result;
+            }
+        }
+
+        result.errors = stats.time("typecheck", () -> {
+            TypeChecker functionChecker = checker.forkForFunction();
+            functionChecker.checkFunction(f);
+            return functionChecker.getErrors();
+        });
+
+        result.cfgInfo = stats.time("cfg", () -> analyzeFunction(f));
+        stats.count("cfgNodes", result.cfgInfo.allNodes.size());
+
+        if (result.errors.isEmpty()) {
+            result.unit = stats.time("codegen", () -> transpiler.transpileFunction(f, result.cfgInfo));
+            if (key != null) {
+                stats.time("cacheStore", () -> {
+                    cache.store(key, result.unit);
+                    return null;
+                });
+            }
+        }
+        return result;
+    }
+
+    // CFG construction and the dataflow analyses of one function, as done by Main. Adjacent defers
+    // are fused first, so the function is analyzed and transpiled with the fused kernels.
+    public static FunctionCFGInfo analyzeFunction(FuncDef func) {
+        List<Defer> fused = KernelFusion.fuseAdjacentDefers(func);
+        FunctionCFGInfo cfgInfo = buildCFG(func);
+        if (KernelFusion.eliminateIntermediates(func, fused, cfgInfo.allNodes, cfgInfo.liveness)) {
+            cfgInfo = buildCFG(func); // the kernels no longer use the replaced tensors
+        }
+
+        cfgInfo.useDef = CFGAnalysis.computeUseDefChains(cfgInfo.allNodes);
+        cfgInfo.optimized = CFGAnalysis.eliminateDeadCode(cfgInfo.allNodes, cfgInfo.liveness);
+        cfgInfo.transfers = CFGAnalysis.planMemoryTransfers(func, cfgInfo.allNodes, cfgInfo.liveness);
+        return cfgInfo;
+    }
+
+    private static FunctionCFGInfo buildCFG(FuncDef func) {
+        FunctionCFGInfo cfgInfo = new FunctionCFGInfo(func.procname);
+        CFGBuilder.CFGNode entry = new CFGBuilder().buildFunctionCFG(func);
+        Main.collectAllNodes(entry, new HashSet<>(), cfgInfo.allNodes);
+        cfgInfo.liveness = CFGAnalysis.performLiveness(cfgInfo.allNodes);
+        return cfgInfo;
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package boltparser;
+
+import AbstractSyntax.Definitions.FuncDef;
+import AbstractSyntax.Expressions.*;
+import AbstractSyntax.Program.Prog;
+import AbstractSyntax.Statements.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/*
+ * Timing and counters of one compilation, reported by --stats as JSON.
+ *
+ * A phase records wall time and the bytes allocated by the thread that ran it.
+ * Phases that run once per function are added up over all functions, so with
+ * a thread pool their sum can be larger than the total wall time.
+ *
+ * Safe to use from several threads. DISABLED records nothing, so the compiler
+ * can always be handed a CompilerStats without paying for the measurements.
+ */
+public class CompilerStats {
+    public static final CompilerStats DISABLED = new CompilerStats(false);
+
+    private static final com.sun.management.ThreadMXBean threadBean = allocationBean();
+
+    private final boolean enabled;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, PhaseTotals> phases = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private final Map<String, String> info = new LinkedHashMap<>();
+
+    // Body of a timed phase
+    public interface Phase<T> {
+        T run() throws Exception;
+    }
+
+    private static class PhaseTotals {
+        long calls;
+        long nanos;
+        long allocatedBytes;
+    }
+
+    public CompilerStats() {
+        this(true);
+    }
+
+    private CompilerStats(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public <T> T time(String phase, Phase<T> body) throws Exception {
+        if (!enabled) {
+            return body.run();
+        }
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        try {
+            return body.run();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            long bytes = allocatedBytes() - startBytes;
+            synchronized (this) {
+                PhaseTotals totals = phases.computeIfAbsent(phase, p -> new PhaseTotals());
+                totals.calls++;
+                totals.nanos += nanos;
+                totals.allocatedBytes += Math.max(0, bytes);
+            }
+        }
+    }
+
+    public synchronized void count(String counter, long amount) {
+        if (enabled) {
+            counters.merge(counter, amount, Long::sum);
+        }
+    }
+
+    // Free-form description of the run, e.g. the input file
+    public synchronized void info(String key, String value) {
+        if (enabled) {
+            info.put(key, value);
+        }
+    }
+
+    // Functions and AST nodes (statements and expressions) of a program
+    public void countProgram(Prog prog) {
+        if (!enabled || prog == null) {
+            return;
+        }
+        long functions = 0;
+        long nodes = 0;
+        for (FuncDef f = prog.func; f != null; f = f.nextFunc) {
+            functions++;
+            nodes += countNodes(f.funcBody) + countNodes(f.returnExpr);
+        }
+        count("functions", functions);
+        count("astNodes", nodes);
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder("{\n");
+        for (Map.Entry<String, String> entry : info.entrySet()) {
+            sb.append("  ");
+            appendString(sb, entry.getKey());
+            sb.append(": ");
+            appendString(sb, entry.getValue());
+            sb.append(",\n");
+        }
+        sb.append("  \"totalMillis\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+
+        sb.append("  \"phases\": {");
+        boolean first = true;
+        for (Map.Entry<String, PhaseTotals> entry : phases.entrySet()) {
+            PhaseTotals totals = entry.getValue();
+            sb.append(first ? "\n    " : ",\n    ");
+            appendString(sb, entry.getKey());
+            sb.append(": {\"calls\": ").append(totals.calls)
+                    .append(", \"millis\": ").append(millis(totals.nanos))
+                    .append(", \"allocatedBytes\": ").append(totals.allocatedBytes).append("}");
+            first = false;
+        }
+        sb.append(first ? "},\n" : "\n  },\n");
+
+        sb.append("  \"counters\": {");
+        first = true;
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            sb.append(first ? "\n    " : ",\n    ");
+            appendString(sb, entry.getKey());
+            sb.append(": ").append(entry.getValue());
+            first = false;
+        }
+        sb.append(first ? "}\n" : "\n  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static long allocatedBytes() {
+        return threadBean != null ? threadBean.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    // null if the JVM can't measure allocations, allocatedBytes are then reported as 0
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        return null;
+    }
+
+    private static long countNodes(Stmt stmt) {
+        switch (stmt) {
+            case null:
+                return 0;
+            case Declaration decl:
+                return 1 + countNodes(decl.expr) + countNodes(decl.stmt);
+            case Assign assign:
+                return 1 + countNodes(assign.target) + countNodes(assign.expr);
+            case Block block: {
+                long n = 1;
+                for (Stmt s : block.stmts) {
+                    n += countNodes(s);
+                }
+                return n;
+            }
+            case Comp comp:
+                return 1 + countNodes(comp.stmt1) + countNodes(comp.stmt2);
+            case If ifStmt:
+                return 1 + countNodes(ifStmt.cond) + countNodes(ifStmt.then) + countNodes(ifStmt.els);
+            case While whileStmt:
+                return 1 + countNodes(whileStmt.cond) + countNodes(whileStmt.stmt);
+            case Defer defer:
+                return 1 + countNodes(defer.stmt);
+            default:
+                return 1;
+        }
+    }
+
+    private static long countNodes(Expr expr) {
+        switch (expr) {
+            case null:
+                return 0;
+            case BinExpr binExpr:
+                return 1 + countNodes(binExpr.left) + countNodes(binExpr.right);
+            case UnExpr unExpr:
+                return 1 + countNodes(unExpr.expr);
+            case ParenExpr parenExpr:
+                return 1 + countNodes(parenExpr.expr);
+            case FuncCallExpr funcCall:
+                return 1 + countNodes(funcCall.actualParameters);
+            case TensorAccessExpr tensorAccess:
+                return 1 + countNodes(tensorAccess.listExpr) + countNodes(tensorAccess.indices);
+            case TensorDefExpr tensorDef:
+                return 1 + countNodes(tensorDef.exprs);
+            default:
+                return 1;
+        }
+    }
+
+    private static long countNodes(List<Expr> exprs) {
+        long n = 0;
+        for (Expr e : exprs) {
+            n += countNodes(e);
+        }
+        return n;
+    }
+}
@@ -2,6 +2,7 @@ package boltparser;
 
 import DataflowAnalysis.CFGBuilder;
 import DataflowAnalysis.CFGAnalysis;
+import DataflowAnalysis.TransferPlan;
 import java.util.*;
 
 // Shared class to hold CFG analysis results for a function
@@ -9,8 +10,9 @@ public class FunctionCFGInfo {
     public String functionName;
     public List<CFGBuilder.CFGNode> allNodes;
     public Map<CFGBuilder.CFGNode, CFGAnalysis.Liveness> liveness;
-    public Map<String, Set<CFGBuilder.CFGNode>> useDef;
+    public Map<CFGBuilder.CFGNode, Map<String, Set<CFGBuilder.CFGNode>>> useDef; // use -> variable -> reaching definitions
     public List<CFGBuilder.CFGNode> optimized;
+    public TransferPlan transfers; // host <-> device copies of the tensors used by kernels
 
     public FunctionCFGInfo(String name) {
         this.functionName = name;
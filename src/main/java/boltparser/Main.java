@@ -1,23 +1,156 @@
 package boltparser;
+import Transpiler.GeneratedProgram;
+import Transpiler.LaunchPolicy;
+import Transpiler.OccupancyLaunchPolicy;
+import Transpiler.OpenMPTranspiler;
 import Transpiler.Transpiler;
+import Transpiler.TuningTable;
 import AbstractSyntax.Definitions.FuncDef;
 import AbstractSyntax.Program.*;
 import DataflowAnalysis.CFGAnalysis;
 import DataflowAnalysis.CFGBuilder;
+import Interpreter.ExecutionError;
+import Interpreter.Interpreter;
+import JvmCompiler.CompiledProgram;
+import JvmCompiler.JvmCompiler;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import SemanticAnalysis.TypeChecker;
 import SemanticAnalysis.TypeEnvironment;
 
 public class Main {
+    private static final long MAPPED_SOURCE_BYTES = 64 * 1024;
 
     public static void main(String[] args) {
-        if (args.length < 1) {
-            System.out.println("Usage: java Main <input-file>");
+        if (args.length > 0 && args[0].equals("--server")) {
+            try {
+                CompileServer.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                System.err.println("Compile server failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        String filename = null;
+        int parallelism = 0; // 0 = classic sequential pipeline
+        String cacheDir = null;
+        boolean trace = false;
+        boolean statsRequested = false;
+        String statsFile = null; // null prints the report to stdout
+        String tuningTable = null;
+        String tuningTableOut = null;
+        boolean openMP = false;
+        boolean run = false;
+        boolean jvm = false;
+
+        for (String arg : args) {
+            if (arg.equals("--parallel")) {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--parallel=")) {
+                parallelism = Integer.parseInt(arg.substring("--parallel=".length()));
+            } else if (arg.startsWith("--cache-dir=")) {
+                cacheDir = arg.substring("--cache-dir=".length());
+            } else if (arg.equals("--trace")) {
+                trace = true;
+            } else if (arg.equals("--stats")) {
+                statsRequested = true;
+            } else if (arg.startsWith("--stats=")) {
+                statsRequested = true;
+                statsFile = arg.substring("--stats=".length());
+            } else if (arg.startsWith("--tuning-table=")) {
+                tuningTable = arg.substring("--tuning-table=".length());
+            } else if (arg.startsWith("--write-tuning-table=")) {
+                tuningTableOut = arg.substring("--write-tuning-table=".length());
+            } else if (arg.equals("--openmp")) {
+                openMP = true;
+            } else if (arg.equals("--run")) {
+                run = true;
+            } else if (arg.equals("--jvm")) {
+                jvm = true;
+            } else if (filename == null) {
+                filename = arg;
+            }
+        }
+
+        if (filename == null) {
+            System.out.println("Usage: java Main [--parallel[=threads]] [--cache-dir=<dir>] [--trace] [--stats[=<file>]]");
+            System.out.println("                 [--tuning-table=<file>] [--write-tuning-table=<file>] [--openmp] [--run [--jvm]] <input-file>");
+            System.out.println("       java Main --server [server options]");
+            System.out.println("  --trace               print the AST, the CFG and its analyses, and parser and code generation tracing");
+            System.out.println("  --stats               report phase times, allocations and counts as JSON");
+            System.out.println("  --tuning-table        take kernel block shapes from a tuning table, if it has them");
+            System.out.println("  --write-tuning-table  write the block shape of every kernel to a tuning table to start tuning from");
+            System.out.println("  --openmp              generate <input>.cpp with OpenMP loops for the CPU instead of CUDA");
+            System.out.println("  --run                 run main on the JVM instead of generating code, with --parallel threads for defer blocks");
+            System.out.println("  --jvm                 with --run, compile the program to JVM bytecode instead of interpreting it,");
+            System.out.println("                        elementwise defer blocks use the Vector API with java --add-modules jdk.incubator.vector");
+            return;
+        }
+
+        LaunchPolicy launchPolicy = new OccupancyLaunchPolicy();
+        TuningTable table = null;
+        if (tuningTable != null || tuningTableOut != null) {
+            try {
+                table = tuningTable != null ? TuningTable.load(new File(tuningTable), launchPolicy) : new TuningTable(launchPolicy);
+            } catch (IOException e) {
+                System.err.println("Error reading tuning table: " + e.getMessage());
+                return;
+            }
+            launchPolicy = table;
+        }
+        if (tuningTableOut != null) {
+            table.setRecording(true);
+            if (cacheDir != null) {
+                // Functions taken from the cache don't ask the policy, so their kernels would be missing
+                System.err.println("Not using the cache directory, --write-tuning-table needs every kernel");
+                cacheDir = null;
+            }
+        }
+
+        CompilerStats stats = statsRequested ? new CompilerStats() : CompilerStats.DISABLED;
+        stats.info("file", filename);
+        stats.info("mode", parallelism > 0 || cacheDir != null ? "pipeline" : "sequential");
+        stats.info("threads", String.valueOf(Math.max(1, parallelism)));
+
+        if (run) {
+            interpret(filename, parallelism, jvm);
             return;
         }
 
-        String filename = args[0];
+        // --stats without a file writes the report to stdout, so the progress messages go to stderr and the
+        // report can be parsed
+        PrintStream stdout = System.out;
+        if (statsRequested && statsFile == null) {
+            System.setOut(System.err);
+        }
+        try {
+            compile(filename, parallelism, cacheDir, trace, launchPolicy, openMP, stats);
+        } finally {
+            System.setOut(stdout);
+        }
+
+        if (tuningTableOut != null) {
+            try {
+                table.write(new File(tuningTableOut));
+            } catch (IOException e) {
+                System.err.println("Error writing tuning table to " + tuningTableOut + ": " + e.getMessage());
+            }
+        }
+
+        if (statsRequested) {
+            writeStats(stats, statsFile);
+        }
+    }
+
+    private static void compile(String filename, int parallelism, String cacheDir, boolean trace,
+                                LaunchPolicy launchPolicy, boolean openMP, CompilerStats stats) {
         System.out.println("Working Directory: " + System.getProperty("user.dir"));
         System.out.println("Attempting to parse file: " + filename);
 
@@ -28,14 +161,19 @@ public class Main {
                 return;
             }
 
-            Scanner scanner = new Scanner(filename);
+            // Large sources are mapped whole instead of read in 64KB windows
+            Scanner scanner = file.length() > MAPPED_SOURCE_BYTES ? Scanner.forMappedFile(filename) : new Scanner(filename);
             System.out.println("Scanner created successfully");
 
             Parser parser = new Parser(scanner);
+            parser.debugMode = trace;
             System.out.println("Parser created successfully");
 
             System.out.println("Starting parsing...");
-            parser.Parse();
+            stats.time("parse", () -> {
+                parser.Parse();
+                return null;
+            });
             System.out.println("Parsing completed");
 
             if (parser.hasErrors()) {
@@ -43,144 +181,282 @@ public class Main {
                 return;
             }
 
-            System.out.println("\n=== Abstract Syntax Tree - Program Structure ===\n");
             Prog ast = parser.mainNode;
             if (ast == null) {
                 System.out.println("No AST generated (empty program)");
-            } else {
+                return;
+            }
+
+            if (parallelism > 0 || cacheDir != null) {
+                compileWithPipeline(ast, baseFilename(filename), parallelism, cacheDir, trace, launchPolicy, openMP, stats);
+                return;
+            }
+            stats.countProgram(ast);
+
+            if (trace) {
+                System.out.println("\n=== Abstract Syntax Tree - Program Structure ===\n");
                 AstPrinter printer = new AstPrinter();
                 System.out.println(printer.printProgram(ast));
             }
 
-            System.out.println("\n=== Control Flow Graph ===\n");
-            CFGBuilder builder = new CFGBuilder();
+            // Checked before the analysis, which fuses defer blocks and rewrites the AST, like the pipeline does
+            System.out.println("\n=== Type Checking ===\n");
+            TypeChecker typeChecker = new TypeChecker();
+            try {
+                stats.time("typecheck", () -> {
+                    typeChecker.check(ast);
+                    return null;
+                });
+                System.out.println("Type checking completed successfully");
+            } catch (RuntimeException typeError) {
+                System.err.println("Type checking failed: " + typeError.getMessage());
+
+                // Print detailed error information
+                if (typeChecker.hasErrors()) {
+                    List<String> errors = typeChecker.getErrors();
+                    System.err.println("\nDetailed type checking errors:");
+                    for (int i = 0; i < errors.size(); i++) {
+                        System.err.println("  Error " + (i + 1) + ": " + errors.get(i));
+                    }
+                } else {
+                    System.err.println("No detailed error information available");
+                }
+
+                // Print the exception stack trace for debugging
+                System.err.println("\nException details:");
+                typeError.printStackTrace();
+                return;
+            }
+
+            // Get the global type environment
+            TypeEnvironment globalTypes = typeChecker.getGlobalEnvironment();
+
+            if (trace) {
+                System.out.println("\n=== Control Flow Graph ===\n");
+            }
 
             // NEW: Collect CFG analysis for all functions
             Map<String, FunctionCFGInfo> allFunctionCFGs = new HashMap<>();
 
             for (FuncDef func = ast.func; func != null; func = func.nextFunc) {
-                System.out.println("\n\n\n-----------------------------------------------------------");
-                System.out.println("Function: " + func.procname);
+                final FuncDef f = func;
+                FunctionCFGInfo cfgInfo = stats.time("cfg", () -> CompilerPipeline.analyzeFunction(f));
+                stats.count("cfgNodes", cfgInfo.allNodes.size());
 
-                // NEW: Create CFG info for this function
-                FunctionCFGInfo cfgInfo = new FunctionCFGInfo(func.procname);
+                if (trace) {
+                    printAnalysis(cfgInfo);
+                }
 
-                CFGBuilder.CFGNode entry = builder.buildFunctionCFG(func);
+                // NEW: Store CFG info for this function
+                allFunctionCFGs.put(func.procname, cfgInfo);
+            }
 
-                // Collect all nodes reachable from entry
-                Set<CFGBuilder.CFGNode> visited = new HashSet<>();
-                collectAllNodes(entry, visited, cfgInfo.allNodes);
+            System.out.println("\n=== Transpilation ===\n");
+            try {
+                // NEW: Pass CFG analysis to transpiler
+                Transpiler transpiler = openMP ? new OpenMPTranspiler(globalTypes) : new Transpiler(globalTypes, allFunctionCFGs);
+                transpiler.setDebug(trace);
+                transpiler.setLaunchPolicy(launchPolicy);
+                GeneratedProgram program = stats.time("codegen", () -> transpiler.generate(ast));
+                stats.time("write", () -> {
+                    program.write(baseFilename(filename));
+                    return null;
+                });
+                stats.count("kernels", program.kernelCount);
+                stats.count("memoryTransfers", program.transferCount);
+
+            } catch (Exception transpilerError) {
+                System.err.println("Error during transpilation: " + transpilerError.getMessage());
+                transpilerError.printStackTrace();
+            }
 
-                // Print raw CFG
-                printCFG(entry, new HashSet<>());
+        } catch (Exception e) {
+            System.err.println("Error during parsing: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
-                // Run analysis
-                cfgInfo.liveness = CFGAnalysis.performLiveness(cfgInfo.allNodes);
-                cfgInfo.useDef = CFGAnalysis.computeUseDefChains(cfgInfo.allNodes);
-                cfgInfo.optimized = CFGAnalysis.eliminateDeadCode(cfgInfo.allNodes, cfgInfo.liveness);
+    // The CFG of one function and the results of its analyses, printed with --trace
+    private static void printAnalysis(FunctionCFGInfo cfgInfo) {
+        System.out.println("\n\n\n-----------------------------------------------------------");
+        System.out.println("Function: " + cfgInfo.functionName);
 
-                // Output analyses
-                System.out.println("\n-- Liveness Info --");
-                for (CFGBuilder.CFGNode node : cfgInfo.allNodes) {
-                    CFGAnalysis.Liveness lv = cfgInfo.liveness.get(node);
-                    System.out.println("Node " + node.id + " IN: " + lv.in + " OUT: " + lv.out);
-                }
+        // Print raw CFG
+        printCFG(cfgInfo.allNodes.isEmpty() ? null : cfgInfo.allNodes.get(0), new HashSet<>());
 
-                System.out.println("\n-- Use-Def Chains --");
-                for (String var : cfgInfo.useDef.keySet()) {
-                    System.out.print(var + " defined at nodes: ");
-                    for (CFGBuilder.CFGNode def : cfgInfo.useDef.get(var)) {
-                        System.out.print(def.id + " ");
-                    }
-                    System.out.println();
-                }
+        // Output analyses
+        System.out.println("\n-- Liveness Info --");
+        for (CFGBuilder.CFGNode node : cfgInfo.allNodes) {
+            CFGAnalysis.Liveness lv = cfgInfo.liveness.get(node);
+            System.out.println("Node " + node.id + " IN: " + lv.in + " OUT: " + lv.out);
+        }
 
-                System.out.println("\n-- Optimized CFG (Dead Code Eliminated) --");
-                for (CFGBuilder.CFGNode node : cfgInfo.optimized) {
-                    System.out.println("Node ID: " + node.id + ", GEN: " + node.gen + ", KILL: " + node.kill);
+        System.out.println("\n-- Use-Def Chains --");
+        for (Map.Entry<CFGBuilder.CFGNode, Map<String, Set<CFGBuilder.CFGNode>>> use : cfgInfo.useDef.entrySet()) {
+            for (Map.Entry<String, Set<CFGBuilder.CFGNode>> chain : use.getValue().entrySet()) {
+                System.out.print("Node " + use.getKey().id + " uses " + chain.getKey() + " defined at nodes: ");
+                for (CFGBuilder.CFGNode def : chain.getValue()) {
+                    System.out.print(def.id + " ");
                 }
+                System.out.println();
+            }
+        }
 
-                System.out.println("\n-- Memory Transfers --");
-                CFGAnalysis.insertMemoryTransfers(cfgInfo.allNodes);
+        System.out.println("\n-- Optimized CFG (Dead Code Eliminated) --");
+        for (CFGBuilder.CFGNode node : cfgInfo.optimized) {
+            System.out.println("Node ID: " + node.id + ", GEN: " + node.gen + ", KILL: " + node.kill);
+        }
 
-                // NEW: Store CFG info for this function
-                allFunctionCFGs.put(func.procname, cfgInfo);
+        System.out.println("\n-- Memory Transfers --");
+        System.out.print(cfgInfo.transfers);
 
-                System.out.println("-----------------------------------------------------------");
+        System.out.println("-----------------------------------------------------------");
+    }
+
+    // Type checks the program and runs its main function with the Interpreter, or compiled to JVM bytecode,
+    // sequentially unless parallelism > 0
+    private static void interpret(String filename, int parallelism, boolean compileToJvm) {
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+        try {
+            Parser parser = new Parser(new Scanner(filename));
+            parser.Parse();
+            if (parser.hasErrors() || parser.mainNode == null) {
+                System.out.println("Errors occurred during parsing!");
+                return;
             }
 
-            System.out.println("\n=== Type Checking ===\n");
             TypeChecker typeChecker = new TypeChecker();
             try {
-                typeChecker.check(ast);
-                System.out.println("Type checking completed successfully");
-
-                // Get the global type environment
-                TypeEnvironment globalTypes = typeChecker.getGlobalEnvironment();
+                typeChecker.check(parser.mainNode);
+            } catch (RuntimeException typeError) {
+                System.err.println("Type checking failed with " + typeChecker.getErrors().size() + " error(s)");
+                for (String error : typeChecker.getErrors()) {
+                    System.err.println("  " + error);
+                }
+                return;
+            }
 
-                System.out.println("\n=== Transpilation ===\n");
+            Object result;
+            if (compileToJvm) {
+                CompiledProgram program;
                 try {
-                    String baseFilename;
-                    if (filename.contains(".")) {
-                        baseFilename = filename.substring(0, filename.lastIndexOf('.'));
-                    } else {
-                        baseFilename = filename;
-                    }
-
-                    // NEW: Pass CFG analysis to transpiler
-                    Transpiler.TranspileProg(baseFilename, ast, globalTypes, allFunctionCFGs);
-
-                } catch (Exception transpilerError) {
-                    System.err.println("Error during transpilation: " + transpilerError.getMessage());
-                    transpilerError.printStackTrace();
+                    program = JvmCompiler.compile(parser.mainNode, pool);
+                } catch (Exception e) {
+                    System.err.println("Error compiling " + filename + " for the JVM: " + e.getMessage());
+                    return;
                 }
+                result = program.call("main");
+            } else {
+                result = new Interpreter(parser.mainNode, pool).call("main");
+            }
+            System.out.println("main returned " + result);
+        } catch (ExecutionError e) {
+            System.err.println("Error running " + filename + ": " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error during parsing: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
 
-            } catch (RuntimeException typeError) {
-                System.err.println("Type checking failed: " + typeError.getMessage());
-
-                // Print detailed error information
-                if (typeChecker.hasErrors()) {
-                    List<String> errors = typeChecker.getErrors();
-                    System.err.println("\nDetailed type checking errors:");
-                    for (int i = 0; i < errors.size(); i++) {
-                        System.err.println("  Error " + (i + 1) + ": " + errors.get(i));
-                    }
-                } else {
-                    System.err.println("No detailed error information available");
+    // Type checking, CFG analysis and code generation with one task per function, on a ForkJoinPool if
+    // parallelism > 0 and skipping the functions found in the cache directory if there is one
+    private static void compileWithPipeline(Prog ast, String baseFilename, int parallelism, String cacheDir,
+                                            boolean trace, LaunchPolicy launchPolicy, boolean openMP, CompilerStats stats) throws Exception {
+        if (parallelism > 0) {
+            System.out.println("\n=== Parallel Compilation (" + parallelism + " threads) ===\n");
+        } else {
+            System.out.println("\n=== Compilation ===\n");
+        }
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+        CompilationCache cache = cacheDir != null ? new CompilationCache(new File(cacheDir)) : null;
+        try {
+            CompilerPipeline pipeline = new CompilerPipeline(pool, cache);
+            pipeline.setStats(stats);
+            pipeline.setDebug(trace);
+            pipeline.setLaunchPolicy(launchPolicy);
+            pipeline.setOpenMP(openMP);
+
+            long start = System.nanoTime();
+            CompilerPipeline.Result result = pipeline.compile(ast);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            if (result.hasErrors()) {
+                System.err.println("Type checking failed with " + result.errors.size() + " error(s)");
+                for (int i = 0; i < result.errors.size(); i++) {
+                    System.err.println("  Error " + (i + 1) + ": " + result.errors.get(i));
                 }
+                return;
+            }
 
-                // Print the exception stack trace for debugging
-                System.err.println("\nException details:");
-                typeError.printStackTrace();
+            stats.time("write", () -> {
+                result.program.write(baseFilename);
+                return null;
+            });
+            System.out.println("Compiled " + result.compiledFunctions + " functions (" + result.cachedFunctions
+                    + " from cache) in " + elapsedMillis + " ms");
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
             }
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error during parsing: " + e.getMessage());
-            e.printStackTrace();
+    private static void writeStats(CompilerStats stats, String statsFile) {
+        String json = stats.toJson();
+        if (statsFile == null) {
+            System.out.print(json);
+            return;
         }
+        try {
+            Files.write(Paths.get(statsFile), json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Error writing stats to " + statsFile + ": " + e.getMessage());
+        }
+    }
+
+    private static String baseFilename(String filename) {
+        if (filename.contains(".")) {
+            return filename.substring(0, filename.lastIndexOf('.'));
+        }
+        return filename;
     }
 
+    // Depth first preorder like collectAllNodes, so --trace doesn't overflow the call stack on long functions
     private static void printCFG(CFGBuilder.CFGNode node, Set<Integer> visited) {
-        if (node == null || visited.contains(node.id)) return;
-        visited.add(node.id);
-        System.out.println("Node ID: " + node.id +
-                ", GPU: " + node.inGPUContext +
-                ", GEN: " + node.gen +
-                ", KILL: " + node.kill);
-        for (CFGBuilder.CFGNode succ : node.successors) {
-            System.out.println("  -> " + succ.id);
-        }
-        for (CFGBuilder.CFGNode succ : node.successors) {
-            printCFG(succ, visited);
+        Deque<CFGBuilder.CFGNode> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            CFGBuilder.CFGNode current = stack.pop();
+            if (current == null || !visited.add(current.id)) continue;
+            System.out.println("Node ID: " + current.id +
+                    ", GPU: " + current.inGPUContext +
+                    ", GEN: " + current.gen +
+                    ", KILL: " + current.kill);
+            for (CFGBuilder.CFGNode succ : current.successors) {
+                System.out.println("  -> " + succ.id);
+            }
+            for (int i = current.successors.size() - 1; i >= 0; i--) {
+                stack.push(current.successors.get(i));
+            }
         }
     }
 
-    private static void collectAllNodes(CFGBuilder.CFGNode node, Set<CFGBuilder.CFGNode> visited, List<CFGBuilder.CFGNode> result) {
-        if (node == null || visited.contains(node)) return;
-        visited.add(node);
-        result.add(node);
-        for (CFGBuilder.CFGNode succ : node.successors) {
-            collectAllNodes(succ, visited, result);
+    // Depth first preorder from node, with an explicit stack so long functions don't overflow the call stack
+    static void collectAllNodes(CFGBuilder.CFGNode node, Set<CFGBuilder.CFGNode> visited, List<CFGBuilder.CFGNode> result) {
+        Deque<CFGBuilder.CFGNode> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            CFGBuilder.CFGNode current = stack.pop();
+            if (current == null || !visited.add(current)) continue;
+            result.add(current);
+            // Pushed in reverse so the first successor is visited first, as in a recursive walk
+            for (int i = current.successors.size() - 1; i >= 0; i--) {
+                stack.push(current.successors.get(i));
+            }
         }
     }
 }
\ No newline at end of file
@@ -77,21 +77,21 @@ private FuncDef chainFunctions(ArrayList<FuncDef> functions) {
     return result;
 }
 
-private Stmt toComp(ArrayList<Stmt> statements) {
+private Stmt toBlock(ArrayList<Stmt> statements) {
     if (statements == null || statements.isEmpty())
         return null;
 
     if (statements.size() == 1)
         return statements.get(0);
 
-    // Bygger compound statements tree, left to right
-    Stmt result = statements.get(0);
-    for (int i = 1; i < statements.size(); i++) {
-        if (statements.get(i) != null) {
-            result = new Comp(result, statements.get(i));
+    // One flat block instead of a chain of Comp nodes, so tree walks don't recurse once per statement
+    ArrayList<Stmt> stmts = new ArrayList<>(statements.size());
+    for (Stmt stmt : statements) {
+        if (stmt != null) {
+            stmts.add(stmt);
         }
     }
-    return result;
+    return new Block(stmts);
 }
 
 /*------------------------------------------------------------------------*/
@@ -256,7 +256,7 @@ private Stmt toComp(ArrayList<Stmt> statements) {
 		Expect(11);
 		Expect(12);
 		trace("Finished parsing function definition");
-		Stmt body = toComp(bodyStmts);
+		Stmt body = toBlock(bodyStmts);
 		result = new FuncDef(returnType, funcName, params, body, returnExpr, null);
 		trace("Function definition complete: " + funcName);
 		
@@ -370,7 +370,7 @@ private Stmt toComp(ArrayList<Stmt> statements) {
 			
 		}
 		Expect(12);
-		Stmt body = toComp(bodyStmts);
+		Stmt body = toBlock(bodyStmts);
 		result = new While(body, condition);
 		trace("Completed while statement with " + bodyStmts.size() + " body statements");
 		
@@ -433,8 +433,8 @@ private Stmt toComp(ArrayList<Stmt> statements) {
 			}
 			Expect(12);
 		}
-		Stmt thenBranch = toComp(thenStmts);
-		Stmt elseBranch = toComp(elseStmts);
+		Stmt thenBranch = toBlock(thenStmts);
+		Stmt elseBranch = toBlock(elseStmts);
 		result = new If(thenBranch, elseBranch, condition);
 		trace("Completed if statement: then=" + thenStmts.size() + " statements, else=" + elseStmts.size() + " statements");
 		
@@ -483,7 +483,7 @@ private Stmt toComp(ArrayList<Stmt> statements) {
 			if (tempStmt != null) bodyStmts.add(tempStmt); 
 		}
 		Expect(12);
-		Stmt body = toComp(bodyStmts);
+		Stmt body = toBlock(bodyStmts);
 		result = new Defer(dims, body);
 		trace("Completed defer block with " + bodyStmts.size() + " statements and " + dims.size() + " dimensions");
 		
@@ -3,6 +3,11 @@ package boltparser;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -58,18 +63,8 @@ class Buffer {
 		}
 	}
 
-	// don't use b after this call anymore
-	// called in UTF8Buffer constructor
-	protected Buffer(Buffer b) {
-		buf = b.buf;
-		bufStart = b.bufStart;
-		bufLen = b.bufLen;
-		fileLen = b.fileLen;
-		bufPos = b.bufPos;
-		file = b.file;
-		stream = b.stream;
-		// keep finalize from closing the file
-		b.file = null;
+	// for the buffers below, which don't read through buf
+	protected Buffer() {
 	}
 
 	protected void Close() {
@@ -181,12 +176,20 @@ class Buffer {
 // UTF8Buffer
 //-----------------------------------------------------------------------------------
 class UTF8Buffer extends Buffer {
-	UTF8Buffer(Buffer b) { super(b); }
+	private final Buffer in; // buffer of the undecoded bytes
+
+	UTF8Buffer(Buffer b) { in = b; }
+
+	protected void Close() { in.Close(); }
+
+	public int getPos() { return in.getPos(); }
+
+	public void setPos(int value) { in.setPos(value); }
 
 	public int Read() {
 		int ch;
 		do {
-			ch = super.Read();
+			ch = in.Read();
 			// until we find a utf8 start (0xxxxxxx or 11xxxxxx)
 		} while ((ch >= 128) && ((ch & 0xC0) != 0xC0) && (ch != EOF));
 		if (ch < 128 || ch == EOF) {
@@ -194,20 +197,20 @@ class UTF8Buffer extends Buffer {
 			// 0xxxxxxx or end of file character
 		} else if ((ch & 0xF0) == 0xF0) {
 			// 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
-			int c1 = ch & 0x07; ch = super.Read();
-			int c2 = ch & 0x3F; ch = super.Read();
-			int c3 = ch & 0x3F; ch = super.Read();
+			int c1 = ch & 0x07; ch = in.Read();
+			int c2 = ch & 0x3F; ch = in.Read();
+			int c3 = ch & 0x3F; ch = in.Read();
 			int c4 = ch & 0x3F;
 			ch = (((((c1 << 6) | c2) << 6) | c3) << 6) | c4;
 		} else if ((ch & 0xE0) == 0xE0) {
 			// 1110xxxx 10xxxxxx 10xxxxxx
-			int c1 = ch & 0x0F; ch = super.Read();
-			int c2 = ch & 0x3F; ch = super.Read();
+			int c1 = ch & 0x0F; ch = in.Read();
+			int c2 = ch & 0x3F; ch = in.Read();
 			int c3 = ch & 0x3F;
 			ch = (((c1 << 6) | c2) << 6) | c3;
 		} else if ((ch & 0xC0) == 0xC0) {
 			// 110xxxxx 10xxxxxx
-			int c1 = ch & 0x1F; ch = super.Read();
+			int c1 = ch & 0x1F; ch = in.Read();
 			int c2 = ch & 0x3F;
 			ch = (c1 << 6) | c2;
 		}
@@ -215,6 +218,100 @@ class UTF8Buffer extends Buffer {
 	}
 }
 
+//-----------------------------------------------------------------------------------
+// CharArrayBuffer  -- source text already in memory, positions are in characters
+//-----------------------------------------------------------------------------------
+final class CharArrayBuffer extends Buffer {
+	private final char[] chars;
+	private final int start; // index of the first character in chars
+	private final int end;   // index after the last character in chars
+	private int pos;         // current position relative to start
+
+	CharArrayBuffer(char[] chars, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > chars.length) {
+			throw new IllegalArgumentException("source out of bounds, offset: " + offset + ", length: " + length);
+		}
+		// a string has no encoding, so a byte order mark is only skipped
+		if (length > 0 && chars[offset] == '\uFEFF') { offset++; length--; }
+		this.chars = chars;
+		this.start = offset;
+		this.end = offset + length;
+	}
+
+	public int Read() {
+		int i = start + pos;
+		if (i < end) { pos++; return chars[i]; }
+		return EOF;
+	}
+
+	public int Peek() {
+		int i = start + pos;
+		return i < end ? chars[i] : EOF;
+	}
+
+	public String GetString(int beg, int end) {
+		return new String(chars, start + beg, end - beg);
+	}
+
+	public int getPos() {
+		return pos;
+	}
+
+	public void setPos(int value) {
+		if (value < 0 || value > end - start) {
+			throw new IllegalArgumentException("buffer out of bounds access, position: " + value);
+		}
+		pos = value;
+	}
+}
+
+//-----------------------------------------------------------------------------------
+// MappedBuffer  -- whole file mapped into memory, no reads or refills while scanning
+//-----------------------------------------------------------------------------------
+final class MappedBuffer extends Buffer {
+	private ByteBuffer data;
+	private final int len; // length of the file in bytes
+	private int pos;       // current position in bytes
+
+	MappedBuffer(String fileName) {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new UncheckedIOException(new IOException("File too large to scan: " + fileName));
+			}
+			len = (int) size;
+			// the mapping stays valid after the channel is closed
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, len);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not open file " + fileName, e);
+		}
+	}
+
+	protected void Close() {
+		data = null; // the mapping is released when it is garbage collected
+	}
+
+	public int Read() {
+		if (pos < len) return data.get(pos++) & 0xff; // mask out sign bits
+		return EOF;
+	}
+
+	public int Peek() {
+		return pos < len ? data.get(pos) & 0xff : EOF;
+	}
+
+	public int getPos() {
+		return pos;
+	}
+
+	public void setPos(int value) {
+		if (value < 0 || value > len) {
+			throw new IllegalArgumentException("buffer out of bounds access, position: " + value);
+		}
+		pos = value;
+	}
+}
+
 //-----------------------------------------------------------------------------------
 // StartStates  -- maps characters to start states of tokens
 //-----------------------------------------------------------------------------------
@@ -328,12 +425,39 @@ public class Scanner {
 		buffer = new Buffer(s);
 		Init();
 	}
+
+	private Scanner(Buffer b) {
+		buffer = b;
+		Init();
+	}
+
+	// Scans source text that is already in memory, token positions are in characters
+	public static Scanner forSource(CharSequence source) {
+		char[] chars;
+		if (source instanceof String s) {
+			chars = s.toCharArray();
+		} else {
+			chars = new char[source.length()];
+			for (int i = 0; i < chars.length; i++) chars[i] = source.charAt(i);
+		}
+		return new Scanner(new CharArrayBuffer(chars, 0, chars.length));
+	}
+
+	// chars[offset .. offset+length) must not change while the source is parsed
+	public static Scanner forSource(char[] chars, int offset, int length) {
+		return new Scanner(new CharArrayBuffer(chars, offset, length));
+	}
+
+	// Maps the whole file into memory instead of reading it in 64KB windows
+	public static Scanner forMappedFile(String fileName) {
+		return new Scanner(new MappedBuffer(fileName));
+	}
 	
 	void Init () {
 		pos = -1; line = 1; col = 0; charPos = -1;
 		oldEols = 0;
 		NextCh();
-		if (ch == 0xEF) { // check optional byte order mark for UTF-8
+		if (ch == 0xEF && !(buffer instanceof CharArrayBuffer)) { // check optional byte order mark for UTF-8
 			NextCh(); int ch1 = ch;
 			NextCh(); int ch2 = ch;
 			if (ch1 != 0xBB || ch2 != 0xBF) {
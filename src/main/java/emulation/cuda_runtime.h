@@ -0,0 +1,342 @@
+// CPU emulation of the part of the CUDA runtime the generated code uses, for testing
+// without a GPU. Compile the generated files as C++ with this directory first on the
+// include path, so it is found instead of the real cuda_runtime.h:
+//
+//     g++ -std=c++17 -x c++ -I<this directory> -I<directory of tensor.h> a.cu
+//
+// Work on a stream is queued and only runs when the host waits for something
+// (an event, a stream, a synchronous copy or free). The streams are then drained
+// newest first, each as far as its event waits allow, so a kernel that is missing
+// a wait on the work it depends on runs too early and computes the wrong result
+// instead of passing by luck. Fresh device memory is filled with a poison value
+// so a missing upload shows up as well. An upload from page-locked memory reads
+// the host buffer when it runs, so the host must not overwrite it before that.
+//
+// The threads of a block run one at a time, each on its own stack, and switch at
+// __syncthreads(): a pass runs every thread up to its next barrier (or its end), so
+// a thread only passes a barrier when all threads of its block have reached it.
+// Blocks run one after another, so __shared__ variables are static locals.
+#pragma once
+
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <deque>
+#include <functional>
+#include <map>
+#include <memory>
+#include <vector>
+#include <ucontext.h>
+
+#define __global__
+#define __device__
+#define __host__
+#define __shared__ static
+
+struct dim3 {
+    unsigned int x, y, z;
+    dim3(unsigned int x = 1, unsigned int y = 1, unsigned int z = 1) : x(x), y(y), z(z) {}
+};
+
+// Coordinates of the emulated thread, set before every call of a kernel
+inline dim3 blockIdx, threadIdx, blockDim, gridDim;
+
+typedef int cudaError_t;
+const cudaError_t cudaSuccess = 0;
+
+enum cudaMemcpyKind { cudaMemcpyHostToHost, cudaMemcpyHostToDevice, cudaMemcpyDeviceToHost, cudaMemcpyDeviceToDevice };
+
+const unsigned int cudaStreamNonBlocking = 1;
+const unsigned int cudaEventDisableTiming = 2;
+
+namespace bolt_emulation {
+
+struct Event {
+    long recorded = 0;  // records enqueued so far
+    long completed = 0; // records that have run
+};
+
+// An operation queued on a stream; a wait runs once its event reached the given record
+struct Op {
+    std::function<void()> work;
+    Event* waitFor = nullptr;
+    long generation = 0;
+};
+
+struct Stream {
+    std::deque<Op> ops;
+};
+
+// Registries are never destroyed, static pools of the program may still free memory at exit
+inline std::vector<Stream*>& streams() {
+    static std::vector<Stream*>* all = new std::vector<Stream*>();
+    return *all;
+}
+
+// Page-locked host allocations, start address to size
+inline std::map<const char*, size_t>& pinned() {
+    static std::map<const char*, size_t>* all = new std::map<const char*, size_t>();
+    return *all;
+}
+
+inline bool isPinned(const void* pointer) {
+    auto block = pinned().upper_bound((const char*) pointer);
+    if (block == pinned().begin()) return false;
+    --block;
+    return (const char*) pointer < block->first + block->second;
+}
+
+inline bool runnable(const Op& op) {
+    return op.waitFor == nullptr || op.waitFor->completed >= op.generation;
+}
+
+// Runs queued work, newest stream first, until done() holds or nothing can run anymore
+inline void drain(const std::function<bool()>& done) {
+    while (!done()) {
+        bool progress = false;
+        for (auto it = streams().rbegin(); it != streams().rend(); ++it) {
+            Stream* stream = *it;
+            while (!stream->ops.empty() && runnable(stream->ops.front())) {
+                Op op = stream->ops.front();
+                stream->ops.pop_front();
+                if (op.work) op.work();
+                progress = true;
+            }
+        }
+        if (!progress && !done()) {
+            std::fprintf(stderr, "cuda emulation: deadlock, queued work waits for an event that is never recorded\n");
+            std::abort();
+        }
+    }
+}
+
+inline void drainAll() {
+    drain([] {
+        for (Stream* stream : streams()) {
+            if (!stream->ops.empty()) return false;
+        }
+        return true;
+    });
+}
+
+// The default stream (0) is synchronous: everything queued before runs first, then the work itself
+inline void enqueue(Stream* stream, Op op) {
+    if (stream == nullptr) {
+        drainAll();
+        if (op.work) op.work();
+    } else {
+        stream->ops.push_back(std::move(op));
+    }
+}
+
+// One emulated thread of the running block
+struct Fiber {
+    ucontext_t context;
+    std::unique_ptr<char[]> stack;
+    dim3 index;
+    bool done = false;
+};
+
+const size_t FIBER_STACK_BYTES = 64 * 1024;
+
+struct BlockState {
+    ucontext_t scheduler;
+    Fiber* running = nullptr;
+    const std::function<void()>* body = nullptr;
+};
+
+inline BlockState& block() {
+    static BlockState state;
+    return state;
+}
+
+inline void runFiber() {
+    (*block().body)();
+    block().running->done = true;
+} // returns to the scheduler through uc_link
+
+// Runs body as every thread of one block, switching threads at __syncthreads()
+inline void runBlock(std::vector<Fiber>& fibers, const dim3& size, const std::function<void()>& body) {
+    size_t count = (size_t) size.x * size.y * size.z;
+    if (fibers.size() < count) fibers.resize(count);
+    BlockState& state = block();
+    state.body = &body;
+    for (size_t t = 0; t < count; t++) {
+        Fiber& fiber = fibers[t];
+        if (!fiber.stack) fiber.stack.reset(new char[FIBER_STACK_BYTES]);
+        fiber.index = dim3(t % size.x, t / size.x % size.y, t / ((size_t) size.x * size.y));
+        fiber.done = false;
+        getcontext(&fiber.context);
+        fiber.context.uc_stack.ss_sp = fiber.stack.get();
+        fiber.context.uc_stack.ss_size = FIBER_STACK_BYTES;
+        fiber.context.uc_link = &state.scheduler;
+        makecontext(&fiber.context, runFiber, 0);
+    }
+
+    bool waiting = true;
+    while (waiting) {
+        waiting = false;
+        for (size_t t = 0; t < count; t++) {
+            Fiber& fiber = fibers[t];
+            if (fiber.done) continue;
+            threadIdx = fiber.index;
+            state.running = &fiber;
+            swapcontext(&state.scheduler, &fiber.context);
+            waiting |= !fiber.done;
+        }
+    }
+    state.running = nullptr;
+}
+
+template <class... Params>
+struct Launch {
+    void (*kernel)(Params...);
+    dim3 grid, block;
+    Stream* stream;
+
+    template <class... Args>
+    void operator()(Args... args) const {
+        auto kernel = this->kernel;
+        dim3 grid = this->grid, block = this->block;
+        std::function<void()> work = [=]() {
+            gridDim = grid;
+            blockDim = block;
+            std::vector<Fiber> fibers;
+            std::function<void()> body = [&]() { kernel(args...); };
+            for (unsigned int bz = 0; bz < grid.z; bz++)
+            for (unsigned int by = 0; by < grid.y; by++)
+            for (unsigned int bx = 0; bx < grid.x; bx++) {
+                blockIdx = dim3(bx, by, bz);
+                runBlock(fibers, block, body);
+            }
+        };
+        enqueue(stream, Op{work});
+    }
+};
+
+} // namespace bolt_emulation
+
+// Back to the scheduler, which resumes this thread after every other thread of the block got here
+inline void __syncthreads() {
+    bolt_emulation::BlockState& state = bolt_emulation::block();
+    swapcontext(&state.running->context, &state.scheduler);
+}
+
+typedef bolt_emulation::Stream* cudaStream_t;
+typedef bolt_emulation::Event* cudaEvent_t;
+
+template <class... Params>
+bolt_emulation::Launch<Params...> bolt_launch(void (*kernel)(Params...), dim3 grid, dim3 block, cudaStream_t stream) {
+    return bolt_emulation::Launch<Params...>{kernel, grid, block, stream};
+}
+
+#define BOLT_LAUNCH(kernel, grid, block, stream) bolt_launch(kernel, grid, block, stream)
+
+template <class T>
+cudaError_t cudaMalloc(T** pointer, size_t size) {
+    void* memory = std::malloc(size > 0 ? size : 1);
+    std::memset(memory, 0x5A, size);
+    *pointer = static_cast<T*>(memory);
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaFree(void* pointer) {
+    bolt_emulation::drainAll();
+    std::free(pointer);
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaMemcpy(void* dst, const void* src, size_t size, cudaMemcpyKind) {
+    bolt_emulation::drainAll();
+    std::memcpy(dst, src, size);
+    return cudaSuccess;
+}
+
+template <class T>
+cudaError_t cudaMallocHost(T** pointer, size_t size) {
+    void* memory = std::malloc(size > 0 ? size : 1);
+    bolt_emulation::pinned()[(const char*) memory] = size;
+    *pointer = static_cast<T*>(memory);
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaFreeHost(void* pointer) {
+    bolt_emulation::drainAll();
+    bolt_emulation::pinned().erase((const char*) pointer);
+    std::free(pointer);
+    return cudaSuccess;
+}
+
+// Like CUDA, the source of an upload from pageable memory is copied before the call returns
+inline cudaError_t cudaMemcpyAsync(void* dst, const void* src, size_t size, cudaMemcpyKind kind, cudaStream_t stream) {
+    if (kind == cudaMemcpyHostToDevice && !bolt_emulation::isPinned(src)) {
+        auto staged = std::make_shared<std::vector<char>>((const char*) src, (const char*) src + size);
+        bolt_emulation::enqueue(stream, bolt_emulation::Op{[=]() { std::memcpy(dst, staged->data(), size); }});
+    } else {
+        bolt_emulation::enqueue(stream, bolt_emulation::Op{[=]() { std::memcpy(dst, src, size); }});
+    }
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaDeviceSynchronize() {
+    bolt_emulation::drainAll();
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaStreamCreateWithFlags(cudaStream_t* stream, unsigned int) {
+    *stream = new bolt_emulation::Stream();
+    bolt_emulation::streams().push_back(*stream);
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaStreamSynchronize(cudaStream_t stream) {
+    if (stream == nullptr) {
+        bolt_emulation::drainAll();
+    } else {
+        bolt_emulation::drain([=] { return stream->ops.empty(); });
+    }
+    return cudaSuccess;
+}
+
+// Queued work still runs, like CUDA does for a stream destroyed while busy
+inline cudaError_t cudaStreamDestroy(cudaStream_t stream) {
+    cudaStreamSynchronize(stream);
+    auto& all = bolt_emulation::streams();
+    for (size_t i = 0; i < all.size(); i++) {
+        if (all[i] == stream) {
+            all.erase(all.begin() + i);
+            break;
+        }
+    }
+    delete stream;
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaEventCreateWithFlags(cudaEvent_t* event, unsigned int) {
+    *event = new bolt_emulation::Event();
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaEventRecord(cudaEvent_t event, cudaStream_t stream) {
+    long generation = ++event->recorded;
+    bolt_emulation::enqueue(stream, bolt_emulation::Op{[=]() { event->completed = generation; }});
+    return cudaSuccess;
+}
+
+// Waits for the last record of the event enqueued so far; an event never recorded is complete
+inline cudaError_t cudaStreamWaitEvent(cudaStream_t stream, cudaEvent_t event, unsigned int) {
+    bolt_emulation::enqueue(stream, bolt_emulation::Op{nullptr, event, event->recorded});
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaEventSynchronize(cudaEvent_t event) {
+    long generation = event->recorded;
+    bolt_emulation::drain([=] { return event->completed >= generation; });
+    return cudaSuccess;
+}
+
+inline cudaError_t cudaEventDestroy(cudaEvent_t event) {
+    cudaEventSynchronize(event);
+    delete event;
+    return cudaSuccess;
+}
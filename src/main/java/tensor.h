@@ -1,6 +1,29 @@
+#pragma once
+
 #include <vector>
 #include <iostream>
+#include <cstdlib>
+#include <climits>
+#include <cfloat>
+#include <memory>
+#include <new>
+#include <type_traits>
+#include <unordered_map>
+
+// Programs without kernels (from the OpenMP backend) define BOLT_HOST_ONLY and don't need CUDA at all:
+// the qualifiers mean nothing and the device and page-locked memory come from malloc
+#ifdef BOLT_HOST_ONLY
+#define __device__
+#define __host__
+#else
 #include <cuda_runtime.h>
+#endif
+
+// Launch of a kernel on a stream, written as BOLT_LAUNCH(kernel, grid, block, stream)(arguments).
+// The CPU emulation (emulation/cuda_runtime.h) defines its own.
+#ifndef BOLT_LAUNCH
+#define BOLT_LAUNCH(kernel, grid, block, stream) kernel<<<grid, block, 0, stream>>>
+#endif
 
 // Device-compatible tensor access functions
 __device__ __host__ inline int tensor_access_1d(int* data, int index) {
@@ -27,8 +50,19 @@ __device__ __host__ inline void tensor_setAt_3d(int* data, int x, int y, int z,
     data[x * dims[1] * dims[2] + y * dims[2] + z] = value;
 }
 
+// Built-in min and max of BOLT, a double if either argument is one
+template <class T, class U>
+__device__ __host__ inline auto bolt_min(T a, U b) -> decltype(a + b) {
+    return a < b ? a : b;
+}
+
+template <class T, class U>
+__device__ __host__ inline auto bolt_max(T a, U b) -> decltype(a + b) {
+    return a < b ? b : a;
+}
+
 // Generic N-dimensional tensor access
-__device__ __host__ inline int tensor_access(int* data, int* indices, int* dims, int ndims) {
+__device__ __host__ inline int tensor_access(const int* data, const int* indices, const int* dims, int ndims) {
     int index = 0;
     int stride = 1;
 
@@ -40,7 +74,7 @@ __device__ __host__ inline int tensor_access(int* data, int* indices, int* dims,
     return data[index];
 }
 
-__device__ __host__ inline void tensor_set(int* data, int* indices, int* dims, int ndims, int value) {
+__device__ __host__ inline void tensor_set(int* data, const int* indices, const int* dims, int ndims, int value) {
     int index = 0;
     int stride = 1;
 
@@ -51,13 +85,250 @@ __device__ __host__ inline void tensor_set(int* data, int* indices, int* dims, i
     data[index] = value;
 }
 
+// Shape of a tensor, passed to kernels by value so it needs no device allocation or copy
+#define TENSOR_MAX_RANK 8
+
+struct TensorShape {
+    int dims[TENSOR_MAX_RANK];
+    int rank;
+};
+
+inline TensorShape tensor_shape(const std::vector<int>& dimensions) {
+    TensorShape shape;
+    shape.rank = dimensions.size() < TENSOR_MAX_RANK ? dimensions.size() : TENSOR_MAX_RANK;
+    for (int i = 0; i < TENSOR_MAX_RANK; i++) {
+        shape.dims[i] = i < shape.rank ? dimensions[i] : 0;
+    }
+    return shape;
+}
+
+// Where a DevicePool gets its memory from. The CUDA backend is the default; the host
+// backend uses malloc, so the pool can be tested without a GPU.
+struct DeviceMemoryBackend {
+    void* (*allocate)(size_t bytes); // nullptr if out of memory
+    void (*release)(void* pointer);
+};
+
+#ifndef BOLT_HOST_ONLY
+inline void* cuda_backend_allocate(size_t bytes) {
+    void* pointer = nullptr;
+    return cudaMalloc(&pointer, bytes) == cudaSuccess ? pointer : nullptr;
+}
+
+inline void cuda_backend_release(void* pointer) {
+    cudaFree(pointer);
+}
+
+inline void* pinned_backend_allocate(size_t bytes) {
+    void* pointer = nullptr;
+    return cudaMallocHost(&pointer, bytes) == cudaSuccess ? pointer : nullptr;
+}
+
+inline void pinned_backend_release(void* pointer) {
+    cudaFreeHost(pointer);
+}
+#endif
+
+inline void* host_backend_allocate(size_t bytes) {
+    return std::malloc(bytes);
+}
+
+inline void host_backend_release(void* pointer) {
+    std::free(pointer);
+}
+
+#ifdef BOLT_HOST_ONLY
+const DeviceMemoryBackend CUDA_MEMORY_BACKEND = {host_backend_allocate, host_backend_release};
+const DeviceMemoryBackend PINNED_MEMORY_BACKEND = {host_backend_allocate, host_backend_release};
+#else
+const DeviceMemoryBackend CUDA_MEMORY_BACKEND = {cuda_backend_allocate, cuda_backend_release};
+const DeviceMemoryBackend PINNED_MEMORY_BACKEND = {pinned_backend_allocate, pinned_backend_release};
+#endif
+const DeviceMemoryBackend HOST_MEMORY_BACKEND = {host_backend_allocate, host_backend_release};
+
+struct DevicePoolStats {
+    size_t bytesInUse;       // bucket sizes of the blocks handed out
+    size_t peakBytes;        // highest bytesInUse so far
+    size_t cachedBytes;      // released blocks kept for reuse
+    long hits;               // allocations served from the cache
+    long misses;             // allocations that went to the backend
+    long outstandingBlocks;  // allocated and not released yet
+
+    double hitRate() const {
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+};
+
+// Caching allocator for device buffers. Sizes are rounded up to a power of two (at least
+// 256 bytes, the alignment of cudaMalloc) and a released block stays in the list of its
+// size, so the next allocation of that size takes it without calling the backend. A defer
+// in a host loop then allocates its buffers once instead of every iteration.
+//
+// A block must not be released while a stream still uses it; the generated code waits
+// for the tensor's event first. The pool is not thread-safe.
+class DevicePool {
+    public:
+        explicit DevicePool(DeviceMemoryBackend backend = CUDA_MEMORY_BACKEND) : backend(backend) {}
+
+        ~DevicePool() {
+            trim();
+        }
+
+        DevicePool(const DevicePool&) = delete;
+        DevicePool& operator=(const DevicePool&) = delete;
+
+        void* allocate(size_t bytes) {
+            int bucket = bucketOf(bytes);
+            void* pointer;
+            if (!cached[bucket].empty()) {
+                pointer = cached[bucket].back();
+                cached[bucket].pop_back();
+                statistics.cachedBytes -= bucketSize(bucket);
+                statistics.hits++;
+            } else {
+                pointer = backend.allocate(bucketSize(bucket));
+                if (pointer == nullptr) {
+                    // Out of memory: give the cached blocks back and try once more
+                    trim();
+                    pointer = backend.allocate(bucketSize(bucket));
+                    if (pointer == nullptr) return nullptr;
+                }
+                statistics.misses++;
+            }
+            bucketOfBlock[pointer] = bucket;
+            statistics.bytesInUse += bucketSize(bucket);
+            if (statistics.bytesInUse > statistics.peakBytes) statistics.peakBytes = statistics.bytesInUse;
+            statistics.outstandingBlocks++;
+            return pointer;
+        }
+
+        void release(void* pointer) {
+            auto block = bucketOfBlock.find(pointer);
+            if (block == bucketOfBlock.end()) return; // not from this pool
+            int bucket = block->second;
+            bucketOfBlock.erase(block);
+            cached[bucket].push_back(pointer);
+            statistics.bytesInUse -= bucketSize(bucket);
+            statistics.cachedBytes += bucketSize(bucket);
+            statistics.outstandingBlocks--;
+        }
+
+        // Returns the cached blocks to the backend
+        void trim() {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                for (void* pointer : cached[bucket]) {
+                    backend.release(pointer);
+                }
+                cached[bucket].clear();
+            }
+            statistics.cachedBytes = 0;
+        }
+
+        DevicePoolStats stats() const {
+            return statistics;
+        }
+
+    private:
+        static const int BUCKETS = 64;
+        static const size_t MIN_BLOCK = 256;
+
+        DeviceMemoryBackend backend;
+        std::vector<void*> cached[BUCKETS];
+        std::unordered_map<void*, int> bucketOfBlock;
+        DevicePoolStats statistics = {};
+
+        static size_t bucketSize(int bucket) {
+            return MIN_BLOCK << bucket;
+        }
+
+        static int bucketOf(size_t bytes) {
+            int bucket = 0;
+            while (bucketSize(bucket) < bytes) bucket++;
+            return bucket;
+        }
+};
+
+// The pool the generated code allocates device buffers from
+inline DevicePool& bolt_device_pool() {
+    static DevicePool pool;
+    return pool;
+}
+
+// Page-locked host memory, cached like device memory since cudaMallocHost is even slower than cudaMalloc
+inline DevicePool& bolt_pinned_pool() {
+    static DevicePool pool(PINNED_MEMORY_BACKEND);
+    return pool;
+}
+
+// Allocator of tensor elements: ordinary pageable memory, or the blocks of a pool. Copies to and
+// from page-locked memory (the pinned pool) skip the staging copy of the driver and can run
+// asynchronously, so the generated code pins the tensors it keeps on the device.
+//
+// A copy of a tensor gets the allocator of the original; a tensor that is assigned to keeps its own.
+template <class T>
+struct TensorAllocator {
+    typedef T value_type;
+    typedef std::false_type propagate_on_container_copy_assignment;
+    typedef std::false_type propagate_on_container_move_assignment;
+    typedef std::true_type propagate_on_container_swap;
+
+    DevicePool* pool; // nullptr for pageable memory
+
+    TensorAllocator(DevicePool* pool = nullptr) : pool(pool) {}
+
+    template <class U>
+    TensorAllocator(const TensorAllocator<U>& other) : pool(other.pool) {}
+
+    T* allocate(size_t count) {
+        if (pool == nullptr) return std::allocator<T>().allocate(count);
+        void* pointer = pool->allocate(count * sizeof(T));
+        if (pointer == nullptr) throw std::bad_alloc();
+        return static_cast<T*>(pointer);
+    }
+
+    void deallocate(T* pointer, size_t count) {
+        if (pool == nullptr) {
+            std::allocator<T>().deallocate(pointer, count);
+        } else {
+            pool->release(pointer);
+        }
+    }
+
+    TensorAllocator select_on_container_copy_construction() const {
+        return *this;
+    }
+};
+
+template <class T, class U>
+bool operator==(const TensorAllocator<T>& a, const TensorAllocator<U>& b) {
+    return a.pool == b.pool;
+}
+
+template <class T, class U>
+bool operator!=(const TensorAllocator<T>& a, const TensorAllocator<U>& b) {
+    return a.pool != b.pool;
+}
+
+template <class T>
+using TensorStorage = std::vector<T, TensorAllocator<T>>;
+
+template <class T>
+TensorAllocator<T> pinned_tensor_allocator() {
+    return TensorAllocator<T>(&bolt_pinned_pool());
+}
+
 class IntTensor{
     public:
-        std::vector<int> components;
+        TensorStorage<int> components;
         std::vector<int> dimensions;
 
         IntTensor(std::vector<int> comp, std::vector<int> dim){
-            components = comp;
+            components.assign(comp.begin(), comp.end());
+            dimensions = dim;
+        }
+
+        IntTensor(std::vector<int> comp, std::vector<int> dim, TensorAllocator<int> allocator) : components(allocator){
+            components.assign(comp.begin(), comp.end());
             dimensions = dim;
         }
 
@@ -68,6 +339,16 @@ class IntTensor{
         // Add getData() and getDims() methods for kernel parameter passing
         int* getData() { return components.data(); }
         int* getDims() { return dimensions.data(); }
+        TensorShape shape() { return tensor_shape(dimensions); }
+
+        // Moves the elements to memory from the given allocator
+        void setAllocator(TensorAllocator<int> allocator) {
+            if (components.get_allocator() == allocator) return;
+            TensorStorage<int> moved(components.begin(), components.end(), allocator);
+            components.swap(moved);
+        }
+
+        void pin() { setAllocator(pinned_tensor_allocator<int>()); }
 
         int access(std::vector<int> indices){
             int realIndex = indices.back();
@@ -125,11 +406,16 @@ IntTensor operator*(int scalar, IntTensor const& tensor){
 
 class DoubleTensor{
     public:
-        std::vector<double> components;
+        TensorStorage<double> components;
         std::vector<int> dimensions;
 
         DoubleTensor(std::vector<double> comp, std::vector<int> dim){
-            components = comp;
+            components.assign(comp.begin(), comp.end());
+            dimensions = dim;
+        }
+
+        DoubleTensor(std::vector<double> comp, std::vector<int> dim, TensorAllocator<double> allocator) : components(allocator){
+            components.assign(comp.begin(), comp.end());
             dimensions = dim;
         }
 
@@ -140,6 +426,16 @@ class DoubleTensor{
         // Add getData() and getDims() methods for kernel parameter passing
         double* getData() { return components.data(); }
         int* getDims() { return dimensions.data(); }
+        TensorShape shape() { return tensor_shape(dimensions); }
+
+        // Moves the elements to memory from the given allocator
+        void setAllocator(TensorAllocator<double> allocator) {
+            if (components.get_allocator() == allocator) return;
+            TensorStorage<double> moved(components.begin(), components.end(), allocator);
+            components.swap(moved);
+        }
+
+        void pin() { setAllocator(pinned_tensor_allocator<double>()); }
 
         double access(std::vector<int> indices){
             int realIndex = indices.back();